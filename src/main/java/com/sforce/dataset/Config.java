@@ -41,4 +41,26 @@ public class Config {
 	public boolean noCompression = false;
 
 	public boolean debugMessages = false;
+
+	public boolean csvTokenizer = true; //Use the buffer based csv tokenizer, false = use the StreamTokenizer based parser
+
+	public boolean utf8Passthrough = true; //Digest UTF-8 files as bytes, text columns are copied to the output without decoding them
+
+	public int rowBatchSize = 1024; //Number of rows handed from the csv reader to the ebin writer at a time
+
+	public boolean streamingUpload = true; //Upload the file parts while the csv file is being digested
+
+	public int maxUploadThreads = 3; //Max number of file parts uploaded at the same time, shared by all uploads, each upload starts with 2 and adds more while the part latency holds, raise it to let the uploads grow further
+
+	public int gzipCompressionLevel = -1; //Gzip compression level from 1 (fastest) to 9 (smallest), -1 = default level
+
+	public int gzipThreads = 0; //Number of threads used to gzip the digested file, 0 = number of available processors, 1 = disable parallel gzip
+
+	public int parallelDigestThreads = 0; //Number of threads used to digest a csv file, 0 = number of available processors, 1 = disable parallel digest
+
+	public int digestCacheMB = 1024; //Max size of the digested files kept in the archive dir of a dataset for reuse when the same file is uploaded again, 0 = disable the digest cache
+
+	public int errorLogSample = 100; //Number of row errors written to the log, after that only every n-th error is logged, 0 = log every error
+
+	public boolean restPartUpload = false; //Upload the file parts as binary multipart REST requests streamed from the file, false = base64 encoded SOAP requests
 }
@@ -92,6 +92,9 @@ public class DatasetUtilConstants {
 	public static final String metadataJsonParam = "METADATA_JSON";
 	public static final String hdrIdParam = "HEADER_ID";
 	public static final String serverStatusParam = "SERVER_STATUS";
+	public static final String uploadConcurrencyParam = "UPLOAD_CONCURRENCY";
+	public static final String uploadPartLatencyParam = "UPLOAD_PART_LATENCY_MSECS";
+	public static final String uploadThroughputParam = "UPLOAD_MBPS";
 	public static final String clientId = "com.sforce.dataset.utils";
 	
 	public static final int max_error_threshhold = 10000;
@@ -99,6 +102,10 @@ public class DatasetUtilConstants {
 	public static boolean server = true;
 	
 	static com.sforce.dataset.Config systemConfig = null;
+
+	private static List<String> supportedDatePatterns = null;
+	private static long dateFormatsFileModified = -1L;
+	private static long dateFormatsFileLength = -1L;
 	
 	private static File currentDir =  new File("").getAbsoluteFile();
 	private static File userDir =  new File(System.getProperty("user.home"), "DatasetUtils").getAbsoluteFile();
@@ -341,7 +348,8 @@ public class DatasetUtilConstants {
 	boolean noCompression,
 	boolean debugMessages) throws JsonGenerationException, JsonMappingException, IOException, URISyntaxException
 	{
-		Config conf = new Config();
+		//Start from a copy of the current config so that settings not managed by the UI are preserved
+		Config conf = new ObjectMapper().convertValue(getSystemConfig(), Config.class);
 		conf.proxyUsername = proxyUsername;
 		conf.proxyPassword = proxyPassword;
 		conf.proxyNtlmDomain = proxyNtlmDomain;
@@ -460,6 +468,23 @@ public class DatasetUtilConstants {
 	public static LinkedHashSet<SimpleDateFormat> getSuportedDateFormats() 
 	{
 		LinkedHashSet<SimpleDateFormat> dateFormats = new LinkedHashSet<SimpleDateFormat>();
+		for(String dateformat:getSuportedDatePatterns())
+		{
+			SimpleDateFormat tmp = new SimpleDateFormat(dateformat);
+			tmp.setLenient(false);
+			dateFormats.add(tmp);
+		}
+		return dateFormats;		
+	}
+
+	/**
+	 * Gets the patterns of the supported date formats, in the order they should be tried.
+	 * The list is built once and is only rebuilt when the dateFormats.json file changes.
+	 *
+	 * @return the supported date patterns
+	 */
+	public static synchronized List<String> getSuportedDatePatterns() 
+	{
 		File configDir = new File(DatasetUtilConstants.getAppDir(),configDirName);
 		try {
 			FileUtils.forceMkdir(configDir);
@@ -467,9 +492,17 @@ public class DatasetUtilConstants {
 			e.printStackTrace();
 		}
 		File configFile = new File(configDir,dateFormatsFileName);
+		long lastModified = configFile.lastModified();
+		long length = configFile.length();
+		if(supportedDatePatterns != null && lastModified == dateFormatsFileModified && length == dateFormatsFileLength)
+		{
+			return supportedDatePatterns;
+		}
+
+		LinkedHashSet<String> datePatterns = new LinkedHashSet<String>();
 		ObjectMapper mapper = new ObjectMapper();	
 		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		if(configFile != null && configFile.exists())
+		if(configFile.exists())
 		{
 			InputStreamReader reader = null;
 			try {
@@ -483,9 +516,7 @@ public class DatasetUtilConstants {
 				         try
 				         {
 				        	 SimpleDateFormat sdf = new SimpleDateFormat(dateFormat);
-					   	     SimpleDateFormat tempSdf = new SimpleDateFormat(sdf.toPattern());
-						     tempSdf.setLenient(false);
-						     dateFormats.add(tempSdf);
+				        	 datePatterns.add(sdf.toPattern());
 				         }catch(Throwable t1)
 				         {
 				        	 t1.printStackTrace();
@@ -500,7 +531,7 @@ public class DatasetUtilConstants {
 			}
 		}
 		
-		if(dateFormats == null || dateFormats.isEmpty())
+		if(datePatterns.isEmpty())
 		{
 			LinkedHashSet<SimpleDateFormat> temp = DetectFieldTypes.getSuportedDateFormats();
 			List<String> dateFormatsList= new ArrayList<String>();
@@ -515,15 +546,13 @@ public class DatasetUtilConstants {
 			} catch (Throwable e) {
 				e.printStackTrace();
 			}
-			
-			for(String dateformat:dateFormatsList)
-			{
-				SimpleDateFormat tmp = new SimpleDateFormat(dateformat);
-				tmp.setLenient(false);
-				dateFormats.add(tmp);
-			}
+			datePatterns.addAll(dateFormatsList);
 		}
-		return dateFormats;		
+
+		supportedDatePatterns = Collections.unmodifiableList(new ArrayList<String>(datePatterns));
+		dateFormatsFileModified = lastModified;
+		dateFormatsFileLength = length;
+		return supportedDatePatterns;		
 	}
 	
 }
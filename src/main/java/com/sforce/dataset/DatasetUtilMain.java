@@ -163,11 +163,17 @@ public class DatasetUtilMain {
 						{
 							params.Operation = args[i];
 						}else if(args[i].equalsIgnoreCase("delete"))
+						{
+							params.Operation = args[i];							
+						}else if(args[i].equalsIgnoreCase("delta"))
+						{
+							params.Operation = args[i];							
+						}else if(args[i].equalsIgnoreCase("reprocess"))
 						{
 							params.Operation = args[i];							
 						}else
 						{
-							System.out.println("Invalid Operation {"+args[i]+"} Must be Overwrite or Upsert or Append or Delete");
+							System.out.println("Invalid Operation {"+args[i]+"} Must be Overwrite or Upsert or Append or Delete or Delta or Reprocess");
 							System.exit(-1);
 						}
 					}
@@ -258,6 +264,11 @@ public class DatasetUtilMain {
 					if(args[i]!=null && args[i].trim().equalsIgnoreCase("true"))
 						params.useBulkAPI = true;
 			}
+			else if(args[i-1].equalsIgnoreCase("--restPartUpload"))
+			{
+					if(args[i]!=null)
+						params.restPartUpload = args[i].trim().equalsIgnoreCase("true");
+			}
 			else if(args[i-1].equalsIgnoreCase("--uploadFormat"))
 			{
 					if(args[i]!=null && args[i].trim().equalsIgnoreCase("csv"))
@@ -502,6 +513,7 @@ public class DatasetUtilMain {
 		System.out.println("--sessionId : (Optional) the salesforce sessionId. if specified,specify endpoint");
 		System.out.println("--fileEncoding : (Optional) the encoding of the inputFile default UTF-8");
 		System.out.println("--uploadFormat : (Optional) the whether to upload as binary or csv. default binary");
+		System.out.println("--restPartUpload : (Optional) true to upload the file parts as binary REST requests, false for SOAP. default from config");
 //		System.out.println("--createNewDateParts : (Optional) wether to create new date parts");
 //		System.out.println("jsonConfig: (Optional) the dataflow definition json file");
 		System.out.println("*******************************************************************************\n");
@@ -738,7 +750,7 @@ public class DatasetUtilMain {
 			        session.start();
 					try
 					{
-						boolean status = DatasetLoader.uploadDataset(params.inputFile, params.schemaFile, params.uploadFormat, params.codingErrorAction,fileCharset, params.dataset, params.app, params.datasetLabel, params.Operation, params.useBulkAPI, partnerConnection, params.notificationLevel, params.notificationEmail, System.out);
+						boolean status = DatasetLoader.uploadDataset(params.inputFile, params.schemaFile, params.uploadFormat, params.codingErrorAction,fileCharset, params.dataset, params.app, params.datasetLabel, params.Operation, params.useBulkAPI, params.restPartUpload!=null ? params.restPartUpload : DatasetUtilConstants.getSystemConfig().restPartUpload, partnerConnection, params.notificationLevel, params.notificationEmail, System.out);
 						if(status)
 							session.end();
 						else
@@ -917,9 +929,15 @@ public class DatasetUtilMain {
 					}else if(params.Operation.equalsIgnoreCase("delete"))
 					{
 						params.Operation = "delete";							
+					}else if(params.Operation.equalsIgnoreCase("delta"))
+					{
+						params.Operation = "delta";							
+					}else if(params.Operation.equalsIgnoreCase("reprocess"))
+					{
+						params.Operation = "reprocess";							
 					}else
 					{
-						System.out.println("Invalid Operation {"+params.Operation+"} Must be Overwrite or Upsert or Append or Delete");
+						System.out.println("Invalid Operation {"+params.Operation+"} Must be Overwrite or Upsert or Append or Delete or Delta or Reprocess");
 						params.Operation = null;
 					}
 				}
@@ -47,6 +47,7 @@ public class DatasetUtilParams {
 	String notificationLevel = null; 
 	String notificationEmail = null;
 	boolean useBulkAPI = false;
+	Boolean restPartUpload = null; //null = Config.restPartUpload
 	boolean debug = false;
 	boolean server = true;
 	CodingErrorAction codingErrorAction = CodingErrorAction.REPORT;
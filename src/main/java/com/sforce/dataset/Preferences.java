@@ -34,4 +34,10 @@ public class Preferences {
 	public int fiscalMonthOffset = 0; //The month in which the fiscal quarter starts
 	public int firstDayOfWeek = -1; //1=SUNDAY, 2=MONDAY etc.. -1 the week starts on 1st day of year and is always 7 days long
 	public  boolean isYearEndFiscalYear = true; //Optional	public String proxyNtlmDomain = null;
+	public String sortEngine = "binary"; //binary = sorted runs are kept in a binary row format, csv = sorted runs are written as csv
+	public int sortThreads = 2; //Number of threads that sort the runs in parallel
+	public int sortMemoryMB = 0; //Memory the rows held by the sort may take, 0 = half of the available heap
+	public String sortRunCompression = "none"; //Compression of the sorted runs: none, lz4 or deflate
+	public boolean sortOnRead = true; //The digest reads the rows straight from the merge of the sorted runs, false = write the _sorted.csv file first
+	public int sortMergeThreads = 1; //Threads that merge key ranges of the sorted runs in parallel, more than 1 always writes the _sorted.csv file so that it can be digested in parallel
 }
@@ -30,12 +30,14 @@ import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import com.sforce.dataset.connector.metadata.FieldType;
+import com.sforce.dataset.util.RowBatchRing;
 
 
 public class InputPipeline  {
 	private int curRowIndex = -1;
 	private List<FieldType> fieldList;
 	private LinkedBlockingQueue<List<Object>> queue;
+	private RowBatchRing<List<Object>> ring;
 
 	public InputPipeline(LinkedBlockingQueue<List<Object>> queue, List<FieldType> fldList)
 			throws IOException {
@@ -46,8 +48,20 @@ public class InputPipeline  {
 		this.queue = queue;
 	}
 
+	public InputPipeline(RowBatchRing<List<Object>> ring, List<FieldType> fldList)
+			throws IOException {
+		if(fldList==null || fldList.isEmpty())		
+			throw new IllegalArgumentException("Input Argument {fldList} cannot be null");
+			
+		this.fieldList = fldList;
+		this.ring = ring;
+	}
+
+	/**
+	 * Gets the next row, when reading from a {@link RowBatchRing} null is returned once the ring is closed.
+	 */
 	public List<Object> get() throws Exception {
-		List<Object> next = queue.take();
+		List<Object> next = ring!=null ? ring.take() : queue.take();
 		this.curRowIndex += 1;
 		return next;
 	}
@@ -30,12 +30,14 @@ import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import com.sforce.dataset.connector.metadata.FieldType;
+import com.sforce.dataset.util.RowBatchRing;
 
 
 public class OutputPipeline  {
 	private int curRowIndex = 0;
 	private List<FieldType> fieldList;
 	private LinkedBlockingQueue<List<Object>> queue;
+	private RowBatchRing<List<Object>> ring;
 	
 	public OutputPipeline(LinkedBlockingQueue<List<Object>> queue, List<FieldType> fldList)
 			throws IOException {
@@ -46,6 +48,15 @@ public class OutputPipeline  {
 		this.queue = queue;
 	}
 
+	public OutputPipeline(RowBatchRing<List<Object>> ring, List<FieldType> fldList)
+			throws IOException {
+		if(fldList==null || fldList.isEmpty())		
+			throw new IllegalArgumentException("Input Argument {fldList} cannot be null");
+			
+		this.fieldList = fldList;
+		this.ring = ring;
+	}
+
 	public void setData(List<Object> data) throws ClassCastException, ClassNotFoundException, InterruptedException
 	{
 		if (data != null) {
@@ -71,7 +82,10 @@ public class OutputPipeline  {
 						}						
 				}
 			} //end for
-			queue.put(data);
+			if(ring!=null)
+				ring.put(data);
+			else
+				queue.put(data);
 			curRowIndex++;
 		}else
 		{
@@ -83,4 +97,12 @@ public class OutputPipeline  {
 		return curRowIndex;
 	}
 
+	/**
+	 * Publishes the rows still buffered in the {@link RowBatchRing} and tells the reader there are no more rows.
+	 */
+	public void close() {
+		if(ring!=null)
+			ring.close();
+	}
+
 }
\ No newline at end of file
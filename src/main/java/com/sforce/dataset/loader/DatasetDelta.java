@@ -0,0 +1,629 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.sforce.dataset.DatasetUtilConstants;
+import com.sforce.dataset.loader.file.schema.ext.FieldType;
+import com.sforce.dataset.util.CSVReader;
+import com.sforce.dataset.util.CsvWriter;
+import com.sforce.dataset.util.FileUtilsExt;
+
+/**
+ * The Class DatasetDelta.
+ *
+ * Works out which rows of a file changed since the last successful load of a
+ * dataset. A snapshot of every load is kept in the archive dir of the dataset,
+ * holding the uniqueId values of each row and a 64 bit hash of the row. The
+ * new file is streamed against the snapshot: rows whose uniqueId is new or
+ * whose hash differs are written to an upsert file, and the uniqueIds of the
+ * snapshot that are no longer in the file are written to a delete file. Only
+ * the 64 bit hash of the uniqueId and the row hash of each snapshot row are
+ * held in memory, the uniqueId values are read back from the snapshot file
+ * when the delete file is written.
+ *
+ * The new snapshot is written next to the old one and only replaces it when
+ * {@link #commit()} is called. The server processes an upload after it has
+ * been sent, so once the delta has been uploaded the new snapshot is kept as
+ * pending under the ids of the uploads, see {@link #setPending(List)}, until
+ * the server reports them as completed.
+ */
+public class DatasetDelta {
+
+	private static final int MAGIC = 0x44534e50;
+	private static final int VERSION = 1;
+	private static final int bufferSize = 64*1024;
+
+	private final File snapshotFile;
+	private final File newSnapshotFile;
+	private final File pendingSnapshotFile;
+	private final File pendingUploadsFile;
+	private final File upsertFile;
+	private final File deleteFile;
+	private boolean hasSnapshot = false;
+	private long totalRowCount = 0;
+	private long upsertRowCount = 0;
+	private long deleteRowCount = 0;
+
+	private DatasetDelta(File inputFile, File snapshotFile)
+	{
+		this.snapshotFile = snapshotFile;
+		this.newSnapshotFile = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".new");
+		this.pendingSnapshotFile = getPendingSnapshotFile(snapshotFile);
+		this.pendingUploadsFile = getPendingUploadsFile(snapshotFile);
+		String baseName = FilenameUtils.getBaseName(inputFile.getName());
+		this.upsertFile = new File(inputFile.getParentFile(), baseName + "_delta_upsert.csv");
+		this.deleteFile = new File(inputFile.getParentFile(), baseName + "_delta_delete.csv");
+	}
+
+	/**
+	 * Gets the snapshot file of a dataset.
+	 *
+	 * @param datasetArchiveDir the dataset archive dir
+	 * @param datasetAlias the dataset alias
+	 * @return the snapshot file
+	 */
+	public static File getSnapshotFile(File datasetArchiveDir, String datasetAlias)
+	{
+		return new File(datasetArchiveDir, datasetAlias + ".snapshot");
+	}
+
+	private static File getPendingSnapshotFile(File snapshotFile)
+	{
+		return new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".pending");
+	}
+
+	private static File getPendingUploadsFile(File snapshotFile)
+	{
+		return new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".pending.ids");
+	}
+
+	/**
+	 * Computes the delta of the file against the snapshot of the last load. If
+	 * there is no usable snapshot only the new snapshot is written and the
+	 * whole file has to be loaded.
+	 *
+	 * @param inputFile the input file, the first row is the header
+	 * @param cs the charset
+	 * @param delim the field delimiter
+	 * @param fields the fields of the schema
+	 * @param snapshotFile the snapshot file
+	 * @param logger the logger
+	 * @return the dataset delta
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static DatasetDelta compute(File inputFile, Charset cs, char delim, List<FieldType> fields, File snapshotFile, PrintStream logger) throws IOException
+	{
+		//The uniqueId fields are the key, the computed fields are not in the file
+		int columnCount = 0;
+		List<Integer> keyList = new ArrayList<Integer>();
+		long signature = 17;
+		for(FieldType field:fields)
+		{
+			if(field.isComputedField)
+				continue;
+			if(field.isUniqueId && field.getfType()==FieldType.STRING)
+				keyList.add(columnCount);
+			signature = signature * 31 + field.getName().hashCode();
+			signature = signature * 31 + field.getfType();
+			columnCount++;
+		}
+		if(keyList.isEmpty())
+		{
+			throw new IllegalArgumentException("The schema must have uniqueId set for atleast one field");
+		}
+		int[] keyColumns = new int[keyList.size()];
+		for(int i=0;i<keyColumns.length;i++)
+		{
+			keyColumns[i] = keyList.get(i);
+			signature = signature * 31 + keyColumns[i];
+		}
+
+		DatasetDelta delta = new DatasetDelta(inputFile, snapshotFile);
+		delta.discard();
+		KeyHashMap previous = null;
+		if(snapshotFile.exists())
+		{
+			previous = readSnapshot(snapshotFile, signature, keyColumns.length);
+			if(previous==null)
+				logger.println("Snapshot {"+snapshotFile+"} was taken with a different schema, it is ignored");
+		}
+		delta.hasSnapshot = previous != null;
+
+		CSVReader reader = new CSVReader(new FileInputStream(inputFile), cs.name(), new char[]{delim}, DatasetUtilConstants.getSystemConfig().csvTokenizer);
+		CsvWriter upsertWriter = null;
+		DataOutputStream snapshotOut = null;
+		List<String> header = null;
+		try
+		{
+			snapshotOut = openSnapshot(delta.newSnapshotFile, signature, keyColumns.length);
+			header = reader.nextRecord();
+			if(header == null)
+				throw new IOException("File {"+inputFile+"} is empty");
+			if(previous != null)
+				upsertWriter = openCsv(delta.upsertFile, cs, delim, header);
+			String[] key = new String[keyColumns.length];
+			List<String> row = null;
+			while((row = reader.nextRecord()) != null)
+			{
+				delta.totalRowCount++;
+				if(row.size() < columnCount)
+				{
+					//Let the load report the row as an error
+					if(upsertWriter != null)
+					{
+						upsertWriter.writeRecord(row);
+						delta.upsertRowCount++;
+					}
+					continue;
+				}
+				for(int i=0;i<keyColumns.length;i++)
+					key[i] = row.get(keyColumns[i]);
+				long keyHash = hash(Arrays.asList(key), key.length);
+				long rowHash = hash(row, columnCount);
+				writeRecord(snapshotOut, key, rowHash);
+				if(previous != null)
+				{
+					int slot = previous.find(keyHash);
+					if(slot >= 0)
+						previous.markSeen(slot);
+					if(slot < 0 || previous.valueAt(slot) != rowHash)
+					{
+						upsertWriter.writeRecord(row);
+						delta.upsertRowCount++;
+					}
+				}
+			}
+			snapshotOut.writeByte(0);
+			snapshotOut.writeLong(delta.totalRowCount);
+		}finally
+		{
+			reader.finalise();
+			if(upsertWriter != null)
+				upsertWriter.close();
+			IOUtils.closeQuietly(snapshotOut);
+		}
+
+		if(previous != null)
+			delta.writeDeletes(previous, signature, keyColumns, columnCount, header, cs, delim);
+		return delta;
+	}
+
+	/**
+	 * Writes the uniqueIds of the snapshot rows that were not seen in the file to the delete file.
+	 */
+	private void writeDeletes(KeyHashMap previous, long signature, int[] keyColumns, int columnCount, List<String> header, Charset cs, char delim) throws IOException
+	{
+		DataInputStream in = null;
+		CsvWriter deleteWriter = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(snapshotFile), bufferSize), bufferSize));
+			readSnapshotHeader(in, signature, keyColumns.length);
+			deleteWriter = openCsv(deleteFile, cs, delim, header);
+			String[] key = new String[keyColumns.length];
+			List<String> row = new ArrayList<String>(columnCount);
+			for(int i=0;i<columnCount;i++)
+				row.add(null);
+			while(in.readByte() != 0)
+			{
+				readKey(in, key);
+				in.readLong();
+				int slot = previous.find(hash(Arrays.asList(key), key.length));
+				if(slot >= 0 && !previous.isSeen(slot))
+				{
+					for(int i=0;i<keyColumns.length;i++)
+						row.set(keyColumns[i], key[i]);
+					deleteWriter.writeRecord(row);
+					deleteRowCount++;
+					//Only delete a uniqueId once even if the snapshot has it twice
+					previous.markSeen(slot);
+				}
+			}
+		}finally
+		{
+			IOUtils.closeQuietly(in);
+			if(deleteWriter != null)
+				deleteWriter.close();
+		}
+	}
+
+	/**
+	 * Replaces the snapshot of the last load with the snapshot of this file,
+	 * only call this once the server has processed the delta or the whole file.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void commit() throws IOException
+	{
+		discardPending(snapshotFile);
+		Files.move(newSnapshotFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Keeps the snapshot of this file as pending until the server has processed
+	 * the uploads of the delta, the snapshot of the last load is left in place.
+	 *
+	 * @param hdrIds the ids of the InsightsExternalData records of the uploads
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void setPending(List<String> hdrIds) throws IOException
+	{
+		discardPending(snapshotFile);
+		//The ids go first, a pending snapshot without them is never committed
+		BufferedWriter writer = null;
+		try
+		{
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pendingUploadsFile), StandardCharsets.UTF_8));
+			for(String hdrId:hdrIds)
+			{
+				writer.write(hdrId);
+				writer.write('\n');
+			}
+		}finally
+		{
+			IOUtils.closeQuietly(writer);
+		}
+		Files.move(newSnapshotFile.toPath(), pendingSnapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Gets the uploads the pending snapshot of a dataset is waiting for.
+	 *
+	 * @param snapshotFile the snapshot file
+	 * @return the ids of the InsightsExternalData records of the uploads, empty
+	 * if they are not known, or null if there is no pending snapshot
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static List<String> getPendingUploads(File snapshotFile) throws IOException
+	{
+		File pendingUploadsFile = getPendingUploadsFile(snapshotFile);
+		if(!getPendingSnapshotFile(snapshotFile).exists())
+		{
+			FileUtilsExt.deleteQuietly(pendingUploadsFile);
+			return null;
+		}
+		List<String> hdrIds = new ArrayList<String>();
+		if(pendingUploadsFile.exists())
+		{
+			for(String hdrId:Files.readAllLines(pendingUploadsFile.toPath(), StandardCharsets.UTF_8))
+			{
+				if(!hdrId.trim().isEmpty())
+					hdrIds.add(hdrId.trim());
+			}
+		}
+		return hdrIds;
+	}
+
+	/**
+	 * Replaces the snapshot of a dataset with its pending snapshot, once the
+	 * server has processed the uploads of the pending snapshot.
+	 *
+	 * @param snapshotFile the snapshot file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void commitPending(File snapshotFile) throws IOException
+	{
+		Files.move(getPendingSnapshotFile(snapshotFile).toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		FileUtilsExt.deleteQuietly(getPendingUploadsFile(snapshotFile));
+	}
+
+	/**
+	 * Deletes the pending snapshot of a dataset, the snapshot before it is kept.
+	 *
+	 * @param snapshotFile the snapshot file
+	 */
+	public static void discardPending(File snapshotFile)
+	{
+		FileUtilsExt.deleteQuietly(getPendingSnapshotFile(snapshotFile));
+		FileUtilsExt.deleteQuietly(getPendingUploadsFile(snapshotFile));
+	}
+
+	/**
+	 * Deletes the upsert and delete files, and the new snapshot unless it has been committed or set pending.
+	 */
+	public void discard()
+	{
+		FileUtilsExt.deleteQuietly(newSnapshotFile);
+		FileUtilsExt.deleteQuietly(upsertFile);
+		FileUtilsExt.deleteQuietly(deleteFile);
+	}
+
+	/**
+	 * Checks if there was a usable snapshot of the last load.
+	 *
+	 * @return true, if the delta can be loaded instead of the whole file
+	 */
+	public boolean hasSnapshot()
+	{
+		return hasSnapshot;
+	}
+
+	/**
+	 * Gets the upsert file.
+	 *
+	 * @return the upsert file
+	 */
+	public File getUpsertFile()
+	{
+		return upsertFile;
+	}
+
+	/**
+	 * Gets the delete file.
+	 *
+	 * @return the delete file
+	 */
+	public File getDeleteFile()
+	{
+		return deleteFile;
+	}
+
+	/**
+	 * Gets the total row count.
+	 *
+	 * @return the total row count
+	 */
+	public long getTotalRowCount()
+	{
+		return totalRowCount;
+	}
+
+	/**
+	 * Gets the upsert row count.
+	 *
+	 * @return the upsert row count
+	 */
+	public long getUpsertRowCount()
+	{
+		return upsertRowCount;
+	}
+
+	/**
+	 * Gets the delete row count.
+	 *
+	 * @return the delete row count
+	 */
+	public long getDeleteRowCount()
+	{
+		return deleteRowCount;
+	}
+
+	private static CsvWriter openCsv(File file, Charset cs, char delim, List<String> header) throws IOException
+	{
+		CsvWriter writer = new CsvWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), cs),bufferSize),delim,'"');
+		writer.writeRecord(header);
+		return writer;
+	}
+
+	private static DataOutputStream openSnapshot(File file, long signature, int keyColumnCount) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), bufferSize), bufferSize));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(signature);
+		out.writeInt(keyColumnCount);
+		return out;
+	}
+
+	private static boolean readSnapshotHeader(DataInputStream in, long signature, int keyColumnCount) throws IOException
+	{
+		return in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == signature && in.readInt() == keyColumnCount;
+	}
+
+	/**
+	 * Reads the key and row hashes of a snapshot, returns null if the snapshot
+	 * was taken with another schema or is not complete.
+	 */
+	private static KeyHashMap readSnapshot(File file, long signature, int keyColumnCount) throws IOException
+	{
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), bufferSize), bufferSize));
+			if(!readSnapshotHeader(in, signature, keyColumnCount))
+				return null;
+			KeyHashMap map = new KeyHashMap();
+			String[] key = new String[keyColumnCount];
+			while(in.readByte() != 0)
+			{
+				readKey(in, key);
+				map.put(hash(Arrays.asList(key), key.length), in.readLong());
+			}
+			if(in.readLong() != map.rowCount)
+				return null;
+			return map;
+		}catch(EOFException e)
+		{
+			return null;
+		}finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, String[] key, long rowHash) throws IOException
+	{
+		out.writeByte(1);
+		for(String value:key)
+		{
+			if(value == null)
+			{
+				out.writeInt(-1);
+				continue;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		out.writeLong(rowHash);
+	}
+
+	private static void readKey(DataInputStream in, String[] key) throws IOException
+	{
+		for(int i=0;i<key.length;i++)
+		{
+			int length = in.readInt();
+			if(length < 0)
+			{
+				key[i] = null;
+				continue;
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			key[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of the first count values, with a null marker and a
+	 * separator between the values, followed by the murmur3 finalizer.
+	 */
+	static long hash(List<String> values, int count)
+	{
+		long h = 0xcbf29ce484222325L;
+		for(int i=0;i<count;i++)
+		{
+			String value = values.get(i);
+			if(value == null)
+			{
+				h = (h ^ 0x1FFFF) * 0x100000001b3L;
+			}else
+			{
+				for(int j=0;j<value.length();j++)
+					h = (h ^ value.charAt(j)) * 0x100000001b3L;
+			}
+			h = (h ^ 0x10000) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * An open addressing map from key hash to row hash, with a seen flag per key.
+	 */
+	private static final class KeyHashMap {
+
+		private long[] keys = new long[1024];
+		private long[] values = new long[1024];
+		private BitSet seen = new BitSet();
+		private int size = 0;
+		private long rowCount = 0;
+
+		void put(long key, long value)
+		{
+			rowCount++;
+			//0 marks an empty slot
+			if(key == 0)
+				key = 1;
+			if((size + 1) * 4L > keys.length * 3L)
+				resize();
+			int slot = slot(key, keys);
+			if(keys[slot] == 0)
+				size++;
+			keys[slot] = key;
+			values[slot] = value;
+		}
+
+		int find(long key)
+		{
+			if(key == 0)
+				key = 1;
+			int slot = slot(key, keys);
+			return keys[slot] == 0 ? -1 : slot;
+		}
+
+		long valueAt(int slot)
+		{
+			return values[slot];
+		}
+
+		void markSeen(int slot)
+		{
+			seen.set(slot);
+		}
+
+		boolean isSeen(int slot)
+		{
+			return seen.get(slot);
+		}
+
+		private static int slot(long key, long[] keys)
+		{
+			int mask = keys.length - 1;
+			int slot = (int) (key ^ (key >>> 32)) & mask;
+			while(keys[slot] != 0 && keys[slot] != key)
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+
+		private void resize()
+		{
+			long[] oldKeys = keys;
+			long[] oldValues = values;
+			keys = new long[oldKeys.length * 2];
+			values = new long[oldValues.length * 2];
+			for(int i=0;i<oldKeys.length;i++)
+			{
+				if(oldKeys[i] != 0)
+				{
+					int slot = slot(oldKeys[i], keys);
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+	}
+}
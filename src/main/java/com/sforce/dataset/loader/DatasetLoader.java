@@ -34,14 +34,13 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.charset.CodingErrorAction;
 import java.nio.charset.MalformedInputException;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -57,7 +56,6 @@ import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipParameters;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -76,11 +74,14 @@ import com.sforce.dataset.flow.monitor.Session;
 import com.sforce.dataset.flow.monitor.ThreadContext;
 import com.sforce.dataset.loader.file.schema.ext.ExternalFileSchema;
 import com.sforce.dataset.loader.file.schema.ext.FieldType;
+import com.sforce.dataset.loader.file.sort.BinaryRunSort;
 import com.sforce.dataset.loader.file.sort.CsvExternalSort;
 import com.sforce.dataset.util.CSVReader;
 import com.sforce.dataset.util.CharsetChecker;
 import com.sforce.dataset.util.DatasetUtils;
 import com.sforce.dataset.util.FileUtilsExt;
+import com.sforce.dataset.util.ParallelGzipOutputStream;
+import com.sforce.dataset.util.RowBatchRing;
 import com.sforce.dataset.util.SfdcUtils;
 import com.sforce.soap.partner.GetUserInfoResult;
 import com.sforce.soap.partner.PartnerConnection;
@@ -101,9 +102,12 @@ public class DatasetLoader {
 
 	/** The Constant DEFAULT_BUFFER_SIZE. */
 	private static final int DEFAULT_BUFFER_SIZE = 8*1024*1024;
-	
-	/** The Constant EOF. */
-	private static final int EOF = -1;
+
+	/** The Constant ROW_BATCH_RING_SIZE, the number of row batches between the csv reader and the writer. */
+	private static final int ROW_BATCH_RING_SIZE = 4;
+
+	/** The Constant MAX_FILE_PART_SIZE, the max size of InsightsExternalDataPart.DataFile. */
+	private static final int MAX_FILE_PART_SIZE = 10*1024*1024;
 	
 	/** The Constant LF. */
 	private static final char LF = '\n';
@@ -124,9 +128,6 @@ public class DatasetLoader {
 	/** The Constant nf. */
 	public static final NumberFormat nf = NumberFormat.getIntegerInstance();
 	
-	/** The max num upload threads. */
-	private static int MAX_NUM_UPLOAD_THREADS = 3;
-	
 	/** The Constant logformat. */
 	static final SimpleDateFormat logformat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss.SSS zzz");
 	static
@@ -179,12 +180,42 @@ public class DatasetLoader {
  * @return true, if successful
  * @throws DatasetLoaderException the dataset loader exception
  */
-@SuppressWarnings("deprecation")
 	public static boolean uploadDataset(String inputFileString,String schemaFileString,
 			String uploadFormat, CodingErrorAction codingErrorAction,
 			Charset inputFileCharset, String datasetAlias,
 			String datasetFolder,String datasetLabel, String Operation, boolean useBulkAPI,
 			PartnerConnection partnerConnection,String notificationLevel, String notificationEmail, PrintStream logger) throws DatasetLoaderException
+	{
+		return uploadDataset(inputFileString, schemaFileString, uploadFormat, codingErrorAction, inputFileCharset, datasetAlias, datasetFolder, datasetLabel, Operation, useBulkAPI, DatasetUtilConstants.getSystemConfig().restPartUpload, partnerConnection, notificationLevel, notificationEmail, logger);
+	}
+
+	/**
+ * Upload dataset.
+ *
+ * @param inputFileString the input file string
+ * @param schemaFileString the input schema file string
+ * @param uploadFormat the upload format
+ * @param codingErrorAction the coding error action
+ * @param inputFileCharset the input file charset
+ * @param datasetAlias the dataset alias
+ * @param datasetFolder the dataset folder
+ * @param datasetLabel the dataset label
+ * @param Operation the operation
+ * @param useBulkAPI the use bulk api
+ * @param restPartUpload upload the file parts with REST requests instead of SOAP, ignored if useBulkAPI is true
+ * @param partnerConnection the partner connection
+ * @param logger the logger
+ * @param notificationLevel notificationLevel
+ * @param notificationEmail notificationEmail
+ * @return true, if successful
+ * @throws DatasetLoaderException the dataset loader exception
+ */
+@SuppressWarnings("deprecation")
+	public static boolean uploadDataset(String inputFileString,String schemaFileString,
+			String uploadFormat, CodingErrorAction codingErrorAction,
+			Charset inputFileCharset, String datasetAlias,
+			String datasetFolder,String datasetLabel, String Operation, boolean useBulkAPI, boolean restPartUpload,
+			PartnerConnection partnerConnection,String notificationLevel, String notificationEmail, PrintStream logger) throws DatasetLoaderException
 	{
 		File archiveDir = null;
 		File datasetArchiveDir = null;
@@ -194,12 +225,16 @@ public class DatasetLoader {
 		long digestTime = 0L;
 		long uploadTime = 0L;
 		boolean updateHdrJson = false;        
+		Map<Integer,FilePart> fileParts = null;
+		BlockingQueue<Map<Integer,FilePart>> partsQueue = null;
+		List<FilePartsUploaderThread> uploaders = null;
+		UploadConcurrencyController controller = null;
+		UploadManifest manifest = null;
 
 		ThreadContext tx = ThreadContext.get();
 		Session session = tx.getSession();
 		
 		//we only want a small capacity otherwise the reader thread will runaway
-		BlockingQueue<List<String>> q = new LinkedBlockingQueue<List<String>>(10);  
 
 		
 		if(uploadFormat==null||uploadFormat.trim().isEmpty())
@@ -334,6 +369,58 @@ public class DatasetLoader {
 			if(schemaFile==null)
 				schemaFile = ExternalFileSchema.getSchemaFile(inputFile, logger);
 			
+			//Reuse the gzip file of an earlier upload of the same file with the same schema
+			DigestCache digestCache = null;
+			String digestContentHash = null;
+			File digestInputFile = inputFile;
+			long digestCacheBytes = DatasetUtilConstants.getSystemConfig().digestCacheMB*1L*mb;
+			String cacheExt = FilenameUtils.getExtension(inputFile.getName());
+			//A file larger than the cache would evict every entry, and its own gzip file
+			if(digestCacheBytes > 0 && inputFile.length() <= digestCacheBytes && !Operation.equalsIgnoreCase("Delta") && !Operation.equalsIgnoreCase("Reprocess") && cacheExt != null && (cacheExt.equalsIgnoreCase("csv") || cacheExt.equalsIgnoreCase("txt")))
+			{
+				datasetArchiveDir = new File(new File(inputFile.getParent(),"archive"),datasetAlias);
+				FileUtils.forceMkdir(datasetArchiveDir);
+				digestCache = new DigestCache(datasetArchiveDir, digestCacheBytes, logger);
+				DigestCache.Entry entry = null;
+				long startTime = System.currentTimeMillis();
+				//The file is only hashed up front when an entry could match it, otherwise after the upload
+				if(digestCache.mayContain(inputFile.length()))
+				{
+					digestContentHash = DigestCache.hashFile(inputFile);
+					entry = digestCache.get(DigestCache.getKey(digestContentHash, schemaFile, uploadFormat));
+				}
+				long endTime = System.currentTimeMillis();
+				if(entry != null)
+				{
+					logger.println("\n*******************************************************************************");					
+					logger.println("File {"+inputFile+"} was already digested to {"+entry.getGzFile()+"}, Hash Time {"+nf.format(endTime-startTime) + "} msecs");
+					logger.println("*******************************************************************************\n");
+					String hdrId = insertFileHdr(partnerConnection, datasetAlias,datasetFolder, datasetLabel, entry.getMetadataJson(), uploadFormat, Operation, notificationLevel,  notificationEmail, logger);
+					if(hdrId ==null || hdrId.isEmpty())
+					{
+						throw new DatasetLoaderException("Error: failed to insert header row into the saleforce SObject");		
+					}
+					session.setParam(DatasetUtilConstants.hdrIdParam,hdrId);
+					startTime = System.currentTimeMillis();
+					status = uploadEM(entry.getGzFile(), uploadFormat, entry.getMetadataJson(), datasetAlias,datasetFolder, datasetLabel,useBulkAPI, restPartUpload, partnerConnection, hdrId, datasetArchiveDir, Operation, false, notificationLevel,  notificationEmail, logger);
+					endTime = System.currentTimeMillis();
+					uploadTime = endTime-startTime;
+					if(status)
+					{
+						String serverStatus = getUploadedFileStatus(partnerConnection, hdrId);
+						if(serverStatus!=null)
+						{
+							session.setParam(DatasetUtilConstants.serverStatusParam,serverStatus.toUpperCase());
+							if(serverStatus.equalsIgnoreCase("Failed") || serverStatus.replaceAll(" ", "").equalsIgnoreCase("NotProcessed"))
+							{
+								status = false;
+							}
+						}
+					}
+					return status;
+				}
+			}
+			
 			ExternalFileSchema schema = null;
 			String orgId = partnerConnection.getUserInfo().getOrganizationId();
 
@@ -341,7 +428,7 @@ public class DatasetLoader {
 			//If this is incremental, fetch last uploaded json instead of generating a new one
 			if(schemaFile == null || !schemaFile.exists() || schemaFile.length()==0)
 			{
-				if(Operation.equalsIgnoreCase("Append") || (Operation.equalsIgnoreCase("Upsert")) || (Operation.equalsIgnoreCase("Delete")))
+				if(Operation.equalsIgnoreCase("Append") || (Operation.equalsIgnoreCase("Upsert")) || (Operation.equalsIgnoreCase("Delete")) || (Operation.equalsIgnoreCase("Reprocess")))
 				{
 					schema = getLastUploadedJson(partnerConnection, datasetAlias, logger);
 					if(schemaFile != null && schema !=null)
@@ -426,7 +513,7 @@ public class DatasetLoader {
 
 			if(schema != null)
 			{
-				if((Operation.equalsIgnoreCase("Upsert") || Operation.equalsIgnoreCase("Delete")) && !ExternalFileSchema.hasUniqueID(schema))
+				if((Operation.equalsIgnoreCase("Upsert") || Operation.equalsIgnoreCase("Delete") || Operation.equalsIgnoreCase("Delta")) && !ExternalFileSchema.hasUniqueID(schema))
 				{
 					throw new DatasetLoaderException("Schema File {"+ExternalFileSchema.getSchemaFile(inputFile, logger) +"} must have uniqueId set for atleast one field");
 				}
@@ -463,6 +550,26 @@ public class DatasetLoader {
 			{
 				t.printStackTrace();
 			}
+
+			if(Operation.equalsIgnoreCase("Delta"))
+			{
+				if(!isParsable)
+				{
+					throw new DatasetLoaderException("Delta operation is only supported for csv files");
+				}
+				status = uploadDelta(inputFile, schemaFile, schema, uploadFormat, codingErrorAction, inputFileCharset, datasetAlias, datasetFolder, datasetLabel, useBulkAPI, restPartUpload, partnerConnection, notificationLevel, notificationEmail, datasetArchiveDir, logger);
+				return status;
+			}
+
+			if(Operation.equalsIgnoreCase("Reprocess"))
+			{
+				if(!isParsable)
+				{
+					throw new DatasetLoaderException("Reprocess operation is only supported for csv files");
+				}
+				status = uploadErrorRows(inputFile, schemaFile, schema, uploadFormat, codingErrorAction, inputFileCharset, datasetAlias, datasetFolder, datasetLabel, useBulkAPI, restPartUpload, partnerConnection, notificationLevel, notificationEmail, datasetArchiveDir, logger);
+				return status;
+			}
 			
 
 			//Insert header
@@ -481,7 +588,17 @@ public class DatasetLoader {
 			if(hdrId!=null)
 			{
 				File lastgzbinFile = new File(datasetArchiveDir, hdrId + "." + FilenameUtils.getBaseName(inputFile.getName()) + ".gz");
-				if(lastgzbinFile.exists())
+				if(PartFileOutputStream.getPartsFile(lastgzbinFile).exists())
+				{
+					//The parts must be uploaded the same way as last time, the file may still be incomplete if the digest failed 
+					if((fileParts = PartFileOutputStream.getCompletedParts(lastgzbinFile))!=null)
+					{
+						logger.println("Record {"+hdrId+"} is being reused from InsightsExternalData");
+					}else
+					{
+						hdrId = null;
+					}
+				}else if(lastgzbinFile.exists())
 				{
 					logger.println("Record {"+hdrId+"} is being reused from InsightsExternalData");
 					updateHdrJson = true;
@@ -509,17 +626,23 @@ public class DatasetLoader {
 				throw new DatasetLoaderException("Operation terminated on user request");
 			}
 
+			//The binary digest can read the rows straight from the merge of the sorted runs
+			boolean sortOnRead = false;
 			if(isParsable)
 			{	
-				long sortStartTime = System.currentTimeMillis();
-				File unsortedFile = inputFile;
-				inputFile = CsvExternalSort.sortFile(inputFile, inputFileCharset, false, 1, schema,schema.getFileFormat().getFieldsDelimitedBy().charAt(0));
-				long sortEndTime = System.currentTimeMillis();
-				if(unsortedFile != inputFile)
+				sortOnRead = uploadFormat.equalsIgnoreCase("binary") && CsvExternalSort.isSortOnRead(schema, orgId);
+				if(!sortOnRead)
 				{
-					logger.println("\n*******************************************************************************");									
-					logger.println(" File {"+inputFile.getName()+"}, sorted in Time {"+nf.format(sortEndTime-sortStartTime) + "} msecs");
-					logger.println("*******************************************************************************\n");					
+					long sortStartTime = System.currentTimeMillis();
+					File unsortedFile = inputFile;
+					inputFile = CsvExternalSort.sortFile(inputFile, inputFileCharset, false, 1, schema,schema.getFileFormat().getFieldsDelimitedBy().charAt(0), orgId, logger);
+					long sortEndTime = System.currentTimeMillis();
+					if(unsortedFile != inputFile)
+					{
+						logger.println("\n*******************************************************************************");									
+						logger.println(" File {"+inputFile.getName()+"}, sorted in Time {"+nf.format(sortEndTime-sortStartTime) + "} msecs");
+						logger.println("*******************************************************************************\n");					
+					}
 				}
 			}
 			
@@ -543,34 +666,98 @@ public class DatasetLoader {
 			}
 			
 			File lastgzbinFile = new File(datasetArchiveDir, hdrId + "." + FilenameUtils.getBaseName(inputFile.getName()) + ".gz");
-			if(!lastgzbinFile.exists())
+			if(fileParts!=null)
+			{
+				logger.println("Recovering process from last file {"+lastgzbinFile+"} upload");
+			}else if(!lastgzbinFile.exists())
 			{
 			if(uploadFormat.equalsIgnoreCase("binary") && isParsable)
 			{	
-				FileOutputStream fos = null;
+				//Upload the file parts while the file is being digested, instead of after
+				boolean streaming = !useBulkAPI && DatasetUtilConstants.getSystemConfig().streamingUpload;
+				PartFileOutputStream partsOut = null;
+				OutputStream fos = null;
 				BufferedOutputStream out = null;
 				BufferedOutputStream bos = null;
-				GzipCompressorOutputStream gzos = null;
+				OutputStream gzos = null;
 				try
 				{
 				gzbinFile = new File(inputFile.getParent(), hdrId + "." + FilenameUtils.getBaseName(inputFile.getName()) + ".gz");
 				GzipParameters gzipParams = new GzipParameters();
 				gzipParams.setFilename(FilenameUtils.getBaseName(inputFile.getName())  + ".bin");
-				fos = new FileOutputStream(gzbinFile);
-				bos = new BufferedOutputStream(fos,DEFAULT_BUFFER_SIZE);
-				gzos = new GzipCompressorOutputStream(bos,gzipParams);
-				out = new BufferedOutputStream(gzos,DEFAULT_BUFFER_SIZE);
+				gzipParams.setCompressionLevel(DatasetUtilConstants.getSystemConfig().gzipCompressionLevel);
 				long totalRowCount = 0;
 				long successRowCount = 0;
 				long errorRowCount = 0;
+				boolean aborted = false;
 				long startTime = System.currentTimeMillis();
-				EbinFormatWriter ebinWriter = new EbinFormatWriter(out, schema.getObjects().get(0).getFields().toArray(new FieldType[0]), logger);
-				ErrorWriter errorWriter = new ErrorWriter(inputFile,schema.getFileFormat().getFieldsDelimitedBy().charAt(0), inputFileCharset);
+				FieldType[] fields = schema.getObjects().get(0).getFields().toArray(new FieldType[0]);
+				//The error files are named after the original input and the byte ranges of the rows of a sorted copy are not recorded, so that Reprocess reads the original
+				ErrorWriter errorWriter = new ErrorWriter(digestInputFile,schema.getFileFormat().getFieldsDelimitedBy().charAt(0), inputFileCharset, inputFile.equals(digestInputFile));
 				
 				session.setParam(DatasetUtilConstants.errorCsvParam, errorWriter.getErrorFile().getAbsolutePath()); 
 				
+				if(streaming)
+				{
+					logger.println("\n*******************************************************************************");					
+					logger.println("Uploading dataset {"+datasetAlias+"} while the file is being digested");
+					logger.println("*******************************************************************************\n");
+					partsQueue = new LinkedBlockingQueue<Map<Integer,FilePart>>();
+					manifest = UploadManifest.open(lastgzbinFile, hdrId, logger);
+					controller = new UploadConcurrencyController(UploadConcurrencyController.getMaxUploadThreads(), session);
+					uploaders = startUploaderThreads(partsQueue, UploadConcurrencyController.getMaxUploadThreads(), controller, partnerConnection, hdrId, manifest, restPartUpload, logger, session);
+					partsOut = new PartFileOutputStream(lastgzbinFile, MAX_FILE_PART_SIZE, partsQueue, logger);
+				}
+
+				int digestThreads = sortOnRead ? 1 : ParallelDigester.getNumberOfThreads(inputFile, inputFileCharset, fields);
+				if(digestThreads>1)
+				{
+					if(session!=null)
+						session.setStatus("DIGESTING");
+					ParallelDigester digester = new ParallelDigester(inputFile, inputFileCharset, schema.getFileFormat().getFieldsDelimitedBy().charAt(0), fields, errorWriter, logger, session);
+					try
+					{
+						if(partsOut!=null)
+							digester.digest(partsOut, inputFile.getParentFile(), gzbinFile.getName(), gzipParams, digestThreads);
+						else
+							digester.digest(gzbinFile, gzipParams, digestThreads);
+					}finally
+					{
+						errorWriter.finish();
+					}
+					totalRowCount = digester.getSourceTotalRowCount();
+					successRowCount = digester.getSuccessRowCount();
+					errorRowCount = digester.getSourceErrorRowCount() + digester.getTargetErrorRowCount();
+					aborted = digester.isAborted();
+				}else
+				{
+				fos = partsOut!=null ? partsOut : new FileOutputStream(gzbinFile);
+				bos = new BufferedOutputStream(fos,DEFAULT_BUFFER_SIZE);
+				gzos = ParallelGzipOutputStream.newGzipOutputStream(bos,gzipParams);
+				out = new BufferedOutputStream(gzos,DEFAULT_BUFFER_SIZE);
+				EbinFormatWriter ebinWriter = new EbinFormatWriter(out, fields, logger);
+				
 //				CsvListReader reader = new CsvListReader(new InputStreamReader(new BOMInputStream(new FileInputStream(inputFile), false), DatasetUtils.utf8Decoder(codingErrorAction , inputFileCharset )), pref);				
-				CSVReader reader = new CSVReader(new FileInputStream(inputFile),inputFileCharset.name() , new char[]{schema.getFileFormat().getFieldsDelimitedBy().charAt(0)});
+				CSVReader reader = null;
+				BinaryRunSort.MergedRowReader sortedReader = null;
+				if(sortOnRead)
+				{
+					long sortStartTime = System.currentTimeMillis();
+					sortedReader = CsvExternalSort.openSortedReader(inputFile, inputFileCharset, false, 1, schema, schema.getFileFormat().getFieldsDelimitedBy().charAt(0), orgId, logger);
+					long sortEndTime = System.currentTimeMillis();
+					if(sortedReader!=null)
+					{
+						logger.println("\n*******************************************************************************");									
+						logger.println(" File {"+inputFile.getName()+"}, sorted in Time {"+nf.format(sortEndTime-sortStartTime) + "} msecs, the sorted rows are merged while the file is digested");
+						logger.println("*******************************************************************************\n");					
+					}
+				}
+				//The file is read as is when it does not need sorting
+				if(sortedReader==null)
+				{
+					reader = CSVReader.newReader(new FileInputStream(inputFile),inputFileCharset.name() , new char[]{schema.getFileFormat().getFieldsDelimitedBy().charAt(0)}, DatasetUtilConstants.getSystemConfig().csvTokenizer, DatasetUtilConstants.getSystemConfig().utf8Passthrough);
+				}
+				RowBatchRing<List<String>> q = new RowBatchRing<List<String>>(ROW_BATCH_RING_SIZE, DatasetUtilConstants.getSystemConfig().rowBatchSize);
 				WriterThread writer = new WriterThread(q, ebinWriter, errorWriter, logger,session);
 				Thread th = new Thread(writer,"Writer-Thread");
 				th.setDaemon(true);
@@ -585,6 +772,9 @@ public class DatasetLoader {
 						if(session!=null)
 							session.setStatus("DIGESTING");
 						List<String> row = null;
+						//The merge has already skipped the header
+						if(sortedReader!=null)
+							totalRowCount++;
 						while (hasmore) 
 						{
 							if(session.isDone())
@@ -594,7 +784,7 @@ public class DatasetLoader {
 							try
 							{
 								totalRowCount++;
-								row = reader.nextRecord();
+								row = sortedReader!=null ? sortedReader.nextRow() : reader.nextRow();
 								if(row!=null && !writer.isDone() && !writer.isAborted())
 								{
 									if(totalRowCount==1)
@@ -618,7 +808,8 @@ public class DatasetLoader {
 //								{
 //									logger.println();
 //								}
-								logger.println("Line {"+(totalRowCount)+"} has error {"+t+"}");
+								if(ErrorWriter.isLogged(errorRowCount))
+									logger.println("Line {"+(totalRowCount)+"} has error {"+t+"}");
 								
 
 								if(t instanceof MalformedInputException || errorRowCount>=DatasetUtilConstants.max_error_threshhold)
@@ -626,23 +817,9 @@ public class DatasetLoader {
 									status = false;
 									hasmore = false;
 
-									q.put(new ArrayList<String>(0));
-									int retryCount = 0;
-									while(!writer.isDone())
+									if(!writer.waitUntilDone())
 									{
-										retryCount++;
-										try
-										{
-											Thread.sleep(1000);
-											if(retryCount%10==0)
-											{
-												q.put(new ArrayList<String>(0));
-												logger.println("Waiting for writer to finish");
-											}
-										}catch(InterruptedException in)
-										{
-											in.printStackTrace();
-										}
+										throw new DatasetLoaderException("Operation terminated on user request");
 									}
 									
 
@@ -670,29 +847,20 @@ public class DatasetLoader {
 								}
 							}
 						}//end while
-						int retryCount = 0;
-						while(!writer.isDone())
+						if(!writer.waitUntilDone())
 						{
-							try
-							{
-								if(retryCount%10==0)
-								{
-									q.put(new ArrayList<String>(0));
-									logger.println("Waiting for writer to finish");
-								}
-								Thread.sleep(1000);
-							}catch(InterruptedException in)
-							{
-								in.printStackTrace();
-							}
-							retryCount++;
+							throw new DatasetLoaderException("Operation terminated on user request");
 						}
 					successRowCount = ebinWriter.getSuccessRowCount();
 					errorRowCount = writer.getErrorRowCount();
 				}finally
 				{
+					//Make sure the writer is not writing to the streams while they are closed
+					writer.cancel();
 					if(reader!=null)
 						reader.finalise();
+					if(sortedReader!=null)
+						sortedReader.finalise();
 					if(out!=null)
 						IOUtils.closeQuietly(out);
 					if(gzos!=null)
@@ -707,6 +875,8 @@ public class DatasetLoader {
 					fos = null;
 					ebinWriter = null;
 				}
+				aborted = writer.isAborted();
+				}
 				long endTime = System.currentTimeMillis();
 				digestTime = endTime-startTime;
 
@@ -714,7 +884,7 @@ public class DatasetLoader {
 				if(!status)
 					return status;
 				
-				if(writer.isAborted())
+				if(aborted)
 				{
 					throw new DatasetLoaderException("Max error threshold reached. Aborting processing");
 				}
@@ -733,12 +903,26 @@ public class DatasetLoader {
 					logger.println("*******************************************************************************\n");					
 				}
 
+				if(partsOut!=null)
+				{
+					//Only a completed digest can be used to resume the upload
+					partsOut.markComplete();
+					fileParts = partsOut.getFileParts();
+				}
+
+				long gzbinFileLength = partsOut!=null ? partsOut.getBytesWritten() : gzbinFile.length();
 				logger.println("\n*******************************************************************************");									
-				logger.println("Total Rows: "+nf.format(totalRowCount-1)+", Success Rows: "+nf.format(successRowCount)+", Error Rows: "+nf.format(errorRowCount) +", % Compression: "+(inputFile.length()/gzbinFile.length())*100 +"%"+", Digest Time {"+nf.format(digestTime) + "} msecs");
+				logger.println("Total Rows: "+nf.format(totalRowCount-1)+", Success Rows: "+nf.format(successRowCount)+", Error Rows: "+nf.format(errorRowCount) +", % Compression: "+(inputFile.length()/gzbinFileLength)*100 +"%"+", Digest Time {"+nf.format(digestTime) + "} msecs");
 //				if(gzbinFile.length()>0)
 //					logger.println("File: "+inputFile+", Size {"+nf.format(inputFile.length())+"} compressed to file: "+gzbinFile+", Size {"+nf.format(gzbinFile.length())+"} % Compression: "+(inputFile.length()/gzbinFile.length())*100 +"%"+", Digest Time {"+nf.format(digestTime) + "} msecs");
 				logger.println("*******************************************************************************\n");					
 				} finally {
+					if(uploaders!=null && fileParts==null)
+					{
+						//The digest failed, stop uploading its parts
+						stopUploaderThreads(partsQueue, uploaders);
+						uploaders = null;
+					}
 					if (out != null) {
 						try {
 							out.close();
@@ -775,7 +959,7 @@ public class DatasetLoader {
 					throw new DatasetLoaderException("Operation terminated on user request");
 				}
 				BufferedInputStream fis = null;
-				GzipCompressorOutputStream gzOut = null;
+				OutputStream gzOut = null;
 				long startTime = System.currentTimeMillis();
 				try
 				{
@@ -785,7 +969,8 @@ public class DatasetLoader {
 						session.setStatus("COMPRESSING");
 					GzipParameters gzipParams = new GzipParameters();
 					gzipParams.setFilename(inputFile.getName());
-					gzOut = new GzipCompressorOutputStream(new BufferedOutputStream(new FileOutputStream(gzbinFile),DEFAULT_BUFFER_SIZE),gzipParams);
+					gzipParams.setCompressionLevel(DatasetUtilConstants.getSystemConfig().gzipCompressionLevel);
+					gzOut = ParallelGzipOutputStream.newGzipOutputStream(new BufferedOutputStream(new FileOutputStream(gzbinFile),DEFAULT_BUFFER_SIZE),gzipParams);
 					fis = new BufferedInputStream(new FileInputStream(inputFile));  
 					IOUtils.copy(fis, gzOut);
 					long endTime = System.currentTimeMillis();
@@ -812,6 +997,8 @@ public class DatasetLoader {
 				}
 			}
 			
+			if(fileParts==null)
+			{
 			if(!gzbinFile.exists() || gzbinFile.length()<1)
 			{
 				logger.println("Error: File {"+gzbinFile.getAbsolutePath()+"} not found or is zero bytes");
@@ -830,6 +1017,7 @@ public class DatasetLoader {
 					}
 				}
 			}
+			}
 			}else
 			{
 				logger.println("Recovering process from last file {"+lastgzbinFile+"} upload");
@@ -843,7 +1031,11 @@ public class DatasetLoader {
 			}
 
 			long startTime = System.currentTimeMillis();
-			status = uploadEM(gzbinFile, uploadFormat, altSchema.toBytes(), datasetAlias,datasetFolder, datasetLabel,useBulkAPI, partnerConnection, hdrId, datasetArchiveDir, "Overwrite", updateHdrJson, notificationLevel,  notificationEmail, logger);
+			if(fileParts!=null)
+			{
+				status = uploadEM(fileParts, partsQueue, uploaders, controller, manifest, restPartUpload, partnerConnection, hdrId, logger);
+			}else
+				status = uploadEM(gzbinFile, uploadFormat, altSchema.toBytes(), datasetAlias,datasetFolder, datasetLabel,useBulkAPI, restPartUpload, partnerConnection, hdrId, datasetArchiveDir, "Overwrite", updateHdrJson, notificationLevel,  notificationEmail, logger);
 			long endTime = System.currentTimeMillis();
 			uploadTime = endTime-startTime;
 			
@@ -860,6 +1052,15 @@ public class DatasetLoader {
 				}
 			}
 			
+			//The streaming upload writes the digest straight to the archived file
+			File digestFile = fileParts!=null ? lastgzbinFile : gzbinFile;
+			if(status && digestCache != null && digestFile.exists() && digestFile.getParentFile().equals(datasetArchiveDir))
+			{
+				if(digestContentHash == null)
+					digestContentHash = DigestCache.hashFile(digestInputFile);
+				digestCache.put(DigestCache.getKey(digestContentHash, schemaFile, uploadFormat), digestFile, altSchema.toBytes(), digestInputFile.length());
+			}
+			
 			if(session.isDone())
 			{
 				throw new DatasetLoaderException("Operation terminated on user request");
@@ -901,6 +1102,208 @@ public class DatasetLoader {
 		return status;
 	}
 
+
+	/**
+	 * Uploads only the rows that changed since the last successful delta load of
+	 * the dataset. The file is compared with the snapshot of the last load, the new
+	 * and changed rows are uploaded as an Upsert and the uniqueIds that are no longer
+	 * in the file as a Delete. The first load, or a load after the schema has
+	 * changed, uploads the whole file as an Overwrite. The server processes the
+	 * uploads after they have been sent, so the new snapshot is kept as pending
+	 * under their ids until the server reports them as completed, which is checked
+	 * at the end of this load and at the start of the next one.
+	 *
+	 * @return true, if successful
+	 */
+	private static boolean uploadDelta(File inputFile, File schemaFile, ExternalFileSchema schema, String uploadFormat, CodingErrorAction codingErrorAction, Charset inputFileCharset, String datasetAlias, String datasetFolder, String datasetLabel, boolean useBulkAPI, boolean restPartUpload, PartnerConnection partnerConnection, String notificationLevel, String notificationEmail, File datasetArchiveDir, PrintStream logger) throws DatasetLoaderException
+	{
+		File snapshotFile = DatasetDelta.getSnapshotFile(datasetArchiveDir, datasetAlias);
+		String schemaFileString = schemaFile.getAbsolutePath();
+		DatasetDelta delta = null;
+		try
+		{
+			Session session = Session.getCurrentSession(partnerConnection.getUserInfo().getOrganizationId(), datasetAlias, false);
+			resolvePendingSnapshot(snapshotFile, partnerConnection, logger);
+			session.setStatus("COMPUTING DELTA");
+			long startTime = System.currentTimeMillis();
+			delta = DatasetDelta.compute(inputFile, inputFileCharset, schema.getFileFormat().getFieldsDelimitedBy().charAt(0), schema.getObjects().get(0).getFields(), snapshotFile, logger);
+			long endTime = System.currentTimeMillis();
+			boolean status = true;
+			List<String> hdrIds = new LinkedList<String>();
+			logger.println("\n*******************************************************************************");
+			try
+			{
+				if(!delta.hasSnapshot())
+				{
+					logger.println("No snapshot of the last load of dataset {"+datasetAlias+"} found, uploading the whole file as Overwrite");
+					logger.println("*******************************************************************************\n");
+					status = uploadDeltaFile(inputFile, "Overwrite", schemaFileString, uploadFormat, codingErrorAction, inputFileCharset, datasetAlias, datasetFolder, datasetLabel, useBulkAPI, restPartUpload, partnerConnection, notificationLevel, notificationEmail, session, hdrIds, logger);
+				}else
+				{
+					logger.println("Total Rows: "+nf.format(delta.getTotalRowCount())+", Upsert Rows: "+nf.format(delta.getUpsertRowCount())+", Delete Rows: "+nf.format(delta.getDeleteRowCount())+", Delta Time {"+nf.format(endTime-startTime) + "} msecs");
+					logger.println("*******************************************************************************\n");
+					if(delta.getUpsertRowCount()>0)
+						status = uploadDeltaFile(delta.getUpsertFile(), "Upsert", schemaFileString, uploadFormat, codingErrorAction, inputFileCharset, datasetAlias, datasetFolder, datasetLabel, useBulkAPI, restPartUpload, partnerConnection, notificationLevel, notificationEmail, session, hdrIds, logger);
+					if(status && delta.getDeleteRowCount()>0)
+						status = uploadDeltaFile(delta.getDeleteFile(), "Delete", schemaFileString, uploadFormat, codingErrorAction, inputFileCharset, datasetAlias, datasetFolder, datasetLabel, useBulkAPI, restPartUpload, partnerConnection, notificationLevel, notificationEmail, session, hdrIds, logger);
+				}
+			}finally
+			{
+				//Even a failed load may have sent uploads the server goes on to process
+				if(!hdrIds.isEmpty())
+					delta.setPending(hdrIds);
+			}
+			if(hdrIds.isEmpty())
+			{
+				//Nothing changed, the new snapshot is the same as the last one
+				delta.commit();
+			}else if(status)
+			{
+				String serverStatus = getDeltaUploadsStatus(hdrIds, partnerConnection, logger);
+				if(serverStatus.equals("Completed"))
+				{
+					DatasetDelta.commitPending(snapshotFile);
+				}else if(serverStatus.equals("Failed"))
+				{
+					DatasetDelta.discardPending(snapshotFile);
+					status = false;
+				}else
+				{
+					logger.println("The snapshot of dataset {"+datasetAlias+"} is committed once the server has processed the uploads "+hdrIds);
+				}
+			}
+			return status;
+		}catch(IOException e)
+		{
+			e.printStackTrace(logger);
+			throw new DatasetLoaderException("Failed to compute the delta of file {"+inputFile+"}: "+e.getMessage());
+		}catch(ConnectionException e)
+		{
+			e.printStackTrace(logger);
+			throw new DatasetLoaderException("Failed to get the status of the last delta load of dataset {"+datasetAlias+"}: "+e.getMessage());
+		}finally
+		{
+			if(delta!=null)
+			{
+				delta.discard();
+				FileUtilsExt.deleteQuietly(ExternalFileSchema.getSchemaFile(delta.getUpsertFile(), logger));
+				FileUtilsExt.deleteQuietly(ExternalFileSchema.getSchemaFile(delta.getDeleteFile(), logger));
+			}
+		}
+	}
+
+	/**
+	 * Uploads a file of a delta load and adds the id of its upload to hdrIds,
+	 * an empty id if the upload did not get that far.
+	 *
+	 * @return true, if successful
+	 */
+	private static boolean uploadDeltaFile(File file, String operation, String schemaFileString, String uploadFormat, CodingErrorAction codingErrorAction, Charset inputFileCharset, String datasetAlias, String datasetFolder, String datasetLabel, boolean useBulkAPI, boolean restPartUpload, PartnerConnection partnerConnection, String notificationLevel, String notificationEmail, Session session, List<String> hdrIds, PrintStream logger) throws DatasetLoaderException
+	{
+		//uploadDataset records the id of the upload in the session
+		session.setParam(DatasetUtilConstants.hdrIdParam, null);
+		try
+		{
+			return uploadDataset(file.getAbsolutePath(), schemaFileString, uploadFormat, codingErrorAction, inputFileCharset, datasetAlias, datasetFolder, datasetLabel, operation, useBulkAPI, restPartUpload, partnerConnection, notificationLevel, notificationEmail, logger);
+		}finally
+		{
+			String hdrId = session.getParam(DatasetUtilConstants.hdrIdParam);
+			hdrIds.add(hdrId!=null ? hdrId : "");
+		}
+	}
+
+	/**
+	 * Resolves the pending snapshot of the last delta load of a dataset. It is
+	 * committed if the server completed every upload of that load, and dropped
+	 * if every upload has been processed and one of them failed, so that the
+	 * changes are computed again against the snapshot before it. If an upload
+	 * is still being processed, or its id is not known, neither snapshot is
+	 * known to match the dataset, both are dropped and the whole file is loaded
+	 * as an Overwrite.
+	 *
+	 * @param snapshotFile the snapshot file
+	 * @param partnerConnection the partner connection
+	 * @param logger the logger
+	 * @throws ConnectionException the connection exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void resolvePendingSnapshot(File snapshotFile, PartnerConnection partnerConnection, PrintStream logger) throws ConnectionException, IOException
+	{
+		List<String> hdrIds = DatasetDelta.getPendingUploads(snapshotFile);
+		if(hdrIds==null)
+			return;
+		String serverStatus = hdrIds.isEmpty() ? "InProgress" : getDeltaUploadsStatus(hdrIds, partnerConnection, logger);
+		if(serverStatus.equals("Completed"))
+		{
+			logger.println("The uploads "+hdrIds+" of the last delta load have completed, using its snapshot");
+			DatasetDelta.commitPending(snapshotFile);
+		}else if(serverStatus.equals("Failed"))
+		{
+			logger.println("The uploads "+hdrIds+" of the last delta load have failed, using the snapshot before it");
+			DatasetDelta.discardPending(snapshotFile);
+		}else
+		{
+			logger.println("The uploads "+hdrIds+" of the last delta load have not been processed yet, uploading the whole file as Overwrite");
+			DatasetDelta.discardPending(snapshotFile);
+			FileUtilsExt.deleteQuietly(snapshotFile);
+		}
+	}
+
+	/**
+	 * Gets the combined server status of the uploads of a delta load.
+	 *
+	 * @return Completed if every upload completed, InProgress if an upload is
+	 * still being processed or is not known, otherwise Failed
+	 */
+	private static String getDeltaUploadsStatus(List<String> hdrIds, PartnerConnection partnerConnection, PrintStream logger) throws ConnectionException
+	{
+		boolean failed = false;
+		for(String hdrId:hdrIds)
+		{
+			String serverStatus = (hdrId==null || hdrId.isEmpty()) ? null : getUploadedFileStatus(partnerConnection, hdrId);
+			logger.println("Upload {"+hdrId+"} Server Status {"+serverStatus+"}");
+			if(serverStatus==null)
+				return "InProgress";
+			if(serverStatus.equalsIgnoreCase("Failed") || serverStatus.replaceAll(" ", "").equalsIgnoreCase("NotProcessed"))
+				failed = true;
+			else if(!serverStatus.toLowerCase().startsWith("completed"))
+				return "InProgress";
+		}
+		return failed ? "Failed" : "Completed";
+	}
+	
+	/**
+	 * Uploads only the rows of the file that failed in its last load. The rows listed
+	 * in the error index are extracted to a new file in the archive dir of the dataset,
+	 * which is appended to the dataset, or upserted if the schema has a uniqueId. Once
+	 * the rows are uploaded the error files of the input are archived so that they are
+	 * not uploaded twice, rows that fail again are in the error files of the extracted
+	 * file, which can be reprocessed in turn.
+	 *
+	 * @return true, if successful
+	 */
+	private static boolean uploadErrorRows(File inputFile, File schemaFile, ExternalFileSchema schema, String uploadFormat, CodingErrorAction codingErrorAction, Charset inputFileCharset, String datasetAlias, String datasetFolder, String datasetLabel, boolean useBulkAPI, boolean restPartUpload, PartnerConnection partnerConnection, String notificationLevel, String notificationEmail, File datasetArchiveDir, PrintStream logger) throws DatasetLoaderException
+	{
+		File reprocessFile = new File(datasetArchiveDir, FilenameUtils.getBaseName(inputFile.getName()) + "_reprocess." + FilenameUtils.getExtension(inputFile.getName()));
+		long rowCount = 0;
+		try
+		{
+			rowCount = ErrorWriter.extractErrorRows(inputFile, schema.getFileFormat().getFieldsDelimitedBy().charAt(0), inputFileCharset, reprocessFile, logger);
+		}catch(IOException e)
+		{
+			e.printStackTrace(logger);
+			throw new DatasetLoaderException("Failed to extract the failed rows of file {"+inputFile+"}: "+e.getMessage());
+		}
+		boolean status = true;
+		if(rowCount>0)
+		{
+			String operation = ExternalFileSchema.hasUniqueID(schema) ? "Upsert" : "Append";
+			status = uploadDataset(reprocessFile.getAbsolutePath(), schemaFile.getAbsolutePath(), uploadFormat, codingErrorAction, inputFileCharset, datasetAlias, datasetFolder, datasetLabel, operation, useBulkAPI, restPartUpload, partnerConnection, notificationLevel, notificationEmail, logger);
+		}
+		if(status)
+			ErrorWriter.archiveErrorFiles(inputFile);
+		return status;
+	}
 	
 	/**
 	 * Upload em.
@@ -912,6 +1315,7 @@ public class DatasetLoader {
 	 * @param datasetFolder the dataset folder
 	 * @param datasetLabel the dataset label
 	 * @param useBulk the use bulk
+	 * @param restPartUpload upload the file parts with REST requests instead of SOAP
 	 * @param partnerConnection the partner connection
 	 * @param hdrId the hdr id
 	 * @param datasetArchiveDir the dataset archive dir
@@ -927,9 +1331,8 @@ public class DatasetLoader {
 	 * @throws ConnectionException the connection exception
 	 * @throws AsyncApiException the async api exception
 	 */
-	private static boolean uploadEM(File dataFile, String dataFormat, byte[] metadataJsonBytes, String datasetAlias,String datasetFolder, String datasetLabel, boolean useBulk, PartnerConnection partnerConnection, String hdrId, File datasetArchiveDir, String Operation, boolean updateHdrJson,String notificationLevel, String notificationEmail, PrintStream logger) throws DatasetLoaderException, InterruptedException, IOException, ConnectionException, AsyncApiException 
+	private static boolean uploadEM(File dataFile, String dataFormat, byte[] metadataJsonBytes, String datasetAlias,String datasetFolder, String datasetLabel, boolean useBulk, boolean restPartUpload, PartnerConnection partnerConnection, String hdrId, File datasetArchiveDir, String Operation, boolean updateHdrJson,String notificationLevel, String notificationEmail, PrintStream logger) throws DatasetLoaderException, InterruptedException, IOException, ConnectionException, AsyncApiException 
 	{
-		BlockingQueue<Map<Integer, File>> q = new LinkedBlockingQueue<Map<Integer, File>>(); 
 		LinkedList<Integer> existingFileParts = new LinkedList<Integer>();
 		
 		String userId;
@@ -970,13 +1373,17 @@ public class DatasetLoader {
 			session.setStatus("UPLOADING");
 
 
+		UploadManifest manifest = null;
 		if(hdrId==null || hdrId.trim().isEmpty())
 		{
 			hdrId = insertFileHdr(partnerConnection, datasetAlias,datasetFolder, datasetLabel, metadataJsonBytes, dataFormat, Operation, notificationLevel,  notificationEmail, logger);
 		}else
 		{
-			existingFileParts = getUploadedFileParts(partnerConnection, hdrId);
-			if(updateHdrJson && existingFileParts.isEmpty())
+			//Only an upload that left no manifest has to ask the server which parts it has
+			manifest = UploadManifest.open(dataFile, hdrId, logger);
+			if(!manifest.isResumed())
+				existingFileParts = getUploadedFileParts(partnerConnection, hdrId);
+			if(updateHdrJson && existingFileParts.isEmpty() && manifest.getUploadedPartCount()==0)
 				updateFileHdr(partnerConnection, hdrId, datasetAlias, datasetFolder, metadataJsonBytes, dataFormat, "None", Operation, logger);
 		}
 		
@@ -987,28 +1394,121 @@ public class DatasetLoader {
 		}
 
 		session.setParam(DatasetUtilConstants.hdrIdParam,hdrId);
+		if(manifest==null)
+			manifest = UploadManifest.open(dataFile, hdrId, logger);
+		
+		//Reuse the parts of the last upload of this file, the uploaded part numbers must point to the same bytes
+		Map<Integer, FilePart> fileParts = PartFileOutputStream.getCompletedParts(dataFile);
+		if(fileParts==null)
+			fileParts = PartFileOutputStream.sliceFile(dataFile, MAX_FILE_PART_SIZE);
+		if(fileParts.size()>1)
+		{
+			logger.println("\n*******************************************************************************");					
+			logger.println("File {"+dataFile+"} will be uploaded in {"+fileParts.size()+"} parts");
+			logger.println("*******************************************************************************\n");
+		}
+		return uploadFileParts(fileParts, existingFileParts, null, manifest, useBulk, restPartUpload, partnerConnection, hdrId, logger);
+	}
+
+	/**
+	 * Finishes the upload of file parts that were produced by the digest, the parts 
+	 * may already have been uploaded by uploader threads that ran while the file was 
+	 * being digested. The header must already exist.
+	 *
+	 * @param fileParts the file parts
+	 * @param q the queue the running uploader threads read from, can be null
+	 * @param upThreads the running uploader threads, can be null
+	 * @param controller the concurrency controller of the running uploader threads, can be null
+	 * @param manifest the manifest the running uploader threads write to, can be null
+	 * @param restPartUpload upload the file parts with REST requests instead of SOAP
+	 * @param partnerConnection the partner connection
+	 * @param hdrId the hdr id
+	 * @param logger the logger
+	 * @return true, if successful
+	 * @throws DatasetLoaderException the dataset loader exception
+	 * @throws InterruptedException the interrupted exception
+	 * @throws ConnectionException the connection exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static boolean uploadEM(Map<Integer, FilePart> fileParts, BlockingQueue<Map<Integer, FilePart>> q, List<FilePartsUploaderThread> upThreads, UploadConcurrencyController controller, UploadManifest manifest, boolean restPartUpload, PartnerConnection partnerConnection, String hdrId, PrintStream logger) throws DatasetLoaderException, InterruptedException, ConnectionException, IOException 
+	{
+		ThreadContext tx = ThreadContext.get();
+		Session session = tx.getSession();
+
+		if(session.isDone())
+		{
+			throw new DatasetLoaderException("Operation terminated on user request");
+		}
+
+		session.setStatus("UPLOADING");
+
+		if(upThreads!=null)
+		{
+			waitForUploaderThreads(q, upThreads, logger, session);
+		}
 		
-		Map<Integer, File> fileParts = chunkBinary(dataFile, datasetArchiveDir, logger);
+		LinkedList<Integer> existingFileParts = new LinkedList<Integer>();
+		if(manifest==null)
+		{
+			//Resuming the upload of the parts of an earlier digest
+			manifest = UploadManifest.open(fileParts.values().iterator().next().getFile(), hdrId, logger);
+			if(!manifest.isResumed())
+				existingFileParts = getUploadedFileParts(partnerConnection, hdrId);
+		}
+		return uploadFileParts(fileParts, existingFileParts, controller, manifest, false, restPartUpload, partnerConnection, hdrId, logger);
+	}
+
+	/**
+	 * Uploads the file parts that are not in existingFileParts or in the manifest, 
+	 * retrying the parts that failed, and then marks the header for processing. The
+	 * retries are decided from the manifest, the server is only asked for its parts
+	 * once the manifest has all of them.
+	 *
+	 * @param fileParts the file parts
+	 * @param existingFileParts the parts already uploaded
+	 * @param controller the concurrency controller of the upload, can be null
+	 * @param manifest the manifest of the parts uploaded
+	 * @param useBulk the use bulk
+	 * @param restPartUpload upload the file parts with REST requests instead of SOAP
+	 * @param partnerConnection the partner connection
+	 * @param hdrId the hdr id
+	 * @param logger the logger
+	 * @return true, if successful
+	 * @throws DatasetLoaderException the dataset loader exception
+	 * @throws InterruptedException the interrupted exception
+	 * @throws ConnectionException the connection exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static boolean uploadFileParts(Map<Integer, FilePart> fileParts, LinkedList<Integer> existingFileParts, UploadConcurrencyController controller, UploadManifest manifest, boolean useBulk, boolean restPartUpload, PartnerConnection partnerConnection, String hdrId, PrintStream logger) throws DatasetLoaderException, InterruptedException, ConnectionException, IOException 
+	{
+		BlockingQueue<Map<Integer, FilePart>> q = new LinkedBlockingQueue<Map<Integer, FilePart>>(); 
+		ThreadContext tx = ThreadContext.get();
+		Session session = tx.getSession();
+
+		//One controller for all the retry rounds so that the concurrency learned so far is kept
+		if(controller==null)
+			controller = new UploadConcurrencyController(UploadConcurrencyController.getMaxUploadThreads(), session);
+
+		LinkedList<Integer> uploadedParts = getUploadedParts(fileParts, existingFileParts, manifest);
 		boolean allPartsUploaded = false;
 		int retryCount=0; 
-		if(fileParts.size()<=MAX_NUM_UPLOAD_THREADS)
-		MAX_NUM_UPLOAD_THREADS = 1; 
 		while(retryCount<3)
 		{
 			if(session.isDone())
 			{
 				throw new DatasetLoaderException("Operation terminated on user request");
 			}
+			if(!uploadedParts.containsAll(fileParts.keySet()))
+			{
 				q.clear(); //clear the queue otherwise thread will die before it starts because of previous empty messages
-				LinkedList<FilePartsUploaderThread> upThreads = new LinkedList<FilePartsUploaderThread>();
-				for(int i = 1;i<=MAX_NUM_UPLOAD_THREADS;i++)
+				//No more threads than parts left to upload, the controller decides how many of them upload at the same time
+				int remainingParts = 0;
+				for(int i:fileParts.keySet())
 				{
-					FilePartsUploaderThread writer = new FilePartsUploaderThread(q, partnerConnection, hdrId, logger, session);
-					Thread th = new Thread(writer,"FilePartsUploaderThread-"+i);
-					th.setDaemon(true);
-					th.start();
-					upThreads.add(writer);
+					if(!uploadedParts.contains(i))
+						remainingParts++;
 				}
+				List<FilePartsUploaderThread> upThreads = startUploaderThreads(q, Math.min(remainingParts, UploadConcurrencyController.getMaxUploadThreads()), controller, partnerConnection, hdrId, manifest, restPartUpload, logger, session);
 
 				if(useBulk)
 				{
@@ -1024,68 +1524,31 @@ public class DatasetLoader {
 						{
 							throw new DatasetLoaderException("Operation terminated on user request");
 						}
-						if(!existingFileParts.contains(i))						
+						if(!uploadedParts.contains(i))						
 						{	
-							HashMap<Integer, File> tmp = new HashMap<Integer, File>();
+							HashMap<Integer, FilePart> tmp = new HashMap<Integer, FilePart>();
 							tmp.put(i,fileParts.get(i));
 							q.put(tmp);
 						}
 					}
-					while(!q.isEmpty())
-					{
-						if(session.isDone())
-						{
-							throw new DatasetLoaderException("Operation terminated on user request");
-						}
-						try
-						{
-							Thread.sleep(1000);
-						}catch(InterruptedException in)
-						{
-							in.printStackTrace();
-						}
-					}
 				}
 				
-				for(int i = 0;i<MAX_NUM_UPLOAD_THREADS;i++)
-				{
-					FilePartsUploaderThread uploader = upThreads.get(i);
-					while(!uploader.isDone())
-					{
-						if(session.isDone())
-						{
-							throw new DatasetLoaderException("Operation terminated on user request");
-						}
-						q.put(new HashMap<Integer, File>());
-						try
-						{
-							Thread.sleep(1000);
-						}catch(InterruptedException in)
-						{
-							in.printStackTrace();
-						}
-					}
-					logger.println("FilePartsUploaderThread-"+(i+1)+" is done");
-				}
-
-				allPartsUploaded = true;
+				waitForUploaderThreads(q, upThreads, logger, session);
+				uploadedParts = getUploadedParts(fileParts, existingFileParts, manifest);
+			}
+			if(uploadedParts.containsAll(fileParts.keySet()))
+			{
+				//A single query confirms that the server has every part
 				existingFileParts = getUploadedFileParts(partnerConnection, hdrId);
-				for(int i:fileParts.keySet())
-				{
-					if(!existingFileParts.contains(i))						
-					{	
-						allPartsUploaded = false;
-					}else
-					{
-						FileUtilsExt.deleteQuietly(fileParts.get(i));
-					}
-				}
+				manifest.retainAll(existingFileParts);
+				allPartsUploaded = existingFileParts.containsAll(fileParts.keySet());
 				if(allPartsUploaded)
 					break;
-				else
-					logger.println("Not all file parts uploaded trying again");
-				retryCount++;
+				uploadedParts = getUploadedParts(fileParts, existingFileParts, manifest);
 			}
+			logger.println("Not all file parts uploaded trying again");
+			retryCount++;
+		}
 
 			if(session.isDone())
 			{
@@ -1094,14 +1557,21 @@ public class DatasetLoader {
 
 				if(allPartsUploaded)
 				{
+					//The parts are slices of the archived file, only the parts file and the manifest are no longer needed
+					for(FilePart part:fileParts.values())
+					{
+						FileUtilsExt.deleteQuietly(PartFileOutputStream.getPartsFile(part.getFile()));
+						break;
+					}
+					manifest.delete();
 					return updateFileHdr(partnerConnection, hdrId, null, null, null, null, "Process", null, logger);
 				}else
 				{
 					logger.println("Not all file parts were uploaded to InsightsExternalDataPart, remaining files:");
-					List<File> remainingFiles = new LinkedList<File>();
+					List<FilePart> remainingFiles = new LinkedList<FilePart>();
 					for(int i:fileParts.keySet())
 					{
-						if(!existingFileParts.contains(i))						
+						if(!uploadedParts.contains(i))						
 						{	
 							logger.println(fileParts.get(i));
 							remainingFiles.add(fileParts.get(i));
@@ -1111,6 +1581,96 @@ public class DatasetLoader {
 				}
 	}
 
+	/**
+	 * Gets the parts that are either in the manifest or known to be on the server.
+	 *
+	 * @param fileParts the file parts
+	 * @param serverParts the parts known to be on the server
+	 * @param manifest the manifest
+	 * @return the uploaded parts
+	 */
+	private static LinkedList<Integer> getUploadedParts(Map<Integer, FilePart> fileParts, List<Integer> serverParts, UploadManifest manifest)
+	{
+		LinkedList<Integer> uploadedParts = manifest.getUploadedParts(fileParts);
+		for(int i:serverParts)
+		{
+			if(!uploadedParts.contains(i))
+				uploadedParts.add(i);
+		}
+		return uploadedParts;
+	}
+
+	/**
+	 * Starts the uploader threads, the threads insert the file parts put on the queue until they get an empty map.
+	 *
+	 * @param q the queue
+	 * @param numThreads the number of threads
+	 * @param controller the concurrency controller shared by the threads
+	 * @param partnerConnection the partner connection
+	 * @param hdrId the hdr id
+	 * @param manifest the manifest the uploaded parts are recorded in
+	 * @param restPartUpload upload the file parts with REST requests instead of SOAP
+	 * @param logger the logger
+	 * @param session the session
+	 * @return the uploader threads
+	 */
+	private static List<FilePartsUploaderThread> startUploaderThreads(BlockingQueue<Map<Integer, FilePart>> q, int numThreads, UploadConcurrencyController controller, PartnerConnection partnerConnection, String hdrId, UploadManifest manifest, boolean restPartUpload, PrintStream logger, Session session)
+	{
+		LinkedList<FilePartsUploaderThread> upThreads = new LinkedList<FilePartsUploaderThread>();
+		for(int i = 1;i<=numThreads;i++)
+		{
+			FilePartsUploaderThread writer = new FilePartsUploaderThread(q, partnerConnection, hdrId, controller, manifest, restPartUpload, logger, session);
+			Thread th = new Thread(writer,"FilePartsUploaderThread-"+i);
+			th.setDaemon(true);
+			th.start();
+			upThreads.add(writer);
+		}
+		return upThreads;
+	}
+
+	/**
+	 * Waits for the uploader threads to finish the parts on the queue and exit.
+	 *
+	 * @param q the queue
+	 * @param upThreads the uploader threads
+	 * @param logger the logger
+	 * @param session the session
+	 * @throws DatasetLoaderException the dataset loader exception
+	 * @throws InterruptedException the interrupted exception
+	 */
+	private static void waitForUploaderThreads(BlockingQueue<Map<Integer, FilePart>> q, List<FilePartsUploaderThread> upThreads, PrintStream logger, Session session) throws DatasetLoaderException, InterruptedException
+	{
+		//The empty maps are queued after the parts, so every part is taken before the threads stop
+		for(int i = 0;i<upThreads.size();i++)
+		{
+			q.put(new HashMap<Integer, FilePart>());
+		}
+		for(int i = 0;i<upThreads.size();i++)
+		{
+			if(!upThreads.get(i).waitUntilDone())
+			{
+				stopUploaderThreads(q, upThreads);
+				throw new DatasetLoaderException("Operation terminated on user request");
+			}
+			logger.println("FilePartsUploaderThread-"+(i+1)+" is done");
+		}
+	}
+
+	/**
+	 * Stops the uploader threads without waiting for the queued parts, used when the digest fails.
+	 *
+	 * @param q the queue
+	 * @param upThreads the uploader threads
+	 */
+	private static void stopUploaderThreads(BlockingQueue<Map<Integer, FilePart>> q, List<FilePartsUploaderThread> upThreads)
+	{
+		q.clear();
+		for(int i = 0;i<upThreads.size();i++)
+		{
+			q.offer(new HashMap<Integer, FilePart>());
+		}
+	}
+
 	
 	/**
 	 * Insert file hdr.
@@ -1438,87 +1998,6 @@ public class DatasetLoader {
 		}
 	}
 	
-	/**
-	 * Chunk binary.
-	 *
-	 * @param inputFile the input file
-	 * @param archiveDir the archive dir
-	 * @param logger the logger
-	 * @return the map
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 */
-	public static Map<Integer,File> chunkBinary(File inputFile, File archiveDir, PrintStream logger) throws IOException 
-	{	
-		if(inputFile == null)
-		{
-			throw new IOException("chunkBinary() inputFile parameter is null");
-		}
-		if(!inputFile.canRead())
-		{
-			throw new IOException("chunkBinary() cannot read inputFile {"+inputFile+"}");
-		}
-		if(inputFile.length()==0)
-		{
-			throw new IOException("chunkBinary() inputFile {"+inputFile+"} is 0 bytes");
-		}
-//		logger.println("\n*******************************************************************************");					
-//		logger.println("Chunking file {"+inputFile+"} into {"+nf.format(DEFAULT_BUFFER_SIZE)+"} size chunks\n");
-		long startTime = System.currentTimeMillis();
-		InputStream input = null;
-		FileOutputStream tmpOut = null;
-        LinkedHashMap<Integer,File> fileParts = new LinkedHashMap<Integer,File>();
-		try 
-		{
-			input = new FileInputStream(inputFile);
-			byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            Arrays.fill(buffer, (byte)0);
-			int n = 0;
-			int count = -1;
-			int filePartNumber = 0;
-			while (EOF != (n = input.read(buffer))) {
-				filePartNumber++;
-	        	File tmpFile = new File(archiveDir,FilenameUtils.getBaseName(inputFile.getName())+"."+filePartNumber + "." + FilenameUtils.getExtension(inputFile.getName()));
-				if(tmpFile != null && tmpFile.exists())
-				{
-					FileUtilsExt.deleteQuietly(tmpFile);
-					if(tmpFile.exists())
-					{
-						logger.println("Failed to cleanup file {"+tmpFile+"}");
-					}
-				}
-	            tmpOut = new FileOutputStream(tmpFile);			
-	            tmpOut.write(buffer, 0, n);
-	            Arrays.fill(buffer, (byte)0);
-	            tmpOut.close();
-	            tmpOut = null;
-	            fileParts.put(Integer.valueOf(filePartNumber),tmpFile);
-//	            logger.println("Creating File part {"+tmpFile+"}, size {"+nf.format(tmpFile.length())+"}");
-				count = ((count == -1) ? n : (count + n));
-			}
-			if(count == -1)
-			{
-				throw new IOException("failed to chunkBinary file {"+inputFile+"}");
-			}
-		}finally {
-			if (input != null)
-				try {
-					input.close();
-				} catch (IOException e) {e.printStackTrace();}
-			if (tmpOut != null)
-				try {
-					tmpOut.close();
-				} catch (IOException e) {e.printStackTrace();}
-		}
-		long endTime = System.currentTimeMillis();
-		if(fileParts.size()>1)
-		{
-			logger.println("\n*******************************************************************************");					
-			logger.println("\nChunked file into {"+fileParts.size()+"} chunks in {"+nf.format(endTime-startTime)+"} msecs");
-			logger.println("*******************************************************************************\n");
-		}
-		return fileParts;
-	} 
-	
 	/**
 	 * Creates the batch zip.
 	 *
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.sforce.dataset.util.FileUtilsExt;
+
+/**
+ * The Class DigestCache.
+ *
+ * Remembers the gzip files that were digested and uploaded for a dataset, so
+ * that the same file loaded again with the same schema and upload format is
+ * uploaded straight from the archived gzip file, without detecting the
+ * schema, sorting or digesting it again. The entries are keyed by the SHA-256
+ * of the input file content, the SHA-256 of the schema file and the upload
+ * format, and are kept in an index file in the archive dir of the dataset
+ * together with a copy of the metadata json that was uploaded with the file.
+ * When the archived files of the entries take more than the cache size the
+ * least recently used entries are evicted and their files deleted. The length
+ * of the input file is kept with each entry, so that a file is only hashed
+ * when an entry of the same length could match it.
+ */
+public class DigestCache {
+
+	private static final String INDEX_FILE = "digest.cache";
+	private static final String JSON_SUFFIX = ".digest.json";
+	private static final int bufferSize = 1024*1024;
+
+	//Guards the index files of all datasets
+	private static final Object lock = new Object();
+
+	private final File datasetArchiveDir;
+	private final long maxBytes;
+	private final PrintStream logger;
+
+	/**
+	 * Instantiates a new digest cache.
+	 *
+	 * @param datasetArchiveDir the archive dir of the dataset
+	 * @param maxBytes the max bytes the archived files of the entries may take
+	 * @param logger the logger
+	 */
+	public DigestCache(File datasetArchiveDir, long maxBytes, PrintStream logger)
+	{
+		this.datasetArchiveDir = datasetArchiveDir;
+		this.maxBytes = maxBytes;
+		this.logger = logger;
+	}
+
+	/**
+	 * The Class Entry.
+	 */
+	public static final class Entry {
+
+		private final File gzFile;
+		private final byte[] metadataJson;
+
+		private Entry(File gzFile, byte[] metadataJson)
+		{
+			this.gzFile = gzFile;
+			this.metadataJson = metadataJson;
+		}
+
+		/**
+		 * Gets the archived gzip file.
+		 *
+		 * @return the gz file
+		 */
+		public File getGzFile()
+		{
+			return gzFile;
+		}
+
+		/**
+		 * Gets the metadata json that was uploaded with the file.
+		 *
+		 * @return the metadata json
+		 */
+		public byte[] getMetadataJson()
+		{
+			return metadataJson;
+		}
+	}
+
+	/**
+	 * Gets the cache key of a file.
+	 *
+	 * @param contentHash the content hash of the input file
+	 * @param schemaFile the schema file, can be null or not exist yet
+	 * @param uploadFormat the upload format
+	 * @return the key
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static String getKey(String contentHash, File schemaFile, String uploadFormat) throws IOException
+	{
+		String schemaHash = (schemaFile != null && schemaFile.exists()) ? hashFile(schemaFile) : "none";
+		MessageDigest md = newDigest();
+		md.update((contentHash + "," + schemaHash + "," + uploadFormat.toLowerCase()).getBytes(StandardCharsets.UTF_8));
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Hashes the content of a file with SHA-256.
+	 *
+	 * @param file the file
+	 * @return the hex encoded hash
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static String hashFile(File file) throws IOException
+	{
+		MessageDigest md = newDigest();
+		InputStream in = null;
+		try
+		{
+			in = new FileInputStream(file);
+			byte[] buf = new byte[bufferSize];
+			int n;
+			while((n = in.read(buf)) != -1)
+				md.update(buf, 0, n);
+		}finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Checks if an entry could match an input file of the given length, files
+	 * that cannot match do not need to be hashed to be looked up.
+	 *
+	 * @param inputLength the length of the input file
+	 * @return true, if an entry has the same input length or an unknown one
+	 */
+	public boolean mayContain(long inputLength)
+	{
+		synchronized(lock)
+		{
+			try
+			{
+				for(String[] values:readIndex().values())
+				{
+					long length = Long.parseLong(values[3]);
+					if(length < 0 || length == inputLength)
+						return true;
+				}
+				return false;
+			}catch(Throwable t)
+			{
+				t.printStackTrace(logger);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Looks up an entry and marks it as the most recently used.
+	 *
+	 * @param key the key
+	 * @return the entry or null if the key is not cached or its files are gone
+	 */
+	public Entry get(String key)
+	{
+		synchronized(lock)
+		{
+			try
+			{
+				Map<String,String[]> index = readIndex();
+				String[] values = index.get(key);
+				if(values == null)
+					return null;
+				File gzFile = new File(datasetArchiveDir, values[0]);
+				File jsonFile = getJsonFile(key);
+				if(!gzFile.exists() || gzFile.length() != Long.parseLong(values[1]) || !jsonFile.exists())
+				{
+					index.remove(key);
+					writeIndex(index);
+					return null;
+				}
+				values[2] = Long.toString(System.currentTimeMillis());
+				writeIndex(index);
+				return new Entry(gzFile, FileUtils.readFileToByteArray(jsonFile));
+			}catch(Throwable t)
+			{
+				t.printStackTrace(logger);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Adds the archived gzip file of a successful upload, then evicts the least
+	 * recently used entries until the cache fits its size.
+	 *
+	 * @param key the key
+	 * @param gzFile the archived gzip file, must be in the archive dir of the dataset
+	 * @param metadataJson the metadata json that was uploaded with the file
+	 * @param inputLength the length of the input file
+	 */
+	public void put(String key, File gzFile, byte[] metadataJson, long inputLength)
+	{
+		synchronized(lock)
+		{
+			try
+			{
+				Map<String,String[]> index = readIndex();
+				FileUtils.writeByteArrayToFile(getJsonFile(key), metadataJson);
+				index.put(key, new String[]{gzFile.getName(), Long.toString(gzFile.length()), Long.toString(System.currentTimeMillis()), Long.toString(inputLength)});
+				evict(index);
+				writeIndex(index);
+			}catch(Throwable t)
+			{
+				t.printStackTrace(logger);
+			}
+		}
+	}
+
+	private void evict(Map<String,String[]> index)
+	{
+		long size = 0;
+		for(String[] values:index.values())
+			size += Long.parseLong(values[1]);
+		if(size <= maxBytes)
+			return;
+		List<Map.Entry<String,String[]>> entries = new ArrayList<Map.Entry<String,String[]>>(index.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String,String[]>>() {
+			@Override
+			public int compare(Map.Entry<String,String[]> a, Map.Entry<String,String[]> b) {
+				return Long.compare(Long.parseLong(a.getValue()[2]), Long.parseLong(b.getValue()[2]));
+			}
+		});
+		for(Map.Entry<String,String[]> entry:entries)
+		{
+			if(size <= maxBytes)
+				break;
+			String[] values = entry.getValue();
+			File gzFile = new File(datasetArchiveDir, values[0]);
+			logger.println("Evicting {"+gzFile+"} from the digest cache");
+			FileUtilsExt.deleteQuietly(gzFile);
+			FileUtilsExt.deleteQuietly(PartFileOutputStream.getPartsFile(gzFile));
+			FileUtilsExt.deleteQuietly(getJsonFile(entry.getKey()));
+			index.remove(entry.getKey());
+			size -= Long.parseLong(values[1]);
+		}
+	}
+
+	private File getJsonFile(String key)
+	{
+		return new File(datasetArchiveDir, key + JSON_SUFFIX);
+	}
+
+	/**
+	 * Reads the index, each line holds the key, the gz file name, the gz file
+	 * length, the last access time and the input file length, -1 for entries
+	 * written before the input length was kept.
+	 */
+	private Map<String,String[]> readIndex() throws IOException
+	{
+		LinkedHashMap<String,String[]> index = new LinkedHashMap<String,String[]>();
+		File indexFile = new File(datasetArchiveDir, INDEX_FILE);
+		if(!indexFile.exists())
+			return index;
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(indexFile));
+			String line = null;
+			while((line = reader.readLine()) != null)
+			{
+				String[] values = line.split(",");
+				if(values.length == 4)
+					index.put(values[0], new String[]{values[1], values[2], values[3], "-1"});
+				else if(values.length == 5)
+					index.put(values[0], new String[]{values[1], values[2], values[3], values[4]});
+			}
+		}finally
+		{
+			IOUtils.closeQuietly(reader);
+		}
+		return index;
+	}
+
+	private void writeIndex(Map<String,String[]> index) throws IOException
+	{
+		File indexFile = new File(datasetArchiveDir, INDEX_FILE);
+		File tmpFile = new File(datasetArchiveDir, INDEX_FILE + ".tmp");
+		Writer w = null;
+		try
+		{
+			w = new FileWriter(tmpFile);
+			for(Map.Entry<String,String[]> entry:index.entrySet())
+			{
+				String[] values = entry.getValue();
+				w.write(entry.getKey()+","+values[0]+","+values[1]+","+values[2]+","+values[3]+"\n");
+			}
+		}finally
+		{
+			IOUtils.closeQuietly(w);
+		}
+		Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static MessageDigest newDigest() throws IOException
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for(byte b:bytes)
+		{
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -33,7 +33,9 @@ import java.text.NumberFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -41,14 +43,19 @@ import java.util.TimeZone;
 import java.util.regex.Pattern;
 
 import javax.script.Bindings;
-import javax.script.CompiledScript;
 import javax.script.SimpleBindings;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 
 import com.sforce.dataset.DatasetUtilConstants;
 import com.sforce.dataset.loader.file.schema.ext.FieldType;
+import com.sforce.dataset.util.CompiledExpression;
+import com.sforce.dataset.util.ExpressionCompiler;
+import com.sforce.dataset.util.FastDateParser;
 import com.sforce.dataset.util.FiscalDateUtil;
+import com.sforce.dataset.util.ScaledDecimalParser;
+import com.sforce.dataset.util.Utf8Record;
 
 /**
  * @author pgupta
@@ -70,9 +77,34 @@ public class EbinFormatWriter {
 	static final int maxTextLength = 255;
 
 	
-	LinkedList<Integer> measure_index = new  LinkedList<Integer>();
 	LinkedList<FieldType> _dataTypes = new  LinkedList<FieldType>();
-	LinkedHashMap<String,Object> prev = new LinkedHashMap<String,Object>();;
+
+	//Row plan compiled once per schema, see compileRowPlan()
+	private FieldType[] columns;
+	private byte[][] keys;
+	private long[] multipliers;
+	private int[] scales;
+	private ScaledDecimalParser[] measureParsers;
+	private Pattern[] multiValuePatterns;
+	private boolean hasComputedFields = false;
+	private boolean[] rawText;
+	private CompiledExpression[] expressions;
+	private Object[] currRow;
+	private Object[] prevRow;
+	private boolean asciiDigits = true;
+
+	//Per date column parsers and caches of the encoded date parts, date columns usually have few distinct values
+	private FastDateParser[] dateParsers;
+	private DateCache[] dateCaches;
+	private static final int dateCacheSize = 4096;
+
+	//Reusable row buffers
+	private long[] measureValues;
+	private int measureCount = 0;
+	private byte[] rowBuffer;
+	private byte[] dimBuffer = new byte[8192];
+	private int dimLength = 0;
+	private int dimCount = 0;
 
 	private int numColumns = 0;	
 	private OutputStream out;
@@ -83,6 +115,7 @@ public class EbinFormatWriter {
 
 	private volatile int successRowCount = 0;
 	private volatile int totalRowCount = 0;
+	private int currentColumn = -1;
 
 	Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
     DecimalFormat df = new DecimalFormat("00");
@@ -101,7 +134,18 @@ public class EbinFormatWriter {
 	public EbinFormatWriter(OutputStream out, FieldType[] dataTypes,PrintStream logger)
 			throws IOException 
 	{
-		this(out, logger);
+		this(out, dataTypes, logger, true);
+	}
+
+	/**
+	 * When writeHeader is false the magic, version and measure header are not written, 
+	 * this is used when the output is appended to a stream that already has the header 
+	 * (for example a segment of a parallel digest)
+	 */
+	public EbinFormatWriter(OutputStream out, FieldType[] dataTypes,PrintStream logger, boolean writeHeader)
+			throws IOException 
+	{
+		this(writeHeader ? out : NullOutputStream.NULL_OUTPUT_STREAM, logger);
 //		this.numColumns = dataTypes.length;
 		
 		if(dataTypes.length>5000)
@@ -145,8 +189,10 @@ public class EbinFormatWriter {
 		}
 
 		this.initmeasures(_dataTypes);
+		this.out = out;
 		
 	    df.setMinimumIntegerDigits(2);
+	    compileRowPlan();
 	}
 	
 	protected EbinFormatWriter(OutputStream out,PrintStream logger)  throws IOException
@@ -162,242 +208,209 @@ public class EbinFormatWriter {
 
 	public void addrow(List<String> values)  throws IOException,NumberFormatException, ParseException
 	{
-		LinkedList<Long> measure_values = new LinkedList<Long>();
-		LinkedList<String> dim_keys = new LinkedList<String>();
-		LinkedList<String> dim_values = new LinkedList<String>();
-		LinkedHashMap<String,Object> curr = new LinkedHashMap<String,Object>();
-		
+		//The curr/prev values are only needed by computed field expressions
+		Object[] curr = hasComputedFields ? currRow : null;
+		if(curr!=null)
+			Arrays.fill(curr, null);
+		measureCount = 0;
+		dimCount = 0;
+		dimLength = 0;
+
 		int count = 0;
 		int key_value_count = 0;
+		Utf8Record utf8 = values instanceof Utf8Record ? (Utf8Record) values : null;
+		long scaledValue = 0L;
 
 		totalRowCount++;
+		currentColumn = -1;
 		if (values.size() != this.numColumns) {
-			String message = "Row " + totalRowCount + " contains an invalid number of Values, expected " + 
+			String message = "Row " + totalRowCount + " contains an invalid number of Values, expected " +
 					this.numColumns + " Value(s), got " + values.size() + ".";
 			throw new IOException(message);
 		}
-				
+
 		if(totalRowCount%interval==0||totalRowCount==1)
 		{
 			long newStartTime = System.currentTimeMillis();
 			if(startTime==0)
 				startTime = newStartTime;
-			logger.println("Processing row {"+nf.format(totalRowCount) +"} time {"+nf.format(newStartTime-startTime)+"}");			
+			logger.println("Processing row {"+nf.format(totalRowCount) +"} time {"+nf.format(newStartTime-startTime)+"}");
 			startTime = newStartTime;
 		}
-		
+
 		if(interval < 1000000 && totalRowCount/interval>=10)
 		{
 			interval = interval*10;
 		}
-		
-		while(key_value_count<_dataTypes.size())
+
+		while(key_value_count<columns.length)
 		{
-//			System.err.println("Count: " + count + " ; key_value_count: " + key_value_count  );
-//			System.err.println(_dataTypes.get(key_value_count).getName() + ":" + _dataTypes.get(key_value_count).getType() + " = " + values[count]);
-//			System.err.println();
+			FieldType dataType = columns[key_value_count];
+			currentColumn = key_value_count;
 
-			if(_dataTypes.get(key_value_count).isSkipped)
+			if(dataType.isSkipped)
 			{
 				key_value_count++;
 				count++;
 				continue;
 			}
-			
-			Object columnValue = _dataTypes.get(key_value_count).getDefaultValue();
-			if(_dataTypes.get(key_value_count).getfType() == FieldType.DATE)
-				columnValue =  _dataTypes.get(key_value_count).getDefaultDate();
-			
-			if(_dataTypes.get(key_value_count).isComputedField)
+
+			Object columnValue = dataType.getDefaultValue();
+			boolean rawValue = false;
+			if(dataType.getfType() == FieldType.DATE)
+				columnValue =  dataType.getDefaultDate();
+
+			if(dataType.isComputedField)
 			{
-					 
-	            Bindings bindings = new SimpleBindings();
-	            CompiledScript cs = _dataTypes.get(key_value_count).getCompiledScript();	            
+
+	            CompiledExpression expression = expressions[key_value_count];
 	            try
 	            {
-	            if(cs!=null)
+	            if(expression!=null)
+	            {
+	            	columnValue = expression.eval(curr, successRowCount>0 ? prevRow : null);
+	            	if(DatasetUtilConstants.debug)
+	            	{
+	            		logger.println(dataType.getName()+ " Computed columnValue: "+columnValue);
+	            	}
+	            }else if(dataType.getCompiledScript()!=null)
 	            {
-	            	bindings.put("curr", curr);
-	            	bindings.put("prev", prev);
-	            	columnValue = cs.eval(bindings);
+	            	//The expression is not supported by the ExpressionCompiler, evaluate it with the JavaScript engine
+	            	Bindings bindings = new SimpleBindings();
+	            	bindings.put("curr", toMap(curr, key_value_count));
+	            	bindings.put("prev", successRowCount>0 ? toMap(prevRow, columns.length) : new LinkedHashMap<String,Object>());
+	            	columnValue = dataType.getCompiledScript().eval(bindings);
 	            	if(DatasetUtilConstants.debug)
 	            	{
-	            		logger.println(_dataTypes.get(key_value_count).getName()+ " Computed columnValue: "+columnValue);
+	            		logger.println(dataType.getName()+ " Computed columnValue: "+columnValue);
 	            	}
 	            }
 	            }catch(Throwable t)
 	            {
-	            	logger.println("Field {"+_dataTypes.get(key_value_count).getName()+"} has Invalid Expression {"+_dataTypes.get(key_value_count).getComputedFieldExpression()+"}");
+	            	logger.println("Field {"+dataType.getName()+"} has Invalid Expression {"+dataType.getComputedFieldExpression()+"}");
 	            	t.printStackTrace();
 	            }
+			}else if(utf8!=null && rawText[key_value_count] && !utf8.isNull(count))
+			{
+				//The UTF-8 bytes of the value are copied to the output as is, it is never decoded
+				rawValue = true;
 			}else
 			{
-				if(values.get(count)!=null)
+				String value = values.get(count);
+				if(value!=null)
 				{
-					columnValue = values.get(count);
+					columnValue = value;
 				}
 			}
 
-			if (_dataTypes.get(key_value_count).getfType() == FieldType.MEASURE) 
+			if (dataType.getfType() == FieldType.MEASURE)
 			{
 				try
 				{
-					BigDecimal v = new BigDecimal(0);
-					BigDecimal mv = new BigDecimal(0);
-					if(columnValue!=null)
+					if(columnValue==null)
 					{
+						addMeasure(0L);
+						put(curr, key_value_count, 0.0d);
+					}else if(!(columnValue instanceof Double) && measureParsers[key_value_count]!=null && (scaledValue = measureParsers[key_value_count].parse(columnValue.toString(), scales[key_value_count]))!=ScaledDecimalParser.INVALID)
+					{
+						//Values that are exact as a double once scaled are encoded without going through BigDecimal
+						addMeasure(scaledValue);
+						put(curr, key_value_count, scaledValue==0 ? 0.0d : (double) scaledValue / multipliers[key_value_count]);
+					}else
+					{
+						BigDecimal v = null;
+						BigDecimal mv = null;
 						if(columnValue instanceof Double)
 							v = new BigDecimal((Double)columnValue);
-						else if(_dataTypes.get(key_value_count).getCompiledNumberFormat()!=null)
+						else if(dataType.getCompiledNumberFormat()!=null)
 						{
-							DecimalFormat indf = _dataTypes.get(key_value_count).getCompiledNumberFormat();
+							DecimalFormat indf = dataType.getCompiledNumberFormat();
 							indf.setParseBigDecimal(true);
 							v = (BigDecimal) indf.parse(columnValue.toString().trim());
 						}
 						else
 							v = new BigDecimal(columnValue.toString().trim());
-						
-						if (_dataTypes.get(key_value_count).getMeasure_multiplier() > 1)
+
+						if (multipliers[key_value_count] > 1)
 						{
-							mv = v.multiply(_dataTypes.get(key_value_count).getMeasure_multiplier_bd());
+							mv = v.multiply(dataType.getMeasure_multiplier_bd());
 						}else
 						{
 							mv = v;
 						}
 						if(mv.doubleValue()>edgeMaxValue || mv.doubleValue()<edgeMinValue)
 							throw new ParseException("Value {"+mv+"} out of range ("+edgeMinValue+"-"+edgeMaxValue+")",0);
+						addMeasure((long)mv.doubleValue());
+						put(curr, key_value_count, v.doubleValue());
 					}
-					measure_values.add((long)mv.doubleValue());
-					curr.put(_dataTypes.get(key_value_count).getName(), v.doubleValue());
 					key_value_count++;
 				} catch(Throwable t)
 				{
-					throw new NumberFormatException(_dataTypes.get(key_value_count).getName() +" is not a valid number, value {" + columnValue +"} : " +t.getMessage());
+					throw new NumberFormatException(dataType.getName() +" is not a valid number, value {" + columnValue +"} : " +t.getMessage());
 				}
-			}else if (_dataTypes.get(key_value_count).getfType() == FieldType.DATE) 
+			}else if (dataType.getfType() == FieldType.DATE)
 			{
 				try
 				{
-				int fiscalMonthOffset = _dataTypes.get(key_value_count).getFiscalMonthOffset();
-				SimpleDateFormat sdt = _dataTypes.get(key_value_count).getCompiledDateFormat();
-				boolean isYearEndFiscalYear = _dataTypes.get(key_value_count).isYearEndFiscalYear;
-				int firstDayOfWeek = _dataTypes.get(key_value_count).getFirstDayOfWeek();
+				int fiscalMonthOffset = dataType.getFiscalMonthOffset();
+				SimpleDateFormat sdt = dataType.getCompiledDateFormat();
+				boolean isYearEndFiscalYear = dataType.isYearEndFiscalYear;
+				int firstDayOfWeek = dataType.getFirstDayOfWeek();
 
 				if(columnValue==null)
 				{
 					//The date is null we don't add null dims
-//					dim_values.add("");
-//					dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), null);
-					key_value_count++;
+					put(curr, key_value_count++, null);
 
-					measure_values.add(0L);
-					curr.put(_dataTypes.get(key_value_count).getName(), 0L);
-					key_value_count++;
-
-					measure_values.add(0L);
-					curr.put(_dataTypes.get(key_value_count).getName(), 0L);
-					key_value_count++;
-
-					//Skip the rest
-				    //DecimalFormat df = new DecimalFormat("00");
-				    //dim_values.add(df.parse(Integer.toString(day)).toString());
-					//dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), null);
-					key_value_count++;
-
-					//dim_values.add(df.parse(Integer.toString(month)).toString());
-					//dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), null);
-					key_value_count++;
+					addMeasure(0L);
+					put(curr, key_value_count++, 0L);
 
-					//dim_values.add(Integer.toString(year));
-					//dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), null);
-					key_value_count++;
-
-					//dim_values.add(Integer.toString(quarter));
-					//dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), null);
-					key_value_count++;
+					addMeasure(0L);
+					put(curr, key_value_count++, 0L);
 
-					//dim_values.add(Integer.toString(week));
-					//dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), null);
-					key_value_count++;	
-
-					//This check is temporary remove when schema supports these new data parts
-//					if(DatasetUtilConstants.createNewDateParts)
-//					{		
-						//dim_values.add(Integer.toString(hour));
-						//dim_keys.add(_dataTypes.get(key_value_count).getName());
-						curr.put(_dataTypes.get(key_value_count).getName(), null);
-						key_value_count++;	
-	
-						//dim_values.add(Integer.toString(minute));
-						//dim_keys.add(_dataTypes.get(key_value_count).getName());
-						curr.put(_dataTypes.get(key_value_count).getName(), null);
-						key_value_count++;	
-	
-						//dim_values.add(Integer.toString(second));
-						//dim_keys.add(_dataTypes.get(key_value_count).getName());
-						curr.put(_dataTypes.get(key_value_count).getName(), null);
-						key_value_count++;	
-						
-						if(fiscalMonthOffset>0)
-						{
-							//dim_values.add(Integer.toString(month_Fiscal));
-							//dim_keys.add(_dataTypes.get(key_value_count).getName()+"_Month_Fiscal");
-							curr.put(_dataTypes.get(key_value_count).getName(), null);
-							key_value_count++;	
-	
-							//dim_values.add(Integer.toString(year_Fiscal));
-							//dim_keys.add(_dataTypes.get(key_value_count).getName()+"_Year_Fiscal");
-							curr.put(_dataTypes.get(key_value_count).getName(), null);
-							key_value_count++;	
-	
-							//dim_values.add(Integer.toString(quarter_Fiscal));
-							//dim_keys.add(_dataTypes.get(key_value_count).getName()+"_Quarter_Fiscal");
-							curr.put(_dataTypes.get(key_value_count).getName(), null);
-							key_value_count++;	
-	
-							//dim_values.add(Integer.toString(week_Fiscal));
-							//dim_keys.add(_dataTypes.get(key_value_count).getName()+"_Week_Fiscal");
-							curr.put(_dataTypes.get(key_value_count).getName(), null);
-							key_value_count++;	
-						}
-//					}
+					//Skip the rest, day, month, year, quarter, week, hour, minute and second
+					int dateParts = fiscalMonthOffset>0 ? 12 : 8;
+					for(int i=0;i<dateParts;i++)
+					{
+						put(curr, key_value_count++, null);
+					}
+				}else if(columnValue instanceof String && dateCaches[key_value_count].containsKey(columnValue))
+				{
+					//The value was seen before, reuse its encoded parts
+					DateEntry entry = dateCaches[key_value_count].get(columnValue);
+					ensureDimCapacity(entry.dims.length);
+					System.arraycopy(entry.dims, 0, dimBuffer, dimLength, entry.dims.length);
+					dimLength += entry.dims.length;
+					dimCount += entry.dimCount;
+					addMeasure(entry.secEpoch);
+					addMeasure(entry.dayEpoch);
+					for(int i=0;i<entry.columnCount;i++)
+					{
+						put(curr, key_value_count++, entry.values!=null ? entry.values[i] : null);
+					}
 				}else
-				{	
+				{
 					Date dt = null;
-//					SimpleDateFormat sdt = _dataTypes.get(key_value_count).getCompiledDateFormat();
-//					int fiscalMonthOffset = _dataTypes.get(key_value_count).getFiscalMonthOffset();
-//					boolean isYearEndFiscalYear = _dataTypes.get(key_value_count).isYearEndFiscalYear;
-//					int firstDayOfWeek = _dataTypes.get(key_value_count).getFirstDayOfWeek();
+					int columnStart = key_value_count;
+					int dimStart = dimLength;
+					int dimCountStart = dimCount;
 
 					cal.setFirstDayOfWeek(firstDayOfWeek);
 
-					
 					if(columnValue instanceof String)
 					{
-						dt = sdt.parse((String)columnValue);
+						String text = (String) columnValue;
+						long millis = dateParsers[key_value_count]!=null ? dateParsers[key_value_count].parse(text) : FastDateParser.INVALID;
+						dt = millis!=FastDateParser.INVALID ? new Date(millis) : sdt.parse(text);
+						addDim(key_value_count, text, text.length());
 					}else
 					{
 						dt = (Date)columnValue;
+						String formatted = sdt.format(dt);
+						addDim(key_value_count, formatted, formatted.length());
 					}
-				
-	
-					if(columnValue instanceof String)
-					{
-						dim_values.add((String) columnValue);
-					}else
-					{
-						dim_values.add(sdt.format(dt));
-					}
-					dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), dt);
-					key_value_count++;
-					
+					put(curr, key_value_count++, dt);
+
 				    cal.setTime(dt);
 
 				    int day = cal.get(Calendar.DAY_OF_MONTH);
@@ -410,147 +423,390 @@ public class EbinFormatWriter {
 				    int second = cal.get(Calendar.SECOND);
 				    long sec_epoch = dt.getTime()/(1000);
 				    long day_epoch = dt.getTime()/(1000*60*60*24);
-				    
-				    
-					measure_values.add(sec_epoch);
-					curr.put(_dataTypes.get(key_value_count).getName(), sec_epoch);
-					key_value_count++;
-	
-					measure_values.add(day_epoch);
-					curr.put(_dataTypes.get(key_value_count).getName(), day_epoch);
-					key_value_count++;
-	
-				    // format number as String
-				    dim_values.add(df.format(day));
-					dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), day);
-					key_value_count++;
-	
-					dim_values.add(df.format(month+1));
-					dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), (month+1));
-					key_value_count++;
-	
-					dim_values.add(df4.format(year));
-					dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), year);
-//				    System.out.println(_dataTypes.get(key_value_count).getName() + ": "+columnValue + " - "+ year);
-					key_value_count++;
-	
-					dim_values.add(Integer.toString(quarter));
-					dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), quarter);
-					key_value_count++;
-	
-					dim_values.add(df.format(week));
-					dim_keys.add(_dataTypes.get(key_value_count).getName());
-					curr.put(_dataTypes.get(key_value_count).getName(), week);
-					key_value_count++;
-					
-					//This check is temporary remove when schema supports these new data parts
-//					if(DatasetUtilConstants.createNewDateParts)
-//					{		
-						dim_values.add(df.format(hour));
-						dim_keys.add(_dataTypes.get(key_value_count).getName());
-						curr.put(_dataTypes.get(key_value_count).getName(), hour);
-						key_value_count++;
-	
-						dim_values.add(df.format(minute));
-						dim_keys.add(_dataTypes.get(key_value_count).getName());
-						curr.put(_dataTypes.get(key_value_count).getName(), minute);
-						key_value_count++;
-	
-						dim_values.add(df.format(second));
-						dim_keys.add(_dataTypes.get(key_value_count).getName());
-						curr.put(_dataTypes.get(key_value_count).getName(), second);
-						key_value_count++;
-	
-						if(fiscalMonthOffset>0)
+
+					addMeasure(sec_epoch);
+					put(curr, key_value_count++, sec_epoch);
+
+					addMeasure(day_epoch);
+					put(curr, key_value_count++, day_epoch);
+
+					addDim(key_value_count, day, 2);
+					put(curr, key_value_count++, day);
+
+					addDim(key_value_count, month+1, 2);
+					put(curr, key_value_count++, (month+1));
+
+					addDim(key_value_count, year, 4);
+					put(curr, key_value_count++, year);
+
+					addDim(key_value_count, quarter, 1);
+					put(curr, key_value_count++, quarter);
+
+					addDim(key_value_count, week, 2);
+					put(curr, key_value_count++, week);
+
+					addDim(key_value_count, hour, 2);
+					put(curr, key_value_count++, hour);
+
+					addDim(key_value_count, minute, 2);
+					put(curr, key_value_count++, minute);
+
+					addDim(key_value_count, second, 2);
+					put(curr, key_value_count++, second);
+
+					if(fiscalMonthOffset>0)
+					{
+						int fiscal_month = FiscalDateUtil.getFiscalMonth(month, fiscalMonthOffset);
+						int fiscal_year = FiscalDateUtil.getFiscalYear(year, month, fiscalMonthOffset, isYearEndFiscalYear);
+					    int fiscal_quarter = FiscalDateUtil.getFiscalQuarter(month, fiscalMonthOffset);
+						int fiscal_week = FiscalDateUtil.getFiscalWeek(cal, fiscalMonthOffset, firstDayOfWeek);
+
+						addDim(key_value_count, fiscal_month+1, 2);
+						put(curr, key_value_count++, (fiscal_month+1));
+
+						addDim(key_value_count, fiscal_year, 4);
+						put(curr, key_value_count++, fiscal_year);
+
+						addDim(key_value_count, fiscal_quarter, 1);
+						put(curr, key_value_count++, fiscal_quarter);
+
+						addDim(key_value_count, fiscal_week, 2);
+						put(curr, key_value_count++, fiscal_week);
+					}
+
+					if(columnValue instanceof String)
+					{
+						Object[] dateValues = null;
+						if(curr!=null)
 						{
-							int fiscal_month = FiscalDateUtil.getFiscalMonth(month, fiscalMonthOffset);
-							int fiscal_year = FiscalDateUtil.getFiscalYear(year, month, fiscalMonthOffset, isYearEndFiscalYear);
-						    int fiscal_quarter = FiscalDateUtil.getFiscalQuarter(month, fiscalMonthOffset);
-							int fiscal_week = FiscalDateUtil.getFiscalWeek(cal, fiscalMonthOffset, firstDayOfWeek);
-	
-							dim_values.add(df.format(fiscal_month+1));
-							dim_keys.add(_dataTypes.get(key_value_count).getName());
-							curr.put(_dataTypes.get(key_value_count).getName(), (fiscal_month+1));
-							key_value_count++;
-			
-							dim_values.add(df4.format(fiscal_year));
-							dim_keys.add(_dataTypes.get(key_value_count).getName());
-							curr.put(_dataTypes.get(key_value_count).getName(), fiscal_year);
-							key_value_count++;
-			
-							dim_values.add(Integer.toString(fiscal_quarter));
-							dim_keys.add(_dataTypes.get(key_value_count).getName());
-							curr.put(_dataTypes.get(key_value_count).getName(), fiscal_quarter);
-							key_value_count++;
-							
-							dim_values.add(df.format(fiscal_week));
-							dim_keys.add(_dataTypes.get(key_value_count).getName());
-							curr.put(_dataTypes.get(key_value_count).getName(), fiscal_week);
-							key_value_count++;
+							dateValues = new Object[key_value_count-columnStart];
+							for(int i=0;i<dateValues.length;i++)
+							{
+								dateValues[i] = curr[columnStart+i];
+							}
 						}
-//					}
-					
+						dateCaches[columnStart].put((String) columnValue, new DateEntry(Arrays.copyOfRange(dimBuffer, dimStart, dimLength), dimCount-dimCountStart, sec_epoch, day_epoch, key_value_count-columnStart, dateValues));
+					}
 				}
 
 			} catch(Throwable t)
 			{
-				throw new ParseException(_dataTypes.get(key_value_count).getName() +" is not in specified date format {"+ _dataTypes.get(key_value_count).getFormat() + "}: " + columnValue +" - " +t.getMessage(),0);
+				throw new ParseException(columns[key_value_count].getName() +" is not in specified date format {"+ columns[key_value_count].getFormat() + "}: " + columnValue +" - " +t.getMessage(),0);
 			}
 
-			}else 
+			}else
 			{
-				if(columnValue!=null)
-				{					
-					int precision = _dataTypes.get(key_value_count).getPrecision() > 0 ? _dataTypes.get(key_value_count).getPrecision(): maxTextLength;
-					if(_dataTypes.get(key_value_count).isMultiValue())
+				int precision = dataType.getPrecision() > 0 ? dataType.getPrecision(): maxTextLength;
+				if(rawValue)
+				{
+					addDim(key_value_count, utf8.getBytes(), utf8.getOffset(count), utf8.getLength(count), precision);
+				}else if(columnValue!=null)
+				{
+					if(multiValuePatterns[key_value_count]!=null)
 					{
-						if(_dataTypes.get(key_value_count).getMultiValueSeparator()==null)
-							_dataTypes.get(key_value_count).setMultiValueSeparator(";"); //Default MultivalueSeparator
-						String vals[] = columnValue.toString().split(Pattern.quote(_dataTypes.get(key_value_count).getMultiValueSeparator()));
+						String vals[] = multiValuePatterns[key_value_count].split(columnValue.toString());
 						for(String val:vals)
 						{
 							if(val!=null)
 							{
-								if(val.length() > precision)
-									dim_values.add(val.substring(0, precision));
-								else
-									dim_values.add(val);
-								dim_keys.add(_dataTypes.get(key_value_count).getName());
+								addDim(key_value_count, val, codePointEnd(val, precision));
 							}
 						}
 					}else
 					{
-						if(columnValue.toString().length() > precision)
-							dim_values.add(columnValue.toString().substring(0, precision));
-						else
-							dim_values.add(columnValue.toString());
-						dim_keys.add(_dataTypes.get(key_value_count).getName());
+						String value = columnValue.toString();
+						addDim(key_value_count, value, codePointEnd(value, precision));
 					}
 				}
-				curr.put(_dataTypes.get(key_value_count).getName(), columnValue);
+				put(curr, key_value_count, columnValue);
 				key_value_count++;
 			}
 			count++;
 		}
-		if(dim_values.size()>0)
+		if(dimCount>0)
 		{
-			arr(measure_values);
-			dict(dim_keys, dim_values);
+			int rowLength = 0;
+			for (int i = 0; i < measureCount; i++) {
+				long value = measureValues[i];
+				rowLength = putVInt(rowBuffer, rowLength, value < 0 ? -value * 2 - 1 : value * 2);
+			}
+			rowLength = putVInt(rowBuffer, rowLength, dimCount);
+			out.write(rowBuffer, 0, rowLength);
+			ensureDimCapacity(1);
+			dimBuffer[dimLength++] = checksum;
+			out.write(dimBuffer, 0, dimLength);
 			successRowCount++;
 		}else
 		{
 			String message = "Row " + totalRowCount + " contains no Text Values. Atleast 1 column should have a non empty value or default value";
 			throw new IOException(message);
 		}
-		prev = curr;
+		if(curr!=null)
+		{
+			//The values of this row become prev, and the old prev array is reused for the next row
+			currRow = prevRow;
+			prevRow = curr;
+		}
 	}
-	
-	
-	
+
+	/**
+	 * Builds the per schema row plan: the column array, the UTF-8 key bytes
+	 * (including the ':' delimiter), the measure multipliers and the multi value
+	 * split patterns, so that none of these are looked up or encoded per row
+	 */
+	private void compileRowPlan() throws IOException
+	{
+		columns = _dataTypes.toArray(new FieldType[_dataTypes.size()]);
+		keys = new byte[columns.length][];
+		multipliers = new long[columns.length];
+		scales = new int[columns.length];
+		measureParsers = new ScaledDecimalParser[columns.length];
+		multiValuePatterns = new Pattern[columns.length];
+		dateParsers = new FastDateParser[columns.length];
+		dateCaches = new DateCache[columns.length];
+		expressions = new CompiledExpression[columns.length];
+		HashMap<String,Integer> columnIndexes = new HashMap<String,Integer>();
+		for (int i = 0; i < columns.length; i++)
+		{
+			if(!columns[i].isSkipped)
+				columnIndexes.put(columns[i].getName(), i);
+		}
+		int measureColumns = 0;
+		for (int i = 0; i < columns.length; i++)
+		{
+			FieldType dataType = columns[i];
+			byte[] name = dataType.getName().getBytes("UTF-8");
+			keys[i] = Arrays.copyOf(name, name.length + delimiter.length);
+			System.arraycopy(delimiter, 0, keys[i], name.length, delimiter.length);
+			if(dataType.isComputedField)
+			{
+				hasComputedFields = true;
+				if(!dataType.isSkipped)
+				{
+					expressions[i] = ExpressionCompiler.compile(dataType.getComputedFieldExpression(), columnIndexes, i);
+					if(expressions[i]==null)
+					{
+						//The schema validation only checks the syntax, unknown columns and columns that come after this one are found here
+						if(dataType.getCompiledScript()==null)
+							throw new IllegalArgumentException("Field {"+dataType.getName()+"} expression {"+dataType.getComputedFieldExpression()+"} cannot be evaluated, it references a column that does not exist or comes after it, or it needs a JavaScript engine");
+						logger.println("Field {"+dataType.getName()+"} expression {"+dataType.getComputedFieldExpression()+"} is evaluated with the JavaScript engine");
+					}
+				}
+			}
+			if(dataType.isSkipped)
+				continue;
+			if(dataType.getfType() == FieldType.MEASURE)
+			{
+				multipliers[i] = Math.max(dataType.getMeasure_multiplier(), 1L);
+				scales[i] = Long.toString(multipliers[i]).length() - 1;
+				if(multipliers[i] == (long) Math.pow(10, scales[i]))
+					measureParsers[i] = ScaledDecimalParser.compile(dataType.getCompiledNumberFormat());
+				measureColumns++;
+			}
+			if(dataType.getfType() == FieldType.STRING && dataType.isMultiValue())
+			{
+				if(dataType.getMultiValueSeparator()==null)
+					dataType.setMultiValueSeparator(";"); //Default MultivalueSeparator
+				multiValuePatterns[i] = Pattern.compile(Pattern.quote(dataType.getMultiValueSeparator()));
+			}
+			if(dataType.getfType() == FieldType.DATE)
+			{
+				dateParsers[i] = FastDateParser.compile(dataType.getFormat());
+				dateCaches[i] = new DateCache();
+			}
+		}
+		//Text values are only decoded when computed fields need them as Strings
+		rawText = new boolean[columns.length];
+		for (int i = 0; i < columns.length; i++)
+		{
+			FieldType dataType = columns[i];
+			rawText[i] = !hasComputedFields && !dataType.isSkipped && dataType.getfType() == FieldType.STRING && multiValuePatterns[i] == null;
+		}
+		if(hasComputedFields)
+		{
+			currRow = new Object[columns.length];
+			prevRow = new Object[columns.length];
+		}
+		measureValues = new long[measureColumns];
+		rowBuffer = new byte[(measureColumns + 1) * 10];
+		asciiDigits = df.getDecimalFormatSymbols().getZeroDigit() == '0' && df4.getDecimalFormatSymbols().getZeroDigit() == '0';
+	}
+
+	private void put(Object[] curr, int index, Object value)
+	{
+		if(curr!=null)
+			curr[index] = value;
+	}
+
+	/**
+	 * Gets the values of the columns before end as a map by column name, for the JavaScript engine
+	 */
+	private LinkedHashMap<String,Object> toMap(Object[] row, int end)
+	{
+		LinkedHashMap<String,Object> map = new LinkedHashMap<String,Object>();
+		for(int i=0;i<end;i++)
+		{
+			if(!columns[i].isSkipped)
+				map.put(columns[i].getName(), row[i]);
+		}
+		return map;
+	}
+
+	private void addMeasure(long value)
+	{
+		measureValues[measureCount++] = value;
+	}
+
+	/**
+	 * Gets the end of the first precision code points of value
+	 */
+	private static int codePointEnd(String value, int precision)
+	{
+		if(value.length() <= precision)
+			return value.length();
+		int end = 0;
+		for (int i = 0; i < precision && end < value.length(); i++)
+			end += Character.charCount(value.codePointAt(end));
+		return end;
+	}
+
+	/**
+	 * Adds the dimension key:value entry for the UTF-8 bytes of a value, truncated to precision
+	 * code points, to the dimension buffer
+	 */
+	private void addDim(int index, byte[] value, int offset, int length, int precision)
+	{
+		int end = offset + length;
+		if(length > precision)
+		{
+			//Stop at the first byte of the code point after the last one that is kept
+			int codePoints = 0;
+			for (int i = offset; i < end; i++)
+			{
+				if((value[i] & 0xc0) != 0x80 && codePoints++ == precision)
+				{
+					end = i;
+					break;
+				}
+			}
+		}
+		byte[] key = keys[index];
+		int valueLength = end - offset;
+		ensureDimCapacity(5 + key.length + valueLength);
+		dimLength = putVInt(dimBuffer, dimLength, key.length + valueLength);
+		System.arraycopy(key, 0, dimBuffer, dimLength, key.length);
+		dimLength += key.length;
+		System.arraycopy(value, offset, dimBuffer, dimLength, valueLength);
+		dimLength += valueLength;
+		dimCount++;
+	}
+
+	/**
+	 * Adds the dimension key:value entry for the first end chars of value to the dimension buffer
+	 */
+	private void addDim(int index, String value, int end)
+	{
+		byte[] key = keys[index];
+		int valueLength = utf8Length(value, end);
+		ensureDimCapacity(5 + key.length + valueLength);
+		dimLength = putVInt(dimBuffer, dimLength, key.length + valueLength);
+		System.arraycopy(key, 0, dimBuffer, dimLength, key.length);
+		dimLength += key.length;
+		for (int i = 0; i < end; i++)
+		{
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				dimBuffer[dimLength++] = (byte) c;
+			} else if (c < 0x800) {
+				dimBuffer[dimLength++] = (byte) (0xc0 | (c >> 6));
+				dimBuffer[dimLength++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				dimBuffer[dimLength++] = (byte) (0xf0 | (cp >> 18));
+				dimBuffer[dimLength++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				dimBuffer[dimLength++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				dimBuffer[dimLength++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				//Unpaired surrogates are replaced the same way String.getBytes("UTF-8") does
+				dimBuffer[dimLength++] = (byte) '?';
+			} else {
+				dimBuffer[dimLength++] = (byte) (0xe0 | (c >> 12));
+				dimBuffer[dimLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				dimBuffer[dimLength++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		dimCount++;
+	}
+
+	/**
+	 * Adds a zero padded numeric date part, this is the same as formatting with the df/df4 formats
+	 */
+	private void addDim(int index, int value, int width)
+	{
+		if(!asciiDigits || value < 0)
+		{
+			String formatted = width == 4 ? df4.format(value) : width == 2 ? df.format(value) : Integer.toString(value);
+			addDim(index, formatted, formatted.length());
+			return;
+		}
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10)
+			digits++;
+		int length = Math.max(digits, width);
+		byte[] key = keys[index];
+		ensureDimCapacity(5 + key.length + length);
+		dimLength = putVInt(dimBuffer, dimLength, key.length + length);
+		System.arraycopy(key, 0, dimBuffer, dimLength, key.length);
+		dimLength += key.length;
+		for (int i = dimLength + length - 1; i >= dimLength; i--)
+		{
+			dimBuffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		dimLength += length;
+		dimCount++;
+	}
+
+	private static int utf8Length(String value, int end)
+	{
+		int length = end;
+		for (int i = 0; i < end; i++)
+		{
+			char c = value.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					length += 1;
+				} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+					length += 2;
+					i++;
+				} else if (!Character.isSurrogate(c)) {
+					length += 2;
+				}
+			}
+		}
+		return length;
+	}
+
+	private void ensureDimCapacity(int length)
+	{
+		if (dimLength + length > dimBuffer.length)
+			dimBuffer = Arrays.copyOf(dimBuffer, Math.max(dimBuffer.length * 2, dimLength + length));
+	}
+
+	/**
+	 * Same encoding as vInt() but into a buffer, returns the new position
+	 */
+	private static int putVInt(byte[] buffer, int pos, long i)
+	{
+		while ((i & ~0x7F) != 0) {
+			buffer[pos++] = (byte) ((i & 0x7F) | 0x80);
+			i = i >> 7;
+		}
+		buffer[pos++] = (byte) i;
+		return pos;
+	}
+
+
 	protected void initmeasures(LinkedList<FieldType> _dataTypes)  throws IOException 
 	{
 		LinkedList<Integer> measure_index = new LinkedList<Integer>();
@@ -585,50 +841,6 @@ public class EbinFormatWriter {
 		out.write((int)i);
 	}
 
-	protected void dict(LinkedList<String> dim_keys, LinkedList<String> dim_values)  throws IOException
-	{
-//		System.out.println(dim_keys);
-//		System.out.println(dim_values);
-		int dlen = dim_values.size();
-		vInt(dlen);
-		for (int i = 0; i < dlen; i++) {
-            byte[] v = dim_values.get(i).getBytes("UTF-8");
-            byte[] d = dim_keys.get(i).getBytes("UTF-8");
-			vInt(v.length + d.length + 1);
-			out.write(d);   	
-			out.write(delimiter);
-			out.write(v);
-		}
-		out.write(checksum);
-	}
-
-	/*
-	protected void dict(LinkedList<String> dim_keys, LinkedList<String> dim_values)  throws IOException
-	{
-	       int dlen = dim_values.size();
-	       vInt(dlen);
-//	       delimiter = ":".getBytes("UTF-8");
-	       for (int i = 0; i < dlen; i++) {
-	              byte[] v = dim_values.get(i).getBytes("UTF-8");
-	              byte[] d = dim_keys.get(i).getBytes("UTF-8");
-	              vInt(v.length + d.length + 1);
-	              byte[] output = new byte[v.length + d.length + delimiter.length];
-	              System.arraycopy(d, 0, output, 0, d.length);
-	              System.arraycopy(delimiter, 0, output, d.length, delimiter.length);
-	              System.arraycopy(v, 0, output, d.length+delimiter.length, v.length);
-	              out.write(output);        
-	       }
-	       out.write(checksum);
-	}
-	*/
-	
-	protected void arr(LinkedList<Long> measure_values)  throws IOException
-	{
-		for (int i = 0; i < measure_values.size(); i++) {
-			vEncodedIntCustom(measure_values.get(i));    	
-		}
-	}
-		
 	public void finish() throws IOException
 	{
 		if (out != null) {
@@ -646,16 +858,6 @@ public class EbinFormatWriter {
 		}
 	}
 	
-	private void vEncodedIntCustom(long i) throws IOException {
-		long res = 0;
-		if (i < 0) {
-			res = (long) -i * 2 - 1;
-		} else {
-			res = (long) i * 2;
-		}
-		vInt(res);
-	}
-	
 	public static boolean isValidBin(byte[] startingFiveBytes)
 	{
 		if(startingFiveBytes == null || startingFiveBytes.length < 5 )
@@ -688,6 +890,15 @@ public class EbinFormatWriter {
 		return totalRowCount;
 	}
 
+	/**
+	 * Gets the name of the column that was being encoded when the last call to addrow failed.
+	 *
+	 * @return the column name or null if the row failed before any column was encoded
+	 */
+	public String getErrorColumn() {
+		return currentColumn < 0 ? null : columns[currentColumn].getName();
+	}
+
 	
     public int getFiscalWeek(int fiscalMonthOffset, int weeksinYear, int firstDayOfWeek, int year, int week) {
         Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
@@ -703,4 +914,46 @@ public class EbinFormatWriter {
         return result;
     }
 
+
+	/**
+	 * The encoded dimensions and the measures of one date value.
+	 */
+	private static class DateEntry
+	{
+		final byte[] dims;
+		final int dimCount;
+		final long secEpoch;
+		final long dayEpoch;
+		final int columnCount;
+		final Object[] values; //only kept for computed field expressions
+
+		DateEntry(byte[] dims, int dimCount, long secEpoch, long dayEpoch, int columnCount, Object[] values)
+		{
+			this.dims = dims;
+			this.dimCount = dimCount;
+			this.secEpoch = secEpoch;
+			this.dayEpoch = dayEpoch;
+			this.columnCount = columnCount;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * A date value cache that drops the least recently used value once it is full.
+	 */
+	private static class DateCache extends LinkedHashMap<String,DateEntry>
+	{
+		private static final long serialVersionUID = 1L;
+
+		DateCache()
+		{
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(java.util.Map.Entry<String,DateEntry> eldest)
+		{
+			return size() > dateCacheSize;
+		}
+	}
 }
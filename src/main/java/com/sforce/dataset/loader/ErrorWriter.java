@@ -24,14 +24,22 @@
  * POSSIBILITY OF SUCH DAMAGE.
  */
 package com.sforce.dataset.loader;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -42,9 +50,25 @@ import com.sforce.dataset.util.CSVReader;
 import com.sforce.dataset.util.CsvWriter;
 import com.sforce.dataset.util.FileUtilsExt;
 import com.sforce.dataset.util.Logger;
+import com.sforce.dataset.util.Utf8Record;
 
 /**
  * The Class ErrorWriter.
+ *
+ * Writes the rows that failed to the error csv and records each of them in the
+ * error index, the index holds the row number, the byte range of the row in the
+ * input when it is known, the column that failed and the class of the error.
+ * Line N of the index describes row N of the error csv. The files are written by
+ * a background thread so that the encoder does not wait for the disk.
+ *
+ * The row number counts the data rows after the header. The parallel digest
+ * numbers a row by its record position in the file, blank lines are not counted
+ * and rows that could not be parsed still take a number. The sequential digest
+ * numbers the rows that reached the encoder. The byte offset is the exact
+ * position of the row in the input, it is only known for UTF-8 files digested
+ * as bytes and is -1 otherwise. It is also -1 when the rows are read from a
+ * sorted copy of the input, the index always describes the original input.
+ * The error csv is written in UTF-8 whatever the charset of the input.
  */
 public class ErrorWriter {
 			
@@ -63,12 +87,39 @@ public class ErrorWriter {
 	/** The error file suffix. */
 	public static String errorFileSuffix = "_err.";
 	
+	/** The error index suffix. */
+	public static String errorIndexSuffix = "_err.idx";
+	
+	/** The error index header. */
+	private static final String indexHeaderLine = "Row,Offset,Length,Column,ErrorClass";
+	
+	/** The max number of errors waiting to be written. */
+	private static final int maxQueuedErrors = 10000;
+	
+	/** Tells the writer thread that there are no more errors. */
+	private static final ErrorRecord EOF = new ErrorRecord(null, null, -1, -1, 0, null, null);
+	
 	/** The error csv. */
 	private File errorCsv;
 	
+	/** The error index. */
+	private File errorIndex;
+	
 	/** The writer. */
 	private BufferedWriter fWriter = null;
 	
+	/** The index writer. */
+	private BufferedWriter indexWriter = null;
+	
+	/** Whether the byte ranges of the rows point into the input csv. */
+	private final boolean recordOffsets;
+	
+	/** The errors waiting to be written. */
+	private final BlockingQueue<ErrorRecord> queue = new LinkedBlockingQueue<ErrorRecord>(maxQueuedErrors);
+	
+	/** The writer thread. */
+	private Thread writerThread = null;
+	
 	/** The Constant LF. */
 	public static final char LF = '\n';
 
@@ -93,6 +144,22 @@ public class ErrorWriter {
 	 */
 	public ErrorWriter(File inputCsv,char delimiter,Charset inputFileCharset)
 			throws IOException 
+	{
+		this(inputCsv, delimiter, inputFileCharset, true);
+	}
+
+	/**
+	 * Instantiates a new error writer.
+	 *
+	 * @param inputCsv the input csv, the error files are named after it
+	 * @param delimiter the delimiter
+	 * @param inputFileCharset the input File Charset
+	 * @param recordOffsets false if the rows are read from another file than inputCsv, 
+	 * such as a sorted copy of it, the offset of every row is then recorded as -1
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public ErrorWriter(File inputCsv,char delimiter,Charset inputFileCharset, boolean recordOffsets)
+			throws IOException 
 	{
 		if(inputCsv==null|| !inputCsv.exists())
 		{
@@ -105,6 +172,7 @@ public class ErrorWriter {
 //		}
 
 		this.delimiter = delimiter;
+		this.recordOffsets = recordOffsets;
 
 //		CsvListReader reader = new CsvListReader(new InputStreamReader(new BOMInputStream(new FileInputStream(inputCsv), false), DatasetUtils.utf8Decoder(CodingErrorAction.IGNORE, null)), pref);
 //		headerColumns = reader.getHeader(true);		
@@ -128,46 +196,114 @@ public class ErrorWriter {
 		}
 		this.HeaderLine = hdrLine.toString();
 		
-		this.errorCsv = new File(inputCsv.getParent(), FilenameUtils.getBaseName(inputCsv.getName())+ errorFileSuffix + FilenameUtils.getExtension((inputCsv.getName())));
-		if(this.errorCsv.exists())
-		{
-			try
-			{
-				File archiveDir = new File(inputCsv.getParent(),"archive");
-				FileUtils.moveFile(this.errorCsv, new File(archiveDir,this.errorCsv.getName()+"."+this.errorCsv.lastModified()));
-			}catch(Throwable t)
-			{
-				FileUtilsExt.deleteQuietly(this.errorCsv);
-			}
-		}		
+		this.errorCsv = getErrorFile(inputCsv);
+		this.errorIndex = getErrorIndexFile(inputCsv);
+		archiveErrorFiles(inputCsv);
 	}
 	
+	/**
+	 * Adds a row that failed.
+	 *
+	 * @param values the values
+	 * @param error the error
+	 */
 	public void addError(List<String> values, String error)
 	{
-		try 
+		addError(values, -1, null, error, null);
+	}
+	
+	/**
+	 * Adds a row that failed and records it in the error index.
+	 *
+	 * @param values the values, the byte range of a {@link Utf8Record} is recorded in the index
+	 * @param rowNumber the row number
+	 * @param column the column that failed, can be null
+	 * @param t the error
+	 */
+	public void addError(List<String> values, long rowNumber, String column, Throwable t)
+	{
+		addError(values, rowNumber, column, t.getMessage()!=null?t.getMessage():t.toString(), t.getClass().getSimpleName());
+	}
+	
+	private void addError(List<String> values, long rowNumber, String column, String error, String errorClass)
+	{
+		long offset = -1;
+		int length = 0;
+		if(recordOffsets && values instanceof Utf8Record)
 		{
-			if(fWriter == null)
-			{
-				fWriter = new BufferedWriter(new FileWriter(this.errorCsv),DatasetUtilConstants.DEFAULT_BUFFER_SIZE);
-				if(this.HeaderLine!=null)
-					fWriter.write(this.HeaderLine+"\n");
-			}
-			if(error==null)
-				error="null";
-			fWriter.write(getCSVFriendlyString(error));
-			if(values!=null)
-			{
-				for(String val:values)
+			offset = ((Utf8Record)values).getRecordOffset();
+			length = ((Utf8Record)values).getRecordLength();
+		}
+		//The row may be reused by the caller once this returns
+		List<String> copy = values!=null ? new ArrayList<String>(values) : null;
+		try
+		{
+			startWriterThread();
+			queue.put(new ErrorRecord(copy, error, rowNumber, offset, length, column, errorClass));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private synchronized void startWriterThread()
+	{
+		if(writerThread!=null)
+			return;
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ErrorRecord record = null;
+				try
 				{
-					fWriter.write(this.delimiter);	
-					if(val!=null)
-						fWriter.write(CsvWriter.encode(val, this.delimiter , QUOTE));
+					while((record = queue.take())!=EOF)
+					{
+						try
+						{
+							write(record);
+						} catch (Throwable t) {
+							t.printStackTrace(Logger.out);
+						}
+					}
+				} catch (InterruptedException e) {
+					e.printStackTrace(Logger.out);
 				}
 			}
-			fWriter.write("\n");
-		} catch (Throwable t) {
-			t.printStackTrace(Logger.out);
+		},"Error-Writer-Thread");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+	
+	private void write(ErrorRecord record) throws IOException
+	{
+		if(fWriter == null)
+		{
+			fWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.errorCsv), StandardCharsets.UTF_8),DatasetUtilConstants.DEFAULT_BUFFER_SIZE);
+			if(this.HeaderLine!=null)
+				fWriter.write(this.HeaderLine+"\n");
+			indexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.errorIndex), StandardCharsets.UTF_8),DatasetUtilConstants.DEFAULT_BUFFER_SIZE);
+			indexWriter.write(indexHeaderLine+"\n");
+		}
+		String error = record.error;
+		if(error==null)
+			error="null";
+		fWriter.write(getCSVFriendlyString(error));
+		if(record.values!=null)
+		{
+			for(String val:record.values)
+			{
+				fWriter.write(this.delimiter);	
+				if(val!=null)
+					fWriter.write(CsvWriter.encode(val, this.delimiter , QUOTE));
+			}
 		}
+		fWriter.write("\n");
+		indexWriter.write(record.rowNumber+","+record.offset+","+record.length+",");
+		if(record.column!=null)
+			indexWriter.write(CsvWriter.encode(record.column, COMMA, QUOTE));
+		indexWriter.write(COMMA);
+		if(record.errorClass!=null)
+			indexWriter.write(record.errorClass);
+		indexWriter.write("\n");
 	}
 	
 	
@@ -186,13 +322,191 @@ public class ErrorWriter {
 	 *
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
-	public void finish() throws IOException
+	public synchronized void finish() throws IOException
 	{
+		if(writerThread != null)
+		{
+			try
+			{
+				queue.put(EOF);
+				writerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			writerThread = null;
+		}
 		if (fWriter != null) {
 			fWriter.flush();
 			IOUtils.closeQuietly(fWriter);
 		}
 		fWriter = null;
+		if (indexWriter != null) {
+			indexWriter.flush();
+			IOUtils.closeQuietly(indexWriter);
+		}
+		indexWriter = null;
+	}
+	
+	/**
+	 * Checks if a row error should be written to the log, once errorLogSample 
+	 * errors have been logged only every errorLogSample-th error is, so that a 
+	 * bad file does not flood the log.
+	 *
+	 * @param errorCount the number of errors so far, including this one
+	 * @return true, if the error should be logged
+	 */
+	public static boolean isLogged(long errorCount)
+	{
+		int sample = DatasetUtilConstants.getSystemConfig().errorLogSample;
+		return sample <= 0 || errorCount <= sample || errorCount % sample == 0;
+	}
+	
+	/**
+	 * Gets the error csv of an input file.
+	 *
+	 * @param inputCsv the input csv
+	 * @return the error file
+	 */
+	public static File getErrorFile(File inputCsv)
+	{
+		return new File(inputCsv.getParent(), FilenameUtils.getBaseName(inputCsv.getName())+ errorFileSuffix + FilenameUtils.getExtension((inputCsv.getName())));
+	}
+	
+	/**
+	 * Gets the error index of an input file.
+	 *
+	 * @param inputCsv the input csv
+	 * @return the error index file
+	 */
+	public static File getErrorIndexFile(File inputCsv)
+	{
+		return new File(inputCsv.getParent(), FilenameUtils.getBaseName(inputCsv.getName())+ errorIndexSuffix);
+	}
+	
+	/**
+	 * Moves the error csv and the error index of an input file to the archive dir.
+	 *
+	 * @param inputCsv the input csv
+	 */
+	public static void archiveErrorFiles(File inputCsv)
+	{
+		File archiveDir = new File(inputCsv.getParent(),"archive");
+		for(File file:new File[]{getErrorFile(inputCsv), getErrorIndexFile(inputCsv)})
+		{
+			if(file.exists())
+			{
+				try
+				{
+					FileUtils.moveFile(file, new File(archiveDir,file.getName()+"."+file.lastModified()));
+				}catch(Throwable t)
+				{
+					FileUtilsExt.deleteQuietly(file);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the rows listed in the error index of an input file to a new csv with 
+	 * the same header. Rows with a byte range in the index are copied from the input 
+	 * as is, the other rows are taken from the error csv.
+	 * <p>
+	 * Only rows read by the UTF-8 byte tokenizer have a byte range. Rows of files in
+	 * other charsets, rows read by the char tokenizer or the StreamTokenizer parser
+	 * and rows read from a sorted copy of the input, either the sorted file or the 
+	 * merge of the sort runs, have an offset of -1. Those rows are rebuilt from the 
+	 * values in the UTF-8 error csv and encoded in the input charset. The values 
+	 * have already been through the csv parser, so quoting and line breaks may 
+	 * differ from the input and values the parser normalized are not restored.
+	 *
+	 * @param inputCsv the input csv
+	 * @param delimiter the delimiter
+	 * @param inputFileCharset the input file charset
+	 * @param outputCsv the output csv
+	 * @param logger the logger
+	 * @return the number of rows written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static long extractErrorRows(File inputCsv, char delimiter, Charset inputFileCharset, File outputCsv, PrintStream logger) throws IOException
+	{
+		File indexFile = getErrorIndexFile(inputCsv);
+		File errorFile = getErrorFile(inputCsv);
+		if(!indexFile.exists() || !errorFile.exists())
+		{
+			throw new IOException("Error index {"+indexFile+"} not found, the file has no failed rows to reprocess");
+		}
+		long rowCount = 0;
+		long copiedRowCount = 0;
+		CSVReader index = null;
+		CSVReader errors = null;
+		RandomAccessFile input = null;
+		OutputStream out = null;
+		try
+		{
+			index = new CSVReader(new FileInputStream(indexFile), "UTF-8", COMMA);
+			errors = new CSVReader(new FileInputStream(errorFile), "UTF-8", delimiter);
+			input = new RandomAccessFile(inputCsv, "r");
+			out = new BufferedOutputStream(new FileOutputStream(outputCsv), DatasetUtilConstants.DEFAULT_BUFFER_SIZE);
+
+			CSVReader reader = new CSVReader(new FileInputStream(inputCsv), inputFileCharset.name(), delimiter);
+			List<String> header = reader.nextRecord();
+			reader.finalise();
+			out.write(encode(header, delimiter).getBytes(inputFileCharset));
+
+			index.nextRecord();
+			errors.nextRecord();
+			List<String> entry = null;
+			byte[] buf = new byte[4096];
+			while((entry = index.nextRecord())!=null)
+			{
+				List<String> error = errors.nextRecord();
+				long offset = Long.parseLong(entry.get(1));
+				int length = Integer.parseInt(entry.get(2));
+				if(offset >= 0 && length > 0)
+				{
+					if(buf.length < length)
+						buf = new byte[length];
+					input.seek(offset);
+					input.readFully(buf, 0, length);
+					out.write(buf, 0, length);
+					//The range of a CRLF record ends at the CR
+					if(buf[length-1]!=LF)
+						out.write(LF);
+					copiedRowCount++;
+				}else if(error!=null && error.size()>1)
+				{
+					out.write(encode(error.subList(1, error.size()), delimiter).getBytes(inputFileCharset));
+				}else
+				{
+					throw new IOException("Row {"+entry.get(0)+"} in error index {"+indexFile+"} has no matching row in the error file {"+errorFile+"}");
+				}
+				rowCount++;
+			}
+		}finally
+		{
+			if(index!=null)
+				index.finalise();
+			if(errors!=null)
+				errors.finalise();
+			IOUtils.closeQuietly(input);
+			IOUtils.closeQuietly(out);
+		}
+		logger.println("Extracted {"+rowCount+"} failed rows to {"+outputCsv+"}, {"+copiedRowCount+"} rows copied from the input file");
+		return rowCount;
+	}
+	
+	private static String encode(List<String> values, char delimiter)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<values.size();i++)
+		{
+			if(i>0)
+				sb.append(delimiter);
+			if(values.get(i)!=null)
+				sb.append(CsvWriter.encode(values.get(i), delimiter, QUOTE));
+		}
+		return sb.append(LF).toString();
 	}
 	
 	/**
@@ -249,4 +563,28 @@ public class ErrorWriter {
 		}else
 			return original;
 	}
+
+	/**
+	 * A row that failed, waiting to be written.
+	 */
+	private static final class ErrorRecord {
+		private final List<String> values;
+		private final String error;
+		private final long rowNumber;
+		private final long offset;
+		private final int length;
+		private final String column;
+		private final String errorClass;
+
+		private ErrorRecord(List<String> values, String error, long rowNumber, long offset, int length, String column, String errorClass)
+		{
+			this.values = values;
+			this.error = error;
+			this.rowNumber = rowNumber;
+			this.offset = offset;
+			this.length = length;
+			this.column = column;
+			this.errorClass = errorClass;
+		}
+	}
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+/**
+ * The Class FilePart.
+ *
+ * A slice of the digested file that is uploaded as one InsightsExternalDataPart,
+ * the bytes are read from the file when the part is uploaded instead of being
+ * copied into a file of its own.
+ */
+public class FilePart {
+
+	private final File file;
+	private final long offset;
+	private final int length;
+
+	/**
+	 * Instantiates a new file part.
+	 *
+	 * @param file the file
+	 * @param offset the offset of the part in the file
+	 * @param length the length of the part
+	 */
+	public FilePart(File file, long offset, int length)
+	{
+		if(file==null || offset < 0 || length <= 0)
+		{
+			throw new IllegalArgumentException("Constructor input cannot be null");
+		}
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Reads the part with positional reads, the buffer is reused if it has the length of the part.
+	 *
+	 * @param buffer the buffer to reuse, can be null
+	 * @return the part bytes
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public byte[] read(byte[] buffer) throws IOException
+	{
+		//The buffer is sent as is, so it must have the exact length of the part
+		if(buffer==null || buffer.length!=length)
+			buffer = new byte[length];
+		RandomAccessFile raf = null;
+		try
+		{
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			ByteBuffer bb = ByteBuffer.wrap(buffer);
+			long position = offset;
+			while(bb.hasRemaining())
+			{
+				int n = channel.read(bb, position);
+				if(n<0)
+					throw new EOFException("File {"+file+"} ends before the end of part {"+this+"}");
+				position += n;
+			}
+		}finally
+		{
+			if(raf!=null)
+			{
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Copies the part to a stream a chunk at a time, so that the part is never held in memory.
+	 *
+	 * @param out the stream
+	 * @param checksum updated with the part bytes, can be null
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void writeTo(OutputStream out, Checksum checksum) throws IOException
+	{
+		byte[] buffer = new byte[Math.min(length, 65536)];
+		RandomAccessFile raf = null;
+		try
+		{
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			long position = offset;
+			long end = offset + length;
+			while(position < end)
+			{
+				ByteBuffer bb = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position));
+				int n = channel.read(bb, position);
+				if(n<0)
+					throw new EOFException("File {"+file+"} ends before the end of part {"+this+"}");
+				out.write(buffer, 0, n);
+				if(checksum!=null)
+					checksum.update(buffer, 0, n);
+				position += n;
+			}
+		}finally
+		{
+			if(raf!=null)
+			{
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return file + "[" + offset + "," + length + "]";
+	}
+}
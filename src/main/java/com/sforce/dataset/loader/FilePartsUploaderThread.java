@@ -25,15 +25,13 @@
  */
 package com.sforce.dataset.loader;
 
-import java.io.File;
 import java.io.PrintStream;
+import java.net.SocketTimeoutException;
 import java.text.NumberFormat;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.commons.io.FileUtils;
-
 import com.sforce.dataset.flow.monitor.Session;
 import com.sforce.dataset.flow.monitor.ThreadContext;
 import com.sforce.soap.partner.PartnerConnection;
@@ -42,28 +40,41 @@ import com.sforce.soap.partner.sobject.SObject;
  
 public class FilePartsUploaderThread implements Runnable {
 
-  private final BlockingQueue<Map<Integer,File>> queue;
+  private final BlockingQueue<Map<Integer,FilePart>> queue;
   private final PartnerConnection partnerConnection;
   private final String insightsExternalDataId;
 
   private volatile AtomicBoolean done = new AtomicBoolean(false);
+  private final StageCompletion completion = new StageCompletion();
 
   private volatile int errorRowCount = 0;
   private volatile int totalRowCount = 0;
   private final PrintStream logger;
+  private final UploadConcurrencyController controller;
+  private final UploadManifest manifest;
+  private final boolean restPartUpload;
+  private RestFilePartUploader restUploader = null;
   Session session = null;
   
+  //Reused for every part of the same size, most parts of a file have the same size
+  private byte[] partBuffer = null;
+  
   public static final NumberFormat nf = NumberFormat.getIntegerInstance();
 
-FilePartsUploaderThread(BlockingQueue<Map<Integer,File>> q,PartnerConnection partnerConnection, String insightsExternalDataId, PrintStream logger, Session session) 
+  private static final String REQUEST_LIMIT_EXCEEDED = "REQUEST_LIMIT_EXCEEDED";
+
+FilePartsUploaderThread(BlockingQueue<Map<Integer,FilePart>> q,PartnerConnection partnerConnection, String insightsExternalDataId, UploadConcurrencyController controller, UploadManifest manifest, boolean restPartUpload, PrintStream logger, Session session) 
   { 
-	  if(partnerConnection==null || insightsExternalDataId == null || q == null)
+	  if(partnerConnection==null || insightsExternalDataId == null || q == null || controller == null || manifest == null)
 	  {
 		  throw new IllegalArgumentException("Constructor input cannot be null");
 	  }
 	  queue = q; 
 	  this.partnerConnection = partnerConnection;
 	  this.insightsExternalDataId = insightsExternalDataId;
+	  this.controller = controller;
+	  this.manifest = manifest;
+	  this.restPartUpload = restPartUpload;
 	  this.logger = logger;
 	  this.session = session;
   }
@@ -73,9 +84,11 @@ FilePartsUploaderThread(BlockingQueue<Map<Integer,File>> q,PartnerConnection par
 			ThreadContext threadContext = ThreadContext.get();
 			threadContext.setSession(session);
 
-			Map<Integer, File> row = queue.take();
+			Map<Integer, FilePart> row = queue.take();
 			logger.println("Start: " + Thread.currentThread().getName());
 			done.set(false);
+			if (restPartUpload)
+				restUploader = new RestFilePartUploader(partnerConnection);
 
 			while (!row.isEmpty()) {
 				if (session.isDone()) {
@@ -95,15 +108,29 @@ FilePartsUploaderThread(BlockingQueue<Map<Integer,File>> q,PartnerConnection par
 			}
 		} catch (Throwable t) {
 			logger.println(Thread.currentThread().getName() + " " + t);
+		} finally {
+			if (restUploader != null)
+				restUploader.close();
 		}
 		done.set(true);
 		logger.println("END: " + Thread.currentThread().getName());
+		completion.complete();
 	}
 
 public boolean isDone() {
 	return done.get();
 }
 
+/**
+ * Waits until the thread has taken an empty map from the queue and stopped.
+ *
+ * @return false if the session was terminated before the thread stopped
+ * @throws InterruptedException the interrupted exception
+ */
+public boolean waitUntilDone() throws InterruptedException {
+	return completion.await(session);
+}
+
 public int getErrorRowCount() {
 	return errorRowCount;
 }
@@ -113,15 +140,30 @@ public int getErrorRowCount() {
 }
   
   
-	private boolean insertFileParts(PartnerConnection partnerConnection, String insightsExternalDataId, Map<Integer,File> fileParts, int retryCount) 
+	private boolean insertFileParts(PartnerConnection partnerConnection, String insightsExternalDataId, Map<Integer,FilePart> fileParts, int retryCount) throws InterruptedException 
 	{
 		for(int i:fileParts.keySet())
 		{
+			if(!controller.acquire())
+				return false;
+			long startTime = System.currentTimeMillis(); 
+			boolean success = false;
+			boolean throttled = false;
 			try {
-				long startTime = System.currentTimeMillis(); 
+				if(restUploader!=null)
+				{
+					//The part is streamed from the file as binary, it is never read into memory
+					String id = restUploader.insertFilePart(insightsExternalDataId, i, fileParts.get(i));
+					long endTime = System.currentTimeMillis(); 
+					logger.println("File Part {"+ fileParts.get(i) + "} Inserted into InsightsExternalDataPart: " +id + ", upload time {"+nf.format(endTime-startTime)+"} msec");
+					success = true;
+					recordUpload(i, fileParts.get(i), restUploader.getLastCrc32(), id);
+					return true;
+				}
+				partBuffer = fileParts.get(i).read(partBuffer);
 				SObject sobj = new SObject();
 		        sobj.setType("InsightsExternalDataPart"); 
-	    		sobj.setField("DataFile", FileUtils.readFileToByteArray(fileParts.get(i)));
+	    		sobj.setField("DataFile", partBuffer);
 	    		sobj.setField("InsightsExternalDataId", insightsExternalDataId);
 	    		sobj.setField("PartNumber",i); //Part numbers should start at 1	    		
 	    		SaveResult[] results = partnerConnection.create(new SObject[] { sobj });				    		
@@ -131,19 +173,53 @@ public int getErrorRowCount() {
 	    			if(sv.isSuccess())
 	    			{
 	    				logger.println("File Part {"+ fileParts.get(i) + "} Inserted into InsightsExternalDataPart: " +sv.getId() + ", upload time {"+nf.format(endTime-startTime)+"} msec");
+	    				success = true;
+	    				recordUpload(i, fileParts.get(i), UploadManifest.crc32(partBuffer), sv.getId());
 	    				return true;
 	    			}else
 	    			{
-						logger.println("File Part {"+ fileParts.get(i) + "} Insert Failed: " + (DatasetLoader.getErrorMessage(sv.getErrors())));
+	    				String errorMessage = DatasetLoader.getErrorMessage(sv.getErrors());
+	    				throttled = throttled || errorMessage.contains(REQUEST_LIMIT_EXCEEDED);
+						logger.println("File Part {"+ fileParts.get(i) + "} Insert Failed: " + errorMessage);
 	    			}
 	    		}
 			} catch (Throwable t) {
 				t.printStackTrace();
+				throttled = isThrottled(t);
 				logger.println("File Part {"+ fileParts.get(i) + "} Insert Failed: " + t.toString());
+			} finally {
+				controller.release(fileParts.get(i).getLength(), System.currentTimeMillis()-startTime, success, throttled);
 			}
 		}
 		return false;
 	}
 
+	/**
+	 * Records the part in the manifest, the part is on the server even if the manifest cannot be written.
+	 */
+	private void recordUpload(int partNumber, FilePart part, long crc32, String serverId)
+	{
+		try
+		{
+			manifest.partUploaded(partNumber, part, crc32, serverId);
+		} catch (Throwable t) {
+			t.printStackTrace(logger);
+		}
+	}
+
+	/**
+	 * Checks if the server pushed back, either by timing out or by rejecting the request because of the request limit.
+	 */
+	private static boolean isThrottled(Throwable t)
+	{
+		while(t!=null)
+		{
+			if(t instanceof SocketTimeoutException || String.valueOf(t).contains(REQUEST_LIMIT_EXCEEDED))
+				return true;
+			t = t.getCause();
+		}
+		return false;
+	}
+
 
 }
\ No newline at end of file
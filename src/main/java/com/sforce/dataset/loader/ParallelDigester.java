@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided 
+ * that the following conditions are met:
+ * 
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the 
+ *    following disclaimer.
+ *  
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and 
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ *    
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or 
+ *    promote products derived from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED 
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A 
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED 
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import com.sforce.dataset.DatasetUtilConstants;
+import com.sforce.dataset.flow.monitor.Session;
+import com.sforce.dataset.flow.monitor.ThreadContext;
+import com.sforce.dataset.loader.file.schema.ext.FieldType;
+import com.sforce.dataset.util.CSVReader;
+import com.sforce.dataset.util.FileUtilsExt;
+
+/**
+ * The Class ParallelDigester.
+ * 
+ * Splits a csv file into byte ranges that start and end on record boundaries, 
+ * each range is parsed and encoded on its own thread with its own EbinFormatWriter 
+ * and the compressed segments are concatenated into a single multi-member gzip stream.
+ */
+@SuppressWarnings("deprecation")
+public class ParallelDigester {
+
+	/** The minimum size of a segment, smaller files are digested sequentially. */
+	public static final long MIN_SEGMENT_SIZE = 64*1024*1024;
+
+	private static final int DEFAULT_BUFFER_SIZE = 8*1024*1024;
+	
+	private static final int SCAN_BUFFER_SIZE = 1024*1024;
+	
+	private static final byte LF = '\n';
+
+	private static final byte CR = '\r';
+
+	private static final byte QUOTE = '"';
+	
+	public static final NumberFormat nf = NumberFormat.getIntegerInstance();
+
+	private final File inputFile;
+	private final Charset inputFileCharset;
+	private final char delimiter;
+	private final FieldType[] fields;
+	private final ErrorWriter errorWriter;
+	private final PrintStream logger;
+	private final Session session;
+
+	private final AtomicLong sourceTotalRowCount = new AtomicLong(0);
+	private final AtomicLong sourceErrorRowCount = new AtomicLong(0);
+	private final AtomicLong targetTotalRowCount = new AtomicLong(0);
+	private final AtomicLong targetErrorRowCount = new AtomicLong(0);
+	private final AtomicLong successRowCount = new AtomicLong(0);
+	private final AtomicBoolean aborted = new AtomicBoolean(false);
+
+	/**
+	 * Instantiates a new parallel digester.
+	 *
+	 * @param inputFile the input csv
+	 * @param inputFileCharset the input file charset
+	 * @param delimiter the field delimiter
+	 * @param fields the schema fields
+	 * @param errorWriter the error writer shared by all segments
+	 * @param logger the logger
+	 * @param session the session
+	 */
+	public ParallelDigester(File inputFile, Charset inputFileCharset, char delimiter, FieldType[] fields, ErrorWriter errorWriter, PrintStream logger, Session session) 
+	{
+		if(inputFile==null || inputFileCharset == null || fields == null || errorWriter == null || session == null)
+		{
+			throw new IllegalArgumentException("Constructor input cannot be null");
+		}
+		this.inputFile = inputFile;
+		this.inputFileCharset = inputFileCharset;
+		this.delimiter = delimiter;
+		this.fields = fields;
+		this.errorWriter = errorWriter;
+		this.logger = logger;
+		this.session = session;
+	}
+	
+	/**
+	 * Gets the number of threads that should be used to digest the file, 
+	 * returns 1 if the file cannot or should not be digested in parallel.
+	 *
+	 * @param inputFile the input file
+	 * @param inputFileCharset the input file charset
+	 * @param fields the fields
+	 * @return the number of threads
+	 */
+	public static int getNumberOfThreads(File inputFile, Charset inputFileCharset, FieldType[] fields)
+	{
+		int threads = DatasetUtilConstants.getSystemConfig().parallelDigestThreads;
+		if(threads<=0)
+			threads = Runtime.getRuntime().availableProcessors();
+		
+		if(threads<=1 || inputFile == null || inputFileCharset == null || fields == null)
+			return 1;
+
+		//Record boundaries are found by scanning raw bytes for quotes and line feeds, 
+		//that is only safe when these characters are encoded as single ASCII bytes
+		if(!isAsciiCompatible(inputFileCharset))
+			return 1;
+		
+		//Computed fields can reference the previous row, so the rows must be processed in one sequence
+		for(FieldType field:fields)
+		{
+			if(field.isComputedField)
+				return 1;
+		}
+		
+		long segments = inputFile.length()/MIN_SEGMENT_SIZE;
+		if(segments<threads)
+			threads = (int) segments;
+		return threads>1 ? threads : 1;
+	}
+
+	/**
+	 * Checks if the charset encodes quote and line feed as single ASCII bytes that 
+	 * cannot appear inside the encoding of any other character.
+	 *
+	 * @param cs the charset
+	 * @return true, if is ascii compatible
+	 */
+	static boolean isAsciiCompatible(Charset cs)
+	{
+		if(cs.equals(StandardCharsets.UTF_8) || cs.equals(StandardCharsets.US_ASCII) || cs.equals(StandardCharsets.ISO_8859_1))
+			return true;
+		try
+		{
+			if(cs.newEncoder().maxBytesPerChar()!=1.0f)
+				return false;
+			byte[] b = "\n\"".getBytes(cs);
+			return b.length == 2 && b[0] == LF && b[1] == QUOTE;
+		}catch(Throwable t)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Splits the file into byte ranges that start at the beginning of a record. 
+	 * The file is scanned once tracking the quote state so that line feeds inside 
+	 * quoted values are never used as a split point. The records before each range
+	 * are counted on the way, blank lines are not counted the same as the csv reader
+	 * skips them.
+	 *
+	 * @param inputFile the input file
+	 * @param numSegments the number of segments wanted
+	 * @return the list of {start, length, number of records before start} ranges
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static List<long[]> splitRecordAligned(File inputFile, int numSegments) throws IOException
+	{
+		List<long[]> segments = new ArrayList<long[]>();
+		long fileLength = inputFile.length();
+		long targetSize = fileLength/numSegments;
+		long segmentStart = 0;
+		long segmentRecords = 0;
+		long nextTarget = targetSize;
+		InputStream in = null;
+		try
+		{
+			in = new BufferedInputStream(new FileInputStream(inputFile), SCAN_BUFFER_SIZE);
+			byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+			boolean inQuote = false;
+			boolean lineHasData = false;
+			long records = 0;
+			long pos = 0;
+			int n = 0;
+			while (segments.size() < numSegments-1 && (n = in.read(buffer)) != -1) 
+			{
+				for(int i=0;i<n;i++)
+				{
+					byte b = buffer[i];
+					if(b == QUOTE)
+					{
+						inQuote = !inQuote;
+						lineHasData = true;
+					}else if(b == LF && !inQuote)
+					{
+						if(lineHasData)
+							records++;
+						lineHasData = false;
+						if((pos+i) < nextTarget)
+							continue;
+						long boundary = pos+i+1;
+						if(boundary<fileLength)
+						{
+							segments.add(new long[]{segmentStart, boundary-segmentStart, segmentRecords});
+							segmentStart = boundary;
+							segmentRecords = records;
+						}
+						nextTarget = boundary + targetSize;
+						if(segments.size() >= numSegments-1)
+							break;
+					}else if(b != CR)
+					{
+						lineHasData = true;
+					}
+				}
+				pos += n;
+			}
+		}finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+		segments.add(new long[]{segmentStart, fileLength-segmentStart, segmentRecords});
+		return segments;
+	}
+
+	/**
+	 * Digest the input file into the gzbinFile.
+	 *
+	 * @param gzbinFile the output gz file
+	 * @param gzipParams the gzip params
+	 * @param numThreads the number of threads
+	 * @throws DatasetLoaderException the dataset loader exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void digest(File gzbinFile, GzipParameters gzipParams, int numThreads) throws DatasetLoaderException, IOException
+	{
+		FileOutputStream fos = null;
+		try
+		{
+			fos = new FileOutputStream(gzbinFile);
+			digest(fos, gzbinFile.getParentFile(), gzbinFile.getName(), gzipParams, numThreads);
+		}finally
+		{
+			IOUtils.closeQuietly(fos);
+		}
+	}
+
+	/**
+	 * Digest the input file into the output stream. Each segment is copied to the 
+	 * output as soon as it and all the segments before it are done, so the output 
+	 * can be consumed while the later segments are still being digested.
+	 *
+	 * @param out the output stream, it is not closed
+	 * @param workDir the directory for the temporary segment files
+	 * @param outputName the name of the output, used for logging and to name the segment files
+	 * @param gzipParams the gzip params
+	 * @param numThreads the number of threads
+	 * @throws DatasetLoaderException the dataset loader exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void digest(OutputStream out, File workDir, String outputName, final GzipParameters gzipParams, int numThreads) throws DatasetLoaderException, IOException
+	{
+		long startTime = System.currentTimeMillis();
+		List<long[]> segments = splitRecordAligned(inputFile, numThreads);
+		long endTime = System.currentTimeMillis();
+		logger.println("\n*******************************************************************************");					
+		logger.println("File: "+inputFile.getName()+", being digested to file: "+outputName +" using {"+segments.size()+"} threads");
+		logger.println("Split into {"+segments.size()+"} segments in {"+nf.format(endTime-startTime)+"} msecs");
+		logger.println("*******************************************************************************\n");
+		
+		List<File> segmentFiles = new ArrayList<File>();
+		for(int i=0;i<segments.size();i++)
+		{
+			segmentFiles.add(new File(workDir, outputName + ".seg" + i));
+		}
+
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		ExecutorService executor = Executors.newFixedThreadPool(segments.size(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread th = new Thread(r,"Digest-Thread-"+threadCount.incrementAndGet());
+				th.setDaemon(true);
+				return th;
+			}
+		});
+
+		try
+		{
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for(int i=0;i<segments.size();i++)
+			{
+				final int segmentNumber = i;
+				final long[] segment = segments.get(i);
+				final File segmentFile = segmentFiles.get(i);
+				results.add(executor.submit(new java.util.concurrent.Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						ThreadContext.get().setSession(session);
+						digestSegment(segmentNumber, segment[0], segment[1], segment[2], segmentFile, gzipParams);
+						return null;
+					}
+				}));
+			}
+			
+			Throwable failure = null;
+			for(int i=0;i<results.size();i++)
+			{
+				try
+				{
+					results.get(i).get();
+					if(failure==null && !aborted.get())
+					{
+						Files.copy(segmentFiles.get(i).toPath(), out);
+						FileUtilsExt.deleteQuietly(segmentFiles.get(i));
+					}
+				}catch(IOException e)
+				{
+					aborted.set(true);
+					if(failure==null)
+						failure = e;
+				}catch(ExecutionException e)
+				{
+					aborted.set(true);
+					if(failure==null)
+						failure = e.getCause();
+				}catch(InterruptedException e)
+				{
+					aborted.set(true);
+					if(failure==null)
+						failure = e;
+				}
+			}
+			
+			if(failure!=null)
+			{
+				if(failure instanceof DatasetLoaderException)
+					throw (DatasetLoaderException) failure;
+				if(failure instanceof MalformedInputException)
+				{
+					logger.println("\n*******************************************************************************");
+					logger.println("The input file is not utf8 encoded. Please save it as UTF8 file first");
+					logger.println("*******************************************************************************\n");								
+					throw new DatasetLoaderException("The input file is not utf8 encoded");
+				}
+				if(failure instanceof IOException)
+					throw (IOException) failure;
+				throw new DatasetLoaderException(failure.toString());
+			}
+
+			if(aborted.get())
+			{
+				logger.println("\n*******************************************************************************");
+				logger.println("Max error threshold reached. Aborting processing");
+				logger.println("*******************************************************************************\n");								
+				throw new DatasetLoaderException("Max error threshold reached. Aborting processing");
+			}
+		}finally
+		{
+			executor.shutdownNow();
+			for(File segmentFile:segmentFiles)
+			{
+				FileUtilsExt.deleteQuietly(segmentFile);
+			}
+		}
+	}
+
+	/**
+	 * Parses and encodes one segment of the input file. The rows are numbered by
+	 * their position in the file, firstRecord is the number of records before the
+	 * segment including the header, so the numbers do not depend on how far the 
+	 * other segments have got.
+	 */
+	private void digestSegment(int segmentNumber, long start, long length, long firstRecord, File segmentFile, GzipParameters gzipParams) throws Exception
+	{
+		CSVReader reader = null;
+		EbinFormatWriter ebinWriter = null;
+		FileInputStream fis = null;
+		BufferedOutputStream out = null;
+		long segmentRowCount = 0;
+		try
+		{
+			fis = new FileInputStream(inputFile);
+			FileChannel channel = fis.getChannel();
+			channel.position(start);
+			reader = CSVReader.newReader(new BoundedInputStream(Channels.newInputStream(channel), length), inputFileCharset.name(), new char[]{delimiter}, DatasetUtilConstants.getSystemConfig().csvTokenizer, DatasetUtilConstants.getSystemConfig().utf8Passthrough);
+			reader.setBaseOffset(start);
+
+			out = new BufferedOutputStream(new GzipCompressorOutputStream(new BufferedOutputStream(new FileOutputStream(segmentFile),DEFAULT_BUFFER_SIZE),gzipParams),DEFAULT_BUFFER_SIZE);
+			//Only the first segment writes the ebin header, the others are appended to it
+			ebinWriter = new EbinFormatWriter(out, copyFields(fields), logger, segmentNumber==0);
+
+			List<String> row = null;
+			while (!aborted.get()) 
+			{
+				if(session.isDone())
+				{
+					throw new DatasetLoaderException("Operation terminated on user request");
+				}
+
+				try
+				{
+					segmentRowCount++;
+					long sourceRowCount = sourceTotalRowCount.incrementAndGet();
+					row = reader.nextRow();
+					if(row==null)
+					{
+						sourceTotalRowCount.decrementAndGet();
+						break;
+					}
+					
+					//The header is only present in the first segment
+					if(segmentNumber==0 && segmentRowCount==1)
+						continue;
+					
+					if(row.size()==0)
+					{
+						sourceErrorRowCount.incrementAndGet();
+						continue;
+					}
+					
+					session.setSourceTotalRowCount(sourceRowCount);
+				}catch(Exception t)
+				{
+					long errors = sourceErrorRowCount.incrementAndGet();
+					session.setSourceErrorRowCount(errors);
+					if(ErrorWriter.isLogged(errors))
+						logger.println("Segment {"+segmentNumber+"} Line {"+(segmentRowCount)+"} has error {"+t+"}");
+					if(t instanceof MalformedInputException)
+					{
+						aborted.set(true);
+						throw t;
+					}
+					if(errors>=DatasetUtilConstants.max_error_threshhold)
+					{
+						aborted.set(true);
+					}
+					continue;
+				}
+				
+				long targetRowCount = targetTotalRowCount.incrementAndGet();
+				try
+				{
+					session.setTargetTotalRowCount(targetRowCount);
+					ebinWriter.addrow(row);
+				}catch(Exception t)
+				{
+					long errors = targetErrorRowCount.incrementAndGet();
+					session.setTargetErrorCount(errors);
+					if(ErrorWriter.isLogged(errors))
+						logger.println("Segment {"+segmentNumber+"} Row {"+segmentRowCount+"} has error {"+t+"}");
+					if(DatasetUtilConstants.debug)
+						t.printStackTrace();
+					//The header is the first record of the file, data rows are numbered from 1
+					errorWriter.addError(row, firstRecord + segmentRowCount - 1, ebinWriter.getErrorColumn(), t);
+					if(errors>=DatasetUtilConstants.max_error_threshhold)
+					{
+						aborted.set(true);
+					}
+				}
+			}
+		}finally
+		{
+			if(reader!=null)
+				reader.finalise();
+			if(ebinWriter!=null)
+			{
+				ebinWriter.finish();
+				successRowCount.addAndGet(ebinWriter.getSuccessRowCount());
+			}
+			IOUtils.closeQuietly(out);
+			IOUtils.closeQuietly(fis);
+		}
+	}
+
+	/**
+	 * Each thread gets its own copy of the fields, the compiled date and number 
+	 * formats held by a field are not thread safe.
+	 *
+	 * @param fields the fields
+	 * @return the copy
+	 */
+	static FieldType[] copyFields(FieldType[] fields)
+	{
+		FieldType[] copy = new FieldType[fields.length];
+		for(int i=0;i<fields.length;i++)
+		{
+			copy[i] = new FieldType(fields[i]);
+			if(fields[i].getfType() == FieldType.DATE && fields[i].getFormat()!=null)
+			{
+				copy[i].setFormat(fields[i].getFormat());
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Gets the source total row count, this includes the header row.
+	 *
+	 * @return the source total row count
+	 */
+	public long getSourceTotalRowCount() {
+		return sourceTotalRowCount.get();
+	}
+
+	public long getSourceErrorRowCount() {
+		return sourceErrorRowCount.get();
+	}
+
+	public long getTargetErrorRowCount() {
+		return targetErrorRowCount.get();
+	}
+
+	public long getSuccessRowCount() {
+		return successRowCount.get();
+	}
+
+	public boolean isAborted() {
+		return aborted.get();
+	}
+}
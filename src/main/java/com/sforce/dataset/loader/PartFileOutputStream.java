@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.sforce.dataset.util.FileUtilsExt;
+
+/**
+ * The Class PartFileOutputStream.
+ *
+ * Writes the digest output to a single file and cuts it into numbered parts as
+ * it is written, each part is handed to the uploader queue as soon as it is
+ * complete so that the upload of part N overlaps the encoding of part N+1. The
+ * parts are recorded in a parts file next to the output file, once the digest
+ * has completed the parts file is marked complete and can be used to resume the
+ * upload of the same hdrId.
+ */
+public class PartFileOutputStream extends OutputStream {
+
+	private static final String COMPLETE = "complete";
+
+	private final File file;
+	private final int partSize;
+	private final BlockingQueue<Map<Integer,FilePart>> queue;
+	private final PrintStream logger;
+	private final File partsFile;
+	private final LinkedHashMap<Integer,FilePart> fileParts = new LinkedHashMap<Integer,FilePart>();
+
+	private final FileOutputStream out;
+	private long partOffset = 0;
+	private int currentLength = 0;
+	private boolean closed = false;
+
+	/**
+	 * Instantiates a new part file output stream.
+	 *
+	 * @param file the output file
+	 * @param partSize the part size
+	 * @param queue the uploader queue, can be null
+	 * @param logger the logger
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public PartFileOutputStream(File file, int partSize, BlockingQueue<Map<Integer,FilePart>> queue, PrintStream logger) throws IOException
+	{
+		if(file==null || partSize <= 0)
+		{
+			throw new IllegalArgumentException("Constructor input cannot be null");
+		}
+		this.file = file;
+		this.partSize = partSize;
+		this.queue = queue;
+		this.logger = logger;
+		this.partsFile = getPartsFile(file);
+		FileUtilsExt.deleteQuietly(partsFile);
+		this.out = new FileOutputStream(file);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		ensureOpen();
+		out.write(b);
+		currentLength++;
+		if(currentLength>=partSize)
+			finishPart();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		ensureOpen();
+		while(len>0)
+		{
+			int n = Math.min(len, partSize-currentLength);
+			out.write(b, off, n);
+			currentLength += n;
+			off += n;
+			len -= n;
+			if(currentLength>=partSize)
+				finishPart();
+		}
+	}
+
+	/**
+	 * Finishes the last part, the parts file is not marked complete until {@link #markComplete()} is called.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if(closed)
+			return;
+		closed = true;
+		try
+		{
+			if(currentLength>0)
+				finishPart();
+		}finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Marks the parts file complete, only call this once the digest has succeeded.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void markComplete() throws IOException
+	{
+		close();
+		appendToPartsFile(partsFile, COMPLETE+","+fileParts.size());
+	}
+
+	/**
+	 * Gets the parts written so far.
+	 *
+	 * @return the file parts
+	 */
+	public Map<Integer,FilePart> getFileParts()
+	{
+		return fileParts;
+	}
+
+	/**
+	 * Gets the total number of bytes written.
+	 *
+	 * @return the bytes written
+	 */
+	public long getBytesWritten()
+	{
+		return partOffset + currentLength;
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if(closed)
+			throw new IOException("Stream closed");
+	}
+
+	private void finishPart() throws IOException
+	{
+		//The part is read back from the file by the uploader, so it must be on disk first
+		out.flush();
+		int partNumber = fileParts.size()+1;
+		FilePart part = new FilePart(file, partOffset, currentLength);
+		fileParts.put(partNumber, part);
+		appendToPartsFile(partsFile, partNumber+","+part.getOffset()+","+part.getLength());
+		partOffset += currentLength;
+		currentLength = 0;
+		if(queue!=null)
+		{
+			HashMap<Integer, FilePart> tmp = new HashMap<Integer, FilePart>();
+			tmp.put(partNumber,part);
+			try
+			{
+				queue.put(tmp);
+			} catch (InterruptedException e)
+			{
+				throw new InterruptedIOException(e.toString());
+			}
+		}
+		if(logger!=null)
+			logger.println("File Part {"+part+"} created, size {"+DatasetLoader.nf.format(part.getLength())+"}");
+	}
+
+	private static void appendToPartsFile(File partsFile, String line) throws IOException
+	{
+		Writer w = null;
+		try
+		{
+			w = new FileWriter(partsFile, true);
+			w.write(line);
+			w.write('\n');
+		}finally
+		{
+			IOUtils.closeQuietly(w);
+		}
+	}
+
+	/**
+	 * Gets the parts file of the output file.
+	 *
+	 * @param file the output file
+	 * @return the parts file
+	 */
+	public static File getPartsFile(File file)
+	{
+		return new File(file.getParentFile(), FilenameUtils.getBaseName(file.getName()) + ".parts");
+	}
+
+	/**
+	 * Cuts an existing file into parts of at most maxPartSize bytes. The parts are
+	 * made as even as possible so that the number of parts is the smallest the
+	 * part size allows, and are recorded in a complete parts file.
+	 *
+	 * @param file the file
+	 * @param maxPartSize the max part size
+	 * @return the file parts
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Map<Integer,FilePart> sliceFile(File file, int maxPartSize) throws IOException
+	{
+		long fileLength = file.length();
+		if(fileLength==0)
+		{
+			throw new IOException("File {"+file+"} is 0 bytes");
+		}
+		long numParts = (fileLength + maxPartSize - 1) / maxPartSize;
+		int partSize = (int) ((fileLength + numParts - 1) / numParts);
+		File partsFile = getPartsFile(file);
+		FileUtilsExt.deleteQuietly(partsFile);
+		LinkedHashMap<Integer,FilePart> fileParts = new LinkedHashMap<Integer,FilePart>();
+		StringBuilder manifest = new StringBuilder();
+		long offset = 0;
+		while(offset<fileLength)
+		{
+			int partNumber = fileParts.size()+1;
+			FilePart part = new FilePart(file, offset, (int) Math.min(partSize, fileLength-offset));
+			fileParts.put(partNumber, part);
+			manifest.append(partNumber).append(',').append(part.getOffset()).append(',').append(part.getLength()).append('\n');
+			offset += part.getLength();
+		}
+		manifest.append(COMPLETE).append(',').append(fileParts.size());
+		appendToPartsFile(partsFile, manifest.toString());
+		return fileParts;
+	}
+
+	/**
+	 * Loads the parts of a previous digest or upload, returns null unless the parts
+	 * file is complete and the output file holds all the parts.
+	 *
+	 * @param file the output file
+	 * @return the file parts or null
+	 */
+	public static Map<Integer,FilePart> getCompletedParts(File file)
+	{
+		File partsFile = getPartsFile(file);
+		if(!partsFile.exists() || !file.exists())
+			return null;
+		LinkedHashMap<Integer,FilePart> fileParts = new LinkedHashMap<Integer,FilePart>();
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(partsFile));
+			String line = null;
+			long fileLength = 0;
+			while((line = reader.readLine())!=null)
+			{
+				String[] values = line.split(",");
+				if(values[0].equals(COMPLETE))
+				{
+					if(Integer.parseInt(values[1]) == fileParts.size() && fileLength == file.length())
+						return fileParts;
+					return null;
+				}
+				if(values.length<3)
+					continue;
+				FilePart part = new FilePart(file, Long.parseLong(values[1]), Integer.parseInt(values[2]));
+				fileParts.put(Integer.valueOf(values[0]), part);
+				fileLength = Math.max(fileLength, part.getOffset() + part.getLength());
+			}
+		}catch(Throwable t)
+		{
+			t.printStackTrace();
+		}finally
+		{
+			IOUtils.closeQuietly(reader);
+		}
+		return null;
+	}
+}
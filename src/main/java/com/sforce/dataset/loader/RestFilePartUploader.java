@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sforce.dataset.util.HttpUtils;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.ws.ConnectorConfig;
+
+/**
+ * The Class RestFilePartUploader.
+ *
+ * Inserts file parts into InsightsExternalDataPart with a binary multipart REST
+ * request instead of a SOAP create. The part is streamed from the digested file
+ * into the request body, so it is neither base64 encoded nor held in memory as
+ * part of an XML envelope. Each uploader thread uses its own instance so that the
+ * connection is kept alive from one part to the next.
+ */
+public class RestFilePartUploader implements Closeable {
+
+	private static final String apiVersion = "47.0";
+
+	private final ConnectorConfig config;
+	private final URI sobjectUri;
+	private final CloseableHttpClient httpClient;
+	private long lastCrc32 = 0;
+
+	/**
+	 * Instantiates a new rest file part uploader.
+	 *
+	 * @param partnerConnection the partner connection, the session id and endpoint are taken from its config
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws URISyntaxException the URI syntax exception
+	 */
+	public RestFilePartUploader(PartnerConnection partnerConnection) throws IOException, URISyntaxException
+	{
+		this(partnerConnection.getConfig());
+	}
+
+	/**
+	 * Instantiates a new rest file part uploader.
+	 *
+	 * @param config the connector config with the session id and the service endpoint
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws URISyntaxException the URI syntax exception
+	 */
+	RestFilePartUploader(ConnectorConfig config) throws IOException, URISyntaxException
+	{
+		this.config = config;
+		this.sobjectUri = getSObjectUri(config.getServiceEndpoint());
+		this.httpClient = HttpUtils.getHttpClient();
+	}
+
+	/**
+	 * Gets the REST uri of the InsightsExternalDataPart sObject, the REST endpoint 
+	 * is the same as the SOAP endpoint until the /Soap/ part.
+	 *
+	 * @param soapEndpoint the soap endpoint
+	 * @return the sObject uri
+	 * @throws URISyntaxException the URI syntax exception
+	 */
+	public static URI getSObjectUri(String soapEndpoint) throws URISyntaxException
+	{
+		return new URI(soapEndpoint.substring(0, soapEndpoint.indexOf("Soap/")) + "data/v" + apiVersion + "/sobjects/InsightsExternalDataPart/");
+	}
+
+	/**
+	 * Inserts a file part.
+	 *
+	 * @param hdrId the hdr id
+	 * @param partNumber the part number
+	 * @param part the part
+	 * @return the id of the InsightsExternalDataPart record
+	 * @throws IOException if the request fails, the message holds the errors returned by the server
+	 */
+	public String insertFilePart(String hdrId, int partNumber, FilePart part) throws IOException
+	{
+		String json = "{\"InsightsExternalDataId\":\"" + hdrId + "\",\"PartNumber\":" + partNumber + "}";
+		PartBody body = new PartBody(partNumber, part);
+		HttpEntity entity = MultipartEntityBuilder.create()
+				.setMode(HttpMultipartMode.STRICT)
+				.addTextBody("entity_content", json, ContentType.APPLICATION_JSON)
+				.addPart("DataFile", body)
+				.build();
+		HttpPost post = new HttpPost(sobjectUri);
+		post.setConfig(HttpUtils.getRequestConfig());
+		post.addHeader("Authorization","OAuth "+config.getSessionId());
+		post.setEntity(entity);
+		CloseableHttpResponse response = httpClient.execute(post);
+		try
+		{
+			int statusCode = response.getStatusLine().getStatusCode();
+			HttpEntity responseEntity = response.getEntity();
+			String responseString = null;
+			if(responseEntity!=null)
+			{
+				InputStream is = responseEntity.getContent();
+				try
+				{
+					responseString = IOUtils.toString(is, "UTF-8");
+				}finally
+				{
+					IOUtils.closeQuietly(is);
+				}
+			}
+			if(statusCode != 201)
+			{
+				throw new IOException("HTTP "+statusCode+": "+responseString);
+			}
+			@SuppressWarnings("unchecked")
+			Map<String,Object> res = new ObjectMapper().readValue(responseString, Map.class);
+			Object id = res.get("id");
+			if(id == null)
+			{
+				throw new IOException("No id returned: "+responseString);
+			}
+			lastCrc32 = body.crc.getValue();
+			return id.toString();
+		}finally
+		{
+			IOUtils.closeQuietly(response);
+		}
+	}
+
+	/**
+	 * Gets the CRC32 of the part inserted last.
+	 *
+	 * @return the crc32
+	 */
+	public long getLastCrc32()
+	{
+		return lastCrc32;
+	}
+
+	@Override
+	public void close()
+	{
+		IOUtils.closeQuietly(httpClient);
+	}
+
+	/**
+	 * The binary body of the DataFile part, the bytes of the file part are copied 
+	 * from the file into the request and the CRC32 is computed on the way.
+	 */
+	private static final class PartBody extends AbstractContentBody {
+
+		private final int partNumber;
+		private final FilePart part;
+		private final CRC32 crc = new CRC32();
+
+		private PartBody(int partNumber, FilePart part)
+		{
+			super(ContentType.APPLICATION_OCTET_STREAM);
+			this.partNumber = partNumber;
+			this.part = part;
+		}
+
+		@Override
+		public String getFilename()
+		{
+			return "part" + partNumber;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException
+		{
+			crc.reset();
+			part.writeTo(out, crc);
+		}
+
+		@Override
+		public String getTransferEncoding()
+		{
+			return "binary";
+		}
+
+		@Override
+		public long getContentLength()
+		{
+			return part.getLength();
+		}
+	}
+}
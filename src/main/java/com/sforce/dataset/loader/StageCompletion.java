@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.sforce.dataset.flow.monitor.Session;
+
+/**
+ * The Class StageCompletion.
+ *
+ * Signals the end of a pipeline stage such as the {@link WriterThread} or a
+ * {@link FilePartsUploaderThread}. Waiting returns as soon as the stage
+ * completes, the session is only checked between waits so that a terminated
+ * session does not leave the caller blocked.
+ */
+class StageCompletion {
+
+	//How often a waiting caller checks if the session was terminated
+	private static final long sessionCheckMsecs = 100;
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+
+	/**
+	 * Marks the stage complete and releases the waiting callers.
+	 */
+	void complete()
+	{
+		latch.countDown();
+	}
+
+	/**
+	 * Checks if the stage is complete.
+	 *
+	 * @return true, if complete
+	 */
+	boolean isComplete()
+	{
+		return latch.getCount()==0;
+	}
+
+	/**
+	 * Waits until the stage is complete.
+	 *
+	 * @param session the session, can be null
+	 * @return false if the session was terminated before the stage completed
+	 * @throws InterruptedException the interrupted exception
+	 */
+	boolean await(Session session) throws InterruptedException
+	{
+		while(!latch.await(sessionCheckMsecs, TimeUnit.MILLISECONDS))
+		{
+			if(session!=null && session.isDone())
+				return false;
+		}
+		return true;
+	}
+}
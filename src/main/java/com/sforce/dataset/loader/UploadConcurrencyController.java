@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import java.text.DecimalFormat;
+
+import com.sforce.dataset.DatasetUtilConstants;
+import com.sforce.dataset.flow.monitor.Session;
+
+/**
+ * The Class UploadConcurrencyController.
+ *
+ * Decides how many file parts of one upload are sent at the same time. The
+ * limit grows by one part per round of uploads while the part latency stays
+ * close to the best latency seen, and is halved when the server times out or
+ * returns REQUEST_LIMIT_EXCEEDED. All the uploads in the jvm share the
+ * maxUploadThreads budget from the config. An upload starts with
+ * INITIAL_CONCURRENCY parts and keeps the same controller for all its retry
+ * rounds, so the pool of uploader threads has to be larger than that for the
+ * limit to grow.
+ */
+public class UploadConcurrencyController {
+
+	private static final double MB = 1024*1024;
+
+	//Number of parts an upload starts with before it has seen any latency
+	public static final int INITIAL_CONCURRENCY = 2;
+
+	//A part is considered slower than the baseline if it takes this much longer per MB
+	private static final double LATENCY_TOLERANCE = 1.5;
+
+	//Shared by all uploads, guards the fields of every controller
+	private static final Object lock = new Object();
+	private static int globalInFlight = 0;
+
+	private final int maxConcurrency;
+	private final Session session;
+
+	private double concurrency;
+	private int inFlight = 0;
+	private double baselineLatencyPerMB = -1;
+	private long lastDecreaseTime = 0;
+	private long lastLatency = 0;
+
+	private long startTime = 0;
+	private long uploadedBytes = 0;
+	private long uploadedParts = 0;
+	private long totalLatency = 0;
+
+	private final DecimalFormat df = new DecimalFormat("0.00");
+
+	/**
+	 * Instantiates a new upload concurrency controller.
+	 *
+	 * @param maxConcurrency the max number of parts uploaded at the same time, usually the number of uploader threads
+	 * @param session the session the upload statistics are reported to, can be null
+	 */
+	public UploadConcurrencyController(int maxConcurrency, Session session)
+	{
+		if(maxConcurrency <= 0)
+		{
+			throw new IllegalArgumentException("maxConcurrency must be greater than 0");
+		}
+		this.maxConcurrency = maxConcurrency;
+		this.session = session;
+		this.concurrency = Math.min(INITIAL_CONCURRENCY, maxConcurrency);
+	}
+
+	/**
+	 * Gets the global budget of parts uploaded at the same time.
+	 *
+	 * @return the max upload threads
+	 */
+	public static int getMaxUploadThreads()
+	{
+		return Math.max(1, DatasetUtilConstants.getSystemConfig().maxUploadThreads);
+	}
+
+	/**
+	 * Waits until the part can be uploaded.
+	 *
+	 * @return false if the session was terminated while waiting
+	 * @throws InterruptedException the interrupted exception
+	 */
+	public boolean acquire() throws InterruptedException
+	{
+		synchronized(lock)
+		{
+			while(inFlight >= (int) concurrency || globalInFlight >= getMaxUploadThreads())
+			{
+				if(session!=null && session.isDone())
+					return false;
+				//The budget can change when the settings are saved, so wake up now and then to read it again
+				lock.wait(1000);
+			}
+			if(startTime==0)
+				startTime = System.currentTimeMillis();
+			inFlight++;
+			globalInFlight++;
+			return true;
+		}
+	}
+
+	/**
+	 * Releases the part acquired with {@link #acquire()} and adjusts the limit.
+	 *
+	 * @param bytes the size of the part
+	 * @param latency the upload time of the part in msecs
+	 * @param success true if the part was inserted
+	 * @param throttled true if the server timed out or rejected the part because of the request limit
+	 */
+	public void release(long bytes, long latency, boolean success, boolean throttled)
+	{
+		synchronized(lock)
+		{
+			inFlight--;
+			globalInFlight--;
+			long now = System.currentTimeMillis();
+			if(throttled)
+			{
+				//Only back off once for the parts that were already in flight when the server pushed back
+				if(now - lastDecreaseTime > lastLatency)
+				{
+					concurrency = Math.max(1, concurrency / 2);
+					lastDecreaseTime = now;
+				}
+			}else if(success)
+			{
+				uploadedBytes += bytes;
+				uploadedParts++;
+				totalLatency += latency;
+				lastLatency = latency;
+				double latencyPerMB = latency / Math.max(bytes / MB, 0.1);
+				if(baselineLatencyPerMB < 0 || latencyPerMB < baselineLatencyPerMB)
+					baselineLatencyPerMB = latencyPerMB;
+				if(latencyPerMB <= baselineLatencyPerMB * LATENCY_TOLERANCE)
+					concurrency = Math.min(maxConcurrency, concurrency + 1 / concurrency);
+				report(now);
+			}
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Gets the current number of parts that can be uploaded at the same time.
+	 *
+	 * @return the concurrency
+	 */
+	public int getConcurrency()
+	{
+		synchronized(lock)
+		{
+			return (int) concurrency;
+		}
+	}
+
+	private void report(long now)
+	{
+		if(session==null)
+			return;
+		double elapsedSecs = Math.max(now - startTime, 1) / 1000.0;
+		session.setParam(DatasetUtilConstants.uploadConcurrencyParam, Integer.toString((int) concurrency));
+		session.setParam(DatasetUtilConstants.uploadPartLatencyParam, Long.toString(totalLatency / uploadedParts));
+		session.setParam(DatasetUtilConstants.uploadThroughputParam, df.format(uploadedBytes / MB / elapsedSecs));
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.sforce.dataset.util.FileUtilsExt;
+
+/**
+ * The Class UploadManifest.
+ *
+ * Records the file parts of a data file that were uploaded to a header, so that an
+ * interrupted upload is resumed from the local manifest instead of listing the
+ * InsightsExternalDataPart records of the header again. A line is appended for
+ * each part as soon as it is inserted, with the byte range, the CRC32 and the id
+ * of the part on the server. The manifest starts with the hdrId, the manifest of
+ * another header is discarded. When the data file was modified after the manifest
+ * was last written the CRC32 of each recorded part is checked again, the file is
+ * still being written while the first parts of a streaming upload are inserted.
+ */
+public class UploadManifest {
+
+	private static final String HEADER = "hdrId";
+
+	private final File dataFile;
+	private final File manifestFile;
+	private final String hdrId;
+	private final LinkedHashMap<Integer,String[]> uploadedParts = new LinkedHashMap<Integer,String[]>();
+	private boolean resumed = false;
+
+	private UploadManifest(File dataFile, String hdrId)
+	{
+		this.dataFile = dataFile;
+		this.manifestFile = getManifestFile(dataFile);
+		this.hdrId = hdrId;
+	}
+
+	/**
+	 * Opens the manifest of a data file, the manifest is started over unless it
+	 * belongs to the same header and data file.
+	 *
+	 * @param dataFile the data file
+	 * @param hdrId the hdr id
+	 * @param logger the logger
+	 * @return the upload manifest
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static UploadManifest open(File dataFile, String hdrId, PrintStream logger) throws IOException
+	{
+		UploadManifest manifest = new UploadManifest(dataFile, hdrId);
+		if(!manifest.load(logger))
+		{
+			manifest.uploadedParts.clear();
+			manifest.write();
+		}
+		return manifest;
+	}
+
+	/**
+	 * Gets the manifest file of a data file.
+	 *
+	 * @param dataFile the data file
+	 * @return the manifest file
+	 */
+	public static File getManifestFile(File dataFile)
+	{
+		return new File(dataFile.getParentFile(), FilenameUtils.getBaseName(dataFile.getName()) + ".uploaded");
+	}
+
+	/**
+	 * Computes the CRC32 of the bytes of a part.
+	 *
+	 * @param bytes the bytes
+	 * @return the crc32
+	 */
+	public static long crc32(byte[] bytes)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		return crc.getValue();
+	}
+
+	/**
+	 * Checks if the manifest was left by an earlier upload to the same header.
+	 *
+	 * @return true, if resumed
+	 */
+	public boolean isResumed()
+	{
+		return resumed;
+	}
+
+	/**
+	 * Gets the number of parts recorded in the manifest.
+	 *
+	 * @return the uploaded part count
+	 */
+	public synchronized int getUploadedPartCount()
+	{
+		return uploadedParts.size();
+	}
+
+	/**
+	 * Records a part that was inserted.
+	 *
+	 * @param partNumber the part number
+	 * @param part the part
+	 * @param crc32 the crc32 of the part bytes
+	 * @param serverId the id of the InsightsExternalDataPart record
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void partUploaded(int partNumber, FilePart part, long crc32, String serverId) throws IOException
+	{
+		String[] values = new String[]{Integer.toString(partNumber), Long.toString(part.getOffset()), Integer.toString(part.getLength()), Long.toString(crc32), serverId};
+		uploadedParts.put(partNumber, values);
+		append(join(values));
+	}
+
+	/**
+	 * Gets the parts that were uploaded, a part only counts if it was uploaded with 
+	 * the same byte range.
+	 *
+	 * @param fileParts the file parts
+	 * @return the part numbers
+	 */
+	public synchronized LinkedList<Integer> getUploadedParts(Map<Integer,FilePart> fileParts)
+	{
+		LinkedList<Integer> parts = new LinkedList<Integer>();
+		for(Map.Entry<Integer,FilePart> entry:fileParts.entrySet())
+		{
+			String[] values = uploadedParts.get(entry.getKey());
+			if(values!=null && Long.parseLong(values[1]) == entry.getValue().getOffset() && Integer.parseInt(values[2]) == entry.getValue().getLength())
+				parts.add(entry.getKey());
+		}
+		return parts;
+	}
+
+	/**
+	 * Forgets the parts that are not on the server.
+	 *
+	 * @param serverParts the part numbers on the server
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void retainAll(Collection<Integer> serverParts) throws IOException
+	{
+		if(uploadedParts.keySet().retainAll(serverParts))
+			write();
+	}
+
+	/**
+	 * Deletes the manifest once the upload is complete.
+	 */
+	public void delete()
+	{
+		FileUtilsExt.deleteQuietly(manifestFile);
+	}
+
+	private boolean load(PrintStream logger)
+	{
+		if(!manifestFile.exists() || !dataFile.exists())
+			return false;
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(manifestFile));
+			String line = reader.readLine();
+			String[] header = line!=null ? line.split(",") : null;
+			if(header==null || header.length!=2 || !header[0].equals(HEADER) || !header[1].equals(hdrId))
+				return false;
+			while((line = reader.readLine())!=null)
+			{
+				String[] values = line.split(",",-1);
+				if(values.length==5)
+					uploadedParts.put(Integer.valueOf(values[0]), values);
+			}
+			if(dataFile.lastModified() > manifestFile.lastModified())
+			{
+				//The bytes of the parts must still be the ones that were uploaded
+				byte[] buffer = null;
+				for(String[] values:uploadedParts.values())
+				{
+					long offset = Long.parseLong(values[1]);
+					int length = Integer.parseInt(values[2]);
+					if(offset + length <= dataFile.length())
+						buffer = new FilePart(dataFile, offset, length).read(buffer);
+					if(offset + length > dataFile.length() || crc32(buffer) != Long.parseLong(values[3]))
+					{
+						logger.println("File {"+dataFile+"} has changed since part {"+values[0]+"} was uploaded, discarding manifest {"+manifestFile+"}");
+						return false;
+					}
+				}
+				IOUtils.closeQuietly(reader);
+				write();
+			}
+			resumed = true;
+			logger.println("Resuming upload of {"+dataFile+"} from manifest {"+manifestFile+"}, {"+uploadedParts.size()+"} parts already uploaded");
+			return true;
+		}catch(Throwable t)
+		{
+			t.printStackTrace(logger);
+			return false;
+		}finally
+		{
+			IOUtils.closeQuietly(reader);
+		}
+	}
+
+	private void write() throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(HEADER).append(',').append(hdrId);
+		for(String[] values:uploadedParts.values())
+		{
+			sb.append('\n').append(join(values));
+		}
+		Writer w = null;
+		try
+		{
+			w = new FileWriter(manifestFile);
+			w.write(sb.toString());
+			w.write('\n');
+		}finally
+		{
+			IOUtils.closeQuietly(w);
+		}
+	}
+
+	private void append(String line) throws IOException
+	{
+		Writer w = null;
+		try
+		{
+			w = new FileWriter(manifestFile, true);
+			w.write(line);
+			w.write('\n');
+		}finally
+		{
+			IOUtils.closeQuietly(w);
+		}
+	}
+
+	private static String join(String[] values)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<values.length;i++)
+		{
+			if(i>0)
+				sb.append(',');
+			if(values[i]!=null)
+				sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -27,17 +27,17 @@ package com.sforce.dataset.loader;
 
 import java.io.PrintStream;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.sforce.dataset.DatasetUtilConstants;
 import com.sforce.dataset.flow.monitor.Session;
+import com.sforce.dataset.util.RowBatchRing;
  
 public class WriterThread implements Runnable {
 	
   private static final int max_error_threshhold = 10000;
 
-  private final BlockingQueue<List<String>> queue;
+  private final RowBatchRing<List<String>> queue;
   @SuppressWarnings("deprecation")
 private final EbinFormatWriter ebinWriter;
   private final ErrorWriter errorwriter;
@@ -45,13 +45,14 @@ private final EbinFormatWriter ebinWriter;
 
   private volatile AtomicBoolean done = new AtomicBoolean(false);
   private volatile AtomicBoolean aborted = new AtomicBoolean(false);
+  private final StageCompletion completion = new StageCompletion();
   private volatile int errorRowCount = 0;
   private volatile int totalRowCount = 0;
   Session session = null;
 
 
 @SuppressWarnings("deprecation")
-WriterThread(BlockingQueue<List<String>> q,EbinFormatWriter w,ErrorWriter ew, PrintStream logger, Session session) 
+WriterThread(RowBatchRing<List<String>> q,EbinFormatWriter w,ErrorWriter ew, PrintStream logger, Session session) 
   { 
 	  if(q==null || w == null || ew == null || session == null)
 	  {
@@ -86,18 +87,19 @@ public void run() {
 				{
 					logger.println();
 				}
-				logger.println("Row {"+totalRowCount+"} has error {"+t+"}");
+				if(ErrorWriter.isLogged(errorRowCount+1))
+					logger.println("Row {"+totalRowCount+"} has error {"+t+"}");
 				if(row!=null)
 				{
 					errorRowCount++;
 					if(DatasetUtilConstants.debug)
 						t.printStackTrace();
-					errorwriter.addError(row, t.getMessage()!=null?t.getMessage():t.toString());
+					errorwriter.addError(row, totalRowCount, ebinWriter.getErrorColumn(), t);
 					if(errorRowCount>=max_error_threshhold)
 					{
 						logger.println("Max error threshold reached. Aborting processing");
 						aborted.set(true);
-						queue.clear();
+						queue.abort();
 						break;
 					}
 				}
@@ -115,7 +117,7 @@ public void run() {
     }catch (Throwable t) {
        logger.println (Thread.currentThread().getName() + " " + t.toString());
 		aborted.set(true);
-		queue.clear();
+		queue.abort();
     }finally
     {
 	    try {
@@ -131,9 +133,35 @@ public void run() {
     }
 	logger.println("END: " + Thread.currentThread().getName());
     done.set(true);
-	queue.clear();
+	//The reader must not wait for room in the ring once nobody is reading it
+	queue.abort();
+	completion.complete();
   }
 
+/**
+ * Tells the thread that there are no more rows and waits until it has written the rows already queued.
+ *
+ * @return false if the session was terminated before the thread finished
+ * @throws InterruptedException the interrupted exception
+ */
+public boolean waitUntilDone() throws InterruptedException {
+	queue.close();
+	return completion.await(session);
+}
+
+/**
+ * Stops the thread without writing the rows still queued and waits until the writers are closed.
+ *
+ * @throws InterruptedException the interrupted exception
+ */
+public void cancel() throws InterruptedException {
+	if(completion.isComplete())
+		return;
+	aborted.set(true);
+	queue.abort();
+	completion.await(null);
+}
+
 public boolean isDone() {
 	return done.get();
 }
@@ -26,33 +26,43 @@
 package com.sforce.dataset.loader.file.schema.ext;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.charset.Charset;
-import java.nio.charset.MalformedInputException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.sforce.dataset.DatasetUtilConstants;
 import com.sforce.dataset.loader.DatasetLoaderException;
-import com.sforce.dataset.util.CSVReader;
+import com.sforce.dataset.util.DatePatternIndex;
 
 public class DetectFieldTypes {
 
 	public static final int sampleSize = 1000;
 	public static final int maxRowsToSample = sampleSize * 3;
 	public static final int maxConsectiveFailures = (int) (sampleSize * .25);
+	public static final int maxUniqueIdLength = 32;
 	// public static final Pattern dates =
 	// Pattern.compile("(.*)([0-9]{1,2}[/-\\\\.][0-9]{1,2}[/-\\\\.][0-9]{4}|[0-9]{4}[/-\\\\.][0-9]{1,2}[/-\\\\.][0-9]{1,2}|[0-9]{1,2}[/-\\\\.][0-9]{1,2}[/-\\\\.][0-9]{1,2}|[0-9]{1,2}[/-\\\\.][A-Z]{3}[/-\\\\.][0-9]{4}|[0-9]{4}[/-\\\\.][A-Z]{3}[/-\\\\.][0-9]{1,2}|[0-9]{1,2}[/-\\\\.][A-Z]{3}[/-\\\\.][0-9]{1,2})(.*)");
 	// public static final Pattern numbers =
@@ -83,12 +93,7 @@ public class DetectFieldTypes {
 
 	public List<FieldType> detect(File inputCsv, ExternalFileSchema userSchema,
 			Charset fileCharset, char delim, PrintStream logger, String orgId)
-			throws IOException {
-		CSVReader reader = null;
-		LinkedList<FieldType> types = null;
-		ArrayList<String> header = null;
-		com.sforce.dataset.Preferences userPref = DatasetUtilConstants
-				.getPreferences(orgId);
+			throws IOException, DatasetLoaderException {
 
 		if (userSchema != null && userSchema.getFileFormat() != null
 				&& userSchema.getFileFormat().getNumberOfLinesToIgnore() == 0) {
@@ -101,184 +106,129 @@ public class DetectFieldTypes {
 			}
 		}
 
-		try {
-			// reader = new CsvListReader(new InputStreamReader(new
-			// BOMInputStream(new FileInputStream(inputCsv), false),
-			// DatasetUtils.utf8Decoder(null , fileCharset)), pref);
-			reader = new CSVReader(new FileInputStream(inputCsv),
-					fileCharset.name(), new char[] { delim });
-			header = reader.nextRecord();
-
-			if (reader != null) {
-				reader.finalise();
-				reader = null;
+		boolean headerOnly = false;
+		if (userSchema != null && userSchema.getFileFormat() != null
+				&& userSchema.getFileFormat().getNumberOfLinesToIgnore() > 0) {
+			LinkedList<ObjectType> obj = userSchema.getObjects();
+			if (obj != null && !obj.isEmpty()) {
+				List<FieldType> fields = obj.get(0).getFields();
+				headerOnly = fields != null && !fields.isEmpty();
 			}
+		}
 
-			if (userSchema != null
-					&& userSchema.getFileFormat() != null
-					&& userSchema.getFileFormat().getNumberOfLinesToIgnore() > 0) {
-				LinkedList<ObjectType> obj = userSchema.getObjects();
-				if (obj != null && !obj.isEmpty()) {
-					List<FieldType> fields = obj.get(0).getFields();
-					if (fields != null && !fields.isEmpty()) {
-						int fieldCount = 0;
-						for (FieldType field : fields) {
-							if (!field.isComputedField)
-								fieldCount++;
-						}
+		FileProfiler profile = FileProfiler.profile(inputCsv, fileCharset,
+				delim, !headerOnly, logger);
+		return detect(profile, userSchema, logger, orgId);
+	}
 
-						if (header.size() != fieldCount) {
-							throw new IllegalArgumentException(
-									"Input file header count {"
-											+ header.size()
-											+ "} does not match json field count {"
-											+ fieldCount + "}");
-						}
+	public List<FieldType> detect(FileProfiler profile,
+			ExternalFileSchema userSchema, PrintStream logger, String orgId)
+			throws IOException, DatasetLoaderException {
+		LinkedList<FieldType> types = null;
+		ArrayList<String> header = profile.getHeader();
+		com.sforce.dataset.Preferences userPref = DatasetUtilConstants
+				.getPreferences(orgId);
 
+		if (userSchema != null && userSchema.getFileFormat() != null) {
+			LinkedList<ObjectType> obj = userSchema.getObjects();
+			if (obj != null && !obj.isEmpty()) {
+				List<FieldType> fields = obj.get(0).getFields();
+				if (fields != null && !fields.isEmpty()) {
+					if (userSchema.getFileFormat().getNumberOfLinesToIgnore() == 0)
 						return fields;
+
+					int fieldCount = 0;
+					for (FieldType field : fields) {
+						if (!field.isComputedField)
+							fieldCount++;
+					}
+
+					if (header.size() != fieldCount) {
+						throw new IllegalArgumentException(
+								"Input file header count {" + header.size()
+										+ "} does not match json field count {"
+										+ fieldCount + "}");
 					}
+
+					return fields;
 				}
 			}
+		}
+
+		types = new LinkedList<FieldType>();
+		boolean uniqueColumnFound = false;
 
-			// List<String> nextLine = null;
-			types = new LinkedList<FieldType>();
-			boolean uniqueColumnFound = false;
+		if (header == null)
+			return types;
 
-			if (header == null)
-				return types;
+		if (header.size() > 5000) {
+			throw new IllegalArgumentException(
+					"Input file cannot contain more than 5000 columns. found {"
+							+ header.size() + "} columns");
+		}
 
-			if (header.size() > 5000) {
-				throw new IllegalArgumentException(
-						"Input file cannot contain more than 5000 columns. found {"
-								+ header.size() + "} columns");
+		String devNames[] = ExternalFileSchema.createUniqueDevName(header);
+		if (header.isEmpty())
+			return types;
+
+		if (header.get(0) != null && header.get(0).startsWith("#"))
+			header.set(0, header.get(0).replace("#", ""));
+
+		logger.println("Detecting schema from csv file {" + profile.getFile()
+				+ "} ...");
+
+		// The samples are already in memory so the columns are detected in
+		// parallel, the results are logged and added in column order
+		FileProfiler.ColumnSample[] columns = profile.getColumns();
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				columns.length, Runtime.getRuntime().availableProcessors()),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread th = new Thread(r, "Detect-Thread-"
+								+ threadCount.incrementAndGet());
+						th.setDaemon(true);
+						return th;
+					}
+				});
+		try {
+			List<Future<ColumnType>> results = new ArrayList<Future<ColumnType>>();
+			for (int i = 0; i < columns.length; i++) {
+				final FileProfiler.ColumnSample column = columns[i];
+				results.add(executor.submit(new Callable<ColumnType>() {
+					@Override
+					public ColumnType call() throws Exception {
+						return detectColumnType(column);
+					}
+				}));
 			}
 
-			String devNames[] = ExternalFileSchema.createUniqueDevName(header);
-			boolean first = true;
 			for (int i = 0; i < header.size(); i++) {
-				if (i == 0) {
-					if (header.get(i) != null && header.get(i).startsWith("#"))
-						header.set(i, header.get(i).replace("#", ""));
-				}
-
-				// boolean found = false;
-				// if(userSchema != null)
-				// {
-				// LinkedList<ObjectType> obj = userSchema.getObjects();
-				// if(obj!= null && !obj.isEmpty())
-				// {
-				// List<FieldType> fields = obj.get(0).getFields();
-				// if(fields!= null && !fields.isEmpty())
-				// {
-				// for(FieldType field:fields)
-				// {
-				// if(field.getName().equals(devNames[i]) ||
-				// field.getFullyQualifiedName().equals(devNames[i]))
-				// {
-				// types.add(field);
-				// found = true;
-				// break;
-				// }
-				// }
-				// }
-				// }
-				// }
-				// if(found)
-				// continue;
-
-				if (first) {
-					logger.println("Detecting schema from csv file {"
-							+ inputCsv + "} ...");
-					first = false;
-				}
-
-				boolean fetchedExtraRows = false;
-				LinkedList<String> columnValues = new LinkedList<String>();
-				LinkedHashSet<String> uniqueColumnValues = new LinkedHashSet<String>();
 				logger.print("Column: " + header.get(i));
-				long rowCount = getColumnValuefromCsv(inputCsv, fileCharset,
-						delim, i, sampleSize, maxRowsToSample, columnValues, 0,
-						logger);
-				// try
-				// {
-				// reader = new CsvListReader(new InputStreamReader(new
-				// BOMInputStream(new FileInputStream(inputCsv), false),
-				// DatasetUtils.utf8Decoder(null , fileCharset)), pref);
-				// header = reader.getHeader(true);
-				//
-				// rowCount++;
-				// while ((nextLine = reader.read()) != null) {
-				// rowCount++;
-				// if(i>=nextLine.size())
-				// continue; //This line does not have enough columns
-				// if(nextLine.get(i) != null &&
-				// !nextLine.get(i).trim().isEmpty())
-				// {
-				// columnValues.add(nextLine.get(i).trim());
-				// uniqueColumnValues.add(nextLine.get(i).trim());
-				// }
-				// if(columnValues.size()>=sampleSize || rowCount >
-				// maxRowsToSample)
-				// {
-				// break;
-				// }
-				// }
-				// }catch(Throwable t)
-				// {
-				// t.printStackTrace();
-				// }finally
-				// {
-				// if(reader!=null)
-				// reader.close();
-				// reader = null;
-				// }
 				logger.print(", ");
-				FieldType newField = null;
-				int prec = detectTextPrecision(columnValues);
-				DecimalFormat df = null;
-				boolean isPercent = isPercent(columnValues);
-				BigDecimal bd = detectNumeric(columnValues, null, isPercent);
-				if (bd == null) {
-					df = (DecimalFormat) NumberFormat.getInstance(Locale
-							.getDefault());
-					df.setParseBigDecimal(true);
-					bd = detectNumeric(columnValues, df, isPercent);
-				} else {
-					if (isPercent)
-						df = (DecimalFormat) NumberFormat
-								.getPercentInstance(Locale.getDefault());
-				}
-				if (bd == null) {
-					df = (DecimalFormat) NumberFormat
-							.getCurrencyInstance(Locale.getDefault());
-					df.setParseBigDecimal(true);
-					bd = detectNumeric(columnValues, df, isPercent);
-				}
-				if (bd == null) {
-					df = (DecimalFormat) NumberFormat.getPercentInstance(Locale
-							.getDefault());
-					df.setParseBigDecimal(true);
-					bd = detectNumeric(columnValues, df, isPercent);
+				ColumnType columnType = null;
+				try {
+					columnType = results.get(i).get();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException(e.toString());
+				} catch (ExecutionException e) {
+					throw new DatasetLoaderException(
+							"Failed to detect the type of column {"
+									+ header.get(i) + "}: " + e.getCause());
 				}
 
-				if (!uniqueColumnFound && bd != null && bd.scale() == 0
-						&& columnValues.size() == (rowCount - 1) && prec < 32) {
-					getUniqueColumnValues(columnValues, uniqueColumnValues);
-					if (uniqueColumnValues.size() == columnValues.size()) {
-						rowCount = getColumnValuefromCsv(inputCsv, fileCharset,
-								delim, i, sampleSize * 5, maxRowsToSample * 5,
-								columnValues, rowCount, logger);
-						fetchedExtraRows = true;
-						if (columnValues.size() == (rowCount - 1)) {
-							getUniqueColumnValues(columnValues,
-									uniqueColumnValues);
-							if (uniqueColumnValues.size() == columnValues
-									.size()) {
-								bd = null; // this is a Numeric uniqueId
-											// therefore treat is Text/Dim
-							}
-						}
-					}
+				FieldType newField = null;
+				int prec = columnType.prec;
+				BigDecimal bd = columnType.bd;
+				DecimalFormat df = columnType.df;
+				boolean isPercent = columnType.isPercent;
+				boolean isUniqueId = !uniqueColumnFound
+						&& columns[i].isUnique();
+
+				if (isUniqueId && bd != null && bd.scale() == 0) {
+					bd = null; // this is a Numeric uniqueId
+								// therefore treat is Text/Dim
 				}
 
 				if (bd != null) {
@@ -303,8 +253,7 @@ public class DetectFieldTypes {
 					logger.println("Type: Numeric, Scale: " + bd.scale()
 							+ " Format: " + format);
 				} else {
-					SimpleDateFormat sdf = null;
-					sdf = detectDate(columnValues);
+					SimpleDateFormat sdf = columnType.sdf;
 					if (sdf != null) {
 						newField = FieldType.GetDateKeyDataType(devNames[i],
 								sdf.toPattern(), null, userPref);
@@ -314,31 +263,9 @@ public class DetectFieldTypes {
 					if (newField == null) {
 						newField = FieldType.GetStringKeyDataType(devNames[i],
 								null, null);
-						if (!uniqueColumnFound
-								&& columnValues.size() == (rowCount - 1)
-								&& prec < 32) {
-							getUniqueColumnValues(columnValues,
-									uniqueColumnValues);
-							if (uniqueColumnValues.size() == columnValues
-									.size()) {
-								if (!fetchedExtraRows) {
-									rowCount = getColumnValuefromCsv(inputCsv,
-											fileCharset, delim, i,
-											sampleSize * 5,
-											maxRowsToSample * 5, columnValues,
-											rowCount, logger);
-									fetchedExtraRows = true;
-									if (columnValues.size() == (rowCount - 1)) {
-										getUniqueColumnValues(columnValues,
-												uniqueColumnValues);
-									}
-								}
-								if (uniqueColumnValues.size() == columnValues
-										.size()) {
-									newField.isUniqueId = true;
-									uniqueColumnFound = true;
-								}
-							}
+						if (isUniqueId) {
+							newField.isUniqueId = true;
+							uniqueColumnFound = true;
 						}
 						if (prec > 255) {
 							logger.println("Type: Text, Precison: "
@@ -373,22 +300,76 @@ public class DetectFieldTypes {
 					types.add(newField);
 				}
 			}// end for
-
-			if (!first) {
-				logger.println("Schema file {"
-						+ ExternalFileSchema.getSchemaFile(inputCsv, logger)
-						+ "} successfully generated...");
-			}
-
 		} finally {
-			logger.println("");
-			if (reader != null)
-				reader.finalise();
+			executor.shutdownNow();
 		}
+
+		logger.println("Schema file {"
+				+ ExternalFileSchema.getSchemaFile(profile.getFile(), logger)
+				+ "} successfully generated...");
+		logger.println("");
 		return types;
 	}
 
-	public BigDecimal detectNumeric(LinkedList<String> columnValues,
+	/**
+	 * Detects the type, precision and format of a column from its sample.
+	 *
+	 * @param column the column sample
+	 * @return the column type
+	 */
+	private ColumnType detectColumnType(FileProfiler.ColumnSample column) {
+		List<String> columnValues = column.getSample();
+		ColumnType columnType = new ColumnType();
+		columnType.prec = detectTextPrecision(columnValues);
+		DecimalFormat df = null;
+		boolean isPercent = isPercent(columnValues);
+		BigDecimal bd = detectNumeric(columnValues, null, isPercent);
+		if (bd == null) {
+			df = (DecimalFormat) NumberFormat.getInstance(Locale.getDefault());
+			df.setParseBigDecimal(true);
+			bd = detectNumeric(columnValues, df, isPercent);
+		} else {
+			if (isPercent)
+				df = (DecimalFormat) NumberFormat.getPercentInstance(Locale
+						.getDefault());
+		}
+		if (bd == null) {
+			df = (DecimalFormat) NumberFormat.getCurrencyInstance(Locale
+					.getDefault());
+			df.setParseBigDecimal(true);
+			bd = detectNumeric(columnValues, df, isPercent);
+		}
+		if (bd == null) {
+			df = (DecimalFormat) NumberFormat.getPercentInstance(Locale
+					.getDefault());
+			df.setParseBigDecimal(true);
+			bd = detectNumeric(columnValues, df, isPercent);
+		}
+		columnType.isPercent = isPercent;
+		columnType.bd = bd;
+		columnType.df = df;
+
+		if (bd == null) {
+			columnType.sdf = detectDate(columnValues);
+		} else if (bd.scale() == 0 && column.isUnique()) {
+			// a numeric unique id is treated as Text/Dim unless it is a date
+			columnType.sdf = detectDate(column.getValues());
+		}
+		return columnType;
+	}
+
+	/**
+	 * The Class ColumnType.
+	 */
+	private static class ColumnType {
+		int prec;
+		boolean isPercent;
+		BigDecimal bd;
+		DecimalFormat df;
+		SimpleDateFormat sdf;
+	}
+
+	public BigDecimal detectNumeric(List<String> columnValues,
 			DecimalFormat df, boolean isPercent) {
 
 		BigDecimal maxScale = null;
@@ -507,10 +488,13 @@ public class DetectFieldTypes {
 		}
 	}
 
-	public SimpleDateFormat detectDate(LinkedList<String> columnValues) {
+	public SimpleDateFormat detectDate(List<String> columnValues) {
 
-		LinkedHashSet<SimpleDateFormat> dateFormats = DatasetUtilConstants
-				.getSuportedDateFormats();
+		// Each value is only tried against the patterns that format to the
+		// same shape, the formats are created the first time they are tried
+		DatePatternIndex dateIndex = DatePatternIndex.getInstance();
+		HashMap<String, SimpleDateFormat> dateFormats = new HashMap<String, SimpleDateFormat>();
+		HashSet<String> rejectedFormats = new HashSet<String>();
 
 		for (int j = 0; j < columnValues.size(); j++) {
 			String columnValue = columnValues.get(j);
@@ -522,9 +506,22 @@ public class DetectFieldTypes {
 			if (columnValue.length() < 6 || columnValue.length() > 30)
 				continue;
 
-			for (SimpleDateFormat sdf : dateFormats) {
+			for (String pattern : dateIndex.getPatterns(columnValue)) {
+				if (rejectedFormats.contains(pattern))
+					continue;
+				SimpleDateFormat sdf = dateFormats.get(pattern);
+				if (sdf == null) {
+					sdf = new SimpleDateFormat(pattern);
+					sdf.setLenient(false);
+					dateFormats.put(pattern, sdf);
+				}
 				try {
-					dt = sdf.parse(columnValue);
+					ParsePosition pos = new ParsePosition(0);
+					dt = sdf.parse(columnValue, pos);
+					if (dt == null || pos.getIndex() == 0) {
+						dt = null;
+						continue;
+					}
 					String tmpDate = sdf.format(dt);
 					if (tmpDate.length() == columnValue.length()) {
 						dtf = sdf;
@@ -552,15 +549,16 @@ public class DetectFieldTypes {
 					if (columnValue == null || columnValue.isEmpty())
 						continue;
 
-					try {
-						Date dt1 = dtf.parse(columnValue);
+					ParsePosition pos = new ParsePosition(0);
+					Date dt1 = dtf.parse(columnValue, pos);
+					if (dt1 == null || pos.getIndex() == 0) {
+						consectiveFailures++;
+					} else {
 						String tmpDate = dtf.format(dt1);
 						if (tmpDate.length() == columnValue.length()) {
 							success++;
 							consectiveFailures = 0; // reset the failure count
 						}
-					} catch (ParseException e) {
-						consectiveFailures++;
 					}
 
 					if (consectiveFailures >= maxConsectiveFailures)
@@ -570,7 +568,7 @@ public class DetectFieldTypes {
 						&& (1.0 * success / columnValues.size()) > 0.95) {
 					return dtf;
 				} else {
-					dateFormats.remove(dtf); // lets not try this format again
+					rejectedFormats.add(dtf.toPattern()); // lets not try this format again
 					dtf = null;
 					dt = null;
 				}
@@ -637,7 +635,7 @@ public class DetectFieldTypes {
 		return dateFormats;
 	}
 
-	public boolean isPercent(LinkedList<String> columnValues) {
+	public boolean isPercent(List<String> columnValues) {
 		int success = 0;
 		for (int j = 0; j < columnValues.size(); j++) {
 			if (columnValues.get(j).endsWith("%")) {
@@ -650,88 +648,4 @@ public class DetectFieldTypes {
 		return false;
 	}
 
-	private long getColumnValuefromCsv(File inputCsv, Charset fileCharset,
-			char delim, int columnIndex, long sampleSize, long maxRowsToSample,
-			LinkedList<String> columnValues, long rowCountToSkip,
-			PrintStream logger) {
-		CSVReader reader = null;
-		ArrayList<String> header = null;
-		long rowCount = 0L;
-		long errorRowCount=0L;
-		try {
-			reader = new CSVReader(new FileInputStream(inputCsv),
-					fileCharset.name(), new char[] { delim });
-			// reader = new CsvListReader(new InputStreamReader(new
-			// BOMInputStream(new FileInputStream(inputCsv), false),
-			// DatasetUtils.utf8Decoder(null , fileCharset)), delim);
-			boolean hasmore = true;
-
-			header = reader.nextRecord();
-			if (columnIndex >= header.size())
-				return rowCount;
-
-			while (hasmore) {
-				rowCount++;
-
-				if (rowCount <= rowCountToSkip)
-					continue;
-
-				try {
-					List<String> nextLine = reader.nextRecord();
-					if(nextLine==null || nextLine.isEmpty())
-						break;
-					if (columnIndex >= nextLine.size())
-						continue; // This line does not have enough columns
-					if (nextLine.get(columnIndex) != null
-							&& !nextLine.get(columnIndex).trim().isEmpty()) {
-						columnValues.add(nextLine.get(columnIndex).trim());
-					}
-				} catch (Throwable t) {
-						if(errorRowCount>=DatasetUtilConstants.max_error_threshhold)
-						{
-							logger.println("\n*******************************************************************************");
-							logger.println("Max error threshold reached. Aborting processing");
-							logger.println("*******************************************************************************\n");								
-							throw new DatasetLoaderException("Max error threshold reached. Aborting processing");
-						}else if(t instanceof MalformedInputException)
-						{
-							logger.println("\n*******************************************************************************");
-							logger.println("The input file is not utf8 encoded. Please save it as UTF8 file first");
-							logger.println("*******************************************************************************\n");								
-							throw new DatasetLoaderException("The input file is not utf8 encoded");
-						}else
-						{
-							logger.println("Line {" + (rowCount) + "} has error {" +t+ "}");
-						}
-				}
-
-				if (columnValues.size() >= sampleSize
-						|| rowCount > maxRowsToSample) {
-					break;
-				}
-			}
-
-		} catch (Throwable t) {
-			logger.println("Line {" + (rowCount) + "} has error {" + t + "}");
-		} finally {
-			if (reader != null) {
-				try {
-					reader.finalise();
-				} catch (IOException e) {
-				}
-			}
-			reader = null;
-		}
-		return rowCount;
-	}
-
-	private void getUniqueColumnValues(LinkedList<String> columnValues,
-			LinkedHashSet<String> uniqueColumnValues) {
-		for (String columnValue : columnValues) {
-			if (columnValue != null) {
-				uniqueColumnValues.add(columnValue);
-			}
-		}
-	}
-
 }
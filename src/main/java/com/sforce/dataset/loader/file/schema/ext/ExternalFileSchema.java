@@ -47,7 +47,6 @@ import com.sforce.dataset.DatasetUtilConstants;
 import com.sforce.dataset.loader.DatasetLoaderException;
 import com.sforce.dataset.util.CSVReader;
 import com.sforce.dataset.util.DatasetUtils;
-import com.sforce.dataset.util.SeparatorGuesser;
 
 public class ExternalFileSchema  {
 
@@ -207,12 +206,15 @@ public class ExternalFileSchema  {
 			return null;
 		
 		char delim = ',';
+		FileProfiler profile = null;
 		if(userSchema!=null)
 		{
 			delim = userSchema.getFileFormat().getFieldsDelimitedBy().charAt(0);
 		}else if(fileExt == null || !fileExt.equalsIgnoreCase("csv"))
 		{	
-				delim = SeparatorGuesser.guessSeparator(csvFile, fileCharset, true);
+				//The separator is guessed in the same pass that samples the columns
+				profile = FileProfiler.profile(csvFile, fileCharset, (char) 0, true, logger);
+				delim = profile.getDelimiter();
 //				logger.println("\n*******************************************************************************");					
 //			    logger.println("File {"+csvFile+"} has delimiter {"+delim+"}");
 //				logger.println("*******************************************************************************\n");					
@@ -231,7 +233,11 @@ public class ExternalFileSchema  {
 //		CsvPreference pref = new CsvPreference.Builder((char) CsvPreference.STANDARD_PREFERENCE.getQuoteChar(), delim, CsvPreference.STANDARD_PREFERENCE.getEndOfLineSymbols()).build();
 		
 			DetectFieldTypes detEFT = new DetectFieldTypes();
-			List<FieldType> fields = detEFT.detect(csvFile, userSchema, fileCharset,delim, logger, orgId);
+			List<FieldType> fields = null;
+			if(profile!=null)
+				fields = detEFT.detect(profile, userSchema, logger, orgId);
+			else
+				fields = detEFT.detect(csvFile, userSchema, fileCharset,delim, logger, orgId);
 			FileFormat fileFormat = new FileFormat();
 			fileFormat.setFieldsDelimitedBy(delim+"");
 
@@ -590,7 +596,7 @@ public class ExternalFileSchema  {
 								
 								if(user_field.isComputedField)
 								{
-									if(user_field.getCompiledScript()==null)
+									if(!user_field.isValidComputedFieldExpression())
 									{
 										message.append("field {"+user_field.getFullyQualifiedName()+"}  in schema has invalid 'computedFieldExpression' value {"+user_field.getComputedFieldExpression()+"}\n");
 									}
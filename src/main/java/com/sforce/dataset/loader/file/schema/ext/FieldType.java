@@ -41,6 +41,7 @@ import javax.script.ScriptEngineManager;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.sforce.dataset.Preferences;
+import com.sforce.dataset.util.ExpressionCompiler;
 
 /**
  * The Class FieldType.
@@ -114,6 +115,9 @@ public class FieldType extends com.sforce.dataset.loader.file.schema.FieldType {
 	
 	/** The compiled script. */
 	private transient CompiledScript compiledScript = null;
+
+	/** Whether the script compilation was attempted. */
+	private transient boolean scriptCompiled = false;
 	
 	/** The compiled date format. */
 	private transient SimpleDateFormat compiledDateFormat = null;
@@ -718,6 +722,12 @@ public int getFiscalMonthOffset() {
 	public void setComputedFieldExpression(String computedFieldExpression) {
 		if(computedFieldExpression != null && computedFieldExpression.length()!=0)
 		{
+			//Expressions the ExpressionCompiler supports do not need the JavaScript engine
+			if(ExpressionCompiler.isSupported(computedFieldExpression))
+			{
+				this.computedFieldExpression = computedFieldExpression;
+				return;
+			}
 	        try
 	        {
 			    ScriptEngineManager mgr = new ScriptEngineManager();
@@ -736,14 +746,41 @@ public int getFiscalMonthOffset() {
 	}
 
 	/**
-	 * Gets the compiled script.
+	 * Gets the compiled script, the script is compiled on first use if the
+	 * expression was not compiled when it was set.
 	 *
-	 * @return the compiled script
+	 * @return the compiled script or null if there is no JavaScript engine
 	 */
 	@JsonIgnore
 	public CompiledScript getCompiledScript() {
+		if(compiledScript==null && computedFieldExpression!=null && !scriptCompiled)
+		{
+			scriptCompiled = true;
+	        try
+	        {
+			    ScriptEngine jsEngine = new ScriptEngineManager().getEngineByName("JavaScript");
+		        if (jsEngine instanceof Compilable)
+	            {
+	                this.compiledScript = ((Compilable)jsEngine).compile(computedFieldExpression);
+	            }
+	        } catch(Throwable t)
+	        {
+	        	t.printStackTrace();
+	        }
+		}
 		return compiledScript;
 	}
+
+	/**
+	 * Checks if the computed field expression is valid, either for the
+	 * {@link ExpressionCompiler} or for the JavaScript engine.
+	 *
+	 * @return true, if the expression is valid
+	 */
+	@JsonIgnore
+	public boolean isValidComputedFieldExpression() {
+		return ExpressionCompiler.isSupported(computedFieldExpression) || getCompiledScript()!=null;
+	}
 	
 /* (non-Javadoc)
  * @see com.sforce.dataset.loader.file.schema.FieldType#getFirstDayOfWeek()
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.schema.ext;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BOMInputStream;
+
+import com.sforce.dataset.DatasetUtilConstants;
+import com.sforce.dataset.util.CSVReader;
+import com.sforce.dataset.util.CharsetChecker;
+import com.sforce.dataset.util.SeparatorGuesser;
+
+/**
+ * The Class FileProfiler.
+ *
+ * Profiles a csv file in a single pass. The charset and the separator are
+ * detected from the first bytes of the file when they are not known, the
+ * first record is taken as the header and the values of every column are
+ * sampled at the same time, so that the column types can be detected in
+ * memory without reading the file again for each column.
+ */
+public class FileProfiler {
+
+	private static final int headSize = 64 * 1024;
+
+	private final File file;
+	private Charset charset;
+	private char delimiter;
+	private ArrayList<String> header = null;
+	private ColumnSample[] columns = new ColumnSample[0];
+
+	private FileProfiler(File file, Charset charset, char delimiter) {
+		this.file = file;
+		this.charset = charset;
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * Profiles the file.
+	 *
+	 * @param file the csv file
+	 * @param charset the charset of the file, if null it is detected
+	 * @param delimiter the field delimiter, if 0 it is guessed
+	 * @param sampleColumns if false only the header is read
+	 * @param logger the logger
+	 * @return the file profile
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static FileProfiler profile(File file, Charset charset, char delimiter, boolean sampleColumns, PrintStream logger) throws IOException
+	{
+		FileProfiler profile = new FileProfiler(file, charset, delimiter);
+		InputStream input = null;
+		CSVReader reader = null;
+		try
+		{
+			input = new BufferedInputStream(new FileInputStream(file), headSize);
+			if(profile.charset == null || profile.delimiter == 0)
+			{
+				input.mark(headSize);
+				byte[] head = new byte[headSize];
+				int length = IOUtils.read(input, head);
+				input.reset();
+				if(profile.charset == null)
+					profile.charset = CharsetChecker.detectCharset(head, length, file, logger);
+				if(profile.delimiter == 0)
+				{
+					InputStreamReader headReader = new InputStreamReader(new BOMInputStream(new ByteArrayInputStream(head, 0, length), false), profile.charset);
+					profile.delimiter = SeparatorGuesser.guessSeparator(headReader, true);
+					if(profile.delimiter == 0)
+						return profile;
+				}
+			}
+
+			reader = CSVReader.newReader(input, profile.charset.name(), new char[] { profile.delimiter }, DatasetUtilConstants.getSystemConfig().csvTokenizer, DatasetUtilConstants.getSystemConfig().utf8Passthrough);
+			input = null;
+			profile.header = reader.nextRecord();
+			if(profile.header == null || !sampleColumns)
+				return profile;
+
+			profile.columns = new ColumnSample[profile.header.size()];
+			int[] active = new int[profile.columns.length];
+			for(int i = 0; i < profile.columns.length; i++)
+			{
+				profile.columns[i] = new ColumnSample();
+				active[i] = i;
+			}
+			profile.sample(reader, active, logger);
+		}finally
+		{
+			IOUtils.closeQuietly(input);
+			if(reader != null)
+				reader.finalise();
+		}
+		return profile;
+	}
+
+	/**
+	 * Reads rows until every column has a full sample or the file ends. Only the
+	 * columns that are still sampling are looked at, so that the rows read for
+	 * the extended unique id samples only decode those columns.
+	 */
+	private void sample(CSVReader reader, int[] active, PrintStream logger) throws IOException
+	{
+		int activeCount = active.length;
+		long rowCount = 0;
+		long errorRowCount = 0;
+		while(activeCount > 0)
+		{
+			rowCount++;
+			int fieldCount = -1;
+			try
+			{
+				if(!reader.nextFields())
+					break;
+				fieldCount = reader.getFieldCount();
+			} catch (Throwable t) {
+				if(t instanceof MalformedInputException)
+				{
+					logger.println("\n*******************************************************************************");
+					logger.println("The input file is not utf8 encoded. Please save it as UTF8 file first");
+					logger.println("*******************************************************************************\n");
+					break;
+				}
+				logger.println("Line {" + (rowCount) + "} has error {" +t+ "}");
+				errorRowCount++;
+				if(errorRowCount>=DatasetUtilConstants.max_error_threshhold)
+				{
+					logger.println("\n*******************************************************************************");
+					logger.println("Max error threshold reached. Aborting processing");
+					logger.println("*******************************************************************************\n");
+					break;
+				}
+			}
+
+			int next = 0;
+			for(int j = 0; j < activeCount; j++)
+			{
+				int i = active[j];
+				String value = null;
+				if(i < fieldCount)
+				{
+					value = reader.getField(i);
+					if(value != null)
+					{
+						value = value.trim();
+						if(value.isEmpty())
+							value = null;
+					}
+				}
+				if(columns[i].add(value))
+					active[next++] = i;
+			}
+			activeCount = next;
+		}
+		for(ColumnSample column : columns)
+		{
+			column.finish();
+		}
+	}
+
+	/**
+	 * Gets the file.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the charset.
+	 *
+	 * @return the charset
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Gets the delimiter.
+	 *
+	 * @return the delimiter or 0 if it could not be guessed
+	 */
+	public char getDelimiter() {
+		return delimiter;
+	}
+
+	/**
+	 * Gets the header.
+	 *
+	 * @return the header or null if the file is empty
+	 */
+	public ArrayList<String> getHeader() {
+		return header;
+	}
+
+	/**
+	 * Gets the column samples.
+	 *
+	 * @return the columns
+	 */
+	public ColumnSample[] getColumns() {
+		return columns;
+	}
+
+	/**
+	 * The Class ColumnSample.
+	 *
+	 * The trimmed non empty values of a column. The sample holds up to
+	 * {@link DetectFieldTypes#sampleSize} values from the first
+	 * {@link DetectFieldTypes#maxRowsToSample} rows. If every one of those rows
+	 * has a short distinct value the column may be a unique id and the values
+	 * of the following rows are collected too, up to five times those limits,
+	 * for as long as they stay distinct.
+	 */
+	public static class ColumnSample {
+
+		private final ArrayList<String> values = new ArrayList<String>();
+		private int sampleCount = 0;
+		private long rowCount = 0;
+		private boolean sampled = false;
+		private boolean unique = false;
+		private HashSet<String> distinctValues = null;
+
+		/**
+		 * Adds the value of the next row.
+		 *
+		 * @param value the trimmed value or null if the row has no value
+		 * @return true if more rows are needed
+		 */
+		boolean add(String value)
+		{
+			rowCount++;
+			if(!sampled)
+			{
+				if(value != null)
+					values.add(value);
+				if(values.size() >= DetectFieldTypes.sampleSize || rowCount > DetectFieldTypes.maxRowsToSample)
+				{
+					endSample();
+					return unique;
+				}
+				return true;
+			}
+
+			if(value == null || !distinctValues.add(value) || value.length() >= DetectFieldTypes.maxUniqueIdLength)
+			{
+				unique = false;
+				distinctValues = null;
+				return false;
+			}
+			values.add(value);
+			if(values.size() >= DetectFieldTypes.sampleSize * 5 || rowCount > DetectFieldTypes.maxRowsToSample * 5)
+			{
+				distinctValues = null;
+				return false;
+			}
+			return true;
+		}
+
+		void finish()
+		{
+			if(!sampled)
+				endSample();
+			distinctValues = null;
+		}
+
+		private void endSample()
+		{
+			sampled = true;
+			sampleCount = values.size();
+			unique = false;
+			if(sampleCount == rowCount)
+			{
+				unique = true;
+				for(String value : values)
+				{
+					if(value.length() >= DetectFieldTypes.maxUniqueIdLength)
+					{
+						unique = false;
+						break;
+					}
+				}
+				if(unique)
+				{
+					distinctValues = new HashSet<String>(values);
+					unique = distinctValues.size() == sampleCount;
+				}
+			}
+		}
+
+		/**
+		 * Gets the sample used to detect the type of the column.
+		 *
+		 * @return the sample
+		 */
+		public List<String> getSample() {
+			return values.subList(0, sampleCount);
+		}
+
+		/**
+		 * Gets all the values read, including the extended unique id sample.
+		 *
+		 * @return the values
+		 */
+		public List<String> getValues() {
+			return values;
+		}
+
+		/**
+		 * Checks if every row read has a distinct value.
+		 *
+		 * @return true, if the column looks like a unique id
+		 */
+		public boolean isUnique() {
+			return unique;
+		}
+	}
+}
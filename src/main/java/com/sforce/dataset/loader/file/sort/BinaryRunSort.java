@@ -0,0 +1,698 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.sort;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sforce.dataset.DatasetUtilConstants;
+import com.sforce.dataset.loader.file.schema.ext.FieldType;
+import com.sforce.dataset.util.CSVReader;
+import com.sforce.dataset.util.CsvWriter;
+import com.sforce.dataset.util.FileUtilsExt;
+
+/**
+ * The Class BinaryRunSort.
+ *
+ * Sorts a csv file in sorted runs that are kept in the binary row format of
+ * {@link SortRun} instead of csv, so that the merge does not have to parse
+ * csv again. The sort columns of each row are encoded once into a
+ * {@link SortKeyEncoder} key when the row is sorted, the key is kept with
+ * the row in the run, and sorting and merging only compare keys. The rows are read on the calling thread and handed to a pool of
+ * sort threads one run at a time, each run is sized against the memory the
+ * rows it holds take on the heap. The runs are merged with a {@link LoserTree},
+ * if there are more runs than can be merged at once they are first merged
+ * into bigger runs. The final merge can be read row by row through a
+ * {@link MergedRowReader}, so that the sorted rows can be consumed without
+ * writing a sorted file, or be split into key ranges that are merged in
+ * parallel into a sorted file.
+ */
+public class BinaryRunSort {
+
+	private static final int maxMergeWidth = 256;
+
+	//Heap size estimates of the rows held in memory
+	private static final int rowOverhead = 64;
+	private static final int fieldOverhead = 48;
+
+	private final CsvRowComparator cmp;
+	private final boolean distinct;
+	private final int numberOfSortThreads;
+	private final long memoryBudget;
+	private final String compression;
+	private final File tmpdirectory;
+
+	/**
+	 * Instantiates a new binary run sort.
+	 *
+	 * @param fields the fields of the file
+	 * @param distinct if true duplicate rows are skipped
+	 * @param numberOfSortThreads the number of sort threads
+	 * @param memoryBudget the bytes the rows held in memory may take
+	 * @param compression the compression of the runs: none, lz4 or deflate
+	 * @param tmpdirectory the directory for the runs
+	 */
+	public BinaryRunSort(List<FieldType> fields, boolean distinct, int numberOfSortThreads, long memoryBudget, String compression, File tmpdirectory)
+	{
+		this.cmp = new CsvRowComparator(fields);
+		this.distinct = distinct;
+		this.numberOfSortThreads = Math.max(1, numberOfSortThreads);
+		this.memoryBudget = memoryBudget;
+		this.compression = compression == null ? SortRun.COMPRESSION_NONE : compression;
+		this.tmpdirectory = tmpdirectory;
+	}
+
+	/**
+	 * Sorts the file and writes the sorted rows, the header must already have been written.
+	 *
+	 * @param inputCsv the input csv
+	 * @param cs the cs
+	 * @param numHeader the number of header rows to skip
+	 * @param delim the delim
+	 * @param writer the writer
+	 * @return the number of rows merged
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public long sort(File inputCsv, Charset cs, int numHeader, char delim, CsvWriter writer) throws IOException
+	{
+		MergedRowReader reader = open(inputCsv, cs, numHeader, delim);
+		try
+		{
+			List<String> row = null;
+			while((row = reader.nextRow()) != null)
+				writer.writeRecord(row);
+			return reader.getRowCount();
+		}finally
+		{
+			reader.finalise();
+		}
+	}
+
+	/**
+	 * Sorts the file into runs and opens a reader over the merge of the runs,
+	 * the rows are merged as they are read so the sorted file is never written.
+	 * The reader must be finalised to delete the runs.
+	 *
+	 * @param inputCsv the input csv
+	 * @param cs the cs
+	 * @param numHeader the number of header rows to skip
+	 * @param delim the delim
+	 * @return the merged row reader
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public MergedRowReader open(File inputCsv, Charset cs, int numHeader, char delim) throws IOException
+	{
+		return merge(sortInRuns(inputCsv, cs, numHeader, delim));
+	}
+
+	/**
+	 * Counts the natural runs of the file, the stretches of rows that are
+	 * already in sort order. A file that is in sort order has one natural run.
+	 * The count stops as soon as there are more natural runs than can be merged
+	 * at once, so an unsorted file is only read until that is clear.
+	 *
+	 * @param inputCsv the input csv
+	 * @param cs the cs
+	 * @param numHeader the number of header rows to skip
+	 * @param delim the delim
+	 * @return the number of natural runs, 0 if the file has no rows or -1 if there are too many to merge
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public int countNaturalRuns(File inputCsv, Charset cs, int numHeader, char delim) throws IOException
+	{
+		SortKeyEncoder encoder = new SortKeyEncoder(cmp);
+		CSVReader reader = new CSVReader(new FileInputStream(inputCsv), cs.name(),new char[]{delim}, DatasetUtilConstants.getSystemConfig().csvTokenizer);
+		try
+		{
+			int counter = 0;
+			int naturalRuns = 0;
+			byte[] lastKey = null;
+			List<String> row = null;
+			while((row = reader.nextRecord()) != null)
+			{
+				if (counter < numHeader) {
+					counter++;
+					continue;
+				}
+				byte[] key = encoder.encode(row);
+				if(lastKey == null || SortKeyEncoder.compare(lastKey, key) > 0)
+				{
+					if(++naturalRuns > maxMergeWidth)
+						return -1;
+				}
+				lastKey = key;
+			}
+			return naturalRuns;
+		}finally
+		{
+			reader.finalise();
+		}
+	}
+
+	/**
+	 * Opens a reader over the merge of the natural runs of the file. Each
+	 * natural run is copied to a run as it is read, nothing is sorted in
+	 * memory, so this is only worth doing for a file that has few natural runs.
+	 *
+	 * @param inputCsv the input csv
+	 * @param cs the cs
+	 * @param numHeader the number of header rows to skip
+	 * @param delim the delim
+	 * @return the merged row reader
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @see #countNaturalRuns(File, Charset, int, char)
+	 */
+	public MergedRowReader openNaturalRuns(File inputCsv, Charset cs, int numHeader, char delim) throws IOException
+	{
+		return merge(copyNaturalRuns(inputCsv, cs, numHeader, delim));
+	}
+
+	/**
+	 * Sorts the file and writes the sorted rows to the output file, after the
+	 * header rows. The runs are merged by a number of merge threads, each of
+	 * which merges one range of keys from all the runs into its own part of the
+	 * output, the parts are joined in order once they have all been written. The
+	 * ranges are split at keys picked from the sparse indexes of the runs so that
+	 * they hold about the same number of rows.
+	 *
+	 * @param inputCsv the input csv
+	 * @param cs the cs
+	 * @param numHeader the number of header rows
+	 * @param delim the delim
+	 * @param naturalRuns if true the natural runs of the file are merged instead of sorting it
+	 * @param outputFile the output file
+	 * @param numberOfMergeThreads the number of merge threads
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void sort(File inputCsv, final Charset cs, final int numHeader, final char delim, boolean naturalRuns, File outputFile, int numberOfMergeThreads) throws IOException
+	{
+		final List<SortRun> runs = reduce(naturalRuns ? copyNaturalRuns(inputCsv, cs, numHeader, delim) : sortInRuns(inputCsv, cs, numHeader, delim));
+		List<File> parts = new ArrayList<File>();
+		LinkedList<Future<Long>> pending = new LinkedList<Future<Long>>();
+		ExecutorService executor = newExecutor("Merge-Thread-", Math.max(1, numberOfMergeThreads));
+		try
+		{
+			List<byte[]> splitters = pickSplitters(runs, numberOfMergeThreads);
+			for(int i=0;i<=splitters.size();i++)
+			{
+				byte[] fromKey = i == 0 ? null : splitters.get(i-1);
+				byte[] toKey = i == splitters.size() ? null : splitters.get(i);
+				//The first range is written straight to the output file, after the header
+				File part = outputFile;
+				if(i > 0)
+				{
+					part = File.createTempFile("sortPart", ".csv", tmpdirectory);
+					part.deleteOnExit();
+				}
+				parts.add(part);
+				pending.add(executor.submit(newMergeTask(runs, fromKey, toKey, part, i == 0 ? inputCsv : null, cs, numHeader, delim)));
+			}
+			while(!pending.isEmpty())
+				getResult(pending.removeFirst());
+			if(parts.size() > 1)
+			{
+				OutputStream out = new FileOutputStream(outputFile, true);
+				try
+				{
+					for(File part:parts.subList(1, parts.size()))
+						Files.copy(part.toPath(), out);
+				}finally
+				{
+					out.close();
+				}
+			}
+		}catch(IOException | RuntimeException e)
+		{
+			for(Future<Long> future:pending)
+			{
+				future.cancel(true);
+			}
+			throw e;
+		}finally
+		{
+			executor.shutdownNow();
+			for(int i=1;i<parts.size();i++)
+				FileUtilsExt.deleteQuietly(parts.get(i));
+			for(SortRun run:runs)
+				run.delete();
+		}
+	}
+
+	private Callable<Long> newMergeTask(final List<SortRun> runs, final byte[] fromKey, final byte[] toKey, final File part, final File headerFrom, final Charset cs, final int numHeader, final char delim)
+	{
+		return new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				MergedRowReader reader = null;
+				CsvWriter writer = new CsvWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(part), cs),CsvExternalSort.DEFAULT_BUFFER_SIZE),delim,'"');
+				try
+				{
+					if(headerFrom != null)
+						CsvExternalSort.copyHeader(headerFrom, writer, cs, numHeader, delim);
+					//The runs are shared by all the ranges and are deleted once they are all merged
+					reader = new MergedRowReader(runs, distinct, fromKey, toKey, false);
+					List<String> row = null;
+					while((row = reader.nextRow()) != null)
+						writer.writeRecord(row);
+					return reader.getRowCount();
+				}finally
+				{
+					writer.close();
+					if(reader != null)
+						reader.finalise();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Picks the keys that split the rows of the runs into ranges of about the
+	 * same size, every key in the sparse index of a run stands for the same
+	 * number of rows.
+	 */
+	private static List<byte[]> pickSplitters(List<SortRun> runs, int numberOfRanges)
+	{
+		List<byte[]> keys = new ArrayList<byte[]>();
+		for(SortRun run:runs)
+			keys.addAll(run.getIndexKeys());
+		Collections.sort(keys, new Comparator<byte[]>() {
+			@Override
+			public int compare(byte[] a, byte[] b) {
+				return SortKeyEncoder.compare(a, b);
+			}
+		});
+		List<byte[]> splitters = new ArrayList<byte[]>();
+		for(int i=1;i<numberOfRanges;i++)
+		{
+			byte[] key = keys.isEmpty() ? null : keys.get((int) ((long) i * keys.size() / numberOfRanges));
+			//Equal splitters would make empty ranges
+			if(key != null && (splitters.isEmpty() || SortKeyEncoder.compare(splitters.get(splitters.size()-1), key) < 0))
+				splitters.add(key);
+		}
+		return splitters;
+	}
+
+	private List<SortRun> copyNaturalRuns(File inputCsv, Charset cs, int numHeader, char delim) throws IOException
+	{
+		SortKeyEncoder encoder = new SortKeyEncoder(cmp);
+		List<SortRun> runs = new ArrayList<SortRun>();
+		SortRun.Writer runWriter = null;
+		CSVReader reader = new CSVReader(new FileInputStream(inputCsv), cs.name(),new char[]{delim}, DatasetUtilConstants.getSystemConfig().csvTokenizer);
+		try
+		{
+			int counter = 0;
+			byte[] lastKey = null;
+			List<String> row = null;
+			while((row = reader.nextRecord()) != null)
+			{
+				if (counter < numHeader) {
+					counter++;
+					continue;
+				}
+				byte[] key = encoder.encode(row);
+				if(runWriter == null || SortKeyEncoder.compare(lastKey, key) > 0)
+				{
+					if(runWriter != null)
+						runWriter.close();
+					runWriter = null;
+					SortRun run = newRun();
+					runs.add(run);
+					runWriter = run.openWriter();
+				}
+				runWriter.write(new SortRun.Row(key, row));
+				lastKey = key;
+			}
+			if(runWriter != null)
+				runWriter.close();
+			runWriter = null;
+		}catch(IOException | RuntimeException e)
+		{
+			if(runWriter != null)
+				runWriter.close();
+			for(SortRun run:runs)
+				run.delete();
+			throw e;
+		}finally
+		{
+			reader.finalise();
+		}
+		return runs;
+	}
+
+	/**
+	 * Opens a reader over the merge of the runs.
+	 */
+	private MergedRowReader merge(List<SortRun> runs) throws IOException
+	{
+		return new MergedRowReader(reduce(runs), distinct);
+	}
+
+	/**
+	 * Merges the runs into bigger runs until there are no more runs than can
+	 * be merged at once.
+	 */
+	private List<SortRun> reduce(List<SortRun> runs) throws IOException
+	{
+		try
+		{
+			while(runs.size() > maxMergeWidth)
+			{
+				List<SortRun> group = new ArrayList<SortRun>(runs.subList(0, maxMergeWidth));
+				SortRun merged = newRun();
+				SortRun.Writer runWriter = merged.openWriter();
+				MergedRowReader reader = new MergedRowReader(group, distinct);
+				try
+				{
+					SortRun.Row r = null;
+					while((r = reader.nextMergedRow()) != null)
+						runWriter.write(r);
+				}finally
+				{
+					runWriter.close();
+					reader.finalise();
+				}
+				runs.subList(0, maxMergeWidth).clear();
+				runs.add(merged);
+			}
+			return runs;
+		}catch(IOException | RuntimeException e)
+		{
+			for(SortRun run:runs)
+				run.delete();
+			throw e;
+		}
+	}
+
+	private List<SortRun> sortInRuns(File inputCsv, Charset cs, int numHeader, char delim) throws IOException
+	{
+		//One run is filled while the sort threads sort the others
+		long runBudget = Math.max(memoryBudget / (numberOfSortThreads + 1), 1024 * 1024);
+		List<SortRun> runs = new ArrayList<SortRun>();
+		LinkedList<Future<SortRun>> pending = new LinkedList<Future<SortRun>>();
+		ExecutorService executor = newExecutor("Sort-Thread-", numberOfSortThreads);
+		CSVReader reader = new CSVReader(new FileInputStream(inputCsv), cs.name(),new char[]{delim}, DatasetUtilConstants.getSystemConfig().csvTokenizer);
+		try
+		{
+			int counter = 0;
+			List<List<String>> batch = new ArrayList<List<String>>();
+			long batchSize = 0;
+			List<String> row = null;
+			while((row = reader.nextRecord()) != null)
+			{
+				if (counter < numHeader) {
+					counter++;
+					continue;
+				}
+				batch.add(row);
+				batchSize += estimateRowSize(row);
+				if(batchSize >= runBudget)
+				{
+					if(pending.size() >= numberOfSortThreads)
+						runs.add(getResult(pending.removeFirst()));
+					pending.add(executor.submit(newSortTask(batch)));
+					batch = new ArrayList<List<String>>();
+					batchSize = 0;
+				}
+			}
+			if(!batch.isEmpty())
+				pending.add(executor.submit(newSortTask(batch)));
+			while(!pending.isEmpty())
+				runs.add(getResult(pending.removeFirst()));
+		}catch(IOException | RuntimeException e)
+		{
+			for(Future<SortRun> future:pending)
+			{
+				future.cancel(true);
+			}
+			for(SortRun run:runs)
+				run.delete();
+			throw e;
+		}finally
+		{
+			executor.shutdownNow();
+			reader.finalise();
+		}
+		return runs;
+	}
+
+	private Callable<SortRun> newSortTask(final List<List<String>> batch)
+	{
+		return new Callable<SortRun>() {
+			@Override
+			public SortRun call() throws Exception {
+				//The encoders are not thread safe so every run gets its own
+				SortKeyEncoder encoder = new SortKeyEncoder(cmp);
+				List<SortRun.Row> rows = new ArrayList<SortRun.Row>(batch.size());
+				for (int i = 0; i < batch.size(); i++) {
+					rows.add(new SortRun.Row(encoder.encode(batch.get(i)), batch.get(i)));
+					batch.set(i, null);
+				}
+				Collections.sort(rows, SortRun.Row.BY_KEY);
+				SortRun run = newRun();
+				SortRun.Writer runWriter = run.openWriter();
+				try
+				{
+					List<String> lastLine = null;
+					for (SortRun.Row rowData : rows) {
+						// Skip duplicate lines
+						if (!distinct || !rowData.values.equals(lastLine)) {
+							runWriter.write(rowData);
+							lastLine = rowData.values;
+						}
+					}
+				}finally
+				{
+					runWriter.close();
+				}
+				return run;
+			}
+		};
+	}
+
+	private static ExecutorService newExecutor(final String threadName, int numberOfThreads)
+	{
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		return Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread th = new Thread(r,threadName+threadCount.incrementAndGet());
+				th.setDaemon(true);
+				return th;
+			}
+		});
+	}
+
+	private static <T> T getResult(Future<T> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.toString());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private SortRun newRun() throws IOException
+	{
+		File newtmpfile = File.createTempFile("sortRun", ".bin", tmpdirectory);
+		newtmpfile.deleteOnExit();
+		return new SortRun(newtmpfile, compression);
+	}
+
+	/**
+	 * Estimates the heap size of a row read by the csv reader, the values are
+	 * counted as two bytes per char.
+	 *
+	 * @param row the row
+	 * @return the estimated size in bytes
+	 */
+	static long estimateRowSize(List<String> row)
+	{
+		long size = rowOverhead + 8L * row.size();
+		for(int i=0;i<row.size();i++)
+		{
+			String value = row.get(i);
+			if(value != null)
+				size += fieldOverhead + 2L * value.length();
+		}
+		return size;
+	}
+
+	/**
+	 * The Class MergedRowReader.
+	 *
+	 * Reads the rows of a set of sorted runs in sort order, merging them with a
+	 * {@link LoserTree} one row at a time. Finalising the reader deletes the runs.
+	 */
+	public static final class MergedRowReader {
+
+		private final List<SortRun> runs;
+		private final List<SortRun.Reader> readers;
+		private final boolean distinct;
+		private final byte[] toKey;
+		private final boolean deleteRuns;
+		private LoserTree<SortRun.Row> tree;
+		private List<String> lastLine = null;
+		private long rowcounter = 0;
+
+		private MergedRowReader(List<SortRun> runs, boolean distinct) throws IOException
+		{
+			this(runs, distinct, null, null, true);
+		}
+
+		/**
+		 * Instantiates a reader over the rows of the runs whose keys are in a range.
+		 *
+		 * @param runs the runs
+		 * @param distinct if true duplicate rows are skipped
+		 * @param fromKey the lowest key of the range, null for no lower bound
+		 * @param toKey the key the range ends before, null for no upper bound
+		 * @param deleteRuns if true the runs are deleted when the reader is finalised
+		 */
+		private MergedRowReader(List<SortRun> runs, boolean distinct, byte[] fromKey, byte[] toKey, boolean deleteRuns) throws IOException
+		{
+			this.runs = runs;
+			this.readers = new ArrayList<SortRun.Reader>(runs.size());
+			this.distinct = distinct;
+			this.toKey = toKey;
+			this.deleteRuns = deleteRuns;
+			try
+			{
+				List<SortRun.Row> heads = new ArrayList<SortRun.Row>(runs.size());
+				for(SortRun run:runs)
+				{
+					SortRun.Reader runReader = run.openReader(fromKey);
+					readers.add(runReader);
+					SortRun.Row head = next(runReader);
+					while(head != null && fromKey != null && SortKeyEncoder.compare(head.key, fromKey) < 0)
+						head = next(runReader);
+					heads.add(head);
+				}
+				this.tree = new LoserTree<SortRun.Row>(heads, SortRun.Row.BY_KEY);
+			}catch(IOException | RuntimeException e)
+			{
+				finalise();
+				throw e;
+			}
+		}
+
+		/**
+		 * Reads the next row in sort order.
+		 *
+		 * @return the row or null once all the runs have been read
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public List<String> nextRow() throws IOException
+		{
+			SortRun.Row r = nextMergedRow();
+			return r == null ? null : r.values;
+		}
+
+		SortRun.Row nextMergedRow() throws IOException
+		{
+			while(tree != null && !tree.isEmpty())
+			{
+				SortRun.Row r = tree.peek();
+				++rowcounter;
+				tree.replaceWinner(next(readers.get(tree.winner())));
+				// Skip duplicate lines
+				if (!distinct || !r.values.equals(lastLine)) {
+					lastLine = r.values;
+					return r;
+				}
+			}
+			return null;
+		}
+
+		private SortRun.Row next(SortRun.Reader runReader) throws IOException
+		{
+			SortRun.Row r = runReader.next();
+			if(r != null && toKey != null && SortKeyEncoder.compare(r.key, toKey) >= 0)
+				return null;
+			return r;
+		}
+
+		/**
+		 * Gets the number of rows merged so far, including skipped duplicates.
+		 *
+		 * @return the row count
+		 */
+		public long getRowCount()
+		{
+			return rowcounter;
+		}
+
+		/**
+		 * Closes the runs and deletes them, unless they are shared with other readers.
+		 */
+		public void finalise()
+		{
+			tree = null;
+			for(SortRun.Reader runReader:readers)
+			{
+				try
+				{
+					runReader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			readers.clear();
+			if(deleteRuns)
+			{
+				for(SortRun run:runs)
+					run.delete();
+			}
+		}
+	}
+}
@@ -32,6 +32,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.text.NumberFormat;
 import java.util.ArrayList;
@@ -44,6 +45,8 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 
 import com.google.code.externalsorting.ExternalSort;
+import com.sforce.dataset.DatasetUtilConstants;
+import com.sforce.dataset.Preferences;
 import com.sforce.dataset.flow.monitor.Session;
 import com.sforce.dataset.flow.monitor.ThreadContext;
 import com.sforce.dataset.loader.file.schema.ext.ExternalFileSchema;
@@ -76,6 +79,25 @@ public class CsvExternalSort extends ExternalSort {
      * @throws IOException Signals that an I/O exception has occurred.
      */
     public static File sortFile(File inputCsv, final Charset cs, final boolean distinct,final int headersize, ExternalFileSchema schema, char delim) throws IOException
+    {
+    	return sortFile(inputCsv, cs, distinct, headersize, schema, delim, null, System.out);
+    }
+
+	/**
+     * Sort file.
+     *
+     * @param inputCsv the input csv
+     * @param cs the cs
+     * @param distinct the distinct
+     * @param headersize the headersize
+     * @param schema the schema
+     * @param delim the delim
+     * @param orgId the org id, the sort engine settings are read from its preferences
+     * @param logger the logger
+     * @return the file, the input file if it is already sorted
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static File sortFile(File inputCsv, final Charset cs, final boolean distinct,final int headersize, ExternalFileSchema schema, char delim, String orgId, PrintStream logger) throws IOException
     {
     	if(inputCsv==null || !inputCsv.canRead())
     	{
@@ -104,15 +126,138 @@ public class CsvExternalSort extends ExternalSort {
 
 		ThreadContext tx = ThreadContext.get();
 		Session session = tx.getSession();
-		session.setStatus("SORTING");
+		if(session!=null)
+			session.setStatus("SORTING");
 			
 			
+		Preferences pref = (orgId == null || orgId.isEmpty()) ? new Preferences() : DatasetUtilConstants.getPreferences(orgId);
+		if(!"csv".equalsIgnoreCase(pref.sortEngine))
+		{
+			BinaryRunSort sorter = newBinaryRunSort(inputCsv, distinct, schema, pref);
+			int naturalRuns = checkSortOrder(sorter, inputCsv, cs, distinct, headersize, delim, logger);
+			if(naturalRuns==0)
+				return inputCsv;
+			if(pref.sortMergeThreads > 1)
+			{
+				sorter.sort(inputCsv, cs, headersize, delim, naturalRuns > 0, outputFile, pref.sortMergeThreads);
+				return outputFile;
+			}
+			BinaryRunSort.MergedRowReader reader = naturalRuns > 0 ? sorter.openNaturalRuns(inputCsv, cs, headersize, delim) : sorter.open(inputCsv, cs, headersize, delim);
+            CsvWriter writer = null;
+            try
+            {
+            	writer = new CsvWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), cs),DEFAULT_BUFFER_SIZE),delim,'"');
+            	copyHeader(inputCsv, writer, cs, headersize, delim);
+            	List<String> row = null;
+            	while((row = reader.nextRow()) != null)
+            		writer.writeRecord(row);
+            }finally
+            {
+            	if(writer!=null)
+            		writer.close();
+            	reader.finalise();
+            }
+			return outputFile;
+		}
+
 		List<File> l = sortInBatch(inputCsv, cs, cmp, distinct, headersize, delim);
 //		System.out.println("CsvExternalSort created " + l.size() + " tmp files");
 		mergeSortedFiles(l, outputFile, cmp, cs, distinct, inputCsv, headersize, delim);
 		return outputFile;
     }
 
+    /**
+     * Checks if the sorted rows of the file can be read straight from the merge
+     * of the sorted runs, instead of from a sorted file. The schema must have
+     * sort columns and the binary sort engine must be used.
+     *
+     * @param schema the schema
+     * @param orgId the org id, the sort engine settings are read from its preferences
+     * @return true, if the file can be sorted on read
+     */
+    public static boolean isSortOnRead(ExternalFileSchema schema, String orgId)
+    {
+		if(schema==null || schema.getObjects() == null || schema.getObjects().size()==0 || schema.getObjects().get(0).getFields() == null)
+			return false;
+		Preferences pref = (orgId == null || orgId.isEmpty()) ? new Preferences() : DatasetUtilConstants.getPreferences(orgId);
+		//The parallel merge writes the sorted file so that it can be digested in parallel
+		if("csv".equalsIgnoreCase(pref.sortEngine) || !pref.sortOnRead || pref.sortMergeThreads > 1)
+			return false;
+		return new CsvRowComparator(schema.getObjects().get(0).getFields()).getSortColumnCount() > 0;
+    }
+
+	/**
+     * Sorts the file into runs and opens a reader over their merge, the header
+     * rows are skipped. The reader must be finalised once it has been read.
+     * The file is first checked for rows that are already in sort order, if
+     * the whole file is in order there is nothing to sort and null is returned,
+     * if it is made of a few ordered stretches they are merged without sorting.
+     *
+     * @param inputCsv the input csv
+     * @param cs the cs
+     * @param distinct the distinct
+     * @param headersize the headersize
+     * @param schema the schema
+     * @param delim the delim
+     * @param orgId the org id, the sort engine settings are read from its preferences
+     * @param logger the logger
+     * @return the merged row reader or null if the file is already sorted
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @see #isSortOnRead(ExternalFileSchema, String)
+     */
+    public static BinaryRunSort.MergedRowReader openSortedReader(File inputCsv, final Charset cs, final boolean distinct,final int headersize, ExternalFileSchema schema, char delim, String orgId, PrintStream logger) throws IOException
+    {
+    	if(inputCsv==null || !inputCsv.canRead())
+    	{
+    		throw new IOException("File not found {"+inputCsv+"}");
+    	}
+		if(schema==null || schema.getObjects() == null || schema.getObjects().size()==0 || schema.getObjects().get(0).getFields() == null)
+		{
+			throw new IOException("File does not have valid metadata json {"+ExternalFileSchema.getSchemaFile(inputCsv, System.out)+"}");
+		}
+		ThreadContext tx = ThreadContext.get();
+		Session session = tx.getSession();
+		if(session!=null)
+			session.setStatus("SORTING");
+		Preferences pref = (orgId == null || orgId.isEmpty()) ? new Preferences() : DatasetUtilConstants.getPreferences(orgId);
+		BinaryRunSort sorter = newBinaryRunSort(inputCsv, distinct, schema, pref);
+		int naturalRuns = checkSortOrder(sorter, inputCsv, cs, distinct, headersize, delim, logger);
+		if(naturalRuns==0)
+			return null;
+		return naturalRuns > 0 ? sorter.openNaturalRuns(inputCsv, cs, headersize, delim) : sorter.open(inputCsv, cs, headersize, delim);
+    }
+
+    /**
+     * Checks the sort order of the file and logs the sort path that is taken.
+     *
+     * @return 0 if there is nothing to sort, the number of natural runs to merge or -1 if the file has to be sorted
+     */
+    private static int checkSortOrder(BinaryRunSort sorter, File inputCsv, Charset cs, boolean distinct, int headersize, char delim, PrintStream logger) throws IOException
+    {
+		long startTime = System.currentTimeMillis();
+		int naturalRuns = sorter.countNaturalRuns(inputCsv, cs, headersize, delim);
+		long checkTime = System.currentTimeMillis()-startTime;
+		//A sorted file can still have duplicates to remove
+		if(naturalRuns == 0 || (naturalRuns == 1 && !distinct))
+		{
+			logger.println("File {"+inputCsv.getName()+"} is already sorted, skipping sort. Sort order checked in Time {"+nf.format(checkTime)+"} msecs");
+			return 0;
+		}
+		if(naturalRuns > 0)
+		{
+			logger.println("File {"+inputCsv.getName()+"} has {"+naturalRuns+"} sorted runs, merging the runs. Sort order checked in Time {"+nf.format(checkTime)+"} msecs");
+			return naturalRuns;
+		}
+		logger.println("File {"+inputCsv.getName()+"} is not sorted, sorting the file. Sort order checked in Time {"+nf.format(checkTime)+"} msecs");
+		return -1;
+    }
+
+    private static BinaryRunSort newBinaryRunSort(File inputCsv, boolean distinct, ExternalFileSchema schema, Preferences pref)
+    {
+		long memoryBudget = pref.sortMemoryMB > 0 ? pref.sortMemoryMB * 1024L * 1024L : estimateAvailableMemory() / 2;
+		return new BinaryRunSort(schema.getObjects().get(0).getFields(), distinct, pref.sortThreads, memoryBudget, pref.sortRunCompression, getTmpDirectory(inputCsv));
+    }
+
     /**
      * Sort in batch.
      *
@@ -130,15 +275,8 @@ public class CsvExternalSort extends ExternalSort {
             List<File> files = new ArrayList<File>();
             long blocksize = estimateBestSizeOfBlocks(inputCsv.length(), DEFAULTMAXTEMPFILES, estimateAvailableMemory());// in bytes
 //			CsvListReader reader = new CsvListReader(new InputStreamReader(new BOMInputStream(new FileInputStream(inputCsv), false), DatasetUtils.utf8Decoder(null , cs )), delim);				
-            CSVReader reader = new CSVReader(new FileInputStream(inputCsv), cs.name(),new char[]{delim});
-			File tmpdirectory = new File(inputCsv.getParent(),"archive");
-			try
-			{
-				FileUtils.forceMkdir(tmpdirectory);
-			}catch(Throwable t)
-			{
-				t.printStackTrace();
-			}
+            CSVReader reader = new CSVReader(new FileInputStream(inputCsv), cs.name(),new char[]{delim}, DatasetUtilConstants.getSystemConfig().csvTokenizer);
+			File tmpdirectory = getTmpDirectory(inputCsv);
 			
             try {
                     List<List<String>> tmplist = new ArrayList<List<String>>();
@@ -171,6 +309,19 @@ public class CsvExternalSort extends ExternalSort {
             return files;
     }
 
+    private static File getTmpDirectory(File inputCsv)
+    {
+		File tmpdirectory = new File(inputCsv.getParent(),"archive");
+		try
+		{
+			FileUtils.forceMkdir(tmpdirectory);
+		}catch(Throwable t)
+		{
+			t.printStackTrace();
+		}
+		return tmpdirectory;
+    }
+
     /**
      * Sort and save.
      *
@@ -304,7 +455,7 @@ public class CsvExternalSort extends ExternalSort {
      */
     public static void copyHeader(File inputCsv, CsvWriter writer, Charset cs, final int numHeader, char delim) throws IOException 
     {
-        CSVReader csvReader = new CSVReader(new FileInputStream(inputCsv), cs.name(),new char[]{delim});
+        CSVReader csvReader = new CSVReader(new FileInputStream(inputCsv), cs.name(),new char[]{delim}, DatasetUtilConstants.getSystemConfig().csvTokenizer);
 		try {
 			int counter = 0;
 			List<String> row = new ArrayList<String>();
@@ -330,7 +481,7 @@ public class CsvExternalSort extends ExternalSort {
 final class CsvFileBuffer {
         public CsvFileBuffer(File inputCsv, Charset cs, char delimiter) throws IOException {
 //    		InputStreamReader reader = new InputStreamReader(new BOMInputStream(new FileInputStream(inputCsv), false), StringUtilsExt.utf8Decoder(null , cs ));
-            CSVReader csvReader = new CSVReader(new FileInputStream(inputCsv), cs.name(),new char[]{delimiter});
+            CSVReader csvReader = new CSVReader(new FileInputStream(inputCsv), cs.name(),new char[]{delimiter}, DatasetUtilConstants.getSystemConfig().csvTokenizer);
 //			this.reader = new CsvListReader(new InputStreamReader(new BOMInputStream(new FileInputStream(inputCsv), false), StringUtilsExt.utf8Decoder(null , cs )), pref);	
             this.csvReader = csvReader;
 //            this.reader = reader;
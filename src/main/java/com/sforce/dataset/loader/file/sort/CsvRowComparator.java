@@ -94,6 +94,15 @@ public class CsvRowComparator implements Comparator<List<String>> {
 	public IColumnComparator getColumnComparator(int index) {
 		return _columnComparators[index];
 	}
+
+	/**
+	 * Gets the row index of each sort column, in sort order.
+	 *
+	 * @return the sort column indices
+	 */
+	int[] getSortColumnIndices() {
+		return _sortColumnIndices.clone();
+	}
 	
 	/**
 	 * Compares two rows returning the result of the compare.
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.sort;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The Class LoserTree.
+ *
+ * A tournament tree over the heads of k sorted sources. Every inner node
+ * keeps the loser of the match played there and the overall winner is kept
+ * at the root, so replacing the winner only replays the matches on the path
+ * from its leaf to the root, log2(k) comparisons instead of the 2*log2(k) a
+ * binary heap needs. A null head means the source is exhausted, and equal
+ * heads are won by the lower source index so that the merge is stable.
+ *
+ * @param <T> the type of the elements
+ */
+final class LoserTree<T> {
+
+	private final Comparator<? super T> cmp;
+	private final int k;
+	private final Object[] heads;
+	private final int[] tree;
+
+	/**
+	 * Instantiates a new loser tree.
+	 *
+	 * @param heads the first element of each source, null if the source is empty
+	 * @param cmp the comparator
+	 */
+	LoserTree(List<T> heads, Comparator<? super T> cmp) {
+		this.cmp = cmp;
+		this.k = heads.size();
+		this.heads = heads.toArray();
+		this.tree = new int[Math.max(k, 1)];
+		if (k == 0)
+			return;
+		for (int i = 0; i < tree.length; i++) {
+			tree[i] = -1;
+		}
+		for (int leaf = k - 1; leaf >= 0; leaf--) {
+			int winner = leaf;
+			for (int node = (leaf + k) >> 1; node > 0; node >>= 1) {
+				if (tree[node] == -1) {
+					// the first player to arrive waits here for its opponent
+					tree[node] = winner;
+					winner = -1;
+					break;
+				}
+				if (beats(tree[node], winner)) {
+					int loser = winner;
+					winner = tree[node];
+					tree[node] = loser;
+				}
+			}
+			if (winner != -1)
+				tree[0] = winner;
+		}
+	}
+
+	/**
+	 * Checks if every source is exhausted.
+	 *
+	 * @return true, if empty
+	 */
+	boolean isEmpty() {
+		return k == 0 || heads[tree[0]] == null;
+	}
+
+	/**
+	 * Gets the index of the source holding the smallest head.
+	 *
+	 * @return the source index
+	 */
+	int winner() {
+		return tree[0];
+	}
+
+	/**
+	 * Gets the smallest head.
+	 *
+	 * @return the head
+	 */
+	@SuppressWarnings("unchecked")
+	T peek() {
+		return (T) heads[tree[0]];
+	}
+
+	/**
+	 * Replaces the head of the winning source with its next element.
+	 *
+	 * @param next the next element, null if the source is exhausted
+	 */
+	void replaceWinner(T next) {
+		int winner = tree[0];
+		heads[winner] = next;
+		for (int node = (winner + k) >> 1; node > 0; node >>= 1) {
+			if (beats(tree[node], winner)) {
+				int loser = winner;
+				winner = tree[node];
+				tree[node] = loser;
+			}
+		}
+		tree[0] = winner;
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean beats(int a, int b) {
+		Object headA = heads[a];
+		Object headB = heads[b];
+		if (headA == null)
+			return headB == null && a < b;
+		if (headB == null)
+			return true;
+		int c = cmp.compare((T) headA, (T) headB);
+		return c < 0 || (c == 0 && a < b);
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.sort;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The Class Lz4Block.
+ *
+ * Compresses a block of bytes in the LZ4 block format. Each sequence is a
+ * token with the number of literals and the match length, the literals, the
+ * two byte offset of the match and the rest of the match length. Matches are
+ * found greedily with a hash table of the last position of every four byte
+ * prefix, which is what makes LZ4 fast enough to compress the sort runs on
+ * the sort threads. The blocks are only read back by {@link SortRun}, so no
+ * frame, checksum or dictionary is needed.
+ */
+final class Lz4Block {
+
+	private static final int minMatch = 4;
+	//The last literals and the last match start, the same limits as the reference implementation
+	private static final int lastLiterals = 5;
+	private static final int matchFindLimit = 12;
+	private static final int maxOffset = 65535;
+	private static final int hashBits = 14;
+
+	private final int[] hashTable = new int[1 << hashBits];
+
+	/**
+	 * Gets the largest size a block of the given length can compress to.
+	 *
+	 * @param length the length
+	 * @return the max compressed length
+	 */
+	static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compresses the bytes.
+	 *
+	 * @param src the bytes
+	 * @param length the number of bytes
+	 * @param dst the compressed bytes, at least {@link #maxCompressedLength(int)} long
+	 * @return the compressed length
+	 */
+	int compress(byte[] src, int length, byte[] dst) {
+		Arrays.fill(hashTable, -1);
+		int anchor = 0;
+		int op = 0;
+		int ip = 0;
+		int limit = length - matchFindLimit;
+		while (ip < limit) {
+			int sequence = readInt(src, ip);
+			int hash = (sequence * -1640531535) >>> (32 - hashBits);
+			int ref = hashTable[hash];
+			hashTable[hash] = ip;
+			if (ref < 0 || ip - ref > maxOffset || readInt(src, ref) != sequence) {
+				ip++;
+				continue;
+			}
+			int matchLength = minMatch;
+			int maxMatch = length - lastLiterals - ip;
+			while (matchLength < maxMatch && src[ref + matchLength] == src[ip + matchLength])
+				matchLength++;
+			op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+			ip += matchLength;
+			anchor = ip;
+		}
+		return writeSequence(src, anchor, length - anchor, 0, 0, dst, op);
+	}
+
+	/**
+	 * Decompresses a block.
+	 *
+	 * @param src the compressed bytes
+	 * @param length the compressed length
+	 * @param dst the bytes
+	 * @param dstLength the number of bytes the block holds
+	 * @throws IOException if the block is malformed
+	 */
+	static void decompress(byte[] src, int length, byte[] dst, int dstLength) throws IOException {
+		int ip = 0;
+		int op = 0;
+		try {
+			while (ip < length) {
+				int token = src[ip++] & 0xFF;
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						literals += b;
+					} while (b == 255);
+				}
+				if (ip + literals > length || op + literals > dstLength)
+					throw new IOException("Malformed lz4 block");
+				System.arraycopy(src, ip, dst, op, literals);
+				ip += literals;
+				op += literals;
+				//The last sequence has no match
+				if (ip == length)
+					break;
+				int offset = (src[ip++] & 0xFF) | ((src[ip++] & 0xFF) << 8);
+				int matchLength = token & 0x0F;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += minMatch;
+				if (offset == 0 || offset > op || op + matchLength > dstLength)
+					throw new IOException("Malformed lz4 block");
+				//The match can overlap the bytes it writes
+				int ref = op - offset;
+				for (int i = 0; i < matchLength; i++) {
+					dst[op++] = dst[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Malformed lz4 block");
+		}
+		if (op != dstLength)
+			throw new IOException("Malformed lz4 block");
+	}
+
+	private static int writeSequence(byte[] src, int start, int literals, int offset, int matchLength, byte[] dst, int op) {
+		int tokenPos = op++;
+		int token = Math.min(literals, 15) << 4;
+		op = writeLength(literals - 15, dst, op);
+		System.arraycopy(src, start, dst, op, literals);
+		op += literals;
+		if (matchLength > 0) {
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >>> 8);
+			token |= Math.min(matchLength - minMatch, 15);
+			op = writeLength(matchLength - minMatch - 15, dst, op);
+		}
+		dst[tokenPos] = (byte) token;
+		return op;
+	}
+
+	/**
+	 * Writes the part of a length that does not fit in the token, nothing if it fits.
+	 */
+	private static int writeLength(int rest, byte[] dst, int op) {
+		if (rest < 0)
+			return op;
+		while (rest >= 255) {
+			dst[op++] = (byte) 255;
+			rest -= 255;
+		}
+		dst[op++] = (byte) rest;
+		return op;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+	}
+}
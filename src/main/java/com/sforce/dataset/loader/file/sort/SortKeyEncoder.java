@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.sort;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.text.Normalizer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import com.foundations.comparator.attributes.DateTimeSortAttributes;
+import com.foundations.comparator.attributes.DecimalSortAttributes;
+import com.foundations.comparator.attributes.SortAttributes;
+import com.foundations.comparator.attributes.StringSortAttributes;
+import com.foundations.comparator.column.AbstractComparator;
+import com.foundations.comparator.column.BooleanComparator;
+import com.foundations.comparator.column.DateTimeComparator;
+import com.foundations.comparator.column.DecimalComparator;
+import com.foundations.comparator.column.IColumnComparator;
+import com.foundations.comparator.column.IntegerComparator;
+import com.foundations.comparator.column.StringComparator;
+
+/**
+ * The Class SortKeyEncoder.
+ *
+ * Encodes the sort columns of a row into a single byte key, so that comparing
+ * two keys as unsigned bytes gives the same result as comparing the rows with
+ * the {@link CsvRowComparator} the encoder was built from. Each column is
+ * encoded so that it is self delimiting: a null marker followed by the epoch
+ * millis of a date, the unscaled value of a number at the column scale, or
+ * the chars of a string after accent stripping and case folding. Descending
+ * columns have the bytes of their encoding inverted. Dates are parsed and
+ * numbers are rounded once per row instead of once per comparison.
+ *
+ * An encoder is not thread safe, every sort thread needs its own.
+ */
+final class SortKeyEncoder {
+
+	private static final int STRING = 0;
+	private static final int DATE = 1;
+	private static final int INTEGER = 2;
+	private static final int DECIMAL = 3;
+	private static final int BOOLEAN = 4;
+
+	private static final byte NULL_LOW = 0x00;
+	private static final byte NOT_NULL = 0x01;
+	private static final byte NULL_HIGH = 0x02;
+
+	private static final Pattern combiningDiacriticalMarks = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+	private final int[] columnIndices;
+	private final int maxSortIndex;
+	private final int[] types;
+	private final boolean[] ascending;
+	private final boolean[] trim;
+	private final boolean[] nullLow;
+	private final boolean[] caseSensitive;
+	private final boolean[] stripAccents;
+	private final SimpleDateFormat[] dateFormats;
+	private final int[] scales;
+	private final RoundingMode[] roundingModes;
+
+	private byte[] buf = new byte[256];
+	private int count = 0;
+
+	/**
+	 * Instantiates a new sort key encoder.
+	 *
+	 * @param cmp the row comparator whose order the keys follow
+	 */
+	SortKeyEncoder(CsvRowComparator cmp) {
+		int n = cmp.getSortColumnCount();
+		columnIndices = cmp.getSortColumnIndices();
+		maxSortIndex = cmp.maxSortIndex;
+		types = new int[n];
+		ascending = new boolean[n];
+		trim = new boolean[n];
+		nullLow = new boolean[n];
+		caseSensitive = new boolean[n];
+		stripAccents = new boolean[n];
+		dateFormats = new SimpleDateFormat[n];
+		scales = new int[n];
+		roundingModes = new RoundingMode[n];
+		for (int i = 0; i < n; i++) {
+			IColumnComparator columnComparator = cmp.getColumnComparator(i);
+			if (!(columnComparator instanceof AbstractComparator))
+				throw new IllegalArgumentException("Unsupported column comparator {" + columnComparator + "}");
+			SortAttributes attributes = ((AbstractComparator) columnComparator).getSortAttributes();
+			ascending[i] = attributes.isAscendingOrder();
+			trim[i] = attributes.isTrim();
+			nullLow[i] = attributes.isNullLowSortOrder();
+			if (columnComparator instanceof StringComparator) {
+				types[i] = STRING;
+				caseSensitive[i] = ((StringSortAttributes) attributes).isCaseSensitive();
+				stripAccents[i] = ((StringSortAttributes) attributes).isStripAccents();
+			} else if (columnComparator instanceof DateTimeComparator) {
+				types[i] = DATE;
+				// Same as DateTimeComparator
+				dateFormats[i] = new SimpleDateFormat(((DateTimeSortAttributes) attributes).getPattern());
+				dateFormats[i].setTimeZone(TimeZone.getTimeZone("GMT"));
+			} else if (columnComparator instanceof DecimalComparator) {
+				types[i] = DECIMAL;
+				scales[i] = ((DecimalSortAttributes) attributes).getScale();
+				roundingModes[i] = ((DecimalSortAttributes) attributes).getRoundingMode();
+			} else if (columnComparator instanceof IntegerComparator) {
+				types[i] = INTEGER;
+			} else if (columnComparator instanceof BooleanComparator) {
+				types[i] = BOOLEAN;
+			} else {
+				throw new IllegalArgumentException("Unsupported column comparator {" + columnComparator + "}");
+			}
+		}
+	}
+
+	/**
+	 * Encodes the sort key of a row.
+	 *
+	 * @param row the row
+	 * @return the key
+	 */
+	byte[] encode(List<String> row) {
+		if (row.size() < maxSortIndex) {
+			throw new IllegalArgumentException("Incorrect number of tokens detected:\n\n" + row + "\n");
+		}
+		count = 0;
+		for (int i = 0; i < columnIndices.length; i++) {
+			int start = count;
+			String value = row.get(columnIndices[i]);
+			if (value != null && trim[i])
+				value = value.trim();
+			if (value == null || value.isEmpty()) {
+				append(nullLow[i] ? NULL_LOW : NULL_HIGH);
+			} else {
+				append(NOT_NULL);
+				switch (types[i]) {
+				case STRING:
+					appendString(value, i);
+					break;
+				case DATE:
+					appendLong(parseDate(value, i));
+					break;
+				case INTEGER:
+					appendBigInteger(new BigInteger(value));
+					break;
+				case DECIMAL:
+					appendBigInteger(new BigDecimal(value).setScale(scales[i], roundingModes[i]).unscaledValue());
+					break;
+				default:
+					append(parseBoolean(value) ? (byte) 1 : (byte) 0);
+				}
+			}
+			if (!ascending[i]) {
+				for (int j = start; j < count; j++) {
+					buf[j] = (byte) ~buf[j];
+				}
+			}
+		}
+		return Arrays.copyOf(buf, count);
+	}
+
+	/**
+	 * Compares two keys as unsigned bytes.
+	 *
+	 * @param a the first key
+	 * @param b the second key
+	 * @return the result of the compare
+	 */
+	static int compare(byte[] a, byte[] b) {
+		return Arrays.compareUnsigned(a, b);
+	}
+
+	/**
+	 * Appends the chars of the string so that the bytes compare like
+	 * {@link String#compareTo(String)}, or {@link String#compareToIgnoreCase(String)}
+	 * when the column is not case sensitive. No char encodes to a 0 byte, so
+	 * the 0 terminator makes a prefix sort first.
+	 */
+	private void appendString(String value, int column) {
+		if (stripAccents[column])
+			value = combiningDiacriticalMarks.matcher(Normalizer.normalize(value, Normalizer.Form.NFD)).replaceAll("");
+		ensureCapacity(value.length() * 3 + 1);
+		boolean ignoreCase = !caseSensitive[column];
+		for (int j = 0; j < value.length(); j++) {
+			char c = value.charAt(j);
+			if (ignoreCase)
+				c = Character.toLowerCase(Character.toUpperCase(c));
+			if (c < 0x7F) {
+				buf[count++] = (byte) (c + 1);
+			} else {
+				int d = c - 0x7F;
+				if (d < 0x3F00) {
+					buf[count++] = (byte) (0x80 + (d >> 8));
+					buf[count++] = (byte) d;
+				} else {
+					d -= 0x3F00;
+					buf[count++] = (byte) 0xC0;
+					buf[count++] = (byte) (d >> 8);
+					buf[count++] = (byte) d;
+				}
+			}
+		}
+		buf[count++] = 0;
+	}
+
+	private long parseDate(String value, int column) {
+		try {
+			return dateFormats[column].parse(value).getTime();
+		} catch (ParseException e) {
+			throw new RuntimeException("Parse Exception: " + e.getMessage());
+		}
+	}
+
+	private static boolean parseBoolean(String value) {
+		// Same as BooleanComparator
+		if (value.toLowerCase().equals("true") || value.equals("1"))
+			return true;
+		else if (value.toLowerCase().equals("false") || value.equals("0"))
+			return false;
+		throw new RuntimeException("Boolean Parse Exception: " + value);
+	}
+
+	/**
+	 * Appends a sign marker, the length of the magnitude and the magnitude,
+	 * with the length and magnitude inverted for negative values so that
+	 * bigger magnitudes sort first.
+	 */
+	private void appendBigInteger(BigInteger value) {
+		int signum = value.signum();
+		if (signum == 0) {
+			append((byte) 1);
+			return;
+		}
+		byte[] magnitude = value.abs().toByteArray();
+		int offset = magnitude[0] == 0 ? 1 : 0;
+		int length = magnitude.length - offset;
+		ensureCapacity(length + 5);
+		byte flip = signum < 0 ? (byte) 0xFF : 0;
+		buf[count++] = signum < 0 ? (byte) 0 : (byte) 2;
+		buf[count++] = (byte) ((length >>> 24) ^ flip);
+		buf[count++] = (byte) ((length >>> 16) ^ flip);
+		buf[count++] = (byte) ((length >>> 8) ^ flip);
+		buf[count++] = (byte) (length ^ flip);
+		for (int j = offset; j < magnitude.length; j++) {
+			buf[count++] = (byte) (magnitude[j] ^ flip);
+		}
+	}
+
+	private void appendLong(long value) {
+		ensureCapacity(8);
+		value ^= Long.MIN_VALUE;
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buf[count++] = (byte) (value >>> shift);
+		}
+	}
+
+	private void append(byte b) {
+		ensureCapacity(1);
+		buf[count++] = b;
+	}
+
+	private void ensureCapacity(int length) {
+		if (count + length > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+	}
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.sort;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.sforce.dataset.util.FileUtilsExt;
+
+/**
+ * The Class SortRun.
+ *
+ * A sorted run written by {@link BinaryRunSort}. Each row is written as its
+ * sort key, a varint length followed by the key bytes, then a varint field
+ * count followed by each field as a varint of its length plus one, 0 for
+ * null, and its characters. Every char is encoded on its own as
+ * one to three UTF-8 style bytes, so any String, including unpaired
+ * surrogates, is read back exactly without going through a charset.
+ *
+ * A compressed run is written in blocks of up to 64KB of rows, each block is
+ * the varint length of its bytes, the varint length of the compressed bytes
+ * and the bytes compressed on their own with {@link Lz4Block} or raw deflate.
+ *
+ * The key of every {@link #indexInterval}th row is kept in a sparse index
+ * together with its row number and its offset in the file. A compressed run
+ * starts a new block at every index entry, so the offset of the entry is the
+ * start of a block. The index is used as a sample of the keys of the run and
+ * to start reading the run close to a given key.
+ */
+final class SortRun {
+
+	static final String COMPRESSION_NONE = "none";
+	static final String COMPRESSION_LZ4 = "lz4";
+	static final String COMPRESSION_DEFLATE = "deflate";
+
+	static final int indexInterval = 1024;
+
+	private static final int bufferSize = 64 * 1024;
+
+	private final File file;
+	private final String compression;
+	private long rowCount = 0;
+	private final List<IndexEntry> index = new ArrayList<IndexEntry>();
+
+	SortRun(File file, String compression) {
+		this.file = file;
+		this.compression = compression;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Gets the keys of the sparse index, in sort order.
+	 *
+	 * @return the index keys
+	 */
+	List<byte[]> getIndexKeys() {
+		List<byte[]> keys = new ArrayList<byte[]>(index.size());
+		for (IndexEntry entry : index) {
+			keys.add(entry.key);
+		}
+		return keys;
+	}
+
+	void delete() {
+		FileUtilsExt.deleteQuietly(file);
+	}
+
+	/**
+	 * Opens the run for writing.
+	 *
+	 * @return the writer
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	Writer openWriter() throws IOException {
+		return new Writer(this);
+	}
+
+	/**
+	 * Opens the run for reading.
+	 *
+	 * @return the reader
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	Reader openReader() throws IOException {
+		return new Reader(this, null);
+	}
+
+	/**
+	 * Opens the run for reading at the last index entry whose key is lower than
+	 * the given key, the rows before the given key that follow the entry still
+	 * have to be skipped by the caller.
+	 *
+	 * @param fromKey the key to read from, null to read from the start
+	 * @return the reader
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	Reader openReader(byte[] fromKey) throws IOException {
+		IndexEntry from = null;
+		if (fromKey != null) {
+			for (IndexEntry entry : index) {
+				if (SortKeyEncoder.compare(entry.key, fromKey) >= 0)
+					break;
+				from = entry;
+			}
+		}
+		return new Reader(this, from);
+	}
+
+	/**
+	 * An entry of the sparse index.
+	 */
+	private static final class IndexEntry {
+
+		final byte[] key;
+		final long row;
+		final long offset;
+
+		IndexEntry(byte[] key, long row, long offset) {
+			this.key = key;
+			this.row = row;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * A row together with the sort key of its sort columns.
+	 */
+	static final class Row {
+
+		static final Comparator<Row> BY_KEY = new Comparator<Row>() {
+			@Override
+			public int compare(Row a, Row b) {
+				return SortKeyEncoder.compare(a.key, b.key);
+			}
+		};
+
+		final byte[] key;
+		final List<String> values;
+
+		Row(byte[] key, List<String> values) {
+			this.key = key;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * Writes rows to a run.
+	 */
+	static final class Writer {
+
+		private final SortRun run;
+		private final OutputStream out;
+		private Lz4Block lz4 = null;
+		private Deflater deflater = null;
+		private byte[] buf = new byte[bufferSize];
+		private int count = 0;
+		private long flushed = 0;
+		private byte[] compressed = null;
+		private final byte[] header = new byte[10];
+
+		private Writer(SortRun run) throws IOException {
+			this.run = run;
+			run.index.clear();
+			this.out = new BufferedOutputStream(new FileOutputStream(run.file), bufferSize);
+			if (COMPRESSION_LZ4.equalsIgnoreCase(run.compression))
+				this.lz4 = new Lz4Block();
+			else if (COMPRESSION_DEFLATE.equalsIgnoreCase(run.compression))
+				this.deflater = new Deflater(Deflater.BEST_SPEED, true);
+		}
+
+		void write(Row sortRow) throws IOException {
+			if (run.rowCount % indexInterval == 0) {
+				//The key ranges of the parallel merge read a compressed run from the block of an index entry
+				if (lz4 != null || deflater != null)
+					flushBuffer();
+				run.index.add(new IndexEntry(sortRow.key, run.rowCount, flushed + count));
+			}
+			writeVInt(sortRow.key.length);
+			ensureCapacity(sortRow.key.length);
+			System.arraycopy(sortRow.key, 0, buf, count, sortRow.key.length);
+			count += sortRow.key.length;
+			List<String> row = sortRow.values;
+			writeVInt(row.size());
+			for (int i = 0; i < row.size(); i++) {
+				String value = row.get(i);
+				if (value == null) {
+					writeVInt(0);
+					continue;
+				}
+				int length = value.length();
+				writeVInt(length + 1);
+				ensureCapacity(length * 3);
+				for (int j = 0; j < length; j++) {
+					char c = value.charAt(j);
+					if (c < 0x80) {
+						buf[count++] = (byte) c;
+					} else if (c < 0x800) {
+						buf[count++] = (byte) (0xC0 | (c >> 6));
+						buf[count++] = (byte) (0x80 | (c & 0x3F));
+					} else {
+						buf[count++] = (byte) (0xE0 | (c >> 12));
+						buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+						buf[count++] = (byte) (0x80 | (c & 0x3F));
+					}
+				}
+			}
+			run.rowCount++;
+		}
+
+		void close() throws IOException {
+			try {
+				flushBuffer();
+			} finally {
+				out.close();
+				if (deflater != null)
+					deflater.end();
+			}
+		}
+
+		private void writeVInt(int value) throws IOException {
+			ensureCapacity(5);
+			while ((value & ~0x7F) != 0) {
+				buf[count++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buf[count++] = (byte) value;
+		}
+
+		private void ensureCapacity(int length) throws IOException {
+			if (count + length <= buf.length)
+				return;
+			flushBuffer();
+			if (length > buf.length)
+				buf = new byte[length];
+		}
+
+		private void flushBuffer() throws IOException {
+			if (count == 0)
+				return;
+			if (lz4 == null && deflater == null) {
+				out.write(buf, 0, count);
+				flushed += count;
+				count = 0;
+				return;
+			}
+			if (compressed == null || compressed.length < Lz4Block.maxCompressedLength(count))
+				compressed = new byte[Lz4Block.maxCompressedLength(count)];
+			int length = lz4 != null ? lz4.compress(buf, count, compressed) : deflate();
+			int headerLength = putVInt(header, putVInt(header, 0, count), length);
+			out.write(header, 0, headerLength);
+			out.write(compressed, 0, length);
+			flushed += headerLength + length;
+			count = 0;
+		}
+
+		private int deflate() {
+			deflater.reset();
+			deflater.setInput(buf, 0, count);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == compressed.length)
+					compressed = Arrays.copyOf(compressed, compressed.length * 2);
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			return length;
+		}
+
+		private static int putVInt(byte[] buffer, int pos, int value) {
+			while ((value & ~0x7F) != 0) {
+				buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[pos++] = (byte) value;
+			return pos;
+		}
+	}
+
+	/**
+	 * Reads the rows of a run back in order.
+	 */
+	static final class Reader {
+
+		private final File file;
+		private final InputStream in;
+		private final boolean lz4;
+		private Inflater inflater = null;
+		private long remaining;
+		private char[] chars = new char[256];
+		private byte[] block = new byte[bufferSize];
+		private int pos = 0;
+		private int limit = 0;
+		private byte[] compressedBlock = null;
+
+		private Reader(SortRun run, IndexEntry from) throws IOException {
+			this.file = run.file;
+			FileInputStream fileStream = new FileInputStream(run.file);
+			this.lz4 = COMPRESSION_LZ4.equalsIgnoreCase(run.compression);
+			if (COMPRESSION_DEFLATE.equalsIgnoreCase(run.compression))
+				this.inflater = new Inflater(true);
+			boolean compressed = lz4 || inflater != null;
+			//The uncompressed bytes are read straight into the block, the block headers are read a byte at a time
+			this.in = compressed ? new BufferedInputStream(fileStream, bufferSize) : fileStream;
+			this.remaining = run.rowCount;
+			if (from != null) {
+				try {
+					fileStream.getChannel().position(from.offset);
+					remaining -= from.row;
+				} catch (IOException e) {
+					close();
+					throw e;
+				}
+			}
+		}
+
+		/**
+		 * Reads the next row.
+		 *
+		 * @return the row or null at the end of the run
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		Row next() throws IOException {
+			if (remaining <= 0)
+				return null;
+			remaining--;
+			byte[] key = new byte[readVInt()];
+			for (int i = 0; i < key.length; i++) {
+				key[i] = (byte) read();
+			}
+			int fieldCount = readVInt();
+			ArrayList<String> row = new ArrayList<String>(fieldCount);
+			for (int i = 0; i < fieldCount; i++) {
+				int length = readVInt() - 1;
+				if (length < 0) {
+					row.add(null);
+					continue;
+				}
+				if (length > chars.length)
+					chars = new char[Math.max(length, chars.length * 2)];
+				for (int j = 0; j < length; j++) {
+					int b = read();
+					if (b < 0x80) {
+						chars[j] = (char) b;
+					} else if (b < 0xE0) {
+						chars[j] = (char) (((b & 0x1F) << 6) | (read() & 0x3F));
+					} else {
+						int b2 = read();
+						chars[j] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (read() & 0x3F));
+					}
+				}
+				row.add(new String(chars, 0, length));
+			}
+			return new Row(key, row);
+		}
+
+		void close() throws IOException {
+			try {
+				in.close();
+			} finally {
+				if (inflater != null)
+					inflater.end();
+			}
+		}
+
+		private int readVInt() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = read();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Malformed sort run {" + file + "}");
+		}
+
+		private int read() throws IOException {
+			if (pos == limit && !fill())
+				throw new EOFException("Unexpected end of sort run");
+			return block[pos++] & 0xFF;
+		}
+
+		/**
+		 * Reads the next block of the run, decompressed.
+		 *
+		 * @return false at the end of the run
+		 */
+		private boolean fill() throws IOException {
+			pos = 0;
+			limit = 0;
+			if (!lz4 && inflater == null) {
+				limit = Math.max(in.read(block, 0, block.length), 0);
+				return limit > 0;
+			}
+			int length = readBlockLength();
+			if (length < 0)
+				return false;
+			int compressedLength = readBlockLength();
+			if (compressedLength < 0)
+				throw new EOFException("Unexpected end of sort run");
+			if (block.length < length)
+				block = new byte[length];
+			if (compressedBlock == null || compressedBlock.length < compressedLength)
+				compressedBlock = new byte[Math.max(compressedLength, bufferSize)];
+			for (int n = 0; n < compressedLength;) {
+				int r = in.read(compressedBlock, n, compressedLength - n);
+				if (r < 0)
+					throw new EOFException("Unexpected end of sort run");
+				n += r;
+			}
+			if (lz4) {
+				Lz4Block.decompress(compressedBlock, compressedLength, block, length);
+			} else {
+				inflater.reset();
+				inflater.setInput(compressedBlock, 0, compressedLength);
+				try {
+					for (int n = 0; n < length;) {
+						int r = inflater.inflate(block, n, length - n);
+						if (r == 0 && (inflater.finished() || inflater.needsInput()))
+							throw new IOException("Malformed sort run {" + file + "}");
+						n += r;
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("Malformed sort run {" + file + "}", e);
+				}
+			}
+			limit = length;
+			return true;
+		}
+
+		/**
+		 * Reads a varint of a block header, -1 at the end of the run.
+		 */
+		private int readBlockLength() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = in.read();
+				if (b < 0) {
+					if (shift == 0)
+						return -1;
+					throw new EOFException("Unexpected end of sort run");
+				}
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Malformed sort run {" + file + "}");
+		}
+	}
+}
@@ -27,6 +27,9 @@
 package com.sforce.dataset.util;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -49,8 +52,14 @@ public class CSVReader {
     //private static final char PARSE_FIND = '\u00A0';
 	private static final int bufferSize = 65536;
 
-	private final BufferedReader reader;
+	private final Reader reader;
     private StreamTokenizer parser;
+    private CsvTokenizer tokenizer;
+    private Utf8CsvTokenizer utf8Tokenizer;
+    private BOMInputStream utf8Input;
+    private long baseOffset = 0;
+    private int bomLength = -1;
+    private ArrayList<String> currentRecord;
     private char[] separators;
     private boolean ignoreBlankRecords = true;
     private int maxSizeOfIndividualCell = 32000;
@@ -108,6 +117,52 @@ public class CSVReader {
         this(new InputStreamReader(new BOMInputStream(new FasterBufferedInputStream(input,bufferSize),false), StringUtilsExt.utf8Decoder(DatasetUtilConstants.codingErrorAction , enc)), customizedSeparators);
     }
 
+    /**
+     * Instantiates a new CSV reader.
+     *
+     * @param input the input
+     * @param enc the enc
+     * @param customizedSeparators the customized separators
+     * @param useTokenizer if true use the buffer based {@link CsvTokenizer} instead of StreamTokenizer
+     * @throws UnsupportedEncodingException the unsupported encoding exception
+     */
+    public CSVReader(InputStream input, String enc, char[] customizedSeparators, boolean useTokenizer) throws UnsupportedEncodingException {
+        this(new InputStreamReader(new BOMInputStream(new FasterBufferedInputStream(input,bufferSize),false), StringUtilsExt.utf8Decoder(DatasetUtilConstants.codingErrorAction , enc)), customizedSeparators, useTokenizer);
+    }
+
+
+    /**
+     * Creates a CSV reader. With the tokenizer engine, UTF-8 input that is
+     * checked for encoding errors and ASCII separators, the records are read
+     * by a {@link Utf8CsvTokenizer} and returned as {@link Utf8Record}s, so
+     * that the fields are only decoded when they are asked for.
+     *
+     * @param input the input
+     * @param enc the enc
+     * @param customizedSeparators the customized separators
+     * @param useTokenizer if true use the buffer based {@link CsvTokenizer} instead of StreamTokenizer
+     * @param utf8Passthrough if true read UTF-8 input as bytes
+     * @return the CSV reader
+     * @throws UnsupportedEncodingException the unsupported encoding exception
+     */
+    public static CSVReader newReader(InputStream input, String enc, char[] customizedSeparators, boolean useTokenizer, boolean utf8Passthrough) throws UnsupportedEncodingException {
+        if (useTokenizer && utf8Passthrough && DatasetUtilConstants.codingErrorAction == CodingErrorAction.REPORT
+                && Charset.forName(enc).equals(StandardCharsets.UTF_8) && Utf8CsvTokenizer.isSupported(customizedSeparators)) {
+            BOMInputStream utf8Input = new BOMInputStream(input, false);
+            return new CSVReader(new Utf8CsvTokenizer(utf8Input, customizedSeparators), utf8Input, customizedSeparators);
+        }
+        return new CSVReader(input, enc, customizedSeparators, useTokenizer);
+    }
+
+    private CSVReader(Utf8CsvTokenizer utf8Tokenizer, BOMInputStream utf8Input, char[] customizedSeparators) {
+        this.reader = null;
+        this.separators = customizedSeparators;
+        this.utf8Tokenizer = utf8Tokenizer;
+        this.utf8Input = utf8Input;
+        utf8Tokenizer.setIgnoreBlankRecords(ignoreBlankRecords);
+        atEOF = false;
+    }
+
     private CSVReader(BufferedReader input) {
         this(input, ',');
     }
@@ -117,11 +172,22 @@ public class CSVReader {
     }
     
     private CSVReader(BufferedReader input, char[] customizedSeparators) {
-    	this.reader = input;
+    	this(input, customizedSeparators, false);
+    }
+
+    private CSVReader(Reader input, char[] customizedSeparators, boolean useTokenizer) {
+    	this.reader = (useTokenizer || input instanceof BufferedReader) ? input : new BufferedReader(input);
     	Arrays.sort(customizedSeparators);
         this.separators = customizedSeparators;
+        atEOF = false;
+        if(useTokenizer)
+        {
+        	tokenizer = new CsvTokenizer(input, customizedSeparators);
+        	tokenizer.setIgnoreBlankRecords(ignoreBlankRecords);
+        	return;
+        }
         
-        parser = new StreamTokenizer(input);
+        parser = new StreamTokenizer(this.reader);
         parser.ordinaryChars(0, 255);
         parser.wordChars(0, 255);
         parser.ordinaryChar('\"');
@@ -135,10 +201,13 @@ public class CSVReader {
         parser.eolIsSignificant(true);
         parser.whitespaceChars('\n', '\n');
         parser.whitespaceChars('\r', '\r');
-        atEOF = false;
     }
     
     public void finalise() throws IOException {
+    	if (utf8Tokenizer != null) {
+    		utf8Tokenizer.close();
+    		return;
+    	}
     	this.reader.close();
     }
 
@@ -150,34 +219,150 @@ public class CSVReader {
                     rowSizeInCharacters += value.length();
                 }
             }
-            this.setLastRowLength(rowSizeInCharacters);
+            checkRecordExceptions(rowSizeInCharacters);
+        }
+    }
 
-            if (rowSizeInCharacters > maxRowSizeInCharacters) {
-                throw new CSVParseException("Exceeded max length for one record: " + rowSizeInCharacters +
-                                            ". Max length for one record should be less than or equal to " +
-                                            maxRowSizeInCharacters, parser.lineno());
-            }
+    private void checkRecordExceptions(int rowSizeInCharacters) throws IOException {
+        this.setLastRowLength(rowSizeInCharacters);
+
+        if (rowSizeInCharacters > maxRowSizeInCharacters) {
+            throw new CSVParseException("Exceeded max length for one record: " + rowSizeInCharacters +
+                                        ". Max length for one record should be less than or equal to " +
+                                        maxRowSizeInCharacters, lineno());
+        }
+
+        fileSizeInCharacters += rowSizeInCharacters;
+
+        if (fileSizeInCharacters > maxFileSizeInCharacters) {
+            throw new CSVParseException("Exceeded max file size: " + fileSizeInCharacters +
+                                        ". Max file size in characters should be less than or equal to " +
+                                        maxFileSizeInCharacters, lineno());
+        }
 
-            fileSizeInCharacters += rowSizeInCharacters;
+        rowsInFile++;
 
-            if (fileSizeInCharacters > maxFileSizeInCharacters) {
-                throw new CSVParseException("Exceeded max file size: " + fileSizeInCharacters +
-                                            ". Max file size in characters should be less than or equal to " +
-                                            maxFileSizeInCharacters, parser.lineno());
+        if (rowsInFile > maxRowsInFile) {
+            throw new CSVParseException("Exceeded number of records : " + rowsInFile +
+                                        ". Number of records should be less than or equal to " + maxRowsInFile,
+                                        lineno());
+        }
+    }
+
+    private int lineno() {
+        if (utf8Tokenizer != null) {
+            return utf8Tokenizer.getLineNumber();
+        }
+        return tokenizer != null ? tokenizer.getLineNumber() : parser.lineno();
+    }
+
+
+    /**
+     * Advances to the next record without materializing it, the fields can then
+     * be read with {@link #getField(int)}. With the tokenizer engine only the
+     * fields that are asked for are converted to Strings.
+     *
+     * @return false if there are no more records
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public boolean nextFields() throws IOException {
+        if (utf8Tokenizer != null) {
+            if (!utf8Tokenizer.next()) {
+                return false;
+            }
+            checkRecordExceptions(utf8Tokenizer.getRecordLength());
+            return true;
+        }
+        if (tokenizer != null) {
+            if (!tokenizer.next()) {
+                return false;
             }
+            checkRecordExceptions(tokenizer.getRecordLength());
+            return true;
+        }
+        currentRecord = nextRecord();
+        return currentRecord != null;
+    }
+
+    /**
+     * Gets the number of fields in the record read by {@link #nextFields()}.
+     *
+     * @return the field count
+     */
+    public int getFieldCount() {
+        if (utf8Tokenizer != null) {
+            return utf8Tokenizer.getFieldCount();
+        }
+        if (tokenizer != null) {
+            return tokenizer.getFieldCount();
+        }
+        return currentRecord == null ? 0 : currentRecord.size();
+    }
 
-            rowsInFile++;
+    /**
+     * Gets a field of the record read by {@link #nextFields()}.
+     *
+     * @param index the index
+     * @return the field value or null if the field is empty
+     */
+    public String getField(int index) {
+        if (utf8Tokenizer != null) {
+            return utf8Tokenizer.getString(index);
+        }
+        if (tokenizer != null) {
+            return tokenizer.getString(index);
+        }
+        return currentRecord.get(index);
+    }
 
-            if (rowsInFile > maxRowsInFile) {
-                throw new CSVParseException("Exceeded number of records : " + rowsInFile +
-                                            ". Number of records should be less than or equal to " + maxRowsInFile,
-                                            parser.lineno());
+    /**
+     * Reads the next record, as a {@link Utf8Record} that also holds the byte
+     * range of the record in the input when the reader was created for UTF-8
+     * passthrough by {@link #newReader}.
+     *
+     * @return the record or null if there are no more records
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public List<String> nextRow() throws IOException {
+        if (utf8Tokenizer != null) {
+            if (!utf8Tokenizer.next()) {
+                return null;
             }
+            checkRecordExceptions(utf8Tokenizer.getRecordLength());
+            Utf8Record record = utf8Tokenizer.toRecord();
+            if (bomLength < 0) {
+                bomLength = utf8Input.hasBOM() ? utf8Input.getBOM().length() : 0;
+            }
+            record.setPosition(baseOffset + bomLength + record.getRecordOffset(), record.getRecordLength());
+            return record;
         }
+        return nextRecord();
     }
 
+    /**
+     * Sets the offset of the input in the file it was read from, so that the
+     * {@link Utf8Record}s returned by {@link #nextRow()} hold their offset in
+     * the file.
+     *
+     * @param baseOffset the offset of the first byte of the input in the file
+     */
+    public void setBaseOffset(long baseOffset) {
+        this.baseOffset = baseOffset;
+    }
 
     public ArrayList<String> nextRecord() throws IOException {
+        if (utf8Tokenizer != null) {
+            List<String> record = nextRow();
+            return record == null ? null : new ArrayList<String>(record);
+        }
+        if (tokenizer != null) {
+            if (!tokenizer.next()) {
+                return null;
+            }
+            checkRecordExceptions(tokenizer.getRecordLength());
+            return tokenizer.toList();
+        }
+
         ArrayList<String> record = nextRecordLocal();
 
         if (ignoreBlankRecords) {
@@ -25,59 +25,62 @@
  */
 package com.sforce.dataset.util;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
 
 import com.ibm.icu.text.CharsetDetector;
 import com.ibm.icu.text.CharsetMatch;
 
 public class CharsetChecker {
 
-//	private static final int DEFAULT_BUFFER_SIZE = 8*1024*1024;
-//	private static final int EOF = -1;
+	private static final int headSize = 64 * 1024;
 	
 	public static Charset detectCharset(File inputFile, PrintStream logger)
 	{
-		CharsetDetector detector = null;
 	    InputStream input = null;
 		try {
-		    detector = new CharsetDetector();
-			input = new BufferedInputStream(new FileInputStream(inputFile));
-		    detector.setText(input);
-//			input = new FileInputStream(inputFile);
-//			byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-//		    detector = new CharsetDetector();
-//            Arrays.fill(buffer, (byte)0);
-//			int n = 0;
-//			while (EOF != (n = input.read(buffer))) {
-//				detector.setText(buffer);
-//			}
+			input = new FileInputStream(inputFile);
+			byte[] head = new byte[headSize];
+			int length = IOUtils.read(input, head);
+			return detectCharset(head, length, inputFile, logger);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally
+		{
+			IOUtils.closeQuietly(input);
+		}
+		return Charset.forName("UTF-8");
+	}
+
+	/**
+	 * Detects the charset from the first bytes of a file that have already been read.
+	 *
+	 * @param head the first bytes of the file
+	 * @param length the number of bytes in head
+	 * @param inputFile the file, only used for the log message
+	 * @param logger the logger
+	 * @return the charset
+	 */
+	public static Charset detectCharset(byte[] head, int length, File inputFile, PrintStream logger)
+	{
+		try {
+		    CharsetDetector detector = new CharsetDetector();
+		    detector.setText(length == head.length ? head : Arrays.copyOf(head, length));
 		    CharsetMatch cm = detector.detect();
 			logger.println("\n*******************************************************************************");					
 		    logger.println("File {"+inputFile+"} has Charset {"+cm.getName()+"}, Confidence: {"+cm.getConfidence()+"%}");
 			logger.println("*******************************************************************************\n");					
 		    
 		    return Charset.forName(cm.getName());
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally
-		{
-			if(input!=null)
-			{
-				try {
-					input.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+		} catch (Throwable t) {
+			t.printStackTrace();
 		}
 		return Charset.forName("UTF-8");
 	}
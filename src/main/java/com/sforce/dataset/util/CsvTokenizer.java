@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+import com.sforce.dataset.util.CSVReader.CSVParseException;
+
+/**
+ * The Class CsvTokenizer.
+ *
+ * Splits a character stream into csv records by scanning a reusable buffer
+ * with a table driven state machine. The fields of the current record are
+ * kept as slices of a single record buffer and are only turned into Strings
+ * when the caller asks for them. Empty fields are treated as null and line
+ * breaks inside quoted fields are returned as '\n', the same as the
+ * StreamTokenizer based parser in {@link CSVReader}.
+ */
+public class CsvTokenizer {
+
+	//Character classes
+	private static final byte OTHER = 0;
+	private static final byte SEPARATOR = 1;
+	private static final byte QUOTE = 2;
+	private static final byte CR = 3;
+	private static final byte LF = 4;
+
+	//Parser states
+	private static final int FIELD_START = 0;
+	private static final int UNQUOTED = 1;
+	private static final int QUOTED = 2;
+	private static final int QUOTE_IN_QUOTED = 3;
+
+	private static final int bufferSize = 65536;
+
+	private final Reader reader;
+	private final char[] buf = new char[bufferSize];
+	private int pos = 0;
+	private int limit = 0;
+
+	private final byte[] charClass = new byte[128];
+	private final char[] extendedSeparators;
+
+	private char[] data = new char[4096];
+	private int dataLength = 0;
+	private int fieldStart = 0;
+	private int[] fieldEnds = new int[64];
+	private int fieldCount = 0;
+
+	private boolean ignoreBlankRecords = true;
+	private int maxSizeOfIndividualCell = 32000;
+	private int maxColumnsPerRow = 5000;
+
+	private boolean skipLF = false;
+	private boolean atEOF = false;
+	private int lineno = 1;
+
+	/**
+	 * Instantiates a new csv tokenizer.
+	 *
+	 * @param reader the reader
+	 * @param separators the separators
+	 */
+	public CsvTokenizer(Reader reader, char[] separators) {
+		this.reader = reader;
+		int extended = 0;
+		for (char separator : separators) {
+			if (separator < 128)
+				charClass[separator] = SEPARATOR;
+			else
+				extended++;
+		}
+		extendedSeparators = new char[extended];
+		extended = 0;
+		for (char separator : separators) {
+			if (separator >= 128)
+				extendedSeparators[extended++] = separator;
+		}
+		charClass['"'] = QUOTE;
+		charClass['\r'] = CR;
+		charClass['\n'] = LF;
+	}
+
+	/**
+	 * Advances to the next record.
+	 *
+	 * @return false if there are no more records
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public boolean next() throws IOException {
+		while (readRecord()) {
+			if (!ignoreBlankRecords || dataLength > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the number of fields in the current record.
+	 *
+	 * @return the field count
+	 */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * Gets the buffer holding the fields of the current record.
+	 * The buffer is reused and is only valid until the next call to {@link #next()}.
+	 *
+	 * @return the buffer
+	 */
+	public char[] getBuffer() {
+		return data;
+	}
+
+	/**
+	 * Gets the offset of the field in the buffer.
+	 *
+	 * @param index the index
+	 * @return the offset
+	 */
+	public int getOffset(int index) {
+		return index == 0 ? 0 : fieldEnds[index - 1];
+	}
+
+	/**
+	 * Gets the length of the field.
+	 *
+	 * @param index the index
+	 * @return the length
+	 */
+	public int getLength(int index) {
+		return fieldEnds[index] - getOffset(index);
+	}
+
+	/**
+	 * Checks if the field is null.
+	 *
+	 * @param index the index
+	 * @return true, if the field is empty
+	 */
+	public boolean isNull(int index) {
+		return getLength(index) == 0;
+	}
+
+	/**
+	 * Gets the field as a String.
+	 *
+	 * @param index the index
+	 * @return the field value or null if the field is empty
+	 */
+	public String getString(int index) {
+		int offset = getOffset(index);
+		int length = fieldEnds[index] - offset;
+		return length == 0 ? null : new String(data, offset, length);
+	}
+
+	/**
+	 * Gets the number of characters in the current record.
+	 *
+	 * @return the record length
+	 */
+	public int getRecordLength() {
+		return dataLength;
+	}
+
+	/**
+	 * Materializes the current record.
+	 *
+	 * @return the fields of the current record
+	 */
+	public ArrayList<String> toList() {
+		ArrayList<String> record = new ArrayList<String>(fieldCount);
+		for (int i = 0; i < fieldCount; i++) {
+			record.add(getString(i));
+		}
+		return record;
+	}
+
+	/**
+	 * Gets the current line number.
+	 *
+	 * @return the line number
+	 */
+	public int getLineNumber() {
+		return lineno;
+	}
+
+	/**
+	 * Sets whether blank records are skipped.
+	 *
+	 * @param ignoreBlankRecords the new ignore blank records
+	 */
+	public void setIgnoreBlankRecords(boolean ignoreBlankRecords) {
+		this.ignoreBlankRecords = ignoreBlankRecords;
+	}
+
+	/**
+	 * Close.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private boolean readRecord() throws IOException {
+		if (atEOF)
+			return false;
+
+		dataLength = 0;
+		fieldStart = 0;
+		fieldCount = 0;
+		int state = FIELD_START;
+
+		while (true) {
+			if (pos >= limit && !fill()) {
+				atEOF = true;
+				if (state == QUOTED)
+					throw new CSVParseException("EOF reached before closing an opened quote", lineno);
+				endField();
+				return true;
+			}
+
+			char c = buf[pos++];
+			if (skipLF) {
+				skipLF = false;
+				if (c == '\n')
+					continue;
+			}
+
+			byte cls = classOf(c);
+			switch (state) {
+			case FIELD_START:
+			case UNQUOTED:
+				switch (cls) {
+				case SEPARATOR:
+					endField();
+					state = FIELD_START;
+					break;
+				case QUOTE:
+					if (state == UNQUOTED)
+						throw new CSVParseException("Found unescaped quote. A value with quote should be within a quote", lineno);
+					state = QUOTED;
+					break;
+				case CR:
+					skipLF = true;
+				case LF:
+					lineno++;
+					endField();
+					return true;
+				default:
+					appendRun(false);
+					state = UNQUOTED;
+				}
+				break;
+			case QUOTED:
+				switch (cls) {
+				case QUOTE:
+					state = QUOTE_IN_QUOTED;
+					break;
+				case CR:
+					skipLF = true;
+				case LF:
+					lineno++;
+					append('\n');
+					break;
+				default:
+					appendRun(true);
+				}
+				break;
+			default:
+				switch (cls) {
+				case QUOTE:
+					//escaped quote
+					append('"');
+					state = QUOTED;
+					break;
+				case SEPARATOR:
+					endField();
+					state = FIELD_START;
+					break;
+				case CR:
+					skipLF = true;
+				case LF:
+					lineno++;
+					endField();
+					return true;
+				default:
+					//skip the offending text so that parsing resumes after it
+					while (pos < limit && classOf(buf[pos]) == OTHER) {
+						pos++;
+					}
+					throw new CSVParseException("Not expecting more text after end quote", lineno);
+				}
+			}
+		}
+	}
+
+	private byte classOf(char c) {
+		if (c < 128)
+			return charClass[c];
+		for (char separator : extendedSeparators) {
+			if (c == separator)
+				return SEPARATOR;
+		}
+		return OTHER;
+	}
+
+	/**
+	 * Copies the character just read and every following character that does
+	 * not change the parser state into the record buffer in one go.
+	 */
+	private void appendRun(boolean quoted) throws CSVParseException {
+		int start = pos - 1;
+		while (pos < limit) {
+			byte cls = classOf(buf[pos]);
+			if (cls != OTHER && !(quoted && cls == SEPARATOR))
+				break;
+			pos++;
+		}
+		int length = pos - start;
+		ensureCapacity(length);
+		System.arraycopy(buf, start, data, dataLength, length);
+		dataLength += length;
+	}
+
+	private void append(char c) throws CSVParseException {
+		ensureCapacity(1);
+		data[dataLength++] = c;
+	}
+
+	private void ensureCapacity(int length) throws CSVParseException {
+		if (dataLength - fieldStart + length > maxSizeOfIndividualCell)
+			throw new CSVParseException("Exceeded max field size: " + (dataLength - fieldStart + length), lineno);
+		if (dataLength + length > data.length) {
+			char[] newData = new char[Math.max(data.length * 2, dataLength + length)];
+			System.arraycopy(data, 0, newData, 0, dataLength);
+			data = newData;
+		}
+	}
+
+	private void endField() throws CSVParseException {
+		if (fieldCount == fieldEnds.length) {
+			int[] newEnds = new int[fieldEnds.length * 2];
+			System.arraycopy(fieldEnds, 0, newEnds, 0, fieldCount);
+			fieldEnds = newEnds;
+		}
+		fieldEnds[fieldCount++] = dataLength;
+		fieldStart = dataLength;
+		if (fieldCount > maxColumnsPerRow)
+			throw new CSVParseException("Exceeded max number of columns per record : " + maxColumnsPerRow, lineno);
+	}
+
+	private boolean fill() throws IOException {
+		int n = reader.read(buf, 0, buf.length);
+		while (n == 0) {
+			n = reader.read(buf, 0, buf.length);
+		}
+		if (n < 0) {
+			pos = limit = 0;
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+}
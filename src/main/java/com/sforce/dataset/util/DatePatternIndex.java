@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.sforce.dataset.DatasetUtilConstants;
+
+/**
+ * The Class DatePatternIndex.
+ *
+ * Indexes the supported date patterns by the shape of the dates they format
+ * to, so that a value is only tried against the patterns that can parse it.
+ * The shape of a value is the sequence of its digit runs, letter runs and
+ * other characters, with every digit run written as 'd', every letter run as
+ * 'a' and white space left out. A date that a pattern parses and formats back
+ * to the same length has the same shape as the pattern's own output, so no
+ * pattern that could match the value is skipped.
+ */
+public class DatePatternIndex {
+
+	//Reference dates and time zones used to collect every shape a pattern can format to
+	private static final int[][] referenceDates = {
+			{ 2001, Calendar.FEBRUARY, 3, 4, 5, 6, 7 },
+			{ 2012, Calendar.NOVEMBER, 25, 15, 45, 30, 999 },
+			{ 1999, Calendar.DECEMBER, 31, 12, 0, 0, 0 },
+			{ 2020, Calendar.JANUARY, 9, 0, 0, 0, 0 } };
+	private static final String[] referenceTimeZones = { "UTC", "GMT",
+			"America/Los_Angeles", "Asia/Kolkata", "Europe/Paris",
+			"Australia/Adelaide", "GMT+03:00" };
+
+	private static DatePatternIndex instance = null;
+
+	private final List<String> patterns;
+	private final Map<String, List<String>> patternsByShape = new HashMap<String, List<String>>();
+
+	private DatePatternIndex(List<String> patterns) {
+		this.patterns = patterns;
+		HashMap<String, LinkedHashSet<Integer>> shapes = new HashMap<String, LinkedHashSet<Integer>>();
+		for (int i = 0; i < patterns.size(); i++) {
+			for (String shape : getPatternShapes(patterns.get(i))) {
+				LinkedHashSet<Integer> indexes = shapes.get(shape);
+				if (indexes == null) {
+					indexes = new LinkedHashSet<Integer>();
+					shapes.put(shape, indexes);
+				}
+				indexes.add(i);
+			}
+		}
+		for (Map.Entry<String, LinkedHashSet<Integer>> entry : shapes.entrySet()) {
+			//Keep the patterns in the order of the supported date formats
+			List<Integer> indexes = new ArrayList<Integer>(entry.getValue());
+			Collections.sort(indexes);
+			List<String> list = new ArrayList<String>(indexes.size());
+			for (Integer index : indexes) {
+				list.add(patterns.get(index));
+			}
+			patternsByShape.put(entry.getKey(), list);
+		}
+	}
+
+	/**
+	 * Gets the index of the supported date patterns, the index is rebuilt
+	 * when the supported date patterns change.
+	 *
+	 * @return the date pattern index
+	 */
+	public static synchronized DatePatternIndex getInstance() {
+		List<String> patterns = DatasetUtilConstants.getSuportedDatePatterns();
+		if (instance == null || instance.patterns != patterns) {
+			instance = new DatePatternIndex(patterns);
+		}
+		return instance;
+	}
+
+	/**
+	 * Gets the patterns that can match the value, in the order of the
+	 * supported date formats.
+	 *
+	 * @param value the value
+	 * @return the patterns
+	 */
+	public List<String> getPatterns(String value) {
+		List<String> list = patternsByShape.get(getShape(value));
+		if (list == null)
+			return Collections.emptyList();
+		return list;
+	}
+
+	/**
+	 * Gets the supported date patterns.
+	 *
+	 * @return the patterns
+	 */
+	public List<String> getPatterns() {
+		return patterns;
+	}
+
+	/**
+	 * Gets the shape of a value.
+	 *
+	 * @param value the value
+	 * @return the shape
+	 */
+	public static String getShape(CharSequence value) {
+		StringBuilder shape = new StringBuilder(16);
+		char last = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (Character.isWhitespace(c) || Character.isSpaceChar(c))
+				continue;
+			char cls = c;
+			if (Character.isDigit(c))
+				cls = 'd';
+			else if (Character.isLetter(c))
+				cls = 'a';
+			if ((cls == 'd' || cls == 'a') && cls == last)
+				continue;
+			shape.append(cls);
+			last = cls;
+		}
+		return shape.toString();
+	}
+
+	private static LinkedHashSet<String> getPatternShapes(String pattern) {
+		LinkedHashSet<String> shapes = new LinkedHashSet<String>();
+		try {
+			SimpleDateFormat sdf = new SimpleDateFormat(pattern);
+			for (String timeZone : referenceTimeZones) {
+				TimeZone tz = TimeZone.getTimeZone(timeZone);
+				sdf.setTimeZone(tz);
+				Calendar cal = Calendar.getInstance(tz);
+				for (int[] date : referenceDates) {
+					cal.clear();
+					cal.set(date[0], date[1], date[2], date[3], date[4], date[5]);
+					cal.set(Calendar.MILLISECOND, date[6]);
+					shapes.add(getShape(sdf.format(cal.getTime())));
+				}
+			}
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+		return shapes;
+	}
+}
@@ -0,0 +1,1080 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The Class ExpressionCompiler.
+ *
+ * Compiles computed field expressions into trees of lambdas over column
+ * indexes, so that evaluating them per row does not go through a script
+ * engine or name keyed maps. The language is the subset of JavaScript that
+ * computed fields are usually written in: number, string, boolean and null
+ * literals, curr.Name, curr['Name'], prev.Name and prev['Name'] column
+ * references, the arithmetic, comparison, logical and conditional operators,
+ * the common String methods, the Math functions, parseInt, parseFloat,
+ * Number, String, isNaN and Date.getTime(). Values are converted with the
+ * JavaScript rules. On top of that the date functions year, month, day, hour,
+ * minute, second (in GMT, the same as the date parts of the dataset),
+ * daysBetween and addDays are available. The previous row of the first row
+ * has no columns, so prev references are undefined there (NaN as a number,
+ * "undefined" as a string) the same as in the JavaScript engine.
+ *
+ * Expressions that use anything else are not compiled, and are left to the
+ * JavaScript engine.
+ */
+public class ExpressionCompiler {
+
+	private static final long millisPerDay = 86400000L;
+	private static final long maxExactDouble = 1L << 53;
+
+	//Token types
+	private static final int EOF = 0;
+	private static final int NUMBER = 1;
+	private static final int STRING = 2;
+	private static final int IDENTIFIER = 3;
+	private static final int OPERATOR = 4;
+
+	private static final String[] operators = {"===", "!==", "==", "!=", "<=", ">=", "&&", "||", "+", "-", "*", "/", "%", "<", ">", "!", "?", ":", ".", ",", "(", ")", "[", "]"};
+
+	private static final CompiledExpression nullValue = constant(null);
+
+	//The JavaScript undefined value, only produced by prev references on the first row
+	private static final Object undefined = new Object()
+	{
+		@Override
+		public String toString()
+		{
+			return "undefined";
+		}
+	};
+
+	private final String text;
+	private final Map<String,Integer> columnIndexes;
+	private final int currLimit;
+	private int pos = 0;
+	private int tokenType;
+	private String token;
+
+	private ExpressionCompiler(String text, Map<String,Integer> columnIndexes, int currLimit)
+	{
+		this.text = text;
+		this.columnIndexes = columnIndexes;
+		this.currLimit = currLimit;
+	}
+
+	/**
+	 * Compiles the expression.
+	 *
+	 * @param expression the expression
+	 * @param columnIndexes the index of each column that can be referenced, by name
+	 * @param currLimit the columns at or after this index are not set in curr yet
+	 * @return the compiled expression or null if the expression is not supported
+	 */
+	public static CompiledExpression compile(String expression, Map<String,Integer> columnIndexes, int currLimit)
+	{
+		if(expression==null || columnIndexes==null)
+			return null;
+		try
+		{
+			final CompiledExpression compiled = new ExpressionCompiler(expression, columnIndexes, currLimit).parse();
+			return (curr, prev) -> {
+				Object value = compiled.eval(curr, prev);
+				//The JavaScript engine returns undefined as null
+				if(value==undefined)
+					return null;
+				//Whole numbers are returned as Long, the same as the JavaScript engine returns Integers
+				if(value instanceof Double)
+				{
+					double d = (Double) value;
+					if(d == Math.rint(d) && Math.abs(d) <= maxExactDouble)
+						return Long.valueOf((long) d);
+				}
+				return value;
+			};
+		}catch(UnsupportedExpressionException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Checks if the syntax of the expression is supported, without resolving the column references.
+	 *
+	 * @param expression the expression
+	 * @return true, if supported
+	 */
+	public static boolean isSupported(String expression)
+	{
+		if(expression==null)
+			return false;
+		try
+		{
+			new ExpressionCompiler(expression, null, 0).parse();
+			return true;
+		}catch(UnsupportedExpressionException e)
+		{
+			return false;
+		}
+	}
+
+	private CompiledExpression parse()
+	{
+		next();
+		CompiledExpression expression = conditional();
+		if(tokenType==OPERATOR && token.equals(";"))
+			next();
+		if(tokenType!=EOF)
+			throw new UnsupportedExpressionException(token);
+		return expression;
+	}
+
+	private CompiledExpression conditional()
+	{
+		final CompiledExpression condition = or();
+		if(!accept("?"))
+			return condition;
+		final CompiledExpression whenTrue = conditional();
+		expect(":");
+		final CompiledExpression whenFalse = conditional();
+		return (curr, prev) -> truthy(condition.eval(curr, prev)) ? whenTrue.eval(curr, prev) : whenFalse.eval(curr, prev);
+	}
+
+	private CompiledExpression or()
+	{
+		CompiledExpression expression = and();
+		while(accept("||"))
+		{
+			final CompiledExpression left = expression;
+			final CompiledExpression right = and();
+			expression = (curr, prev) -> {
+				Object value = left.eval(curr, prev);
+				return truthy(value) ? value : right.eval(curr, prev);
+			};
+		}
+		return expression;
+	}
+
+	private CompiledExpression and()
+	{
+		CompiledExpression expression = equality();
+		while(accept("&&"))
+		{
+			final CompiledExpression left = expression;
+			final CompiledExpression right = equality();
+			expression = (curr, prev) -> {
+				Object value = left.eval(curr, prev);
+				return truthy(value) ? right.eval(curr, prev) : value;
+			};
+		}
+		return expression;
+	}
+
+	private CompiledExpression equality()
+	{
+		CompiledExpression expression = relational();
+		while(tokenType==OPERATOR && (token.equals("==") || token.equals("!=") || token.equals("===") || token.equals("!==")))
+		{
+			final String operator = token;
+			next();
+			final CompiledExpression left = expression;
+			final CompiledExpression right = relational();
+			final boolean strict = operator.length()==3;
+			final boolean negate = operator.charAt(0)=='!';
+			expression = (curr, prev) -> {
+				Object a = left.eval(curr, prev);
+				Object b = right.eval(curr, prev);
+				return (strict ? strictEquals(a, b) : looseEquals(a, b)) != negate;
+			};
+		}
+		return expression;
+	}
+
+	private CompiledExpression relational()
+	{
+		CompiledExpression expression = additive();
+		while(tokenType==OPERATOR && (token.equals("<") || token.equals("<=") || token.equals(">") || token.equals(">=")))
+		{
+			final String operator = token;
+			next();
+			final CompiledExpression left = expression;
+			final CompiledExpression right = additive();
+			expression = (curr, prev) -> compare(left.eval(curr, prev), right.eval(curr, prev), operator);
+		}
+		return expression;
+	}
+
+	private CompiledExpression additive()
+	{
+		CompiledExpression expression = multiplicative();
+		while(tokenType==OPERATOR && (token.equals("+") || token.equals("-")))
+		{
+			final boolean plus = token.equals("+");
+			next();
+			final CompiledExpression left = expression;
+			final CompiledExpression right = multiplicative();
+			if(plus)
+				expression = (curr, prev) -> add(left.eval(curr, prev), right.eval(curr, prev));
+			else
+				expression = (curr, prev) -> toNumber(left.eval(curr, prev)) - toNumber(right.eval(curr, prev));
+		}
+		return expression;
+	}
+
+	private CompiledExpression multiplicative()
+	{
+		CompiledExpression expression = unary();
+		while(tokenType==OPERATOR && (token.equals("*") || token.equals("/") || token.equals("%")))
+		{
+			final char operator = token.charAt(0);
+			next();
+			final CompiledExpression left = expression;
+			final CompiledExpression right = unary();
+			if(operator=='*')
+				expression = (curr, prev) -> toNumber(left.eval(curr, prev)) * toNumber(right.eval(curr, prev));
+			else if(operator=='/')
+				expression = (curr, prev) -> toNumber(left.eval(curr, prev)) / toNumber(right.eval(curr, prev));
+			else
+				expression = (curr, prev) -> toNumber(left.eval(curr, prev)) % toNumber(right.eval(curr, prev));
+		}
+		return expression;
+	}
+
+	private CompiledExpression unary()
+	{
+		if(accept("!"))
+		{
+			final CompiledExpression operand = unary();
+			return (curr, prev) -> !truthy(operand.eval(curr, prev));
+		}
+		if(accept("-"))
+		{
+			final CompiledExpression operand = unary();
+			return (curr, prev) -> -toNumber(operand.eval(curr, prev));
+		}
+		if(accept("+"))
+		{
+			final CompiledExpression operand = unary();
+			return (curr, prev) -> toNumber(operand.eval(curr, prev));
+		}
+		return postfix(primary());
+	}
+
+	private CompiledExpression postfix(CompiledExpression expression)
+	{
+		while(accept("."))
+		{
+			String name = identifier();
+			if(accept("("))
+				expression = method(expression, name, arguments());
+			else
+				expression = property(expression, name);
+		}
+		return expression;
+	}
+
+	private CompiledExpression primary()
+	{
+		if(tokenType==NUMBER)
+		{
+			CompiledExpression value = constant(toNumber(token));
+			next();
+			return value;
+		}
+		if(tokenType==STRING)
+		{
+			CompiledExpression value = constant(token);
+			next();
+			return value;
+		}
+		if(accept("("))
+		{
+			CompiledExpression value = conditional();
+			expect(")");
+			return value;
+		}
+		String name = identifier();
+		switch(name)
+		{
+		case "true":
+			return constant(Boolean.TRUE);
+		case "false":
+			return constant(Boolean.FALSE);
+		case "null":
+			return nullValue;
+		case "curr":
+		case "prev":
+			return column(name.equals("curr"));
+		case "Math":
+			expect(".");
+			String function = identifier();
+			if(function.equals("PI"))
+				return constant(Math.PI);
+			if(function.equals("E"))
+				return constant(Math.E);
+			expect("(");
+			return mathFunction(function, arguments());
+		default:
+			expect("(");
+			return function(name, arguments());
+		}
+	}
+
+	private CompiledExpression column(boolean current)
+	{
+		String name = null;
+		if(accept("."))
+		{
+			name = identifier();
+		}else
+		{
+			expect("[");
+			if(tokenType!=STRING)
+				throw new UnsupportedExpressionException("dynamic column reference");
+			name = token;
+			next();
+			expect("]");
+		}
+		if(columnIndexes==null)
+			return nullValue;
+		Integer index = columnIndexes.get(name);
+		//Columns that are not set yet are undefined in JavaScript, which is not the same as null
+		if(index==null || (current && index>=currLimit))
+			throw new UnsupportedExpressionException(name);
+		final int i = index;
+		if(current)
+			return (curr, prev) -> curr[i];
+		else
+			return (curr, prev) -> prev==null ? undefined : prev[i];
+	}
+
+	private List<CompiledExpression> arguments()
+	{
+		List<CompiledExpression> arguments = new ArrayList<CompiledExpression>();
+		if(accept(")"))
+			return arguments;
+		do
+		{
+			arguments.add(conditional());
+		}while(accept(","));
+		expect(")");
+		return arguments;
+	}
+
+	private static CompiledExpression property(final CompiledExpression target, String name)
+	{
+		if(name.equals("length"))
+			return (curr, prev) -> (double) asString(target.eval(curr, prev), name).length();
+		throw new UnsupportedExpressionException(name);
+	}
+
+	private static CompiledExpression method(final CompiledExpression target, final String name, List<CompiledExpression> arguments)
+	{
+		final CompiledExpression a = arguments.size()>0 ? arguments.get(0) : null;
+		final CompiledExpression b = arguments.size()>1 ? arguments.get(1) : null;
+		switch(name)
+		{
+		case "toUpperCase":
+			checkArguments(arguments, 0, 0);
+			return (curr, prev) -> asString(target.eval(curr, prev), name).toUpperCase(Locale.ROOT);
+		case "toLowerCase":
+			checkArguments(arguments, 0, 0);
+			return (curr, prev) -> asString(target.eval(curr, prev), name).toLowerCase(Locale.ROOT);
+		case "trim":
+			checkArguments(arguments, 0, 0);
+			return (curr, prev) -> trim(asString(target.eval(curr, prev), name));
+		case "toString":
+			checkArguments(arguments, 0, 0);
+			return (curr, prev) -> {
+				Object value = target.eval(curr, prev);
+				if(value==null || value==undefined)
+					throw new IllegalArgumentException("Cannot call toString() on "+value);
+				return toStr(value);
+			};
+		case "substring":
+			checkArguments(arguments, 1, 2);
+			return (curr, prev) -> {
+				String s = asString(target.eval(curr, prev), name);
+				int start = clamp(toInteger(a.eval(curr, prev)), s.length());
+				int end = b==null ? s.length() : clamp(toInteger(b.eval(curr, prev)), s.length());
+				return s.substring(Math.min(start, end), Math.max(start, end));
+			};
+		case "substr":
+			checkArguments(arguments, 1, 2);
+			return (curr, prev) -> {
+				String s = asString(target.eval(curr, prev), name);
+				double start = toInteger(a.eval(curr, prev));
+				if(start<0)
+					start = Math.max(s.length()+start, 0);
+				int begin = clamp(start, s.length());
+				int end = b==null ? s.length() : clamp(begin + toInteger(b.eval(curr, prev)), s.length());
+				return end>begin ? s.substring(begin, end) : "";
+			};
+		case "charAt":
+			checkArguments(arguments, 0, 1);
+			return (curr, prev) -> {
+				String s = asString(target.eval(curr, prev), name);
+				double index = a==null ? 0 : toInteger(a.eval(curr, prev));
+				return index>=0 && index<s.length() ? String.valueOf(s.charAt((int) index)) : "";
+			};
+		case "indexOf":
+			checkArguments(arguments, 1, 2);
+			return (curr, prev) -> {
+				String s = asString(target.eval(curr, prev), name);
+				int from = b==null ? 0 : clamp(toInteger(b.eval(curr, prev)), s.length());
+				return (double) s.indexOf(toStr(a.eval(curr, prev)), from);
+			};
+		case "lastIndexOf":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> (double) asString(target.eval(curr, prev), name).lastIndexOf(toStr(a.eval(curr, prev)));
+		case "replace":
+			checkArguments(arguments, 2, 2);
+			return (curr, prev) -> replace(asString(target.eval(curr, prev), name), toStr(a.eval(curr, prev)), toStr(b.eval(curr, prev)));
+		case "getTime":
+			checkArguments(arguments, 0, 0);
+			return (curr, prev) -> {
+				Object value = target.eval(curr, prev);
+				if(!(value instanceof Date))
+					throw new IllegalArgumentException("Cannot call getTime() on {"+value+"}");
+				return (double) ((Date) value).getTime();
+			};
+		default:
+			throw new UnsupportedExpressionException(name);
+		}
+	}
+
+	private static CompiledExpression mathFunction(String name, final List<CompiledExpression> arguments)
+	{
+		final CompiledExpression a = arguments.size()>0 ? arguments.get(0) : nullValue;
+		final CompiledExpression b = arguments.size()>1 ? arguments.get(1) : nullValue;
+		switch(name)
+		{
+		case "abs":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> Math.abs(toNumber(a.eval(curr, prev)));
+		case "floor":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> Math.floor(toNumber(a.eval(curr, prev)));
+		case "ceil":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> Math.ceil(toNumber(a.eval(curr, prev)));
+		case "round":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> {
+				double value = toNumber(a.eval(curr, prev));
+				return Double.isNaN(value) || Double.isInfinite(value) ? value : Math.floor(value + 0.5);
+			};
+		case "sqrt":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> Math.sqrt(toNumber(a.eval(curr, prev)));
+		case "log":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> Math.log(toNumber(a.eval(curr, prev)));
+		case "exp":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> Math.exp(toNumber(a.eval(curr, prev)));
+		case "pow":
+			checkArguments(arguments, 2, 2);
+			return (curr, prev) -> Math.pow(toNumber(a.eval(curr, prev)), toNumber(b.eval(curr, prev)));
+		case "min":
+		case "max":
+			final boolean min = name.equals("min");
+			return (curr, prev) -> {
+				double result = min ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+				for(CompiledExpression argument:arguments)
+				{
+					double value = toNumber(argument.eval(curr, prev));
+					result = min ? Math.min(result, value) : Math.max(result, value);
+				}
+				return result;
+			};
+		default:
+			throw new UnsupportedExpressionException("Math."+name);
+		}
+	}
+
+	private static CompiledExpression function(String name, List<CompiledExpression> arguments)
+	{
+		final CompiledExpression a = arguments.size()>0 ? arguments.get(0) : null;
+		final CompiledExpression b = arguments.size()>1 ? arguments.get(1) : null;
+		switch(name)
+		{
+		case "Number":
+			checkArguments(arguments, 0, 1);
+			return (curr, prev) -> a==null ? 0.0d : toNumber(a.eval(curr, prev));
+		case "String":
+			checkArguments(arguments, 0, 1);
+			return (curr, prev) -> a==null ? "" : toStr(a.eval(curr, prev));
+		case "isNaN":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> Double.isNaN(toNumber(a.eval(curr, prev)));
+		case "parseInt":
+			checkArguments(arguments, 1, 2);
+			return (curr, prev) -> parseInt(toStr(a.eval(curr, prev)), b==null ? 0 : (int) toInteger(b.eval(curr, prev)));
+		case "parseFloat":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> parseFloat(toStr(a.eval(curr, prev)));
+		case "year":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> (double) toDateTime(a.eval(curr, prev)).getYear();
+		case "month":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> (double) toDateTime(a.eval(curr, prev)).getMonthValue();
+		case "day":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> (double) toDateTime(a.eval(curr, prev)).getDayOfMonth();
+		case "hour":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> (double) toDateTime(a.eval(curr, prev)).getHour();
+		case "minute":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> (double) toDateTime(a.eval(curr, prev)).getMinute();
+		case "second":
+			checkArguments(arguments, 1, 1);
+			return (curr, prev) -> (double) toDateTime(a.eval(curr, prev)).getSecond();
+		case "daysBetween":
+			checkArguments(arguments, 2, 2);
+			return (curr, prev) -> (double) (Math.floorDiv(toDate(b.eval(curr, prev)).getTime(), millisPerDay) - Math.floorDiv(toDate(a.eval(curr, prev)).getTime(), millisPerDay));
+		case "addDays":
+			checkArguments(arguments, 2, 2);
+			return (curr, prev) -> new Date(toDate(a.eval(curr, prev)).getTime() + (long) (toInteger(b.eval(curr, prev)) * millisPerDay));
+		default:
+			throw new UnsupportedExpressionException(name);
+		}
+	}
+
+	private static void checkArguments(List<CompiledExpression> arguments, int min, int max)
+	{
+		if(arguments.size()<min || arguments.size()>max)
+			throw new UnsupportedExpressionException("wrong number of arguments");
+	}
+
+	private static CompiledExpression constant(final Object value)
+	{
+		return (curr, prev) -> value;
+	}
+
+	private boolean accept(String operator)
+	{
+		if(tokenType==OPERATOR && token.equals(operator))
+		{
+			next();
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String operator)
+	{
+		if(!accept(operator))
+			throw new UnsupportedExpressionException("expected "+operator);
+	}
+
+	private String identifier()
+	{
+		if(tokenType!=IDENTIFIER)
+			throw new UnsupportedExpressionException("expected identifier");
+		String name = token;
+		next();
+		return name;
+	}
+
+	private void next()
+	{
+		while(pos<text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+		if(pos>=text.length())
+		{
+			tokenType = EOF;
+			token = null;
+			return;
+		}
+		char c = text.charAt(pos);
+		int start = pos;
+		if(Character.isJavaIdentifierStart(c))
+		{
+			while(pos<text.length() && Character.isJavaIdentifierPart(text.charAt(pos)))
+				pos++;
+			tokenType = IDENTIFIER;
+			token = text.substring(start, pos);
+		}else if(isDigit(c) || (c=='.' && pos+1<text.length() && isDigit(text.charAt(pos+1))))
+		{
+			while(pos<text.length() && (isDigit(text.charAt(pos)) || text.charAt(pos)=='.'))
+				pos++;
+			if(pos<text.length() && (text.charAt(pos)=='e' || text.charAt(pos)=='E'))
+			{
+				pos++;
+				if(pos<text.length() && (text.charAt(pos)=='+' || text.charAt(pos)=='-'))
+					pos++;
+				while(pos<text.length() && isDigit(text.charAt(pos)))
+					pos++;
+			}
+			tokenType = NUMBER;
+			token = text.substring(start, pos);
+			if(Double.isNaN(toNumber(token)) || (pos<text.length() && Character.isJavaIdentifierPart(text.charAt(pos))))
+				throw new UnsupportedExpressionException(token);
+		}else if(c=='\'' || c=='"')
+		{
+			tokenType = STRING;
+			token = stringLiteral(c);
+		}else
+		{
+			for(String operator:operators)
+			{
+				if(text.startsWith(operator, pos))
+				{
+					pos += operator.length();
+					tokenType = OPERATOR;
+					token = operator;
+					return;
+				}
+			}
+			if(c==';')
+			{
+				pos++;
+				tokenType = OPERATOR;
+				token = ";";
+				return;
+			}
+			throw new UnsupportedExpressionException(String.valueOf(c));
+		}
+	}
+
+	private String stringLiteral(char quote)
+	{
+		StringBuilder value = new StringBuilder();
+		pos++;
+		while(pos<text.length())
+		{
+			char c = text.charAt(pos++);
+			if(c==quote)
+				return value.toString();
+			if(c=='\\')
+			{
+				if(pos>=text.length())
+					break;
+				c = text.charAt(pos++);
+				switch(c)
+				{
+				case 'n': value.append('\n'); break;
+				case 't': value.append('\t'); break;
+				case 'r': value.append('\r'); break;
+				case 'b': value.append('\b'); break;
+				case 'f': value.append('\f'); break;
+				case 'v': value.append('\u000b'); break;
+				case '0': value.append('\0'); break;
+				case 'u':
+					if(pos+4>text.length())
+						throw new UnsupportedExpressionException("invalid escape");
+					try
+					{
+						value.append((char) Integer.parseInt(text.substring(pos, pos+4), 16));
+					}catch(NumberFormatException e)
+					{
+						throw new UnsupportedExpressionException("invalid escape");
+					}
+					pos += 4;
+					break;
+				case 'x':
+					throw new UnsupportedExpressionException("invalid escape");
+				default:
+					value.append(c);
+				}
+			}else if(c=='\n' || c=='\r')
+			{
+				break;
+			}else
+			{
+				value.append(c);
+			}
+		}
+		throw new UnsupportedExpressionException("unterminated string");
+	}
+
+	private static boolean isDigit(char c)
+	{
+		return c>='0' && c<='9';
+	}
+
+	//JavaScript conversions
+
+	private static boolean truthy(Object value)
+	{
+		if(value==null || value==undefined)
+			return false;
+		if(value instanceof Boolean)
+			return (Boolean) value;
+		if(value instanceof Number)
+		{
+			double d = ((Number) value).doubleValue();
+			return d!=0 && !Double.isNaN(d);
+		}
+		if(value instanceof String)
+			return !((String) value).isEmpty();
+		return true;
+	}
+
+	private static double toNumber(Object value)
+	{
+		if(value==null)
+			return 0;
+		if(value instanceof Number)
+			return ((Number) value).doubleValue();
+		if(value instanceof Boolean)
+			return ((Boolean) value) ? 1 : 0;
+		if(value instanceof String)
+			return toNumber((String) value);
+		if(value instanceof Date)
+			return ((Date) value).getTime();
+		return Double.NaN;
+	}
+
+	private static double toNumber(String value)
+	{
+		String s = trim(value);
+		if(s.isEmpty())
+			return 0;
+		if(s.length()>2 && s.charAt(0)=='0' && (s.charAt(1)=='x' || s.charAt(1)=='X'))
+		{
+			double result = 0;
+			for(int i=2;i<s.length();i++)
+			{
+				int digit = Character.digit(s.charAt(i), 16);
+				if(digit<0)
+					return Double.NaN;
+				result = result * 16 + digit;
+			}
+			return result;
+		}
+		int end = decimalPrefix(s, 0);
+		if(end!=s.length())
+			return Double.NaN;
+		return parseDecimal(s);
+	}
+
+	private static double parseDecimal(String s)
+	{
+		String unsigned = s.charAt(0)=='+' || s.charAt(0)=='-' ? s.substring(1) : s;
+		if(unsigned.equals("Infinity"))
+			return s.charAt(0)=='-' ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+		return Double.parseDouble(s);
+	}
+
+	/**
+	 * Gets the end of the longest decimal literal (or Infinity) at start, start if there is none
+	 */
+	private static int decimalPrefix(String s, int start)
+	{
+		int i = start;
+		if(i<s.length() && (s.charAt(i)=='+' || s.charAt(i)=='-'))
+			i++;
+		if(s.startsWith("Infinity", i))
+			return i + "Infinity".length();
+		int digits = 0;
+		while(i<s.length() && isDigit(s.charAt(i)))
+		{
+			i++;
+			digits++;
+		}
+		if(i<s.length() && s.charAt(i)=='.')
+		{
+			int fractionStart = ++i;
+			while(i<s.length() && isDigit(s.charAt(i)))
+				i++;
+			digits += i - fractionStart;
+		}
+		if(digits==0)
+			return start;
+		if(i<s.length() && (s.charAt(i)=='e' || s.charAt(i)=='E'))
+		{
+			int exponent = i + 1;
+			if(exponent<s.length() && (s.charAt(exponent)=='+' || s.charAt(exponent)=='-'))
+				exponent++;
+			int exponentDigits = exponent;
+			while(exponentDigits<s.length() && isDigit(s.charAt(exponentDigits)))
+				exponentDigits++;
+			if(exponentDigits>exponent)
+				i = exponentDigits;
+		}
+		return i;
+	}
+
+	private static double toInteger(Object value)
+	{
+		double d = toNumber(value);
+		if(Double.isNaN(d))
+			return 0;
+		return d<0 ? Math.ceil(d) : Math.floor(d);
+	}
+
+	private static int clamp(double value, int length)
+	{
+		return (int) Math.max(0, Math.min(value, length));
+	}
+
+	private static String toStr(Object value)
+	{
+		if(value==null)
+			return "null";
+		if(value instanceof String)
+			return (String) value;
+		if(value instanceof Double || value instanceof Float)
+			return numberToString(((Number) value).doubleValue());
+		return value.toString();
+	}
+
+	private static String numberToString(double d)
+	{
+		if(Double.isNaN(d))
+			return "NaN";
+		if(Double.isInfinite(d))
+			return d>0 ? "Infinity" : "-Infinity";
+		if(d==0)
+			return "0";
+		double abs = Math.abs(d);
+		if(abs>=1e-6 && abs<1e21)
+			return new BigDecimal(Double.toString(d)).stripTrailingZeros().toPlainString();
+		//Exponent form, 1.5E22 is 1.5e+22 in JavaScript
+		String s = Double.toString(d);
+		int e = s.indexOf('E');
+		String mantissa = s.substring(0, e);
+		if(mantissa.endsWith(".0"))
+			mantissa = mantissa.substring(0, mantissa.length()-2);
+		String exponent = s.substring(e+1);
+		return mantissa + "e" + (exponent.startsWith("-") ? exponent : "+" + exponent);
+	}
+
+	private static String trim(String s)
+	{
+		int start = 0;
+		int end = s.length();
+		while(start<end && isSpace(s.charAt(start)))
+			start++;
+		while(end>start && isSpace(s.charAt(end-1)))
+			end--;
+		return s.substring(start, end);
+	}
+
+	private static boolean isSpace(char c)
+	{
+		return c<=' ' || Character.isWhitespace(c) || Character.isSpaceChar(c) || c=='\uFEFF';
+	}
+
+	private static String asString(Object value, String method)
+	{
+		if(value instanceof String)
+			return (String) value;
+		throw new IllegalArgumentException("Cannot call "+method+" on {"+value+"}");
+	}
+
+	private static Date toDate(Object value)
+	{
+		if(value instanceof Date)
+			return (Date) value;
+		if(value instanceof Number)
+			return new Date(((Number) value).longValue());
+		throw new IllegalArgumentException("{"+value+"} is not a date");
+	}
+
+	private static LocalDateTime toDateTime(Object value)
+	{
+		long time = toDate(value).getTime();
+		return LocalDateTime.ofEpochSecond(Math.floorDiv(time, 1000L), (int) Math.floorMod(time, 1000L) * 1000000, ZoneOffset.UTC);
+	}
+
+	private static Object add(Object a, Object b)
+	{
+		if(a instanceof String || b instanceof String || a instanceof Date || b instanceof Date)
+			return toStr(a) + toStr(b);
+		return toNumber(a) + toNumber(b);
+	}
+
+	private static boolean looseEquals(Object a, Object b)
+	{
+		//null and undefined are only equal to each other
+		if(a==null || a==undefined || b==null || b==undefined)
+			return (a==null || a==undefined) && (b==null || b==undefined);
+		if(a instanceof Boolean)
+			return looseEquals(toNumber(a), b);
+		if(b instanceof Boolean)
+			return looseEquals(a, toNumber(b));
+		if(a instanceof String && b instanceof String)
+			return a.equals(b);
+		if((a instanceof Number || a instanceof String) && (b instanceof Number || b instanceof String))
+			return toNumber(a)==toNumber(b);
+		if(a instanceof Date && !(b instanceof Date))
+			return toStr(a).equals(toStr(b));
+		if(b instanceof Date && !(a instanceof Date))
+			return toStr(a).equals(toStr(b));
+		return a==b;
+	}
+
+	private static boolean strictEquals(Object a, Object b)
+	{
+		if(a==null || b==null)
+			return a==b;
+		if(a instanceof Number && b instanceof Number)
+			return ((Number) a).doubleValue()==((Number) b).doubleValue();
+		if(a instanceof String || a instanceof Boolean)
+			return a.equals(b);
+		return a==b;
+	}
+
+	private static boolean compare(Object a, Object b, String operator)
+	{
+		int result;
+		if(a instanceof String && b instanceof String)
+		{
+			result = ((String) a).compareTo((String) b);
+		}else
+		{
+			double x = toNumber(a);
+			double y = toNumber(b);
+			if(Double.isNaN(x) || Double.isNaN(y))
+				return false;
+			result = Double.compare(x==0 ? 0 : x, y==0 ? 0 : y);
+		}
+		switch(operator)
+		{
+		case "<":
+			return result<0;
+		case "<=":
+			return result<=0;
+		case ">":
+			return result>0;
+		default:
+			return result>=0;
+		}
+	}
+
+	private static String replace(String s, String search, String replacement)
+	{
+		int index = s.indexOf(search);
+		if(index<0)
+			return s;
+		StringBuilder result = new StringBuilder(s.length() + replacement.length());
+		result.append(s, 0, index);
+		for(int i=0;i<replacement.length();i++)
+		{
+			char c = replacement.charAt(i);
+			if(c=='$' && i+1<replacement.length())
+			{
+				char n = replacement.charAt(i+1);
+				if(n=='$')
+				{
+					result.append('$');
+					i++;
+					continue;
+				}else if(n=='&')
+				{
+					result.append(search);
+					i++;
+					continue;
+				}else if(n=='`')
+				{
+					result.append(s, 0, index);
+					i++;
+					continue;
+				}else if(n=='\'')
+				{
+					result.append(s, index + search.length(), s.length());
+					i++;
+					continue;
+				}
+			}
+			result.append(c);
+		}
+		result.append(s, index + search.length(), s.length());
+		return result.toString();
+	}
+
+	private static double parseInt(String value, int radix)
+	{
+		String s = trim(value);
+		int i = 0;
+		boolean negative = false;
+		if(i<s.length() && (s.charAt(i)=='+' || s.charAt(i)=='-'))
+		{
+			negative = s.charAt(i)=='-';
+			i++;
+		}
+		if((radix==0 || radix==16) && (s.startsWith("0x", i) || s.startsWith("0X", i)))
+		{
+			radix = 16;
+			i += 2;
+		}
+		if(radix==0)
+			radix = 10;
+		if(radix<2 || radix>36)
+			return Double.NaN;
+		double result = 0;
+		int start = i;
+		while(i<s.length())
+		{
+			int digit = Character.digit(s.charAt(i), radix);
+			if(digit<0 || s.charAt(i)>127)
+				break;
+			result = result * radix + digit;
+			i++;
+		}
+		if(i==start)
+			return Double.NaN;
+		return negative ? -result : result;
+	}
+
+	private static double parseFloat(String value)
+	{
+		String s = trim(value);
+		int end = decimalPrefix(s, 0);
+		if(end==0)
+			return Double.NaN;
+		String number = s.substring(0, end);
+		if(number.endsWith("."))
+			number = number + "0";
+		return parseDecimal(number);
+	}
+
+	/**
+	 * Thrown while compiling an expression that has to be left to the JavaScript engine
+	 */
+	private static class UnsupportedExpressionException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedExpressionException(String message)
+		{
+			super(message);
+		}
+	}
+}
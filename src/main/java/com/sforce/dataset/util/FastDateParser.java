@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.Locale;
+
+/**
+ * The Class FastDateParser.
+ *
+ * A thread safe java.time parser compiled from a {@link java.text.SimpleDateFormat}
+ * pattern, for dates in GMT. Only numeric patterns that java.time parses the
+ * same way as SimpleDateFormat are compiled (4 digit years, numeric months,
+ * days, hours, minutes, seconds and 3 digit milliseconds). The parser is
+ * strict, any value it does not accept returns {@link #INVALID} and has to be
+ * parsed by the SimpleDateFormat instead, which keeps its lenient behavior.
+ */
+public class FastDateParser {
+
+	/** Returned when the value has to be parsed by the SimpleDateFormat. */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	//SimpleDateFormat uses the julian calendar before the gregorian cutover
+	private static final LocalDate gregorianCutover = LocalDate.of(1582, 10, 15);
+
+	private final DateTimeFormatter formatter;
+
+	private FastDateParser(DateTimeFormatter formatter)
+	{
+		this.formatter = formatter;
+	}
+
+	/**
+	 * Compiles the pattern.
+	 *
+	 * @param pattern the SimpleDateFormat pattern
+	 * @return the parser or null if the pattern is not supported
+	 */
+	public static FastDateParser compile(String pattern)
+	{
+		if(pattern==null || pattern.isEmpty())
+			return null;
+		StringBuilder javaTimePattern = new StringBuilder();
+		boolean hasYear = false, hasMonth = false, hasDay = false, hasHour = false, hasMinute = false, hasSecond = false, hasMillis = false;
+		int i = 0;
+		while(i<pattern.length())
+		{
+			char c = pattern.charAt(i);
+			if(c=='\'')
+			{
+				//Quoted literals mean the same in both pattern syntaxes
+				int end = pattern.indexOf('\'', i+1);
+				if(end<0)
+					return null;
+				javaTimePattern.append(pattern, i, end+1);
+				i = end+1;
+				continue;
+			}
+			if(!((c>='a' && c<='z') || (c>='A' && c<='Z')))
+			{
+				if(c=='[' || c==']' || c=='{' || c=='}' || c=='#')
+					javaTimePattern.append('\'').append(c).append('\'');
+				else
+					javaTimePattern.append(c);
+				i++;
+				continue;
+			}
+			int count = 1;
+			while(i+count<pattern.length() && pattern.charAt(i+count)==c)
+				count++;
+			//A variable width field directly followed by another field is split differently by the two parsers
+			boolean abutting = i+count<pattern.length() && Character.isLetter(pattern.charAt(i+count));
+			if(count==1 && abutting)
+				return null;
+			switch(c)
+			{
+			case 'y':
+				if(count!=4)
+					return null;
+				//uuuu is the proleptic year, yyyy would need an era in strict mode
+				javaTimePattern.append("uuuu");
+				hasYear = true;
+				break;
+			case 'M':
+			case 'd':
+			case 'H':
+			case 'm':
+			case 's':
+				if(count>2)
+					return null;
+				for(int j=0;j<count;j++)
+					javaTimePattern.append(c);
+				hasMonth |= c=='M';
+				hasDay |= c=='d';
+				hasHour |= c=='H';
+				hasMinute |= c=='m';
+				hasSecond |= c=='s';
+				break;
+			case 'S':
+				if(count!=3)
+					return null;
+				javaTimePattern.append("SSS");
+				hasMillis = true;
+				break;
+			default:
+				return null;
+			}
+			i += count;
+		}
+		if(!hasYear || !hasMonth || !hasDay)
+			return null;
+		try
+		{
+			DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder().appendPattern(javaTimePattern.toString());
+			//The fields that are not in the pattern default to 0, the same as SimpleDateFormat
+			if(!hasHour)
+				builder.parseDefaulting(ChronoField.HOUR_OF_DAY, 0);
+			if(!hasMinute)
+				builder.parseDefaulting(ChronoField.MINUTE_OF_HOUR, 0);
+			if(!hasSecond)
+				builder.parseDefaulting(ChronoField.SECOND_OF_MINUTE, 0);
+			if(!hasMillis)
+				builder.parseDefaulting(ChronoField.NANO_OF_SECOND, 0);
+			return new FastDateParser(builder.toFormatter(Locale.ROOT).withResolverStyle(ResolverStyle.STRICT));
+		}catch(IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Parses the value.
+	 *
+	 * @param value the value
+	 * @return the milliseconds since the epoch in GMT, or {@link #INVALID}
+	 */
+	public long parse(String value)
+	{
+		try
+		{
+			TemporalAccessor parsed = formatter.parse(value);
+			LocalDateTime dateTime = LocalDateTime.of(LocalDate.from(parsed), LocalTime.from(parsed));
+			if(dateTime.toLocalDate().isBefore(gregorianCutover))
+				return INVALID;
+			return dateTime.toInstant(ZoneOffset.UTC).toEpochMilli();
+		}catch(DateTimeException e)
+		{
+			return INVALID;
+		}
+	}
+}
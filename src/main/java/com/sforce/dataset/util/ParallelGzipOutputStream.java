@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+
+import com.sforce.dataset.DatasetUtilConstants;
+
+/**
+ * The Class ParallelGzipOutputStream.
+ *
+ * Compresses fixed size blocks of the input on a pool of threads and writes
+ * each block as its own gzip member, in order. A multi-member gzip file
+ * decompresses to the concatenation of its members, so the output is read the
+ * same as a single member file. Only the first member carries the file name
+ * and comment from the {@link GzipParameters}.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	private static final int blockSize = 1024*1024;
+
+	private final OutputStream out;
+	private final GzipParameters gzipParams;
+	private final ExecutorService executor;
+	private final int maxPendingBlocks;
+	private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+
+	private byte[] block = new byte[blockSize];
+	private int count = 0;
+	private boolean firstMember = true;
+	private boolean closed = false;
+
+	/**
+	 * Instantiates a new parallel gzip output stream.
+	 *
+	 * @param out the out
+	 * @param gzipParams the gzip params
+	 * @param numThreads the number of compression threads
+	 */
+	public ParallelGzipOutputStream(OutputStream out, GzipParameters gzipParams, int numThreads)
+	{
+		if(out==null || gzipParams == null || numThreads <= 0)
+		{
+			throw new IllegalArgumentException("Constructor input cannot be null");
+		}
+		this.out = out;
+		this.gzipParams = gzipParams;
+		//Keep the threads busy while the caller fills the next blocks, without buffering the whole file
+		this.maxPendingBlocks = numThreads*2;
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread th = new Thread(r,"Gzip-Thread-"+threadCount.incrementAndGet());
+				th.setDaemon(true);
+				return th;
+			}
+		});
+	}
+
+	/**
+	 * Creates a gzip output stream, the parallel stream is only used when the config allows more than one thread.
+	 *
+	 * @param out the out
+	 * @param gzipParams the gzip params
+	 * @return the output stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static OutputStream newGzipOutputStream(OutputStream out, GzipParameters gzipParams) throws IOException
+	{
+		int numThreads = DatasetUtilConstants.getSystemConfig().gzipThreads;
+		if(numThreads<=0)
+			numThreads = Runtime.getRuntime().availableProcessors();
+		if(numThreads<=1)
+			return new GzipCompressorOutputStream(out, gzipParams);
+		return new ParallelGzipOutputStream(out, gzipParams, numThreads);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		ensureOpen();
+		block[count++] = (byte) b;
+		if(count==blockSize)
+			submitBlock();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		ensureOpen();
+		while(len>0)
+		{
+			int n = Math.min(len, blockSize-count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if(count==blockSize)
+				submitBlock();
+		}
+	}
+
+	/**
+	 * Writes the blocks that have been compressed so far, the current partial block is not compressed
+	 * because every block becomes a gzip member.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		ensureOpen();
+		while(!pendingBlocks.isEmpty())
+		{
+			writeNextBlock();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(closed)
+			return;
+		try
+		{
+			//An empty input still needs one member to be a valid gzip file
+			if(count>0 || firstMember)
+				submitBlock();
+			while(!pendingBlocks.isEmpty())
+			{
+				writeNextBlock();
+			}
+		}finally
+		{
+			closed = true;
+			executor.shutdownNow();
+			out.close();
+		}
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if(closed)
+			throw new IOException("Stream closed");
+	}
+
+	private void submitBlock() throws IOException
+	{
+		final byte[] data = block;
+		final int length = count;
+		final byte[] header = getHeader(firstMember);
+		firstMember = false;
+		pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return compress(header, data, length, gzipParams.getCompressionLevel());
+			}
+		}));
+		block = new byte[blockSize];
+		count = 0;
+		while(pendingBlocks.size()>=maxPendingBlocks)
+		{
+			writeNextBlock();
+		}
+	}
+
+	private void writeNextBlock() throws IOException
+	{
+		Future<byte[]> result = pendingBlocks.removeFirst();
+		try
+		{
+			out.write(result.get());
+		} catch (InterruptedException e)
+		{
+			throw new InterruptedIOException(e.toString());
+		} catch (ExecutionException e)
+		{
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Builds the member header the same way as {@link GzipCompressorOutputStream}.
+	 */
+	private byte[] getHeader(boolean first)
+	{
+		ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+		String filename = first ? gzipParams.getFilename() : null;
+		String comment = first ? gzipParams.getComment() : null;
+		int flags = 0;
+		if(filename!=null)
+			flags |= 8;
+		if(comment!=null)
+			flags |= 16;
+		long mtime = gzipParams.getModificationTime() / 1000;
+		header.write(0x1f);
+		header.write(0x8b);
+		header.write(Deflater.DEFLATED);
+		header.write(flags);
+		header.write((int) mtime);
+		header.write((int) (mtime >> 8));
+		header.write((int) (mtime >> 16));
+		header.write((int) (mtime >> 24));
+		int level = gzipParams.getCompressionLevel();
+		header.write(level == Deflater.BEST_COMPRESSION ? 2 : level == Deflater.BEST_SPEED ? 4 : 0);
+		header.write(gzipParams.getOperatingSystem());
+		if(filename!=null)
+		{
+			byte[] bytes = filename.getBytes(StandardCharsets.ISO_8859_1);
+			header.write(bytes, 0, bytes.length);
+			header.write(0);
+		}
+		if(comment!=null)
+		{
+			byte[] bytes = comment.getBytes(StandardCharsets.ISO_8859_1);
+			header.write(bytes, 0, bytes.length);
+			header.write(0);
+		}
+		return header.toByteArray();
+	}
+
+	private static byte[] compress(byte[] header, byte[] data, int length, int level)
+	{
+		ByteArrayOutputStream member = new ByteArrayOutputStream(header.length + length/2 + 64);
+		member.write(header, 0, header.length);
+		Deflater deflater = new Deflater(level, true);
+		try
+		{
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			byte[] buf = new byte[65536];
+			while(!deflater.finished())
+			{
+				int n = deflater.deflate(buf);
+				member.write(buf, 0, n);
+			}
+		}finally
+		{
+			deflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		writeInt(member, crc.getValue());
+		writeInt(member, length);
+		return member.toByteArray();
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, long value)
+	{
+		out.write((int) value);
+		out.write((int) (value >> 8));
+		out.write((int) (value >> 16));
+		out.write((int) (value >> 24));
+	}
+}
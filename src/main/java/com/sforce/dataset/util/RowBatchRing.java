@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The Class RowBatchRing.
+ *
+ * Hands rows from one producer thread to one consumer thread in batches. The
+ * ring owns a fixed number of batch arrays, the producer fills the batch at
+ * the head in place and publishes it once it is full, the consumer reads the
+ * batch at the tail and gives it back by moving the tail. No locks are taken
+ * and no objects are allocated per row or per batch. A thread that has to
+ * wait spins for a short while and then parks for short, bounded periods, so
+ * it never depends on being woken up by the other thread.
+ *
+ * Only one thread may call {@link #put(Object)}, {@link #flush()} and
+ * {@link #close()}, and only one thread may call {@link #take()}.
+ *
+ * @param <T> the row type
+ */
+public class RowBatchRing<T> {
+
+	private static final int spinCount = 100;
+	private static final int yieldCount = 10;
+	private static final long parkNanos = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private final Object[][] batches;
+	private final int[] batchCounts;
+	private final int batchSize;
+
+	//Number of batches published by the producer and released by the consumer
+	private final AtomicLong head = new AtomicLong(0);
+	private final AtomicLong tail = new AtomicLong(0);
+
+	private volatile boolean closed = false;
+	private volatile boolean aborted = false;
+
+	//Producer state
+	private Object[] fillBatch = null;
+	private int fillCount = 0;
+
+	//Consumer state
+	private Object[] readBatch = null;
+	private int readCount = 0;
+	private int readPos = 0;
+
+	/**
+	 * Instantiates a new row batch ring.
+	 *
+	 * @param numBatches the number of batches in the ring
+	 * @param batchSize the number of rows in a batch
+	 */
+	public RowBatchRing(int numBatches, int batchSize)
+	{
+		if(numBatches <= 0 || batchSize <= 0)
+		{
+			throw new IllegalArgumentException("numBatches and batchSize must be greater than 0");
+		}
+		this.batchSize = batchSize;
+		this.batches = new Object[numBatches][batchSize];
+		this.batchCounts = new int[numBatches];
+	}
+
+	/**
+	 * Adds a row, the row is visible to the consumer once its batch is full or flushed.
+	 *
+	 * @param row the row
+	 * @return false if the consumer has aborted and the row was dropped
+	 */
+	public boolean put(T row)
+	{
+		if(row==null)
+		{
+			throw new IllegalArgumentException("row cannot be null");
+		}
+		if(fillBatch==null)
+		{
+			int waits = 0;
+			while(head.get() - tail.get() == batches.length)
+			{
+				if(aborted)
+					return false;
+				waits = idle(waits);
+			}
+			fillBatch = batches[(int) (head.get() % batches.length)];
+			fillCount = 0;
+		}
+		if(aborted)
+			return false;
+		fillBatch[fillCount++] = row;
+		if(fillCount==batchSize)
+			flush();
+		return true;
+	}
+
+	/**
+	 * Publishes the current partial batch.
+	 */
+	public void flush()
+	{
+		if(fillBatch==null)
+			return;
+		long h = head.get();
+		batchCounts[(int) (h % batches.length)] = fillCount;
+		fillBatch = null;
+		fillCount = 0;
+		//Publishes the rows and the count written above
+		head.lazySet(h + 1);
+	}
+
+	/**
+	 * Publishes the last batch and tells the consumer there are no more rows.
+	 */
+	public void close()
+	{
+		flush();
+		closed = true;
+	}
+
+	/**
+	 * Gets the next row, waits if no batch has been published yet.
+	 *
+	 * @return the row, or null once the ring is closed and empty or aborted
+	 */
+	@SuppressWarnings("unchecked")
+	public T take()
+	{
+		if(readPos==readCount)
+		{
+			if(readBatch!=null)
+				releaseBatch();
+			int waits = 0;
+			while(true)
+			{
+				if(aborted)
+					return null;
+				//closed is read before head, so a closed ring with nothing published is really empty
+				boolean isClosed = closed;
+				if(head.get() != tail.get())
+					break;
+				if(isClosed)
+					return null;
+				waits = idle(waits);
+			}
+			int index = (int) (tail.get() % batches.length);
+			readBatch = batches[index];
+			readCount = batchCounts[index];
+			readPos = 0;
+		}
+		return (T) readBatch[readPos++];
+	}
+
+	/**
+	 * Stops the hand-off, {@link #take()} returns null and {@link #put(Object)} drops the rows.
+	 * Can be called from either thread.
+	 */
+	public void abort()
+	{
+		aborted = true;
+	}
+
+	/**
+	 * Checks if the hand-off was aborted.
+	 *
+	 * @return true, if aborted
+	 */
+	public boolean isAborted()
+	{
+		return aborted;
+	}
+
+	private void releaseBatch()
+	{
+		//Drop the row references so that the rows can be collected while the batch waits for reuse
+		for(int i=0;i<readCount;i++)
+		{
+			readBatch[i] = null;
+		}
+		readBatch = null;
+		readCount = 0;
+		readPos = 0;
+		tail.lazySet(tail.get() + 1);
+	}
+
+	private static int idle(int waits)
+	{
+		if(waits < spinCount)
+			Thread.onSpinWait();
+		else if(waits < spinCount + yieldCount)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(parkNanos);
+		return waits + 1;
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * The Class ScaledDecimalParser.
+ *
+ * A thread safe parser that reads a decimal number straight into a long scaled
+ * by a power of ten, without going through BigDecimal. It accepts the plain
+ * numbers BigDecimal accepts (optional sign, digits and a decimal point) or,
+ * when compiled from a {@link DecimalFormat}, the prefixes, suffixes, grouping
+ * separators and percent/per mille multipliers of that format. Only values
+ * whose scaled result is exact and fits in a double without rounding are
+ * parsed, anything else returns {@link #INVALID} and has to be parsed by the
+ * slow path, so the results are always the same as the slow path.
+ */
+public class ScaledDecimalParser {
+
+	/** Returned when the value has to be parsed by the slow path. */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	private static final long maxExactDouble = 1L << 53;
+	private static final long maxDigits = Long.MAX_VALUE / 10 - 10;
+
+	private static final long[] powersOfTen = new long[19];
+	static
+	{
+		powersOfTen[0] = 1;
+		for(int i=1;i<powersOfTen.length;i++)
+			powersOfTen[i] = powersOfTen[i-1] * 10;
+	}
+
+	private static final ScaledDecimalParser plain = new ScaledDecimalParser("", "", "-", "", true, (char) 0, '.', 0);
+
+	private final String positivePrefix;
+	private final String positiveSuffix;
+	private final String negativePrefix;
+	private final String negativeSuffix;
+	private final boolean allowPlusSign;
+	private final char groupingSeparator; //0 if grouping is not used
+	private final char decimalSeparator;
+	private final int multiplierDigits; //2 for percent, 3 for per mille
+
+	private ScaledDecimalParser(String positivePrefix, String positiveSuffix, String negativePrefix, String negativeSuffix, boolean allowPlusSign, char groupingSeparator, char decimalSeparator, int multiplierDigits)
+	{
+		this.positivePrefix = positivePrefix;
+		this.positiveSuffix = positiveSuffix;
+		this.negativePrefix = negativePrefix;
+		this.negativeSuffix = negativeSuffix;
+		this.allowPlusSign = allowPlusSign;
+		this.groupingSeparator = groupingSeparator;
+		this.decimalSeparator = decimalSeparator;
+		this.multiplierDigits = multiplierDigits;
+	}
+
+	/**
+	 * Compiles the number format.
+	 *
+	 * @param format the number format, null for plain numbers
+	 * @return the parser or null if the format is not supported
+	 */
+	public static ScaledDecimalParser compile(DecimalFormat format)
+	{
+		if(format==null)
+			return plain;
+		String pattern = format.toPattern();
+		if(format.isParseIntegerOnly() || pattern.indexOf('E')>=0)
+			return null;
+		int multiplierDigits = 0;
+		while(multiplierDigits<powersOfTen.length && powersOfTen[multiplierDigits]<format.getMultiplier())
+			multiplierDigits++;
+		if(multiplierDigits==powersOfTen.length || powersOfTen[multiplierDigits]!=format.getMultiplier())
+			return null;
+		DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+		//Currency formats parse the monetary decimal separator
+		if(pattern.indexOf('\u00A4')>=0 && symbols.getMonetaryDecimalSeparator()!=symbols.getDecimalSeparator())
+			return null;
+		char groupingSeparator = format.isGroupingUsed() ? symbols.getGroupingSeparator() : (char) 0;
+		char decimalSeparator = symbols.getDecimalSeparator();
+		if(Character.isDigit(groupingSeparator) || Character.isDigit(decimalSeparator) || groupingSeparator==decimalSeparator)
+			return null;
+		String[] affixes = {format.getPositivePrefix(), format.getPositiveSuffix(), format.getNegativePrefix(), format.getNegativeSuffix()};
+		for(String affix:affixes)
+		{
+			//An affix made of number characters could be read as part of the number
+			for(int i=0;i<affix.length();i++)
+			{
+				char c = affix.charAt(i);
+				if(Character.isDigit(c) || c==groupingSeparator || c==decimalSeparator)
+					return null;
+			}
+		}
+		//The negative affixes have to extend the positive ones, a value then matches the negative affixes only if DecimalFormat reads it as negative
+		if(affixes[0].equals(affixes[2]) && affixes[1].equals(affixes[3]))
+			return null;
+		if(!affixes[2].startsWith(affixes[0]) || !affixes[3].endsWith(affixes[1]))
+			return null;
+		return new ScaledDecimalParser(affixes[0], affixes[1], affixes[2], affixes[3], false, groupingSeparator, decimalSeparator, multiplierDigits);
+	}
+
+	/**
+	 * Parses the value and scales it by 10^scale.
+	 *
+	 * @param value the value, surrounding whitespace is ignored
+	 * @param scale the scale
+	 * @return the scaled value, or {@link #INVALID}
+	 */
+	public long parse(String value, int scale)
+	{
+		int start = 0;
+		int end = value.length();
+		while(start<end && value.charAt(start)<=' ')
+			start++;
+		while(end>start && value.charAt(end-1)<=' ')
+			end--;
+		if(!negativePrefix.isEmpty() || !negativeSuffix.isEmpty())
+		{
+			if(end-start>=negativePrefix.length()+negativeSuffix.length() && value.startsWith(negativePrefix, start) && value.startsWith(negativeSuffix, end-negativeSuffix.length()))
+			{
+				long result = parseNumber(value, start+negativePrefix.length(), end-negativeSuffix.length(), scale);
+				if(result!=INVALID)
+					return -result;
+			}
+		}
+		if(end-start>=positivePrefix.length()+positiveSuffix.length() && value.startsWith(positivePrefix, start) && value.startsWith(positiveSuffix, end-positiveSuffix.length()))
+		{
+			start += positivePrefix.length();
+			end -= positiveSuffix.length();
+			if(allowPlusSign && start<end && value.charAt(start)=='+')
+				start++;
+			return parseNumber(value, start, end, scale);
+		}
+		return INVALID;
+	}
+
+	private long parseNumber(String value, int start, int end, int scale)
+	{
+		long digits = 0;
+		int digitCount = 0;
+		int fractionDigits = -1;
+		for(int i=start;i<end;i++)
+		{
+			char c = value.charAt(i);
+			if(c>='0' && c<='9')
+			{
+				if(digits>maxDigits)
+					return INVALID;
+				digits = digits * 10 + (c - '0');
+				digitCount++;
+				if(fractionDigits>=0)
+					fractionDigits++;
+			}else if(c==decimalSeparator && fractionDigits<0)
+			{
+				fractionDigits = 0;
+			}else if(c==groupingSeparator && groupingSeparator!=0 && fractionDigits<0 && i>start && i+1<end && isDigit(value.charAt(i-1)) && isDigit(value.charAt(i+1)))
+			{
+				continue;
+			}else
+			{
+				return INVALID;
+			}
+		}
+		if(digitCount==0)
+			return INVALID;
+		int shift = scale - Math.max(fractionDigits, 0) - multiplierDigits;
+		if(shift>=0)
+		{
+			if(shift>=powersOfTen.length || digits>maxExactDouble/powersOfTen[shift])
+				return INVALID;
+			return digits * powersOfTen[shift];
+		}
+		//More decimals than the scale, only exact when the extra digits are all 0
+		if(-shift>=powersOfTen.length || digits%powersOfTen[-shift]!=0)
+			return INVALID;
+		digits /= powersOfTen[-shift];
+		return digits>maxExactDouble ? INVALID : digits;
+	}
+
+	private static boolean isDigit(char c)
+	{
+		return c>='0' && c<='9';
+	}
+}
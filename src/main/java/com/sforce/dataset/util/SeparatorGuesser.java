@@ -28,6 +28,7 @@ package com.sforce.dataset.util;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
@@ -58,88 +59,9 @@ public class SeparatorGuesser {
         try {
             InputStream is = new FileInputStream(file);
             Reader reader = inputFileCharset != null ? new InputStreamReader(is, inputFileCharset) : new InputStreamReader(is);
-            LineNumberReader lineNumberReader = new LineNumberReader(reader);
-
             try {
-                List<Separator> separators = new ArrayList<SeparatorGuesser.Separator>();
-                Map<Character, Separator> separatorMap = new HashMap<Character, SeparatorGuesser.Separator>();
-                
-                int totalChars = 0;
-                int lineCount = 0;
-                boolean inQuote = false;
-                String s;
-                while (totalChars < 64 * 1024 &&
-                       lineCount < 100 &&
-                       (s = lineNumberReader.readLine()) != null) {
-                    
-                    totalChars += s.length() + 1; // count the new line character
-                    if (s.length() == 0) {
-                        continue;
-                    }
-                    if (!inQuote) {
-                        lineCount++;
-                    }
-                    
-                    for (int i = 0; i < s.length(); i++) {
-                        char c = s.charAt(i);
-                        if ('"' == c) {
-                            inQuote = !inQuote;
-                        }
-                        if (!Character.isLetterOrDigit(c) 
-                                && !"\"' .-".contains(s.subSequence(i, i + 1)) 
-                                && (!handleQuotes || !inQuote)) {
-                            Separator separator = separatorMap.get(c);
-                            if (separator == null) {
-                                separator = new Separator();
-                                separator.separator = c;
-                                
-                                separatorMap.put(c, separator);
-                                separators.add(separator);
-                            }
-                            separator.currentLineCount++;
-                        }
-                     }
-                    
-                    if (!inQuote) {
-                        for (Separator separator : separators) {
-                            separator.totalCount += separator.currentLineCount;
-                            separator.totalOfSquaredCount += separator.currentLineCount * separator.currentLineCount;
-                            separator.currentLineCount = 0;
-                        }
-                    }
-                }
-                
-                if (separators.size() > 0) {
-                    for (Separator separator : separators) {
-                        separator.averagePerLine = separator.totalCount / (double) lineCount;
-                         separator.stddev = Math.sqrt(
-                                 (((double)lineCount * separator.totalOfSquaredCount) - (separator.totalCount * separator.totalCount))
-                                        / ((double)lineCount*(lineCount-1))
-                            );
-                    }
-                    
-                    Collections.sort(separators, new Comparator<Separator>() {
-                        @Override
-                        public int compare(Separator sep0, Separator sep1) {
-                        	if(sep0.stddev == 0 && sep1.stddev == 0)
-                        		return -1*Double.compare(sep0.averagePerLine, 
-                                        sep1.averagePerLine);
-                        	else
-                        		return Double.compare(sep0.stddev / sep0.averagePerLine, 
-                        				sep1.stddev / sep1.averagePerLine);
-                        }
-                    });
-                    
-                    for (Separator separator : separators) {
-                    	//	Separator separator = separators.get(0);
-	                    if (separator.averagePerLine >= 1.0 && (separator.stddev / separator.averagePerLine < 0.1)) {
-	                        return separator.separator;
-	                    }
-                    }
-                   
-                }
+                return guessSeparator(reader, handleQuotes);
             } finally {
-                lineNumberReader.close();
                 reader.close();
                 is.close();
             }
@@ -149,5 +71,95 @@ public class SeparatorGuesser {
         return 0;
     }
 
+    /**
+     * Guesses the separator from the first lines of the reader, the reader is not closed.
+     *
+     * @param reader the reader
+     * @param handleQuotes if true separators within quotes are not counted
+     * @return the separator or 0 if none was found
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    static public char guessSeparator(Reader reader, boolean handleQuotes) throws IOException {
+        LineNumberReader lineNumberReader = new LineNumberReader(reader);
+        List<Separator> separators = new ArrayList<SeparatorGuesser.Separator>();
+        Map<Character, Separator> separatorMap = new HashMap<Character, SeparatorGuesser.Separator>();
+        
+        int totalChars = 0;
+        int lineCount = 0;
+        boolean inQuote = false;
+        String s;
+        while (totalChars < 64 * 1024 &&
+               lineCount < 100 &&
+               (s = lineNumberReader.readLine()) != null) {
+            
+            totalChars += s.length() + 1; // count the new line character
+            if (s.length() == 0) {
+                continue;
+            }
+            if (!inQuote) {
+                lineCount++;
+            }
+            
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if ('"' == c) {
+                    inQuote = !inQuote;
+                }
+                if (!Character.isLetterOrDigit(c) 
+                        && !"\"' .-".contains(s.subSequence(i, i + 1)) 
+                        && (!handleQuotes || !inQuote)) {
+                    Separator separator = separatorMap.get(c);
+                    if (separator == null) {
+                        separator = new Separator();
+                        separator.separator = c;
+                        
+                        separatorMap.put(c, separator);
+                        separators.add(separator);
+                    }
+                    separator.currentLineCount++;
+                }
+             }
+            
+            if (!inQuote) {
+                for (Separator separator : separators) {
+                    separator.totalCount += separator.currentLineCount;
+                    separator.totalOfSquaredCount += separator.currentLineCount * separator.currentLineCount;
+                    separator.currentLineCount = 0;
+                }
+            }
+        }
+        
+        if (separators.size() > 0) {
+            for (Separator separator : separators) {
+                separator.averagePerLine = separator.totalCount / (double) lineCount;
+                 separator.stddev = Math.sqrt(
+                         (((double)lineCount * separator.totalOfSquaredCount) - (separator.totalCount * separator.totalCount))
+                                / ((double)lineCount*(lineCount-1))
+                    );
+            }
+            
+            Collections.sort(separators, new Comparator<Separator>() {
+                @Override
+                public int compare(Separator sep0, Separator sep1) {
+                	if(sep0.stddev == 0 && sep1.stddev == 0)
+                		return -1*Double.compare(sep0.averagePerLine, 
+                                sep1.averagePerLine);
+                	else
+                		return Double.compare(sep0.stddev / sep0.averagePerLine, 
+                				sep1.stddev / sep1.averagePerLine);
+                }
+            });
+            
+            for (Separator separator : separators) {
+            	//	Separator separator = separators.get(0);
+	            if (separator.averagePerLine >= 1.0 && (separator.stddev / separator.averagePerLine < 0.1)) {
+	                return separator.separator;
+	            }
+            }
+           
+        }
+        return 0;
+    }
+
 
 }
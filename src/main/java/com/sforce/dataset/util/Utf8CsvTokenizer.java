@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.sforce.dataset.util.CSVReader.CSVParseException;
+
+/**
+ * The Class Utf8CsvTokenizer.
+ *
+ * The byte oriented version of {@link CsvTokenizer} for UTF-8 input. The same
+ * state machine runs directly on the raw bytes, which works because the
+ * separators, quote and line breaks are ASCII and can never be part of a multi
+ * byte UTF-8 sequence. The bytes of each field are validated as they are
+ * completed, invalid UTF-8 throws a {@link MalformedInputException} the same
+ * as a decoder that reports errors would. Records are returned as
+ * {@link Utf8Record}s that keep the bytes and only decode the fields that are
+ * asked for.
+ */
+public class Utf8CsvTokenizer {
+
+	//Character classes
+	private static final byte OTHER = 0;
+	private static final byte SEPARATOR = 1;
+	private static final byte QUOTE = 2;
+	private static final byte CR = 3;
+	private static final byte LF = 4;
+
+	//Parser states
+	private static final int FIELD_START = 0;
+	private static final int UNQUOTED = 1;
+	private static final int QUOTED = 2;
+	private static final int QUOTE_IN_QUOTED = 3;
+
+	private static final int bufferSize = 65536;
+
+	private final InputStream in;
+	private final byte[] buf = new byte[bufferSize];
+	private int pos = 0;
+	private int limit = 0;
+	private long bufferOffset = 0;
+	private long recordStart = 0;
+	private long recordEnd = 0;
+
+	private final byte[] byteClass = new byte[256];
+
+	private byte[] data = new byte[4096];
+	private int dataLength = 0;
+	private int fieldStart = 0;
+	private int[] fieldEnds = new int[64];
+	private int fieldCount = 0;
+	private int recordChars = 0;
+
+	private boolean ignoreBlankRecords = true;
+	private int maxSizeOfIndividualCell = 32000;
+	private int maxColumnsPerRow = 5000;
+
+	private boolean skipLF = false;
+	private boolean atEOF = false;
+	private int lineno = 1;
+
+	/**
+	 * Checks if the separators can be used with this tokenizer.
+	 *
+	 * @param separators the separators
+	 * @return true, if all the separators are ASCII
+	 */
+	public static boolean isSupported(char[] separators) {
+		for (char separator : separators) {
+			if (separator >= 128 || separator == '"' || separator == '\r' || separator == '\n')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Instantiates a new utf8 csv tokenizer.
+	 *
+	 * @param in the UTF-8 input, without a byte order mark
+	 * @param separators the separators, must be ASCII
+	 */
+	public Utf8CsvTokenizer(InputStream in, char[] separators) {
+		if (!isSupported(separators))
+			throw new IllegalArgumentException("Separators must be ASCII characters");
+		this.in = in;
+		for (char separator : separators) {
+			byteClass[separator] = SEPARATOR;
+		}
+		byteClass['"'] = QUOTE;
+		byteClass['\r'] = CR;
+		byteClass['\n'] = LF;
+	}
+
+	/**
+	 * Advances to the next record.
+	 *
+	 * @return false if there are no more records
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public boolean next() throws IOException {
+		while (readRecord()) {
+			if (!ignoreBlankRecords || dataLength > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the number of fields in the current record.
+	 *
+	 * @return the field count
+	 */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * Gets the field as a String.
+	 *
+	 * @param index the index
+	 * @return the field value or null if the field is empty
+	 */
+	public String getString(int index) {
+		int offset = index == 0 ? 0 : fieldEnds[index - 1];
+		int length = fieldEnds[index] - offset;
+		return length == 0 ? null : new String(data, offset, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Gets the number of characters in the current record, the same as the
+	 * length of its fields as Strings.
+	 *
+	 * @return the record length
+	 */
+	public int getRecordLength() {
+		return recordChars;
+	}
+
+	/**
+	 * Copies the current record.
+	 *
+	 * @return the record
+	 */
+	public Utf8Record toRecord() {
+		Utf8Record record = new Utf8Record(Arrays.copyOf(data, dataLength), Arrays.copyOf(fieldEnds, fieldCount));
+		record.setPosition(recordStart, (int) (recordEnd - recordStart));
+		return record;
+	}
+
+	/**
+	 * Gets the current line number.
+	 *
+	 * @return the line number
+	 */
+	public int getLineNumber() {
+		return lineno;
+	}
+
+	/**
+	 * Sets whether blank records are skipped.
+	 *
+	 * @param ignoreBlankRecords the new ignore blank records
+	 */
+	public void setIgnoreBlankRecords(boolean ignoreBlankRecords) {
+		this.ignoreBlankRecords = ignoreBlankRecords;
+	}
+
+	/**
+	 * Close.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private boolean readRecord() throws IOException {
+		if (atEOF)
+			return false;
+
+		dataLength = 0;
+		fieldStart = 0;
+		fieldCount = 0;
+		recordChars = 0;
+		recordStart = bufferOffset + pos;
+		int state = FIELD_START;
+
+		while (true) {
+			if (pos >= limit && !fill()) {
+				atEOF = true;
+				if (state == QUOTED)
+					throw new CSVParseException("EOF reached before closing an opened quote", lineno);
+				endField();
+				recordEnd = bufferOffset + pos;
+				return true;
+			}
+
+			byte b = buf[pos++];
+			if (skipLF) {
+				skipLF = false;
+				if (b == '\n') {
+					//The line feed of the last record's CRLF is not part of this record
+					if (state == FIELD_START && fieldCount == 0 && dataLength == 0)
+						recordStart = bufferOffset + pos;
+					continue;
+				}
+			}
+
+			byte cls = byteClass[b & 0xff];
+			switch (state) {
+			case FIELD_START:
+			case UNQUOTED:
+				switch (cls) {
+				case SEPARATOR:
+					endField();
+					state = FIELD_START;
+					break;
+				case QUOTE:
+					if (state == UNQUOTED)
+						throw new CSVParseException("Found unescaped quote. A value with quote should be within a quote", lineno);
+					state = QUOTED;
+					break;
+				case CR:
+					skipLF = true;
+				case LF:
+					lineno++;
+					endField();
+					recordEnd = bufferOffset + pos;
+					return true;
+				default:
+					appendRun(false);
+					state = UNQUOTED;
+				}
+				break;
+			case QUOTED:
+				switch (cls) {
+				case QUOTE:
+					state = QUOTE_IN_QUOTED;
+					break;
+				case CR:
+					skipLF = true;
+				case LF:
+					lineno++;
+					append((byte) '\n');
+					break;
+				default:
+					appendRun(true);
+				}
+				break;
+			default:
+				switch (cls) {
+				case QUOTE:
+					//escaped quote
+					append((byte) '"');
+					state = QUOTED;
+					break;
+				case SEPARATOR:
+					endField();
+					state = FIELD_START;
+					break;
+				case CR:
+					skipLF = true;
+				case LF:
+					lineno++;
+					endField();
+					recordEnd = bufferOffset + pos;
+					return true;
+				default:
+					//skip the offending text so that parsing resumes after it
+					while (pos < limit && byteClass[buf[pos] & 0xff] == OTHER) {
+						pos++;
+					}
+					throw new CSVParseException("Not expecting more text after end quote", lineno);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the byte just read and every following byte that does not change
+	 * the parser state into the record buffer in one go.
+	 */
+	private void appendRun(boolean quoted) throws CSVParseException {
+		int start = pos - 1;
+		while (pos < limit) {
+			byte cls = byteClass[buf[pos] & 0xff];
+			if (cls != OTHER && !(quoted && cls == SEPARATOR))
+				break;
+			pos++;
+		}
+		int length = pos - start;
+		ensureCapacity(length);
+		System.arraycopy(buf, start, data, dataLength, length);
+		dataLength += length;
+	}
+
+	private void append(byte b) throws CSVParseException {
+		ensureCapacity(1);
+		data[dataLength++] = b;
+	}
+
+	private void ensureCapacity(int length) throws CSVParseException {
+		//A character is at most 3 bytes, the exact character count is checked when the field ends
+		if (dataLength - fieldStart + length > maxSizeOfIndividualCell * 3)
+			throw new CSVParseException("Exceeded max field size: " + (dataLength - fieldStart + length), lineno);
+		if (dataLength + length > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + length));
+		}
+	}
+
+	private void endField() throws IOException {
+		int chars = validate(data, fieldStart, dataLength);
+		if (chars > maxSizeOfIndividualCell)
+			throw new CSVParseException("Exceeded max field size: " + chars, lineno);
+		recordChars += chars;
+		if (fieldCount == fieldEnds.length) {
+			fieldEnds = Arrays.copyOf(fieldEnds, fieldEnds.length * 2);
+		}
+		fieldEnds[fieldCount++] = dataLength;
+		fieldStart = dataLength;
+		if (fieldCount > maxColumnsPerRow)
+			throw new CSVParseException("Exceeded max number of columns per record : " + maxColumnsPerRow, lineno);
+	}
+
+	/**
+	 * Validates the UTF-8 bytes with the same rules as the JDK decoder (no
+	 * overlong forms, surrogates or code points above U+10FFFF).
+	 *
+	 * @return the number of UTF-16 chars the bytes decode to
+	 */
+	private static int validate(byte[] bytes, int start, int end) throws MalformedInputException {
+		int chars = 0;
+		int i = start;
+		while (i < end) {
+			int b = bytes[i];
+			if (b >= 0) {
+				//ASCII, the common case
+				i++;
+				chars++;
+				continue;
+			}
+			b &= 0xff;
+			int length;
+			int min = 0x80;
+			int max = 0xbf;
+			if (b >= 0xc2 && b <= 0xdf) {
+				length = 2;
+			} else if (b >= 0xe0 && b <= 0xef) {
+				length = 3;
+				if (b == 0xe0)
+					min = 0xa0;
+				else if (b == 0xed)
+					max = 0x9f;
+			} else if (b >= 0xf0 && b <= 0xf4) {
+				length = 4;
+				if (b == 0xf0)
+					min = 0x90;
+				else if (b == 0xf4)
+					max = 0x8f;
+			} else {
+				throw new MalformedInputException(1);
+			}
+			if (i + length > end)
+				throw new MalformedInputException(end - i);
+			int second = bytes[i + 1] & 0xff;
+			if (second < min || second > max)
+				throw new MalformedInputException(1);
+			for (int j = 2; j < length; j++) {
+				if ((bytes[i + j] & 0xc0) != 0x80)
+					throw new MalformedInputException(j);
+			}
+			i += length;
+			chars += length == 4 ? 2 : 1;
+		}
+		return chars;
+	}
+
+	private boolean fill() throws IOException {
+		bufferOffset += limit;
+		int n = in.read(buf, 0, buf.length);
+		while (n == 0) {
+			n = in.read(buf, 0, buf.length);
+		}
+		if (n < 0) {
+			pos = limit = 0;
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * The Class Utf8Record.
+ *
+ * A csv record read by {@link Utf8CsvTokenizer}, the fields are kept as slices
+ * of the UTF-8 bytes of the record and are only decoded to Strings when they
+ * are asked for, so that writers can copy the bytes of text fields as is.
+ * Empty fields are null, the same as the other csv readers.
+ */
+public class Utf8Record extends AbstractList<String> implements RandomAccess {
+
+	private final byte[] data;
+	private final int[] fieldEnds;
+	private String[] strings;
+	private long recordOffset = -1;
+	private int recordLength = 0;
+
+	/**
+	 * Instantiates a new utf8 record.
+	 *
+	 * @param data the UTF-8 bytes of the fields, one after the other
+	 * @param fieldEnds the end offset of each field in data
+	 */
+	public Utf8Record(byte[] data, int[] fieldEnds)
+	{
+		this.data = data;
+		this.fieldEnds = fieldEnds;
+	}
+
+	@Override
+	public String get(int index)
+	{
+		if(index<0 || index>=fieldEnds.length)
+			throw new IndexOutOfBoundsException("Index: "+index+", Size: "+fieldEnds.length);
+		if(isNull(index))
+			return null;
+		if(strings==null)
+			strings = new String[fieldEnds.length];
+		if(strings[index]==null)
+			strings[index] = new String(data, getOffset(index), getLength(index), StandardCharsets.UTF_8);
+		return strings[index];
+	}
+
+	@Override
+	public int size()
+	{
+		return fieldEnds.length;
+	}
+
+	/**
+	 * Gets the UTF-8 bytes of the record.
+	 *
+	 * @return the bytes
+	 */
+	public byte[] getBytes()
+	{
+		return data;
+	}
+
+	/**
+	 * Gets the offset of the field in the bytes.
+	 *
+	 * @param index the index
+	 * @return the offset
+	 */
+	public int getOffset(int index)
+	{
+		return index == 0 ? 0 : fieldEnds[index - 1];
+	}
+
+	/**
+	 * Gets the length of the field in bytes.
+	 *
+	 * @param index the index
+	 * @return the length
+	 */
+	public int getLength(int index)
+	{
+		return fieldEnds[index] - getOffset(index);
+	}
+
+	/**
+	 * Checks if the field is null.
+	 *
+	 * @param index the index
+	 * @return true, if the field is empty
+	 */
+	public boolean isNull(int index)
+	{
+		return getLength(index) == 0;
+	}
+
+	/**
+	 * Sets the position of the record in the input.
+	 *
+	 * @param recordOffset the byte offset of the record in the input
+	 * @param recordLength the number of bytes of the record, including its line break, a CRLF only up to the CR
+	 */
+	public void setPosition(long recordOffset, int recordLength)
+	{
+		this.recordOffset = recordOffset;
+		this.recordLength = recordLength;
+	}
+
+	/**
+	 * Gets the byte offset of the record in the input.
+	 *
+	 * @return the record offset or -1 if it is not known
+	 */
+	public long getRecordOffset()
+	{
+		return recordOffset;
+	}
+
+	/**
+	 * Gets the number of bytes of the record in the input.
+	 *
+	 * @return the record length
+	 */
+	public int getRecordLength()
+	{
+		return recordLength;
+	}
+}
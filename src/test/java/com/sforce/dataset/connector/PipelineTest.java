@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.sforce.dataset.connector.metadata.FieldType;
+import com.sforce.dataset.util.RowBatchRing;
+
+/**
+ * The Class PipelineTest.
+ *
+ * Hands rows from an OutputPipeline to an InputPipeline, through a 
+ * RowBatchRing and through a queue.
+ */
+public class PipelineTest {
+
+	private static List<FieldType> getFields()
+	{
+		FieldType name = new FieldType();
+		name.setName("Name");
+		name.setType(String.class);
+		FieldType amount = new FieldType();
+		amount.setName("Amount");
+		amount.setType(BigDecimal.class);
+		return Arrays.asList(name, amount);
+	}
+
+	@Test
+	public void testRingHandsRowsAcrossThreads() throws Exception
+	{
+		final int rows = 100000;
+		final RowBatchRing<List<Object>> ring = new RowBatchRing<List<Object>>(4, 64);
+		final OutputPipeline out = new OutputPipeline(ring, getFields());
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try
+				{
+					for(int i=0;i<rows;i++)
+					{
+						out.setData(Arrays.<Object>asList("row" + i, i % 3 == 0 ? null : new BigDecimal(i)));
+					}
+				}catch(Throwable t)
+				{
+					error.set(t);
+				}finally
+				{
+					out.close();
+				}
+			}
+		});
+		producer.start();
+
+		InputPipeline in = new InputPipeline(ring, getFields());
+		List<Object> row = null;
+		int count = 0;
+		while((row = in.get())!=null)
+		{
+			assertEquals("row" + count, row.get(0));
+			assertEquals(count % 3 == 0 ? null : new BigDecimal(count), row.get(1));
+			assertEquals(count, in.getCurRowIndex());
+			count++;
+		}
+		producer.join();
+		assertNull(error.get());
+		assertEquals(rows, count);
+		assertEquals(rows, out.getCurRowIndex());
+		//The ring stays closed
+		assertNull(in.get());
+	}
+
+	@Test
+	public void testRingRejectsMismatchedRows() throws Exception
+	{
+		RowBatchRing<List<Object>> ring = new RowBatchRing<List<Object>>(2, 4);
+		OutputPipeline out = new OutputPipeline(ring, getFields());
+		try
+		{
+			out.setData(Arrays.<Object>asList("a", "1"));
+			fail("A String is not a BigDecimal");
+		}catch(ClassCastException e)
+		{
+		}
+		try
+		{
+			out.setData(Arrays.<Object>asList("a"));
+			fail("The row has one column");
+		}catch(IllegalArgumentException e)
+		{
+		}
+		out.setData(Arrays.<Object>asList("b", BigDecimal.ONE));
+		out.close();
+
+		InputPipeline in = new InputPipeline(ring, getFields());
+		assertEquals(Arrays.<Object>asList("b", BigDecimal.ONE), in.get());
+		assertNull(in.get());
+		assertEquals(1, out.getCurRowIndex());
+	}
+
+	@Test
+	public void testQueue() throws Exception
+	{
+		LinkedBlockingQueue<List<Object>> queue = new LinkedBlockingQueue<List<Object>>();
+		OutputPipeline out = new OutputPipeline(queue, getFields());
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		for(int i=0;i<10;i++)
+		{
+			List<Object> row = Arrays.<Object>asList("row" + i, new BigDecimal(i));
+			rows.add(row);
+			out.setData(row);
+		}
+		//Closing is a no-op without a ring
+		out.close();
+
+		InputPipeline in = new InputPipeline(queue, getFields());
+		for(int i=0;i<10;i++)
+		{
+			assertEquals(rows.get(i), in.get());
+			assertEquals(i, in.getCurRowIndex());
+		}
+		assertEquals(0, queue.size());
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.dataset.loader.file.schema.ext.FieldType;
+
+/**
+ * The Class DatasetDeltaTest.
+ *
+ * Checks the upsert and delete files of a delta against the snapshot of the
+ * last load, and that the snapshot only moves forward when it is committed.
+ */
+public class DatasetDeltaTest {
+
+	private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+	private File dir;
+	private File inputFile;
+	private File snapshotFile;
+	private PrintStream logger;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("DatasetDeltaTest").toFile();
+		inputFile = new File(dir, "input.csv");
+		snapshotFile = DatasetDelta.getSnapshotFile(dir, "Opportunity");
+		logger = new PrintStream(new ByteArrayOutputStream(), true);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private static List<FieldType> fields(String... uniqueIds)
+	{
+		List<FieldType> fields = new ArrayList<FieldType>();
+		fields.add(FieldType.GetStringKeyDataType("Id", null, null));
+		fields.add(FieldType.GetStringKeyDataType("Name", null, null));
+		fields.add(FieldType.GetMeasureKeyDataType("Amount", 18, 2, 0L));
+		for(FieldType field:fields)
+		{
+			field.setUniqueId(Arrays.asList(uniqueIds).contains(field.getName()));
+		}
+		return fields;
+	}
+
+	private DatasetDelta compute(String csv, List<FieldType> fields) throws IOException
+	{
+		FileUtils.writeStringToFile(inputFile, csv, UTF8);
+		return DatasetDelta.compute(inputFile, UTF8, ',', fields, snapshotFile, logger);
+	}
+
+	private static String read(File file) throws IOException
+	{
+		return FileUtils.readFileToString(file, UTF8).replace("\r\n", "\n");
+	}
+
+	@Test
+	public void testFirstLoadHasNoSnapshot() throws IOException
+	{
+		DatasetDelta delta = compute("Id,Name,Amount\n1,a,10\n2,b,20\n", fields("Id"));
+		assertFalse(delta.hasSnapshot());
+		assertEquals(2, delta.getTotalRowCount());
+		assertFalse(delta.getUpsertFile().exists());
+		assertFalse(delta.getDeleteFile().exists());
+		delta.commit();
+		assertTrue(snapshotFile.exists());
+	}
+
+	@Test
+	public void testUpsertsAndDeletes() throws IOException
+	{
+		compute("Id,Name,Amount\n1,a,10\n2,b,20\n3,c,30\n4,d,40\n", fields("Id")).commit();
+
+		DatasetDelta delta = compute("Id,Name,Amount\n1,a,10\n2,b,21\n4,d,40\n5,e,50\n", fields("Id"));
+		assertTrue(delta.hasSnapshot());
+		assertEquals(4, delta.getTotalRowCount());
+		assertEquals(2, delta.getUpsertRowCount());
+		assertEquals(1, delta.getDeleteRowCount());
+		assertEquals("Id,Name,Amount\n2,b,21\n5,e,50\n", read(delta.getUpsertFile()));
+		assertEquals("Id,Name,Amount\n3,,\n", read(delta.getDeleteFile()));
+		delta.commit();
+
+		//The same file again has nothing to upload
+		delta = compute("Id,Name,Amount\n1,a,10\n2,b,21\n4,d,40\n5,e,50\n", fields("Id"));
+		assertEquals(0, delta.getUpsertRowCount());
+		assertEquals(0, delta.getDeleteRowCount());
+	}
+
+	@Test
+	public void testCompositeKey() throws IOException
+	{
+		compute("Id,Name,Amount\n1,a,10\n1,b,20\n", fields("Id", "Name")).commit();
+		DatasetDelta delta = compute("Id,Name,Amount\n1,a,11\n2,b,20\n", fields("Id", "Name"));
+		assertEquals("Id,Name,Amount\n1,a,11\n2,b,20\n", read(delta.getUpsertFile()));
+		assertEquals("Id,Name,Amount\n1,b,\n", read(delta.getDeleteFile()));
+	}
+
+	@Test
+	public void testSchemaChangeIgnoresSnapshot() throws IOException
+	{
+		compute("Id,Name,Amount\n1,a,10\n", fields("Id")).commit();
+		assertFalse(compute("Id,Name,Amount\n1,a,10\n", fields("Name")).hasSnapshot());
+	}
+
+	@Test
+	public void testPendingSnapshot() throws IOException
+	{
+		compute("Id,Name,Amount\n1,a,10\n", fields("Id")).commit();
+		assertNull(DatasetDelta.getPendingUploads(snapshotFile));
+
+		//The snapshot of the last load stays in place until the uploads have been processed
+		DatasetDelta delta = compute("Id,Name,Amount\n1,a,11\n", fields("Id"));
+		delta.setPending(Arrays.asList("06V000000000001", "06V000000000002"));
+		delta.discard();
+		assertEquals(Arrays.asList("06V000000000001", "06V000000000002"), DatasetDelta.getPendingUploads(snapshotFile));
+		assertEquals(1, compute("Id,Name,Amount\n1,a,11\n", fields("Id")).getUpsertRowCount());
+
+		//A failed upload keeps the snapshot before it
+		DatasetDelta.discardPending(snapshotFile);
+		assertNull(DatasetDelta.getPendingUploads(snapshotFile));
+		assertEquals(1, compute("Id,Name,Amount\n1,a,11\n", fields("Id")).getUpsertRowCount());
+
+		//A completed upload moves the snapshot forward
+		delta = compute("Id,Name,Amount\n1,a,11\n", fields("Id"));
+		delta.setPending(Arrays.asList("06V000000000003"));
+		DatasetDelta.commitPending(snapshotFile);
+		assertNull(DatasetDelta.getPendingUploads(snapshotFile));
+		assertEquals(0, compute("Id,Name,Amount\n1,a,11\n", fields("Id")).getUpsertRowCount());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNoUniqueId() throws IOException
+	{
+		compute("Id,Name,Amount\n1,a,10\n", fields());
+	}
+}
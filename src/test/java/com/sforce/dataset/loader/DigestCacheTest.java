@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The Class DigestCacheTest.
+ *
+ * Checks the lookup, the input length pre check and the eviction of the
+ * digest cache of a dataset.
+ */
+public class DigestCacheTest {
+
+	private File dir;
+	private PrintStream logger;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("DigestCacheTest").toFile();
+		logger = new PrintStream(new ByteArrayOutputStream(), true);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private File newFile(String name, int length) throws IOException
+	{
+		File file = new File(dir, name);
+		FileUtils.writeByteArrayToFile(file, new byte[length]);
+		return file;
+	}
+
+	@Test
+	public void testPutAndGet() throws IOException
+	{
+		DigestCache cache = new DigestCache(dir, 1000, logger);
+		assertFalse(cache.mayContain(10));
+
+		File input = newFile("input.csv", 10);
+		String key = DigestCache.getKey(DigestCache.hashFile(input), null, "binary");
+		File gzFile = newFile("06V000000000001.input.gz", 100);
+		byte[] json = "{}".getBytes(StandardCharsets.UTF_8);
+		cache.put(key, gzFile, json, input.length());
+
+		assertTrue(cache.mayContain(10));
+		assertFalse(cache.mayContain(11));
+		DigestCache.Entry entry = cache.get(key);
+		assertNotNull(entry);
+		assertEquals(gzFile, entry.getGzFile());
+		assertArrayEquals(json, entry.getMetadataJson());
+		assertNull(cache.get(DigestCache.getKey(DigestCache.hashFile(input), null, "csv")));
+
+		//An entry whose gzip file changed is dropped
+		newFile("06V000000000001.input.gz", 101);
+		assertNull(cache.get(key));
+		assertFalse(cache.mayContain(10));
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws IOException, InterruptedException
+	{
+		DigestCache cache = new DigestCache(dir, 250, logger);
+		byte[] json = "{}".getBytes(StandardCharsets.UTF_8);
+		File first = newFile("1.gz", 100);
+		File second = newFile("2.gz", 100);
+		File third = newFile("3.gz", 100);
+		cache.put("k1", first, json, 1);
+		Thread.sleep(5);
+		cache.put("k2", second, json, 2);
+		Thread.sleep(5);
+		assertNotNull(cache.get("k1"));
+		Thread.sleep(5);
+		cache.put("k3", third, json, 3);
+
+		assertNotNull(cache.get("k1"));
+		assertNull(cache.get("k2"));
+		assertFalse(second.exists());
+		assertNotNull(cache.get("k3"));
+	}
+
+	@Test
+	public void testIndexWithoutInputLength() throws IOException
+	{
+		//Entries written before the input length was kept could match any file
+		newFile("1.gz", 100);
+		FileUtils.writeStringToFile(new File(dir, "k1.digest.json"), "{}", StandardCharsets.UTF_8);
+		FileUtils.writeStringToFile(new File(dir, "digest.cache"), "k1,1.gz,100,0\n", StandardCharsets.UTF_8);
+		DigestCache cache = new DigestCache(dir, 1000, logger);
+		assertTrue(cache.mayContain(12345));
+		assertNotNull(cache.get("k1"));
+	}
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import javax.script.ScriptEngineManager;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import com.sforce.dataset.Preferences;
+import com.sforce.dataset.loader.file.schema.ext.FieldType;
+import com.sforce.dataset.util.CSVReader;
+import com.sforce.dataset.util.FiscalDateUtil;
+import com.sforce.dataset.util.Utf8Record;
+
+/**
+ * The Class EbinFormatWriterTest.
+ *
+ * Compares the output of the writer with golden files. The golden files were
+ * written by the encoder that EbinFormatWriter had before the row plan, which
+ * built the rows from linked lists and String.getBytes(), so they hold the
+ * output the rewritten encoder must keep. The rows cover measures with and 
+ * without a number format, dates with and without fiscal parts, multi-value 
+ * fields, the truncation of text at the precision or at 255, skipped fields 
+ * and computed fields. The date columns are also compared with the same 
+ * columns written as text and measures whose values are worked out with 
+ * SimpleDateFormat and Calendar, the way the writer did before it had the 
+ * FastDateParser and the date cache, and the text columns of records read 
+ * from UTF-8 csv, whose bytes are copied as is, with the same values as 
+ * Strings.
+ */
+public class EbinFormatWriterTest {
+
+	/**
+	 * Gets the fields of the golden files.
+	 *
+	 * @param computed whether to add the computed fields
+	 * @return the fields
+	 */
+	static List<FieldType> getFields(boolean computed)
+	{
+		Preferences fiscal = new Preferences();
+		fiscal.fiscalMonthOffset = 3;
+		fiscal.firstDayOfWeek = 2;
+		fiscal.isYearEndFiscalYear = true;
+		Preferences calendar = new Preferences();
+
+		List<FieldType> fields = new ArrayList<FieldType>();
+		fields.add(FieldType.GetStringKeyDataType("Name", null, null));
+		fields.add(FieldType.GetMeasureKeyDataType("Amount", 16, 2, 0L));
+		FieldType quantity = FieldType.GetMeasureKeyDataType("Quantity", 10, 0, 0L);
+		quantity.setFormat("#,##0");
+		fields.add(quantity);
+		fields.add(FieldType.GetDateKeyDataType("CloseDate", "yyyy-MM-dd", null, fiscal));
+		fields.add(FieldType.GetDateKeyDataType("CreatedDate", "MM/dd/yyyy HH:mm:ss", null, calendar));
+		fields.add(FieldType.GetStringKeyDataType("Tags", ";", null));
+		FieldType internal = FieldType.GetStringKeyDataType("Internal", null, null);
+		internal.isSkipped = true;
+		fields.add(internal);
+		FieldType stage = FieldType.GetStringKeyDataType("Stage", null, "None");
+		stage.setPrecision(5);
+		fields.add(stage);
+		if(computed)
+		{
+			FieldType doubled = FieldType.GetMeasureKeyDataType("Doubled", 16, 2, 0L);
+			doubled.isComputedField = true;
+			doubled.setComputedFieldExpression("curr.Amount * 2");
+			fields.add(doubled);
+			FieldType label = FieldType.GetStringKeyDataType("Label", null, null);
+			label.isComputedField = true;
+			label.setComputedFieldExpression("curr.Name + '-' + curr.Stage");
+			fields.add(label);
+		}
+		return fields;
+	}
+
+	/**
+	 * Gets the rows of the golden files, the values of the computed fields are left out.
+	 *
+	 * @return the rows
+	 */
+	static List<List<String>> getRows()
+	{
+		String longText = StringUtils.repeat("abcdé", 60) + "😀tail";
+		List<List<String>> rows = new ArrayList<List<String>>();
+		rows.add(Arrays.asList("Acme", "1234.56", "1,234", "2019-01-31", "01/31/2019 13:45:07", "a;b;c", "x", "Closed Won"));
+		rows.add(Arrays.asList("Ünïcödé 日本語", "-7.25", "0", "2020-02-29", "12/31/2020 23:59:59", "x", "y", "Open"));
+		rows.add(Arrays.asList(longText, "0.001", "12", "2019-12-30", "06/15/1999 00:00:00", "long;;tail;" + longText, null, "Prospecting"));
+		rows.add(Arrays.asList("Nulls", null, null, null, null, null, null, null));
+		rows.add(Arrays.asList("Big", "99999999.99", "1,000,000", "2019-03-31", "04/01/1999 12:00:00", "😀;b", "z", "Lost"));
+		rows.add(Arrays.asList("  spaced  ", "  42.5 ", "7", "2019-04-01", "02/29/2000 06:07:08", "", "", ""));
+		rows.add(Arrays.asList("Acme", "1234.56", "1,234", "2019-01-31", "01/31/2019 13:45:07", "a;b;c", "x", "Closed Won"));
+		rows.add(Arrays.asList("Year end", "-0.5", "-3", "2000-12-31", "12/31/1999 23:59:59", "q", "w", "Won"));
+		return rows;
+	}
+
+	/**
+	 * Writes the rows with the EbinFormatWriter.
+	 */
+	static byte[] write(List<FieldType> fields, List<? extends List<String>> rows) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EbinFormatWriter writer = new EbinFormatWriter(out, fields, new PrintStream(new ByteArrayOutputStream(), true));
+		for(List<String> row:rows)
+		{
+			writer.addrow(row);
+		}
+		writer.finish();
+		return out.toByteArray();
+	}
+
+	private static byte[] getGolden(String name) throws IOException
+	{
+		InputStream in = EbinFormatWriterTest.class.getResourceAsStream(name);
+		assertNotNull(name, in);
+		try
+		{
+			return IOUtils.toByteArray(in);
+		}finally
+		{
+			in.close();
+		}
+	}
+
+	@Test
+	public void testGoldenOutput() throws Exception
+	{
+		assertArrayEquals(getGolden("EbinFormatWriterTest.golden.bin"), write(getFields(false), getRows()));
+	}
+
+	@Test
+	public void testGoldenOutputWithComputedFields() throws Exception
+	{
+		assertArrayEquals(getGolden("EbinFormatWriterTest.computed.golden.bin"), write(getFields(true), getRows()));
+	}
+
+	@Test
+	public void testTruncationKeepsSurrogatePairs() throws Exception
+	{
+		List<FieldType> fields = new ArrayList<FieldType>();
+		fields.add(FieldType.GetStringKeyDataType("Name", null, null));
+		FieldType stage = FieldType.GetStringKeyDataType("Stage", null, null);
+		stage.setPrecision(5);
+		fields.add(stage);
+
+		//Text is cut after 255 code points, or precision code points, a surrogate pair is never split
+		String kept = StringUtils.repeat("a", 254) + "😀";
+		List<String> row = Arrays.asList(kept + "b", "Won 😀😀");
+		List<String> truncated = Arrays.asList(kept, "Won 😀");
+		assertArrayEquals(write(fields, Arrays.asList(truncated)), write(fields, Arrays.asList(row)));
+
+		String shortText = StringUtils.repeat("😀", 255);
+		row = Arrays.asList(shortText + "😀", "日本語です");
+		truncated = Arrays.asList(shortText, "日本語です");
+		assertArrayEquals(write(fields, Arrays.asList(truncated)), write(fields, Arrays.asList(row)));
+	}
+
+	/**
+	 * Replaces the date columns with the text and measure columns the writer
+	 * adds for them, in the same order.
+	 */
+	private static List<FieldType> getReferenceFields(List<FieldType> fields)
+	{
+		List<FieldType> reference = new ArrayList<FieldType>();
+		for(FieldType field:fields)
+		{
+			if(field.getfType() != FieldType.DATE)
+			{
+				reference.add(field);
+				continue;
+			}
+			String name = field.getName();
+			reference.add(FieldType.GetStringKeyDataType(name, null, null));
+			reference.add(FieldType.GetMeasureKeyDataType(name + "_sec_epoch", 0 , 0, 0L));
+			reference.add(FieldType.GetMeasureKeyDataType(name + "_day_epoch", 0 , 0, 0L));
+			for(String part:new String[]{"_Day", "_Month", "_Year", "_Quarter", "_Week", "_Hour", "_Minute", "_Second"})
+			{
+				reference.add(FieldType.GetStringKeyDataType(name + part, null, null));
+			}
+			if(field.getFiscalMonthOffset()>0)
+			{
+				for(String part:new String[]{"_Month_Fiscal", "_Year_Fiscal", "_Quarter_Fiscal", "_Week_Fiscal"})
+				{
+					reference.add(FieldType.GetStringKeyDataType(name + part, null, null));
+				}
+			}
+		}
+		return reference;
+	}
+
+	/**
+	 * Replaces the date values with the values of the reference columns, the 
+	 * date is parsed with its own strict SimpleDateFormat.
+	 */
+	private static List<String> getReferenceRow(List<FieldType> fields, List<String> row) throws Exception
+	{
+		DecimalFormat df = new DecimalFormat("00");
+		DecimalFormat df4 = new DecimalFormat("0000");
+		Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+		List<String> reference = new ArrayList<String>();
+		for(int i=0;i<fields.size();i++)
+		{
+			FieldType field = fields.get(i);
+			String value = row.get(i);
+			if(field.getfType() != FieldType.DATE)
+			{
+				reference.add(value);
+				continue;
+			}
+			int dateParts = field.getFiscalMonthOffset()>0 ? 12 : 8;
+			if(value==null)
+			{
+				reference.add(null);
+				reference.add("0");
+				reference.add("0");
+				for(int j=0;j<dateParts;j++)
+				{
+					reference.add(null);
+				}
+				continue;
+			}
+			SimpleDateFormat sdf = new SimpleDateFormat(field.getFormat());
+			sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+			sdf.setLenient(false);
+			Date dt = sdf.parse(value);
+			cal.setFirstDayOfWeek(field.getFirstDayOfWeek());
+			cal.setTime(dt);
+			int month = cal.get(Calendar.MONTH);
+			int year = cal.get(Calendar.YEAR);
+			reference.add(value);
+			reference.add(Long.toString(dt.getTime()/(1000)));
+			reference.add(Long.toString(dt.getTime()/(1000*60*60*24)));
+			reference.add(df.format(cal.get(Calendar.DAY_OF_MONTH)));
+			reference.add(df.format(month+1));
+			reference.add(df4.format(year));
+			reference.add(Integer.toString(FiscalDateUtil.getCalendarQuarter(month)));
+			reference.add(df.format(FiscalDateUtil.getCalendarWeek(cal, field.getFirstDayOfWeek())));
+			reference.add(df.format(cal.get(Calendar.HOUR_OF_DAY)));
+			reference.add(df.format(cal.get(Calendar.MINUTE)));
+			reference.add(df.format(cal.get(Calendar.SECOND)));
+			if(dateParts>8)
+			{
+				int fiscalMonthOffset = field.getFiscalMonthOffset();
+				reference.add(df.format(FiscalDateUtil.getFiscalMonth(month, fiscalMonthOffset)+1));
+				reference.add(df4.format(FiscalDateUtil.getFiscalYear(year, month, fiscalMonthOffset, field.isYearEndFiscalYear)));
+				reference.add(Integer.toString(FiscalDateUtil.getFiscalQuarter(month, fiscalMonthOffset)));
+				reference.add(df.format(FiscalDateUtil.getFiscalWeek(cal, fiscalMonthOffset, field.getFirstDayOfWeek())));
+			}
+		}
+		return reference;
+	}
+
+	@Test
+	public void testDatesMatchSimpleDateFormat() throws Exception
+	{
+		Preferences fiscal = new Preferences();
+		fiscal.fiscalMonthOffset = 9;
+		fiscal.firstDayOfWeek = 1;
+		List<FieldType> fields = new ArrayList<FieldType>();
+		fields.add(FieldType.GetStringKeyDataType("Id", null, null));
+		fields.add(FieldType.GetDateKeyDataType("CloseDate", "yyyy-MM-dd", null, fiscal));
+		fields.add(FieldType.GetDateKeyDataType("CreatedDate", "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", null, new Preferences()));
+		fields.add(FieldType.GetDateKeyDataType("ShortDate", "MM/dd/yy", null, new Preferences()));
+
+		//More distinct dates than the cache holds, then the first ones again after they were evicted
+		Random random = new Random(7);
+		SimpleDateFormat closeFormat = new SimpleDateFormat("yyyy-MM-dd");
+		SimpleDateFormat createdFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		SimpleDateFormat shortFormat = new SimpleDateFormat("MM/dd/yy");
+		for(SimpleDateFormat sdf:new SimpleDateFormat[]{closeFormat, createdFormat, shortFormat})
+		{
+			sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+		}
+		List<List<String>> distinct = new ArrayList<List<String>>();
+		for(int i=0;i<6000;i++)
+		{
+			//From 1950 to 2050
+			Date dt = new Date(-631152000000L + (long) (random.nextDouble() * 3155760000000L));
+			distinct.add(Arrays.asList("" + i, closeFormat.format(dt), createdFormat.format(dt), shortFormat.format(dt)));
+		}
+		List<List<String>> rows = new ArrayList<List<String>>(distinct);
+		rows.addAll(distinct.subList(0, 1000));
+		rows.addAll(distinct.subList(5000, 6000));
+		//Values the FastDateParser leaves to the SimpleDateFormat, dates before 1582, unpadded dates and two digit years
+		String[][] fallback = {{"1500-03-01", "1066-10-14T09:00:00.000Z", "03/01/00"}, {"1582-10-04", "1582-10-15T00:00:00.000Z", "12/31/49"},
+				{"2019-1-5", "2019-01-05T1:2:3.4Z", "1/5/19"}, {"2020-02-29", "2020-02-29T23:59:59.999Z", "02/29/20"}, {null, null, null}};
+		for(int j=0;j<2;j++)
+		{
+			for(int i=0;i<fallback.length;i++)
+			{
+				rows.add(Arrays.asList("fallback" + i, fallback[i][0], fallback[i][1], fallback[i][2]));
+			}
+		}
+
+		List<List<String>> referenceRows = new ArrayList<List<String>>();
+		for(List<String> row:rows)
+		{
+			referenceRows.add(getReferenceRow(fields, row));
+		}
+		assertArrayEquals(write(getReferenceFields(fields), referenceRows), write(fields, rows));
+
+		//Invalid dates are rejected by both, even after the valid ones were cached
+		String[][] invalid = {{"2019-02-29", "2019-01-01T00:00:00.000Z", "01/01/19"}, {"2019-01-01", "2019-13-01T00:00:00.000Z", "01/01/19"},
+				{"2019-01-01", "2019-01-01T24:00:00.000Z", "01/01/19"}, {"2019-01-01", "2019-01-01T00:00:00.000Z", "02/29/19"}};
+		for(String[] values:invalid)
+		{
+			List<String> row = Arrays.asList("invalid", values[0], values[1], values[2]);
+			try
+			{
+				write(fields, Arrays.asList(Arrays.asList("valid", "2019-01-01", "2019-01-01T00:00:00.000Z", "01/01/19"), row));
+				fail(row.toString());
+			}catch(ParseException e)
+			{
+			}
+			try
+			{
+				getReferenceRow(fields, row);
+				fail(row.toString());
+			}catch(ParseException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Writes the rows as UTF-8 csv and reads them back the way the loader does.
+	 */
+	private static List<Utf8Record> readUtf8(List<List<String>> rows) throws IOException
+	{
+		StringBuilder csv = new StringBuilder();
+		for(List<String> row:rows)
+		{
+			for(int i=0;i<row.size();i++)
+			{
+				if(i>0)
+					csv.append(',');
+				if(row.get(i)!=null)
+					csv.append('"').append(row.get(i).replace("\"", "\"\"")).append('"');
+			}
+			csv.append("\r\n");
+		}
+		CSVReader reader = CSVReader.newReader(new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.UTF_8)), "UTF-8", new char[]{','}, true, true);
+		try
+		{
+			List<Utf8Record> records = new ArrayList<Utf8Record>();
+			List<String> record = null;
+			while((record = reader.nextRow())!=null)
+			{
+				assertTrue(record instanceof Utf8Record);
+				records.add((Utf8Record) record);
+			}
+			return records;
+		}finally
+		{
+			reader.finalise();
+		}
+	}
+
+	/**
+	 * Decodes the records to Strings.
+	 */
+	private static List<List<String>> decode(List<Utf8Record> records)
+	{
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for(Utf8Record record:records)
+		{
+			rows.add(new ArrayList<String>(record));
+		}
+		return rows;
+	}
+
+	@Test
+	public void testRawUtf8MatchesDecodedText() throws Exception
+	{
+		List<FieldType> fields = new ArrayList<FieldType>();
+		fields.add(FieldType.GetStringKeyDataType("Name", null, null));
+		FieldType stage = FieldType.GetStringKeyDataType("Stage", null, "None");
+		stage.setPrecision(5);
+		fields.add(stage);
+		fields.add(FieldType.GetStringKeyDataType("Tags", ";", null));
+		fields.add(FieldType.GetMeasureKeyDataType("Amount", 16, 2, 0L));
+
+		//The 255 code point limit falls inside, before and after one, two, three and four byte characters
+		String a254 = StringUtils.repeat("a", 254);
+		String[] names = {a254 + "éx", a254 + "日本", a254 + "😀😀", a254 + "a😀", StringUtils.repeat("😀", 255) + "x", StringUtils.repeat("日", 300),
+				StringUtils.repeat("é", 255), StringUtils.repeat("é", 256), a254 + "é", "quoted \"日本\", with a comma", "line1\nline2 é", "x", null};
+		String[] stages = {"Wön 😀😀", "日本語です!", "ab", "😀😀😀😀😀😀", "abcdé", null, "é"};
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for(int i=0;i<names.length;i++)
+		{
+			rows.add(Arrays.asList(names[i], stages[i%stages.length], "a;日本;" + names[i], "" + i));
+		}
+		List<Utf8Record> records = readUtf8(rows);
+		assertArrayEquals(write(fields, decode(records)), write(fields, records));
+		assertArrayEquals(write(fields, rows), write(fields, records));
+
+		//The rows of the golden file, read from csv, the empty values become null
+		records = readUtf8(getRows());
+		assertArrayEquals(write(getFields(false), decode(records)), write(getFields(false), records));
+	}
+
+	@Test
+	public void testUnevaluableExpressionFailsAtConstruction() throws Exception
+	{
+		//With a JavaScript engine these expressions are left to it
+		assumeTrue(new ScriptEngineManager().getEngineByName("JavaScript")==null);
+		String[] expressions = {"curr.Missing * 2", "curr.Later + '-'", "prev.Missing", "(function() { return 1; })()"};
+		for(String expression:expressions)
+		{
+			List<FieldType> fields = new ArrayList<FieldType>();
+			fields.add(FieldType.GetStringKeyDataType("Name", null, null));
+			fields.add(FieldType.GetMeasureKeyDataType("Amount", 16, 2, 0L));
+			FieldType computed = FieldType.GetStringKeyDataType("Computed", null, null);
+			computed.isComputedField = true;
+			computed.setComputedFieldExpression(expression);
+			fields.add(computed);
+			fields.add(FieldType.GetStringKeyDataType("Later", null, null));
+			try
+			{
+				new EbinFormatWriter(new ByteArrayOutputStream(), fields, new PrintStream(new ByteArrayOutputStream(), true));
+				fail(expression);
+			}catch(IllegalArgumentException e)
+			{
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Field {Computed}"));
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.dataset.util.CSVReader;
+import com.sforce.dataset.util.Utf8Record;
+
+/**
+ * The Class ErrorWriterTest.
+ *
+ * Writes errors for some rows of a file and checks that the extract of the
+ * failed rows is the header plus those rows, byte for byte when the rows were
+ * read by the UTF-8 byte engine.
+ */
+public class ErrorWriterTest {
+
+	private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("ErrorWriterTest").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private static void addErrors(File inputCsv, ErrorWriter errorWriter, List<Integer> errorRows) throws IOException
+	{
+		CSVReader reader = CSVReader.newReader(FileUtils.openInputStream(inputCsv), UTF8.name(), new char[]{','}, true, true);
+		try
+		{
+			List<String> row = reader.nextRow();
+			int rowNumber = 0;
+			while((row = reader.nextRow())!=null)
+			{
+				rowNumber++;
+				assertTrue(row instanceof Utf8Record);
+				if(errorRows.contains(rowNumber))
+					errorWriter.addError(row, rowNumber, "Amount", new NumberFormatException(row.get(1)));
+			}
+		}finally
+		{
+			reader.finalise();
+		}
+	}
+
+	private static byte[] extract(File inputCsv, File outputCsv) throws IOException
+	{
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		ErrorWriter.extractErrorRows(inputCsv, ',', UTF8, outputCsv, new PrintStream(log, true));
+		return FileUtils.readFileToByteArray(outputCsv);
+	}
+
+	@Test
+	public void testExtractCopiesRowsFromInput() throws IOException
+	{
+		File inputCsv = new File(dir, "input.csv");
+		String csv = "Name,Amount\r\na,1\r\n\"b\r\nété\",x\r\nc,3\r\n\"d,中\",y";
+		FileUtils.writeByteArrayToFile(inputCsv, csv.getBytes(UTF8));
+
+		ErrorWriter errorWriter = new ErrorWriter(inputCsv, ',', UTF8);
+		addErrors(inputCsv, errorWriter, Arrays.asList(2, 4));
+		errorWriter.finish();
+		assertTrue(ErrorWriter.getErrorFile(inputCsv).exists());
+		assertTrue(ErrorWriter.getErrorIndexFile(inputCsv).exists());
+
+		//The copied rows keep their CRLF, the last row had no line break
+		String expected = "Name,Amount\n\"b\r\nété\",x\r\n\"d,中\",y\n";
+		assertArrayEquals(expected.getBytes(UTF8), extract(inputCsv, new File(dir, "output.csv")));
+	}
+
+	@Test
+	public void testExtractEncodesRowsWithoutOffset() throws IOException
+	{
+		File inputCsv = new File(dir, "input.csv");
+		FileUtils.writeByteArrayToFile(inputCsv, "Name,Amount\na,1\n\"b,c\",x\n".getBytes(UTF8));
+
+		ErrorWriter errorWriter = new ErrorWriter(inputCsv, ',', UTF8);
+		//Rows read by the char engines have no byte range
+		errorWriter.addError(Arrays.asList("b,c", "x"), 2, "Amount", new NumberFormatException("x"));
+		errorWriter.finish();
+
+		String expected = "Name,Amount\n\"b,c\",x\n";
+		assertArrayEquals(expected.getBytes(UTF8), extract(inputCsv, new File(dir, "output.csv")));
+	}
+
+	@Test
+	public void testExtractFromSortedCopy() throws IOException
+	{
+		File inputCsv = new File(dir, "input.csv");
+		FileUtils.writeByteArrayToFile(inputCsv, "Name,Amount\nc,3\n\"b,c\",x\na,y\n".getBytes(UTF8));
+		File sortedCsv = new File(dir, "input_sorted.csv");
+		FileUtils.writeByteArrayToFile(sortedCsv, "Name,Amount\na,y\n\"b,c\",x\nc,3\n".getBytes(UTF8));
+
+		//The rows are read from the sorted copy, the errors are recorded against the input
+		ErrorWriter errorWriter = new ErrorWriter(inputCsv, ',', UTF8, false);
+		addErrors(sortedCsv, errorWriter, Arrays.asList(1, 2));
+		errorWriter.finish();
+		assertTrue(ErrorWriter.getErrorIndexFile(inputCsv).exists());
+		assertFalse(ErrorWriter.getErrorIndexFile(sortedCsv).exists());
+		assertFalse(ErrorWriter.getErrorFile(sortedCsv).exists());
+
+		//The offsets into the sorted copy are not recorded, the rows are rebuilt from the error csv
+		String expected = "Name,Amount\na,y\n\"b,c\",x\n";
+		assertArrayEquals(expected.getBytes(UTF8), extract(inputCsv, new File(dir, "output.csv")));
+	}
+
+	@Test
+	public void testExtractRebuildsRowsInInputCharset() throws IOException
+	{
+		Charset cp1251 = Charset.forName("windows-1251");
+		File inputCsv = new File(dir, "input.csv");
+		FileUtils.writeByteArrayToFile(inputCsv, "Имя,Сумма\nМосква,1\nКиев,x\n".getBytes(cp1251));
+
+		ErrorWriter errorWriter = new ErrorWriter(inputCsv, ',', cp1251);
+		errorWriter.addError(Arrays.asList("Киев", "x"), 2, "Сумма", new NumberFormatException("x"));
+		errorWriter.finish();
+
+		//The error csv is UTF-8 whatever the platform charset
+		String errorCsv = new String(FileUtils.readFileToByteArray(ErrorWriter.getErrorFile(inputCsv)), UTF8);
+		assertTrue(errorCsv, errorCsv.startsWith("Error,Имя,Сумма\n"));
+		assertTrue(errorCsv, errorCsv.endsWith(",Киев,x\n"));
+
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		File outputCsv = new File(dir, "output.csv");
+		ErrorWriter.extractErrorRows(inputCsv, ',', cp1251, outputCsv, new PrintStream(log, true));
+		assertArrayEquals("Имя,Сумма\nКиев,x\n".getBytes(cp1251), FileUtils.readFileToByteArray(outputCsv));
+	}
+}
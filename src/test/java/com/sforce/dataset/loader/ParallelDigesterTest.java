@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The Class ParallelDigesterTest.
+ */
+public class ParallelDigesterTest {
+
+	private File inputFile;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		inputFile = File.createTempFile("ParallelDigesterTest", ".csv");
+	}
+
+	@After
+	public void tearDown()
+	{
+		inputFile.delete();
+	}
+
+	@Test
+	public void testSplitIsRecordAligned() throws IOException
+	{
+		StringBuilder csv = new StringBuilder("Name,Amount\r\n");
+		for(int i=1;i<=1000;i++)
+		{
+			if(i%10==0)
+				csv.append("\"multi\nline ").append(i).append("\",").append(i).append("\r\n");
+			else
+				csv.append("row").append(i).append(',').append(i).append("\r\n");
+			if(i%100==0)
+				csv.append("\r\n");
+		}
+		byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+		Files.write(inputFile.toPath(), bytes);
+
+		List<long[]> segments = ParallelDigester.splitRecordAligned(inputFile, 4);
+		assertEquals(4, segments.size());
+		long expectedStart = 0;
+		for(long[] segment:segments)
+		{
+			assertEquals(expectedStart, segment[0]);
+			expectedStart += segment[1];
+			//Every segment starts with a data row, the first row of the segment tells which one
+			String firstLine = new String(bytes, (int) segment[0], 16, StandardCharsets.UTF_8);
+			if(segment[0]>0)
+			{
+				long firstRow = segment[2];
+				String expected = firstRow%10==0 ? "\"multi\nline "+firstRow+"\"" : "row"+firstRow+",";
+				assertEquals(expected, firstLine.substring(0, expected.length()));
+			}else
+			{
+				assertEquals(0, segment[2]);
+			}
+		}
+		assertEquals(bytes.length, expectedStart);
+	}
+
+	@Test
+	public void testSingleSegment() throws IOException
+	{
+		Files.write(inputFile.toPath(), "Name\na\nb\n".getBytes(StandardCharsets.UTF_8));
+		List<long[]> segments = ParallelDigester.splitRecordAligned(inputFile, 1);
+		assertEquals(1, segments.size());
+		assertEquals(0, segments.get(0)[0]);
+		assertEquals(inputFile.length(), segments.get(0)[1]);
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.ws.ConnectorConfig;
+
+/**
+ * The Class RestFilePartUploaderTest.
+ *
+ * Sends file parts to a local server and checks the multipart request it
+ * receives, the bytes and the CRC32 of each part and the handling of the 
+ * responses of the InsightsExternalDataPart REST resource.
+ */
+public class RestFilePartUploaderTest {
+
+	private static final String sessionId = "00Dxx0000000001!SESSION";
+	private static final String hdrId = "06Vxx0000000001AAA";
+
+	private File dir;
+	private Server server;
+	private ConnectorConfig config;
+
+	private final List<Received> requests = new ArrayList<Received>();
+	private volatile int responseStatus;
+	private volatile String responseBody;
+
+	/**
+	 * A request received by the server.
+	 */
+	private static final class Received {
+		String method;
+		String uri;
+		String authorization;
+		String contentType;
+		String contentLength;
+		byte[] body;
+	}
+
+	/**
+	 * A part of a multipart body.
+	 */
+	private static final class BodyPart {
+		final Map<String,String> headers = new LinkedHashMap<String,String>();
+		byte[] content;
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		dir = Files.createTempDirectory("RestFilePartUploaderTest").toFile();
+		server = new Server(0);
+		server.setHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+			{
+				Received received = new Received();
+				received.method = request.getMethod();
+				received.uri = request.getRequestURI();
+				received.authorization = request.getHeader("Authorization");
+				received.contentType = request.getContentType();
+				received.contentLength = request.getHeader("Content-Length");
+				received.body = IOUtils.toByteArray(request.getInputStream());
+				synchronized(requests)
+				{
+					requests.add(received);
+				}
+				response.setStatus(responseStatus);
+				response.setContentType("application/json;charset=UTF-8");
+				response.getOutputStream().write(responseBody.getBytes(StandardCharsets.UTF_8));
+				baseRequest.setHandled(true);
+			}
+		});
+		server.start();
+		int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+		config = new ConnectorConfig();
+		config.setServiceEndpoint("http://localhost:" + port + "/services/Soap/u/47.0/00Dxx0000000001");
+		config.setSessionId(sessionId);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		server.stop();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private byte[] writeData(File file, int length) throws IOException
+	{
+		byte[] data = new byte[length];
+		new Random(7).nextBytes(data);
+		FileUtils.writeByteArrayToFile(file, data);
+		return data;
+	}
+
+	@Test
+	public void testGetSObjectUri() throws Exception
+	{
+		assertEquals("https://na1.salesforce.com/services/data/v47.0/sobjects/InsightsExternalDataPart/", 
+				RestFilePartUploader.getSObjectUri("https://na1.salesforce.com/services/Soap/u/47.0/00Dxx0000000001").toString());
+	}
+
+	@Test
+	public void testInsertFileParts() throws Exception
+	{
+		File file = new File(dir, "data.gz");
+		byte[] data = writeData(file, 250000);
+		Map<Integer,FilePart> fileParts = PartFileOutputStream.sliceFile(file, 100000);
+		assertEquals(3, fileParts.size());
+
+		responseStatus = 201;
+		RestFilePartUploader uploader = new RestFilePartUploader(config);
+		try
+		{
+			for(int partNumber:fileParts.keySet())
+			{
+				FilePart part = fileParts.get(partNumber);
+				responseBody = "{\"id\":\"0PXxx000000000" + partNumber + "AAA\",\"success\":true,\"errors\":[]}";
+				assertEquals("0PXxx000000000" + partNumber + "AAA", uploader.insertFilePart(hdrId, partNumber, part));
+
+				byte[] expected = Arrays.copyOfRange(data, (int) part.getOffset(), (int) part.getOffset() + part.getLength());
+				assertEquals(UploadManifest.crc32(expected), uploader.getLastCrc32());
+
+				Received received = requests.get(partNumber - 1);
+				assertEquals("POST", received.method);
+				assertEquals("/services/data/v47.0/sobjects/InsightsExternalDataPart/", received.uri);
+				assertEquals("OAuth " + sessionId, received.authorization);
+				//The length is known up front, the body is not chunked
+				assertEquals(String.valueOf(received.body.length), received.contentLength);
+
+				List<BodyPart> bodyParts = parseMultipart(received.contentType, received.body);
+				assertEquals(2, bodyParts.size());
+
+				BodyPart json = bodyParts.get(0);
+				assertEquals("form-data; name=\"entity_content\"", json.headers.get("content-disposition"));
+				assertTrue(json.headers.get("content-type"), json.headers.get("content-type").startsWith("application/json"));
+				assertEquals("{\"InsightsExternalDataId\":\"" + hdrId + "\",\"PartNumber\":" + partNumber + "}", new String(json.content, StandardCharsets.UTF_8));
+
+				BodyPart dataFile = bodyParts.get(1);
+				assertEquals("form-data; name=\"DataFile\"; filename=\"part" + partNumber + "\"", dataFile.headers.get("content-disposition"));
+				assertEquals("application/octet-stream", dataFile.headers.get("content-type"));
+				assertEquals("binary", dataFile.headers.get("content-transfer-encoding"));
+				assertArrayEquals(expected, dataFile.content);
+			}
+		}finally
+		{
+			uploader.close();
+		}
+		assertEquals(3, requests.size());
+	}
+
+	@Test
+	public void testRequestLimitExceeded() throws Exception
+	{
+		File file = new File(dir, "data.gz");
+		byte[] data = writeData(file, 1000);
+		FilePart part = PartFileOutputStream.sliceFile(file, 100000).get(1);
+
+		responseStatus = 403;
+		responseBody = "[{\"message\":\"TotalRequests Limit exceeded.\",\"errorCode\":\"REQUEST_LIMIT_EXCEEDED\"}]";
+		RestFilePartUploader uploader = new RestFilePartUploader(config);
+		try
+		{
+			uploader.insertFilePart(hdrId, 1, part);
+			fail("The insert was rejected by the server");
+		}catch(IOException e)
+		{
+			//FilePartsUploaderThread backs off when the message holds the error code
+			assertTrue(e.getMessage(), e.getMessage().startsWith("HTTP 403: "));
+			assertTrue(e.getMessage(), e.getMessage().contains("REQUEST_LIMIT_EXCEEDED"));
+		}finally
+		{
+			uploader.close();
+		}
+		assertEquals(0, uploader.getLastCrc32());
+		assertEquals(1, requests.size());
+		assertArrayEquals(data, parseMultipart(requests.get(0).contentType, requests.get(0).body).get(1).content);
+	}
+
+	/**
+	 * Splits a multipart body into its parts, checking the boundaries on the way.
+	 */
+	private static List<BodyPart> parseMultipart(String contentType, byte[] body)
+	{
+		assertTrue(contentType, contentType.startsWith("multipart/form-data"));
+		String boundary = null;
+		for(String param:contentType.split(";"))
+		{
+			param = param.trim();
+			if(param.startsWith("boundary="))
+				boundary = param.substring("boundary=".length()).replace("\"", "");
+		}
+		assertTrue(contentType, boundary != null && !boundary.isEmpty());
+
+		//ISO-8859-1 maps each byte to one char, so offsets in the string are offsets in the body
+		String s = new String(body, StandardCharsets.ISO_8859_1);
+		String delimiter = "--" + boundary;
+		assertTrue(s.startsWith(delimiter + "\r\n"));
+		assertTrue(s.endsWith("\r\n" + delimiter + "--\r\n"));
+
+		List<BodyPart> parts = new ArrayList<BodyPart>();
+		int start = delimiter.length() + 2;
+		while(true)
+		{
+			int end = s.indexOf("\r\n" + delimiter, start);
+			assertTrue(end >= 0);
+			int headersEnd = s.indexOf("\r\n\r\n", start);
+			assertTrue(headersEnd >= 0 && headersEnd < end);
+			BodyPart part = new BodyPart();
+			for(String header:s.substring(start, headersEnd).split("\r\n"))
+			{
+				int colon = header.indexOf(':');
+				assertTrue(header, colon > 0);
+				part.headers.put(header.substring(0, colon).trim().toLowerCase(), header.substring(colon + 1).trim());
+			}
+			part.content = Arrays.copyOfRange(body, headersEnd + 4, end);
+			parts.add(part);
+			int next = end + 2 + delimiter.length();
+			if(s.startsWith("--", next))
+				break;
+			assertTrue(s.startsWith("\r\n", next));
+			start = next + 2;
+		}
+		return parts;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.sforce.dataset.Config;
+
+/**
+ * The Class UploadConcurrencyControllerTest.
+ *
+ * Checks the steps of the limit on the parts one upload sends at the same
+ * time: it starts at INITIAL_CONCURRENCY, grows by one part per round of
+ * parts whose latency stays close to the best seen, never goes over the
+ * max, and is halved once when the server pushes back.
+ */
+public class UploadConcurrencyControllerTest {
+
+	private static final long MB = 1024*1024;
+
+	private static void upload(UploadConcurrencyController controller, long latency) throws InterruptedException
+	{
+		assertTrue(controller.acquire());
+		controller.release(MB, latency, true, false);
+	}
+
+	private static void throttle(UploadConcurrencyController controller) throws InterruptedException
+	{
+		assertTrue(controller.acquire());
+		controller.release(MB, 0, false, true);
+	}
+
+	@Test
+	public void testDefaultBudget()
+	{
+		assertEquals(3, new Config().maxUploadThreads);
+	}
+
+	@Test
+	public void testInitialConcurrency()
+	{
+		assertEquals(UploadConcurrencyController.INITIAL_CONCURRENCY, new UploadConcurrencyController(8, null).getConcurrency());
+		assertEquals(1, new UploadConcurrencyController(1, null).getConcurrency());
+	}
+
+	@Test
+	public void testAdditiveIncrease() throws InterruptedException
+	{
+		UploadConcurrencyController controller = new UploadConcurrencyController(5, null);
+		//Every part adds 1/concurrency, so 2 becomes 2.5, 2.9 then 3.24
+		upload(controller, 1000);
+		upload(controller, 1000);
+		assertEquals(2, controller.getConcurrency());
+		upload(controller, 1000);
+		assertEquals(3, controller.getConcurrency());
+		for(int i=0;i<100;i++)
+		{
+			upload(controller, 1000);
+			assertTrue(controller.getConcurrency() <= 5);
+		}
+		assertEquals(5, controller.getConcurrency());
+	}
+
+	@Test
+	public void testSlowPartsDoNotGrow() throws InterruptedException
+	{
+		UploadConcurrencyController controller = new UploadConcurrencyController(8, null);
+		//The first part sets the baseline
+		upload(controller, 1000);
+		for(int i=0;i<10;i++)
+		{
+			upload(controller, 1600);
+			assertEquals(2, controller.getConcurrency());
+		}
+		//Within the tolerance of the baseline it grows again
+		upload(controller, 1400);
+		assertEquals(2, controller.getConcurrency());
+		upload(controller, 1000);
+		assertEquals(3, controller.getConcurrency());
+		//A part that was not inserted does not change the limit
+		assertTrue(controller.acquire());
+		controller.release(MB, 1000, false, false);
+		assertEquals(3, controller.getConcurrency());
+	}
+
+	@Test
+	public void testMultiplicativeDecrease() throws InterruptedException
+	{
+		UploadConcurrencyController controller = new UploadConcurrencyController(8, null);
+		while(controller.getConcurrency() < 6)
+			upload(controller, 60000);
+		throttle(controller);
+		assertEquals(3, controller.getConcurrency());
+		//The parts that were in flight with it are not counted again for the last part latency
+		throttle(controller);
+		throttle(controller);
+		assertEquals(3, controller.getConcurrency());
+
+		controller = new UploadConcurrencyController(8, null);
+		upload(controller, 0);
+		for(int i=0;i<3;i++)
+		{
+			Thread.sleep(5);
+			throttle(controller);
+			assertEquals(1, controller.getConcurrency());
+		}
+	}
+
+	@Test
+	public void testAcquireWaitsForTheLimit() throws InterruptedException
+	{
+		final UploadConcurrencyController controller = new UploadConcurrencyController(1, null);
+		assertTrue(controller.acquire());
+		Thread waiting = new Thread() {
+			@Override
+			public void run() {
+				try {
+					controller.acquire();
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		waiting.start();
+		waiting.join(300);
+		assertTrue(waiting.isAlive());
+		controller.release(MB, 1000, true, false);
+		waiting.join(5000);
+		assertFalse(waiting.isAlive());
+		controller.release(MB, 1000, true, false);
+	}
+}
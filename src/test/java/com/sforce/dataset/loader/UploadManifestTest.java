@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The Class UploadManifestTest.
+ *
+ * Checks that an interrupted upload resumes from the manifest of its data
+ * file: the parts recorded before a crash are reloaded, the manifest of
+ * another header is discarded, the recorded parts are checked again when the
+ * data file is newer than the manifest, and the parts the server does not
+ * have are forgotten.
+ */
+public class UploadManifestTest {
+
+	private static final int PART_LENGTH = 1000;
+
+	private File dir;
+	private File dataFile;
+	private ByteArrayOutputStream log;
+	private PrintStream logger;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("UploadManifestTest").toFile();
+		dataFile = new File(dir, "data.gz");
+		byte[] bytes = new byte[PART_LENGTH*3 - 100];
+		new Random(7).nextBytes(bytes);
+		FileUtils.writeByteArrayToFile(dataFile, bytes);
+		log = new ByteArrayOutputStream();
+		logger = new PrintStream(log, true);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private LinkedHashMap<Integer,FilePart> getFileParts(int partLength)
+	{
+		LinkedHashMap<Integer,FilePart> fileParts = new LinkedHashMap<Integer,FilePart>();
+		long length = dataFile.length();
+		int partNumber = 1;
+		for(long offset=0;offset<length;offset+=partLength)
+		{
+			fileParts.put(partNumber++, new FilePart(dataFile, offset, (int) Math.min(partLength, length - offset)));
+		}
+		return fileParts;
+	}
+
+	private void uploaded(UploadManifest manifest, LinkedHashMap<Integer,FilePart> fileParts, int... partNumbers) throws IOException
+	{
+		for(int partNumber:partNumbers)
+		{
+			FilePart part = fileParts.get(partNumber);
+			manifest.partUploaded(partNumber, part, UploadManifest.crc32(part.read(null)), "0Et00000000000"+partNumber);
+		}
+	}
+
+	private void touchDataFile() throws IOException
+	{
+		File manifestFile = UploadManifest.getManifestFile(dataFile);
+		assertTrue(dataFile.setLastModified(manifestFile.lastModified() + 10000));
+	}
+
+	@Test
+	public void testResumeAfterCrash() throws IOException
+	{
+		LinkedHashMap<Integer,FilePart> fileParts = getFileParts(PART_LENGTH);
+		UploadManifest manifest = UploadManifest.open(dataFile, "06V000000000001", logger);
+		assertFalse(manifest.isResumed());
+		assertEquals(0, manifest.getUploadedParts(fileParts).size());
+		uploaded(manifest, fileParts, 1, 2);
+		//The process dies while the last line is written
+		FileUtils.writeStringToFile(UploadManifest.getManifestFile(dataFile), "3,2000", StandardCharsets.UTF_8, true);
+
+		manifest = UploadManifest.open(dataFile, "06V000000000001", logger);
+		assertTrue(manifest.isResumed());
+		assertEquals(2, manifest.getUploadedPartCount());
+		assertEquals(Arrays.asList(1, 2), manifest.getUploadedParts(fileParts));
+		//Parts split at other byte ranges were not uploaded
+		assertEquals(0, manifest.getUploadedParts(getFileParts(PART_LENGTH/2)).size());
+
+		manifest.delete();
+		assertFalse(UploadManifest.getManifestFile(dataFile).exists());
+		assertFalse(UploadManifest.open(dataFile, "06V000000000001", logger).isResumed());
+	}
+
+	@Test
+	public void testStaleHeader() throws IOException
+	{
+		LinkedHashMap<Integer,FilePart> fileParts = getFileParts(PART_LENGTH);
+		uploaded(UploadManifest.open(dataFile, "06V000000000001", logger), fileParts, 1, 2, 3);
+
+		UploadManifest manifest = UploadManifest.open(dataFile, "06V000000000002", logger);
+		assertFalse(manifest.isResumed());
+		assertEquals(0, manifest.getUploadedPartCount());
+		List<String> lines = FileUtils.readLines(UploadManifest.getManifestFile(dataFile), StandardCharsets.UTF_8);
+		assertEquals(Arrays.asList("hdrId,06V000000000002"), lines);
+		//The parts of the first header are gone for good
+		assertFalse(UploadManifest.open(dataFile, "06V000000000001", logger).isResumed());
+	}
+
+	@Test
+	public void testNewerDataFileIsVerified() throws IOException
+	{
+		LinkedHashMap<Integer,FilePart> fileParts = getFileParts(PART_LENGTH);
+		uploaded(UploadManifest.open(dataFile, "06V000000000001", logger), fileParts, 1, 2);
+
+		//A streaming upload appends to the file after the first parts are inserted
+		FileUtils.writeByteArrayToFile(dataFile, new byte[PART_LENGTH], true);
+		touchDataFile();
+		UploadManifest manifest = UploadManifest.open(dataFile, "06V000000000001", logger);
+		assertTrue(manifest.isResumed());
+		assertEquals(Arrays.asList(1, 2), manifest.getUploadedParts(fileParts));
+
+		//A byte of part 2 changed
+		byte[] bytes = FileUtils.readFileToByteArray(dataFile);
+		bytes[PART_LENGTH + 10]++;
+		FileUtils.writeByteArrayToFile(dataFile, bytes);
+		touchDataFile();
+		manifest = UploadManifest.open(dataFile, "06V000000000001", logger);
+		assertFalse(manifest.isResumed());
+		assertEquals(0, manifest.getUploadedPartCount());
+		assertTrue(log.toString().contains("has changed since part {2} was uploaded"));
+	}
+
+	@Test
+	public void testTruncatedDataFile() throws IOException
+	{
+		LinkedHashMap<Integer,FilePart> fileParts = getFileParts(PART_LENGTH);
+		uploaded(UploadManifest.open(dataFile, "06V000000000001", logger), fileParts, 1, 3);
+
+		byte[] bytes = FileUtils.readFileToByteArray(dataFile);
+		FileUtils.writeByteArrayToFile(dataFile, Arrays.copyOf(bytes, PART_LENGTH*2 + 10));
+		touchDataFile();
+		UploadManifest manifest = UploadManifest.open(dataFile, "06V000000000001", logger);
+		assertFalse(manifest.isResumed());
+		assertEquals(0, manifest.getUploadedParts(fileParts).size());
+		assertTrue(log.toString().contains("has changed since part {3} was uploaded"));
+	}
+
+	@Test
+	public void testRetainAll() throws IOException
+	{
+		LinkedHashMap<Integer,FilePart> fileParts = getFileParts(PART_LENGTH);
+		UploadManifest manifest = UploadManifest.open(dataFile, "06V000000000001", logger);
+		uploaded(manifest, fileParts, 1, 2, 3);
+
+		//The server query only found parts 1 and 3
+		LinkedList<Integer> serverParts = new LinkedList<Integer>(Arrays.asList(1, 3));
+		manifest.retainAll(serverParts);
+		assertEquals(Arrays.asList(1, 3), manifest.getUploadedParts(fileParts));
+
+		manifest = UploadManifest.open(dataFile, "06V000000000001", logger);
+		assertTrue(manifest.isResumed());
+		assertEquals(Arrays.asList(1, 3), manifest.getUploadedParts(fileParts));
+		//Part 2 is uploaded again and recorded after the rewrite
+		uploaded(manifest, fileParts, 2);
+		manifest = UploadManifest.open(dataFile, "06V000000000001", logger);
+		assertEquals(Arrays.asList(1, 2, 3), manifest.getUploadedParts(fileParts));
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.schema.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.dataset.loader.DatasetLoaderException;
+
+/**
+ * The Class FileProfilerTest.
+ *
+ * Checks that the profile of a csv file guesses the separator, reads the
+ * header and samples every column in the same pass, and that the schema
+ * generated from the profile marks the first unique column as the unique id.
+ */
+public class FileProfilerTest {
+
+	private static final int ROW_COUNT = 2000;
+
+	private File dir;
+	private PrintStream logger;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("FileProfilerTest").toFile();
+		logger = new PrintStream(new ByteArrayOutputStream(), true);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private File writeFile(String name) throws IOException
+	{
+		StringBuilder sb = new StringBuilder("Id;Name;Amount;Code;Sparse\n");
+		for(int i=0;i<ROW_COUNT;i++)
+		{
+			sb.append("R").append(i).append(';');
+			sb.append(" Name").append(i%7).append(" ;");
+			sb.append(i*3%101).append(';');
+			sb.append("C").append(i).append(';');
+			if(i%4==0)
+				sb.append("S").append(i%10);
+			sb.append('\n');
+		}
+		File file = new File(dir, name);
+		FileUtils.writeStringToFile(file, sb.toString(), StandardCharsets.UTF_8);
+		return file;
+	}
+
+	@Test
+	public void testProfile() throws IOException
+	{
+		File file = writeFile("Accounts.txt");
+		FileProfiler profile = FileProfiler.profile(file, StandardCharsets.UTF_8, (char) 0, true, logger);
+		assertEquals(';', profile.getDelimiter());
+		assertEquals(Arrays.asList("Id", "Name", "Amount", "Code", "Sparse"), profile.getHeader());
+
+		FileProfiler.ColumnSample[] columns = profile.getColumns();
+		assertEquals(5, columns.length);
+		//Every column gets its sample from the same rows
+		for(int i=0;i<4;i++)
+		{
+			assertEquals(DetectFieldTypes.sampleSize, columns[i].getSample().size());
+		}
+		assertEquals("R0", columns[0].getSample().get(0));
+		assertEquals("Name1", columns[1].getSample().get(1));
+		assertEquals("6", columns[2].getSample().get(2));
+		assertEquals(ROW_COUNT/4, columns[4].getSample().size());
+		assertEquals("S4", columns[4].getSample().get(1));
+
+		//The distinct columns keep reading to the end of the file
+		assertTrue(columns[0].isUnique());
+		assertTrue(columns[3].isUnique());
+		assertEquals(ROW_COUNT, columns[0].getValues().size());
+		assertEquals(ROW_COUNT, columns[3].getValues().size());
+		assertFalse(columns[1].isUnique());
+		assertFalse(columns[2].isUnique());
+		assertFalse(columns[4].isUnique());
+		assertEquals(DetectFieldTypes.sampleSize, columns[1].getValues().size());
+	}
+
+	@Test
+	public void testHeaderOnly() throws IOException
+	{
+		File file = writeFile("Accounts.txt");
+		FileProfiler profile = FileProfiler.profile(file, StandardCharsets.UTF_8, ';', false, logger);
+		assertEquals(Arrays.asList("Id", "Name", "Amount", "Code", "Sparse"), profile.getHeader());
+		assertEquals(0, profile.getColumns().length);
+
+		File empty = new File(dir, "Empty.txt");
+		FileUtils.writeStringToFile(empty, "", StandardCharsets.UTF_8);
+		assertEquals(null, FileProfiler.profile(empty, StandardCharsets.UTF_8, ';', true, logger).getHeader());
+	}
+
+	@Test
+	public void testAutoSchemaUniqueId() throws IOException, DatasetLoaderException
+	{
+		File file = writeFile("Accounts.txt");
+		ExternalFileSchema schema = ExternalFileSchema.createAutoSchema(file, null, StandardCharsets.UTF_8, logger, "00Dxx0000000001");
+		assertEquals(";", schema.getFileFormat().getFieldsDelimitedBy());
+		List<FieldType> fields = schema.getObjects().get(0).getFields();
+		assertEquals(5, fields.size());
+		assertEquals("Id", fields.get(0).getName());
+		assertEquals("Text", fields.get(0).getType());
+		assertTrue(fields.get(0).isUniqueId);
+		//Only the first unique column is the unique id
+		assertEquals("Text", fields.get(3).getType());
+		assertFalse(fields.get(3).isUniqueId);
+		assertFalse(fields.get(1).isUniqueId);
+		assertEquals("Numeric", fields.get(2).getType());
+		assertFalse(fields.get(2).isUniqueId);
+	}
+}
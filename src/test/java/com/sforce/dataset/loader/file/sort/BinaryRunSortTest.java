@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.sort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.dataset.loader.file.schema.ext.FieldType;
+import com.sforce.dataset.util.CSVReader;
+import com.sforce.dataset.util.CsvWriter;
+
+/**
+ * The Class BinaryRunSortTest.
+ *
+ * Sorts csv files with {@link BinaryRunSort} and checks that the rows come out
+ * in the order of the {@link CsvRowComparator} of the fields, with the same
+ * rows as the input, or without the duplicates for a distinct sort. The runs
+ * are written uncompressed and with lz4 and deflate, merged by one reader and
+ * by parallel key ranges, and there are more natural runs than can be merged
+ * at once so that they are merged in more than one level. The key ranges of
+ * the parallel merge must join into the rows of the single merge, also when
+ * the keys they are split at repeat, and every run must read the same rows
+ * from an index entry as from its start.
+ */
+public class BinaryRunSortTest {
+
+	static final Charset cs = StandardCharsets.UTF_8;
+	static final String[] compressions = {SortRun.COMPRESSION_NONE, SortRun.COMPRESSION_LZ4, SortRun.COMPRESSION_DEFLATE};
+
+	private static final String[] names = {null, "a", "A", "ab", "b", "é", "日本", "😀", " z", "z", "quote \"q\"", "comma, c"};
+
+	File tmpdirectory;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		tmpdirectory = Files.createTempDirectory("BinaryRunSortTest").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(tmpdirectory);
+	}
+
+	/**
+	 * Gets the fields, the rows are sorted by Name then by Amount descending.
+	 */
+	static List<FieldType> getFields()
+	{
+		List<FieldType> fields = new ArrayList<FieldType>();
+		FieldType name = FieldType.GetStringKeyDataType("Name", null, null);
+		name.setSortIndex(1);
+		fields.add(name);
+		FieldType amount = FieldType.GetMeasureKeyDataType("Amount", 18, 2, 0L);
+		amount.setSortIndex(2);
+		amount.isSortAscending = false;
+		fields.add(amount);
+		fields.add(FieldType.GetStringKeyDataType("Other", null, null));
+		return fields;
+	}
+
+	/**
+	 * Gets a random row, the Other value only depends on the sort columns so 
+	 * rows with the same sort key are duplicates.
+	 */
+	static List<String> randomRow(Random random)
+	{
+		String name = names[random.nextInt(names.length)];
+		String amount = random.nextInt(10) == 0 ? null : Integer.toString(random.nextInt(2000) - 1000) + "." + random.nextInt(10);
+		return Arrays.asList(name, amount, name + "|" + amount);
+	}
+
+	static List<List<String>> randomRows(Random random, int rowCount)
+	{
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for(int i=0;i<rowCount;i++)
+			rows.add(randomRow(random));
+		return rows;
+	}
+
+	/**
+	 * Gets the rows in blocks that are each sorted, every block is a natural run.
+	 */
+	static List<List<String>> naturalRuns(Random random, int runCount, int runLength)
+	{
+		CsvRowComparator cmp = new CsvRowComparator(getFields());
+		List<List<String>> rows = new ArrayList<List<String>>();
+		List<String> last = null;
+		while(runCount > 0)
+		{
+			List<List<String>> run = randomRows(random, runLength);
+			Collections.sort(run, cmp);
+			//A run that starts after the end of the previous one would not start a new natural run
+			if(last != null && cmp.compare(last, run.get(0)) <= 0)
+				continue;
+			rows.addAll(run);
+			last = run.get(run.size()-1);
+			runCount--;
+		}
+		return rows;
+	}
+
+	static File writeCsv(File dir, List<List<String>> rows) throws IOException
+	{
+		File file = File.createTempFile("input", ".csv", dir);
+		CsvWriter writer = new CsvWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), cs)), ',', '"');
+		try
+		{
+			writer.writeRecord(Arrays.asList("Name", "Amount", "Other"));
+			for(List<String> row:rows)
+				writer.writeRecord(row);
+		}finally
+		{
+			writer.close();
+		}
+		return file;
+	}
+
+	static List<List<String>> readCsv(File file, int numHeader) throws IOException
+	{
+		CSVReader reader = new CSVReader(new FileInputStream(file), cs.name(), new char[]{','});
+		try
+		{
+			List<List<String>> rows = new ArrayList<List<String>>();
+			List<String> row = null;
+			while((row = reader.nextRow()) != null)
+			{
+				if(numHeader-- > 0)
+					continue;
+				rows.add(row);
+			}
+			return rows;
+		}finally
+		{
+			reader.finalise();
+		}
+	}
+
+	static List<List<String>> read(BinaryRunSort.MergedRowReader reader) throws IOException
+	{
+		try
+		{
+			List<List<String>> rows = new ArrayList<List<String>>();
+			List<String> row = null;
+			while((row = reader.nextRow()) != null)
+				rows.add(row);
+			return rows;
+		}finally
+		{
+			reader.finalise();
+		}
+	}
+
+	/**
+	 * Checks that the sorted rows are in comparator order and hold the same rows
+	 * as the input, rows with equal keys can come in any order.
+	 */
+	static void assertSorted(List<List<String>> input, boolean distinct, List<List<String>> sorted)
+	{
+		CsvRowComparator cmp = new CsvRowComparator(getFields());
+		for(int i=1;i<sorted.size();i++)
+		{
+			int result = cmp.compare(sorted.get(i-1), sorted.get(i));
+			assertTrue(i + " " + sorted.get(i-1) + " " + sorted.get(i), distinct ? result < 0 : result <= 0);
+		}
+		List<List<String>> expected = new ArrayList<List<String>>(distinct ? new LinkedHashSet<List<String>>(input) : input);
+		assertEquals(sort(expected), sort(sorted));
+	}
+
+	private static List<String> sort(List<List<String>> rows)
+	{
+		List<String> strings = new ArrayList<String>();
+		for(List<String> row:rows)
+			strings.add(row.toString());
+		Collections.sort(strings, Comparator.naturalOrder());
+		return strings;
+	}
+
+	private static BinaryRunSort newSorter(boolean distinct, String compression, File tmpdirectory)
+	{
+		//The smallest run budget, 1MB, holds a few thousand rows
+		return new BinaryRunSort(getFields(), distinct, 3, 0L, compression, tmpdirectory);
+	}
+
+	@Test
+	public void testSortInRuns() throws IOException
+	{
+		List<List<String>> input = randomRows(new Random(3), 30000);
+		File inputCsv = writeCsv(tmpdirectory, input);
+		List<List<String>> expected = null;
+		for(String compression:compressions)
+		{
+			for(boolean distinct:new boolean[]{false, true})
+			{
+				List<List<String>> sorted = read(newSorter(distinct, compression, tmpdirectory).open(inputCsv, cs, 1, ','));
+				assertSorted(input, distinct, sorted);
+				if(!distinct)
+				{
+					//The runs are merged in the same order whatever their compression
+					if(expected == null)
+						expected = sorted;
+					assertEquals(compression, expected, sorted);
+				}
+			}
+		}
+		assertEquals(inputCsv.getName(), 1, tmpdirectory.list().length);
+	}
+
+	@Test
+	public void testMultiLevelMerge() throws IOException
+	{
+		//More natural runs than the 256 that are merged at once
+		List<List<String>> input = naturalRuns(new Random(5), 700, 8);
+		File inputCsv = writeCsv(tmpdirectory, input);
+		for(String compression:compressions)
+		{
+			for(boolean distinct:new boolean[]{false, true})
+			{
+				BinaryRunSort sorter = newSorter(distinct, compression, tmpdirectory);
+				assertEquals(-1, sorter.countNaturalRuns(inputCsv, cs, 1, ','));
+				assertSorted(input, distinct, read(sorter.openNaturalRuns(inputCsv, cs, 1, ',')));
+
+				File outputFile = new File(tmpdirectory, "sorted.csv");
+				sorter.sort(inputCsv, cs, 1, ',', true, outputFile, 4);
+				assertEquals(Arrays.asList("Name", "Amount", "Other"), readCsv(outputFile, 0).get(0));
+				assertSorted(input, distinct, readCsv(outputFile, 1));
+				outputFile.delete();
+			}
+		}
+		assertEquals(inputCsv.getName(), 1, tmpdirectory.list().length);
+	}
+
+	@Test
+	public void testParallelMerge() throws IOException
+	{
+		List<List<String>> input = randomRows(new Random(11), 30000);
+		File inputCsv = writeCsv(tmpdirectory, input);
+		for(String compression:compressions)
+		{
+			for(boolean distinct:new boolean[]{false, true})
+			{
+				for(int numberOfMergeThreads:new int[]{1, 2, 7})
+				{
+					File outputFile = new File(tmpdirectory, "sorted.csv");
+					newSorter(distinct, compression, tmpdirectory).sort(inputCsv, cs, 1, ',', false, outputFile, numberOfMergeThreads);
+					assertSorted(input, distinct, readCsv(outputFile, 1));
+					outputFile.delete();
+				}
+			}
+		}
+		assertEquals(inputCsv.getName(), 1, tmpdirectory.list().length);
+	}
+
+	/**
+	 * Gets rows with few distinct sort keys, most of the keys in the sparse
+	 * indexes of the runs are the same.
+	 */
+	static List<List<String>> duplicateKeyRows(Random random, int rowCount)
+	{
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for(int i=0;i<rowCount;i++)
+		{
+			String name = names[random.nextInt(3)];
+			String amount = random.nextInt(4) == 0 ? "2.5" : "1";
+			rows.add(Arrays.asList(name, amount, "row " + i));
+		}
+		return rows;
+	}
+
+	@Test
+	public void testRangesMatchSingleMerge() throws IOException
+	{
+		Random random = new Random(41);
+		List<List<String>> input = duplicateKeyRows(random, 20000);
+		input.addAll(randomRows(random, 20000));
+		input.addAll(duplicateKeyRows(random, 20000));
+		File inputCsv = writeCsv(tmpdirectory, input);
+		for(String compression:compressions)
+		{
+			for(boolean distinct:new boolean[]{false, true})
+			{
+				BinaryRunSort sorter = newSorter(distinct, compression, tmpdirectory);
+				List<List<String>> expected = read(sorter.open(inputCsv, cs, 1, ','));
+				for(int numberOfMergeThreads:new int[]{3, 16})
+				{
+					File outputFile = new File(tmpdirectory, "sorted.csv");
+					sorter.sort(inputCsv, cs, 1, ',', false, outputFile, numberOfMergeThreads);
+					assertEquals(compression + " " + distinct + " " + numberOfMergeThreads, expected, readCsv(outputFile, 1));
+					outputFile.delete();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRunReadFromKey() throws IOException
+	{
+		Random random = new Random(43);
+		CsvRowComparator cmp = new CsvRowComparator(getFields());
+		SortKeyEncoder encoder = new SortKeyEncoder(cmp);
+		List<SortRun.Row> rows = new ArrayList<SortRun.Row>();
+		List<List<String>> values = duplicateKeyRows(random, 6000);
+		values.addAll(randomRows(random, 6000));
+		for(List<String> row:values)
+			rows.add(new SortRun.Row(encoder.encode(row), row));
+		Collections.sort(rows, SortRun.Row.BY_KEY);
+		for(String compression:compressions)
+		{
+			SortRun run = new SortRun(File.createTempFile("sortRun", ".bin", tmpdirectory), compression);
+			SortRun.Writer writer = run.openWriter();
+			for(SortRun.Row row:rows)
+				writer.write(row);
+			writer.close();
+			assertEquals(rows.size(), run.getRowCount());
+
+			List<byte[]> fromKeys = new ArrayList<byte[]>(run.getIndexKeys());
+			for(int i=0;i<20;i++)
+				fromKeys.add(encoder.encode(randomRow(random)));
+			for(byte[] fromKey:fromKeys)
+			{
+				int first = 0;
+				while(first < rows.size() && SortKeyEncoder.compare(rows.get(first).key, fromKey) < 0)
+					first++;
+				SortRun.Reader reader = run.openReader(fromKey);
+				List<List<String>> read = new ArrayList<List<String>>();
+				try
+				{
+					SortRun.Row row = null;
+					while((row = reader.next()) != null)
+					{
+						if(SortKeyEncoder.compare(row.key, fromKey) >= 0)
+							read.add(row.values);
+					}
+				}finally
+				{
+					reader.close();
+				}
+				List<List<String>> expected = new ArrayList<List<String>>();
+				for(SortRun.Row row:rows.subList(first, rows.size()))
+					expected.add(row.values);
+				assertEquals(compression, expected, read);
+			}
+			run.delete();
+		}
+	}
+}
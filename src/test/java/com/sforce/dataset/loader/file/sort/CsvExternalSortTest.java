@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.sort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.dataset.loader.file.schema.ext.ExternalFileSchema;
+import com.sforce.dataset.loader.file.schema.ext.ObjectType;
+
+/**
+ * The Class CsvExternalSortTest.
+ *
+ * Checks the sort order check that runs before the binary sort engine sorts
+ * a file. A file in sort order is not sorted, unless duplicates have to be
+ * removed, a file of a few sorted stretches has its natural runs merged and
+ * a file with more natural runs than can be merged at once is sorted.
+ */
+public class CsvExternalSortTest {
+
+	private File tmpdirectory;
+	private ByteArrayOutputStream log;
+	private PrintStream logger;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		tmpdirectory = Files.createTempDirectory("CsvExternalSortTest").toFile();
+		log = new ByteArrayOutputStream();
+		logger = new PrintStream(log, true, "UTF-8");
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(tmpdirectory);
+	}
+
+	private static ExternalFileSchema getSchema()
+	{
+		ObjectType object = new ObjectType();
+		object.setName("Test");
+		object.setFields(BinaryRunSortTest.getFields());
+		LinkedList<ObjectType> objects = new LinkedList<ObjectType>();
+		objects.add(object);
+		ExternalFileSchema schema = new ExternalFileSchema();
+		schema.setObjects(objects);
+		return schema;
+	}
+
+	private static List<List<String>> sorted(List<List<String>> rows)
+	{
+		List<List<String>> sorted = new ArrayList<List<String>>(rows);
+		Collections.sort(sorted, new CsvRowComparator(BinaryRunSortTest.getFields()));
+		return sorted;
+	}
+
+	private String getLog() throws IOException
+	{
+		String text = log.toString("UTF-8");
+		log.reset();
+		return text;
+	}
+
+	private int countNaturalRuns(File inputCsv) throws IOException
+	{
+		return new BinaryRunSort(BinaryRunSortTest.getFields(), false, 1, 0L, null, tmpdirectory).countNaturalRuns(inputCsv, BinaryRunSortTest.cs, 1, ',');
+	}
+
+	private File sortFile(File inputCsv, boolean distinct) throws IOException
+	{
+		return CsvExternalSort.sortFile(inputCsv, BinaryRunSortTest.cs, distinct, 1, getSchema(), ',', null, logger);
+	}
+
+	@Test
+	public void testSortedFileIsNotSorted() throws IOException
+	{
+		List<List<String>> input = sorted(BinaryRunSortTest.randomRows(new Random(23), 5000));
+		File inputCsv = BinaryRunSortTest.writeCsv(tmpdirectory, input);
+		assertEquals(1, countNaturalRuns(inputCsv));
+		assertEquals(inputCsv, sortFile(inputCsv, false));
+		assertTrue(getLog().contains("is already sorted"));
+		assertNull(CsvExternalSort.openSortedReader(inputCsv, BinaryRunSortTest.cs, false, 1, getSchema(), ',', null, logger));
+
+		File emptyCsv = BinaryRunSortTest.writeCsv(tmpdirectory, new ArrayList<List<String>>());
+		assertEquals(0, countNaturalRuns(emptyCsv));
+		assertEquals(emptyCsv, sortFile(emptyCsv, true));
+	}
+
+	@Test
+	public void testSortedFileWithDuplicatesIsMerged() throws IOException
+	{
+		//The random rows repeat, a distinct sort has to merge the one natural run to remove them
+		List<List<String>> input = sorted(BinaryRunSortTest.randomRows(new Random(29), 5000));
+		File inputCsv = BinaryRunSortTest.writeCsv(tmpdirectory, input);
+		File outputFile = sortFile(inputCsv, true);
+		assertNotEquals(inputCsv, outputFile);
+		assertTrue(getLog().contains("has {1} sorted runs"));
+		List<List<String>> output = BinaryRunSortTest.readCsv(outputFile, 1);
+		assertTrue(output.size() < input.size());
+		BinaryRunSortTest.assertSorted(input, true, output);
+
+		BinaryRunSort.MergedRowReader reader = CsvExternalSort.openSortedReader(inputCsv, BinaryRunSortTest.cs, true, 1, getSchema(), ',', null, logger);
+		BinaryRunSortTest.assertSorted(input, true, BinaryRunSortTest.read(reader));
+	}
+
+	@Test
+	public void testFewNaturalRunsAreMerged() throws IOException
+	{
+		List<List<String>> input = BinaryRunSortTest.naturalRuns(new Random(31), 5, 1000);
+		File inputCsv = BinaryRunSortTest.writeCsv(tmpdirectory, input);
+		assertEquals(5, countNaturalRuns(inputCsv));
+		for(boolean distinct:new boolean[]{false, true})
+		{
+			File outputFile = sortFile(inputCsv, distinct);
+			assertNotEquals(inputCsv, outputFile);
+			assertTrue(getLog().contains("has {5} sorted runs"));
+			BinaryRunSortTest.assertSorted(input, distinct, BinaryRunSortTest.readCsv(outputFile, 1));
+
+			BinaryRunSort.MergedRowReader reader = CsvExternalSort.openSortedReader(inputCsv, BinaryRunSortTest.cs, distinct, 1, getSchema(), ',', null, logger);
+			BinaryRunSortTest.assertSorted(input, distinct, BinaryRunSortTest.read(reader));
+		}
+	}
+
+	@Test
+	public void testManyNaturalRunsAreSorted() throws IOException
+	{
+		//One more natural run than can be merged at once
+		List<List<String>> input = BinaryRunSortTest.naturalRuns(new Random(37), 257, 4);
+		File inputCsv = BinaryRunSortTest.writeCsv(tmpdirectory, input);
+		assertEquals(-1, countNaturalRuns(inputCsv));
+		List<List<String>> firstRuns = new ArrayList<List<String>>(input.subList(0, 256 * 4));
+		assertEquals(256, countNaturalRuns(BinaryRunSortTest.writeCsv(tmpdirectory, firstRuns)));
+		for(boolean distinct:new boolean[]{false, true})
+		{
+			File outputFile = sortFile(inputCsv, distinct);
+			assertNotEquals(inputCsv, outputFile);
+			assertTrue(getLog().contains("is not sorted, sorting the file"));
+			BinaryRunSortTest.assertSorted(input, distinct, BinaryRunSortTest.readCsv(outputFile, 1));
+		}
+	}
+}
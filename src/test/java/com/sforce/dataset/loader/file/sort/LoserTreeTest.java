@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.sort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The Class LoserTreeTest.
+ *
+ * Checks that merging sorted sources with the loser tree gives the same order
+ * as a stable sort of the sources concatenated in source order.
+ */
+public class LoserTreeTest {
+
+	/** Compares only the key, so that the order of equal keys shows the stability. */
+	private static final Comparator<int[]> byKey = new Comparator<int[]>() {
+		@Override
+		public int compare(int[] a, int[] b) {
+			return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+		}
+	};
+
+	private static List<int[]> merge(List<List<int[]>> sources)
+	{
+		List<int[]> heads = new ArrayList<int[]>();
+		int[] positions = new int[sources.size()];
+		for(List<int[]> source:sources)
+		{
+			heads.add(source.isEmpty() ? null : source.get(0));
+		}
+		LoserTree<int[]> tree = new LoserTree<int[]>(heads, byKey);
+		List<int[]> merged = new ArrayList<int[]>();
+		while(!tree.isEmpty())
+		{
+			int winner = tree.winner();
+			merged.add(tree.peek());
+			List<int[]> source = sources.get(winner);
+			positions[winner]++;
+			tree.replaceWinner(positions[winner] < source.size() ? source.get(positions[winner]) : null);
+		}
+		return merged;
+	}
+
+	private static void assertSameAsStableSort(List<List<int[]>> sources)
+	{
+		List<int[]> expected = new ArrayList<int[]>();
+		for(List<int[]> source:sources)
+		{
+			expected.addAll(source);
+		}
+		Collections.sort(expected, byKey);
+		List<int[]> merged = merge(sources);
+		assertEquals(expected.size(), merged.size());
+		for(int i=0;i<expected.size();i++)
+		{
+			//Same element, not only the same key
+			assertTrue("at "+i+" of "+sources.size()+" sources", expected.get(i) == merged.get(i));
+		}
+	}
+
+	private static List<List<int[]>> randomSources(Random random, int k, int maxLength, int keyRange)
+	{
+		List<List<int[]>> sources = new ArrayList<List<int[]>>();
+		for(int s=0;s<k;s++)
+		{
+			List<int[]> source = new ArrayList<int[]>();
+			int length = random.nextInt(maxLength + 1);
+			for(int i=0;i<length;i++)
+			{
+				source.add(new int[]{random.nextInt(keyRange), s, i});
+			}
+			Collections.sort(source, byKey);
+			sources.add(source);
+		}
+		return sources;
+	}
+
+	@Test
+	public void testNoSources()
+	{
+		LoserTree<int[]> tree = new LoserTree<int[]>(new ArrayList<int[]>(), byKey);
+		assertTrue(tree.isEmpty());
+	}
+
+	@Test
+	public void testEmptySources()
+	{
+		List<List<int[]>> sources = new ArrayList<List<int[]>>();
+		for(int k=1;k<=5;k++)
+		{
+			sources.add(new ArrayList<int[]>());
+			assertEquals(0, merge(sources).size());
+		}
+	}
+
+	@Test
+	public void testEqualKeysKeepSourceOrder()
+	{
+		Random random = new Random(3);
+		for(int k=1;k<=9;k++)
+		{
+			assertSameAsStableSort(randomSources(random, k, 10, 1));
+		}
+	}
+
+	@Test
+	public void testRandomSources()
+	{
+		Random random = new Random(5);
+		for(int n=0;n<2000;n++)
+		{
+			int k = 1 + random.nextInt(n < 1000 ? 8 : 300);
+			assertSameAsStableSort(randomSources(random, k, random.nextInt(20), 1 + random.nextInt(50)));
+		}
+	}
+}
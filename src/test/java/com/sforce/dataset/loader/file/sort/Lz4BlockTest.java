@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.sort;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The Class Lz4BlockTest.
+ *
+ * Checks that blocks come back the same after they are compressed, for
+ * incompressible, repetitive and short blocks and for literal and match
+ * lengths that do not fit in the token, and that malformed blocks are
+ * rejected.
+ */
+public class Lz4BlockTest {
+
+	private static byte[] roundTrip(byte[] data) throws IOException
+	{
+		byte[] compressed = new byte[Lz4Block.maxCompressedLength(data.length)];
+		int length = new Lz4Block().compress(data, data.length, compressed);
+		assertTrue(length <= compressed.length);
+		byte[] decompressed = new byte[data.length];
+		Lz4Block.decompress(compressed, length, decompressed, data.length);
+		assertArrayEquals(data, decompressed);
+		return Arrays.copyOf(compressed, length);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		Random random = new Random(19);
+		for(int length:new int[]{0, 1, 4, 12, 13, 15, 16, 300, 1000, 65536, 200000})
+		{
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			roundTrip(data);
+			//Few distinct bytes give short matches at every distance
+			for(int i=0;i<length;i++)
+				data[i] = (byte) ('a' + random.nextInt(3));
+			roundTrip(data);
+			//A single byte gives one long match that overlaps the bytes it copies
+			Arrays.fill(data, (byte) 'x');
+			byte[] compressed = roundTrip(data);
+			if(length > 1000)
+				assertTrue(compressed.length < length / 100);
+		}
+		StringBuilder rows = new StringBuilder();
+		while(rows.length() < 100000)
+			rows.append("\u0003Name").append(random.nextInt(1000)).append("\u0005Other ").append(random.nextInt(20)).append("日本");
+		byte[] data = rows.toString().getBytes(StandardCharsets.UTF_8);
+		assertTrue(roundTrip(data).length < data.length / 2);
+	}
+
+	@Test
+	public void testMalformedBlock() throws IOException
+	{
+		byte[] data = "abcabcabcabcabcabcabcabcabcabc and the rest".getBytes(StandardCharsets.UTF_8);
+		byte[] compressed = new byte[Lz4Block.maxCompressedLength(data.length)];
+		int length = new Lz4Block().compress(data, data.length, compressed);
+		//Cut short, longer than it is and with an offset before the start
+		int[][] cases = {{length - 1, data.length}, {length, data.length + 1}, {length, data.length - 1}};
+		for(int[] c:cases)
+		{
+			try
+			{
+				Lz4Block.decompress(compressed, c[0], new byte[data.length + 1], c[1]);
+				fail(Arrays.toString(c));
+			}catch(IOException e)
+			{
+			}
+		}
+		byte[] badOffset = {(byte) 0x10, 'a', (byte) 0x05, 0, (byte) 0x10, 'b'};
+		try
+		{
+			Lz4Block.decompress(badOffset, badOffset.length, new byte[100], 10);
+			fail();
+		}catch(IOException e)
+		{
+		}
+	}
+}
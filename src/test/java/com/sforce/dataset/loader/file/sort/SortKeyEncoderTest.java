@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.loader.file.sort;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.foundations.comparator.column.AbstractComparator;
+import com.sforce.dataset.Preferences;
+import com.sforce.dataset.loader.file.schema.ext.FieldType;
+
+/**
+ * The Class SortKeyEncoderTest.
+ *
+ * Checks that comparing the encoded sort keys of two rows gives the same
+ * order as comparing the rows with the {@link CsvRowComparator} the encoder
+ * was built from.
+ */
+public class SortKeyEncoderTest {
+
+	private static final String[] strings = {null, "", " ", "a", "a ", " a", "A", "ab", "abc", "b", "B", "é", "é",
+			"z", "~", "\u007F", "\u0080", "ÿ", "㽾", "㽿", "䀀", "😀", "豈", "￿", "a￿", "ab\u0001"};
+	private static final String[] decimals = {null, "", "0", "-0", "0.00", "1", "-1", "1.005", "1.015", "-1.005", "1.00499", "0.001",
+			"-0.001", "99999999999999999999.99", "-99999999999999999999.99", "255", "256", "-255", "-256", "65536", "1e3", "12.5"};
+	private static final String[] integers = {null, "", "0", "-0", "1", "-1", "127", "128", "-128", "-129", "255", "256", "65535",
+			"-65536", "9223372036854775807", "9223372036854775808", "-9223372036854775809", "123456789012345678901234567890"};
+	private static final String[] dates = {null, "", "1969-12-31 23:59:59", "1970-01-01 00:00:00", "1970-01-01 00:00:01",
+			"2020-02-29 12:00:00", "2020-02-29 12:00:01", "0001-01-01 00:00:00", "9999-12-31 23:59:59", "1900-06-15 08:30:00"};
+
+	private static List<FieldType> fields(boolean[] ascending)
+	{
+		List<FieldType> fields = new ArrayList<FieldType>();
+		fields.add(FieldType.GetMeasureKeyDataType("Amount", 18, 2, 0L));
+		fields.add(FieldType.GetStringKeyDataType("Name", null, null));
+		fields.add(FieldType.GetMeasureKeyDataType("Count", 18, 0, 0L));
+		fields.add(FieldType.GetDateKeyDataType("CloseDate", "yyyy-MM-dd HH:mm:ss", null, new Preferences()));
+		fields.add(FieldType.GetStringKeyDataType("Other", null, null));
+		for(int i=0;i<ascending.length;i++)
+		{
+			fields.get(i).setSortIndex(i+1);
+			fields.get(i).isSortAscending = ascending[i];
+		}
+		return fields;
+	}
+
+	private static List<String> randomRow(Random random)
+	{
+		return Arrays.asList(decimals[random.nextInt(decimals.length)], strings[random.nextInt(strings.length)],
+				integers[random.nextInt(integers.length)], dates[random.nextInt(dates.length)], "x");
+	}
+
+	private static void assertSameOrder(CsvRowComparator cmp, Random random, int rowCount)
+	{
+		SortKeyEncoder encoder = new SortKeyEncoder(cmp);
+		List<List<String>> rows = new ArrayList<List<String>>();
+		List<byte[]> keys = new ArrayList<byte[]>();
+		for(int i=0;i<rowCount;i++)
+		{
+			List<String> row = randomRow(random);
+			rows.add(row);
+			keys.add(encoder.encode(row));
+		}
+		for(int i=0;i<rowCount;i++)
+		{
+			for(int j=0;j<rowCount;j++)
+			{
+				assertEquals(rows.get(i)+" "+rows.get(j), Integer.signum(cmp.compare(rows.get(i), rows.get(j))), Integer.signum(SortKeyEncoder.compare(keys.get(i), keys.get(j))));
+			}
+		}
+	}
+
+	@Test
+	public void testSameOrderAsComparator()
+	{
+		Random random = new Random(13);
+		for(int n=0;n<16;n++)
+		{
+			boolean[] ascending = {(n & 1)==0, (n & 2)==0, (n & 4)==0, (n & 8)==0};
+			assertSameOrder(new CsvRowComparator(fields(ascending)), random, 250);
+		}
+	}
+
+	@Test
+	public void testNullHighAndTrim()
+	{
+		Random random = new Random(17);
+		for(int n=0;n<4;n++)
+		{
+			CsvRowComparator cmp = new CsvRowComparator(fields(new boolean[]{n<2, n%2==0, true, false}));
+			for(int i=0;i<cmp.getSortColumnCount();i++)
+			{
+				((AbstractComparator) cmp.getColumnComparator(i)).getSortAttributes().setNullLowSortOrder(false);
+				((AbstractComparator) cmp.getColumnComparator(i)).getSortAttributes().setTrim(true);
+			}
+			assertSameOrder(cmp, random, 250);
+		}
+	}
+
+	@Test
+	public void testPrefixSortsFirst()
+	{
+		SortKeyEncoder encoder = new SortKeyEncoder(new CsvRowComparator(fields(new boolean[]{true, true})));
+		byte[] a = encoder.encode(Arrays.asList("1", "ab", "", "", ""));
+		byte[] b = encoder.encode(Arrays.asList("1", "ab\u0001", "", "", ""));
+		byte[] c = encoder.encode(Arrays.asList("1.00", "ab", "", "", ""));
+		assertEquals(-1, Integer.signum(SortKeyEncoder.compare(a, b)));
+		assertEquals(0, SortKeyEncoder.compare(a, c));
+	}
+}
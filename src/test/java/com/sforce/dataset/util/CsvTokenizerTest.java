@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.sforce.dataset.util.CSVReader.CSVParseException;
+
+/**
+ * The Class CsvTokenizerTest.
+ *
+ * Checks that the {@link CsvTokenizer} engine of {@link CSVReader} returns the
+ * same records as the StreamTokenizer based parser.
+ */
+public class CsvTokenizerTest {
+
+	private static final char[] comma = {','};
+
+	static List<List<String>> read(String csv, char[] separators, boolean useTokenizer) throws IOException
+	{
+		CSVReader reader = new CSVReader(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), "UTF-8", separators.clone(), useTokenizer);
+		try
+		{
+			List<List<String>> records = new ArrayList<List<String>>();
+			List<String> record = null;
+			while((record = reader.nextRecord())!=null)
+			{
+				records.add(new ArrayList<String>(record));
+			}
+			return records;
+		}finally
+		{
+			reader.finalise();
+		}
+	}
+
+	private static void assertSameRecords(String csv, char[] separators) throws IOException
+	{
+		assertEquals(csv, read(csv, separators, false), read(csv, separators, true));
+	}
+
+	@Test
+	public void testSimpleRecords() throws IOException
+	{
+		List<List<String>> records = read("Name,Amount\na,1\nb,2\n", comma, true);
+		assertEquals(3, records.size());
+		assertEquals("Name", records.get(0).get(0));
+		assertEquals("2", records.get(2).get(1));
+		assertSameRecords("Name,Amount\na,1\nb,2\n", comma);
+		assertSameRecords("Name,Amount\na,1\nb,2", comma);
+	}
+
+	@Test
+	public void testQuotedValues() throws IOException
+	{
+		assertSameRecords("a,\"b,c\",d\n", comma);
+		assertSameRecords("a,\"say \"\"hi\"\"\",d\n", comma);
+		assertSameRecords("a,\"line1\nline2\",d\n", comma);
+		assertSameRecords("a,\"line1\r\nline2\",d\r\n", comma);
+		assertSameRecords("a,\"\",d\n", comma);
+		assertSameRecords("\"a\",\"b\"\r\n\"c\",\"d\"", comma);
+	}
+
+	@Test
+	public void testEmptyValuesAndBlankLines() throws IOException
+	{
+		assertSameRecords("a,,c\n,,\n\n\r\nd,e,\n", comma);
+		assertSameRecords("\n\na,b\n\n", comma);
+		assertSameRecords("a\rb\rc\r", comma);
+	}
+
+	@Test
+	public void testSeparators() throws IOException
+	{
+		assertSameRecords("a|b,c\n", new char[]{'|'});
+		assertSameRecords("a|b,c\n", new char[]{'|', ','});
+		assertSameRecords("a\tb\t\"c\td\"\n", new char[]{'\t'});
+		assertSameRecords("a¦b¦c\n", new char[]{'¦'});
+		assertSameRecords("été,中文,\"😀\"\n", comma);
+	}
+
+	@Test
+	public void testParseErrors() throws IOException
+	{
+		assertParseError("a,b\"c\n");
+		assertParseError("a,\"b\"c\n");
+		assertParseError("a,\"b\n");
+	}
+
+	@Test
+	public void testRandomRecords() throws IOException
+	{
+		Random random = new Random(42);
+		String alphabet = "ab ,\"\n\ré|";
+		for(int n=0;n<500;n++)
+		{
+			StringBuilder csv = new StringBuilder();
+			int rows = random.nextInt(20);
+			for(int r=0;r<rows;r++)
+			{
+				int fields = 1 + random.nextInt(5);
+				for(int f=0;f<fields;f++)
+				{
+					if(f>0)
+						csv.append(',');
+					StringBuilder value = new StringBuilder();
+					int length = random.nextInt(8);
+					for(int i=0;i<length;i++)
+					{
+						value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+					}
+					String s = value.toString();
+					if(s.indexOf(',')>=0 || s.indexOf('"')>=0 || s.indexOf('\n')>=0 || s.indexOf('\r')>=0 || random.nextInt(4)==0)
+						csv.append('"').append(s.replace("\"", "\"\"")).append('"');
+					else
+						csv.append(s);
+				}
+				csv.append(random.nextBoolean() ? "\n" : "\r\n");
+			}
+			assertSameRecords(csv.toString(), comma);
+		}
+	}
+
+	private static void assertParseError(String csv) throws IOException
+	{
+		for(boolean useTokenizer:new boolean[]{false, true})
+		{
+			try
+			{
+				read(csv, comma, useTokenizer);
+				fail("Expected a parse error for {"+csv+"}, tokenizer "+useTokenizer);
+			}catch(CSVParseException e)
+			{
+				//expected
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * The Class ExpressionCompilerTest.
+ *
+ * Checks that compiled expressions give the same results as the JavaScript
+ * engine, in particular for prev references on the first row where the
+ * JavaScript engine sees an empty previous row.
+ */
+public class ExpressionCompilerTest {
+
+	private static final Object[] firstRowPrev = null;
+
+	private static Object eval(String expression, Object[] curr, Object[] prev)
+	{
+		Map<String,Integer> columnIndexes = new HashMap<String,Integer>();
+		columnIndexes.put("Name", 0);
+		columnIndexes.put("Amt", 1);
+		CompiledExpression compiled = ExpressionCompiler.compile(expression, columnIndexes, 2);
+		assertNotNull(expression, compiled);
+		return compiled.eval(curr, prev);
+	}
+
+	@Test
+	public void testArithmetic()
+	{
+		Object[] curr = {"a", 5L};
+		assertEquals(8L, eval("curr.Amt + 3", curr, firstRowPrev));
+		assertEquals(2.5d, eval("curr.Amt / 2", curr, firstRowPrev));
+		assertEquals("a5", eval("curr.Name + curr.Amt", curr, firstRowPrev));
+		assertEquals("A", eval("curr['Name'].toUpperCase()", curr, firstRowPrev));
+	}
+
+	@Test
+	public void testPrevIsUndefinedOnFirstRow()
+	{
+		Object[] curr = {"a", 5L};
+		Object value = eval("prev.Amt + curr.Amt", curr, firstRowPrev);
+		assertTrue(String.valueOf(value), value instanceof Double && ((Double) value).isNaN());
+		assertEquals("undefinedx", eval("prev.Name + 'x'", curr, firstRowPrev));
+		assertEquals(Boolean.TRUE, eval("prev.Name == null", curr, firstRowPrev));
+		assertEquals(Boolean.FALSE, eval("prev.Name === null", curr, firstRowPrev));
+		assertEquals(0L, eval("prev.Amt || 0", curr, firstRowPrev));
+		assertEquals(Boolean.TRUE, eval("isNaN(prev.Amt)", curr, firstRowPrev));
+		assertNull(eval("prev.Name", curr, firstRowPrev));
+	}
+
+	@Test
+	public void testPrevIsNullOnLaterRows()
+	{
+		Object[] curr = {"a", 5L};
+		Object[] prev = {null, null};
+		assertEquals(5L, eval("prev.Amt + curr.Amt", curr, prev));
+		assertEquals("nullx", eval("prev.Name + 'x'", curr, prev));
+		assertEquals(Boolean.TRUE, eval("prev.Name === null", curr, prev));
+		prev = new Object[]{"b", 2L};
+		assertEquals(7L, eval("prev.Amt + curr.Amt", curr, prev));
+		assertEquals("bx", eval("prev.Name + 'x'", curr, prev));
+	}
+
+	@Test
+	public void testUnsupportedExpressionIsNotCompiled()
+	{
+		Map<String,Integer> columnIndexes = new HashMap<String,Integer>();
+		columnIndexes.put("Name", 0);
+		assertNull(ExpressionCompiler.compile("curr.Name.split(',')[0]", columnIndexes, 1));
+		assertNull(ExpressionCompiler.compile("curr.Missing + 1", columnIndexes, 1));
+	}
+}
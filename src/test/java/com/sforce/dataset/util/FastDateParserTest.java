@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * The Class FastDateParserTest.
+ *
+ * Checks that the parser gives the same time as a strict SimpleDateFormat in
+ * GMT, the way FieldType.setFormat compiles it, and that it leaves the values
+ * and patterns it does not handle to the SimpleDateFormat.
+ */
+public class FastDateParserTest {
+
+	private static final String[] supportedPatterns = {"yyyy-MM-dd", "MM/dd/yyyy", "dd.MM.yyyy", "yyyy-MM-dd HH:mm:ss", 
+			"MM/dd/yyyy HH:mm:ss", "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", "yyyyMMdd", "yyyyMMddHHmmss", "M/d/yyyy H:m", "yyyy-MM-dd'T'HH:mm:ss", "[yyyy/MM/dd]"};
+
+	private static SimpleDateFormat getSimpleDateFormat(String pattern)
+	{
+		SimpleDateFormat sdf = new SimpleDateFormat(pattern);
+		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+		sdf.setLenient(false);
+		return sdf;
+	}
+
+	/**
+	 * Gets the time the SimpleDateFormat parses, or INVALID if it rejects the value.
+	 */
+	private static long parse(SimpleDateFormat sdf, String value)
+	{
+		try
+		{
+			return sdf.parse(value).getTime();
+		}catch(ParseException e)
+		{
+			return FastDateParser.INVALID;
+		}
+	}
+
+	@Test
+	public void testPatternTranslation()
+	{
+		for(String pattern:supportedPatterns)
+		{
+			assertNotNull(pattern, FastDateParser.compile(pattern));
+		}
+		//Two digit years, text fields, 12 hour clocks, time zones and abutting variable width fields are left to the SimpleDateFormat
+		String[] unsupported = {"MM/dd/yy", "yyy-MM-dd", "dd-MMM-yyyy", "EEE, dd MM yyyy", "MM/dd/yyyy hh:mm a", "yyyy-MM-dd'T'HH:mm:ssZ", 
+				"yyyy-MM-dd HH:mm:ss.S", "yyyyMd", "yyyy-MM-dd 'unterminated", "HH:mm:ss", "MM/yyyy", null, ""};
+		for(String pattern:unsupported)
+		{
+			assertNull(pattern, FastDateParser.compile(pattern));
+		}
+	}
+
+	@Test
+	public void testSameTimeAsSimpleDateFormat()
+	{
+		Random random = new Random(42);
+		//From 1600 to 2400
+		long min = -11676096000000L;
+		long max = 13569465600000L;
+		for(String pattern:supportedPatterns)
+		{
+			FastDateParser parser = FastDateParser.compile(pattern);
+			SimpleDateFormat sdf = getSimpleDateFormat(pattern);
+			for(int i=0;i<20000;i++)
+			{
+				String value = sdf.format(new Date(min + (long) (random.nextDouble() * (max - min))));
+				long expected = parse(sdf, value);
+				assertEquals(pattern + " " + value, expected, parser.parse(value));
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidDatesAreRejected()
+	{
+		FastDateParser parser = FastDateParser.compile("yyyy-MM-dd HH:mm:ss");
+		SimpleDateFormat sdf = getSimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		String[] invalid = {"2019-02-29 00:00:00", "2019-13-01 00:00:00", "2019-00-10 00:00:00", "2019-04-31 00:00:00", "2019-01-01 24:00:00", 
+				"2019-01-01 23:60:00", "2019-01-01 23:59:60", "2019-01-01", "2019-01-01 00:00:00 extra", "", "abc", "+2019-01-01 00:00:00"};
+		for(String value:invalid)
+		{
+			assertEquals(value, FastDateParser.INVALID, parser.parse(value));
+		}
+		for(String value:new String[]{"2019-02-29 00:00:00", "2019-13-01 00:00:00", "2019-04-31 00:00:00", "2019-01-01 24:00:00", "2019-01-01"})
+		{
+			assertEquals(value, FastDateParser.INVALID, parse(sdf, value));
+		}
+		//Values without the padding are left to the SimpleDateFormat
+		for(String value:new String[]{"2019-1-5 1:2:3", "2019-01-05 1:02:03"})
+		{
+			assertEquals(value, FastDateParser.INVALID, parser.parse(value));
+			assertEquals(value, parse(sdf, "2019-01-05 01:02:03"), parse(sdf, value));
+		}
+		assertEquals(parse(sdf, "2020-02-29 12:00:00"), parser.parse("2020-02-29 12:00:00"));
+	}
+
+	@Test
+	public void testDatesBeforeGregorianCutoverAreLeftToSimpleDateFormat()
+	{
+		FastDateParser parser = FastDateParser.compile("yyyy-MM-dd");
+		SimpleDateFormat sdf = getSimpleDateFormat("yyyy-MM-dd");
+		//SimpleDateFormat uses the julian calendar before 1582-10-15, java.time does not
+		for(String value:new String[]{"1500-03-01", "1582-10-04", "0001-01-01"})
+		{
+			assertEquals(value, FastDateParser.INVALID, parser.parse(value));
+		}
+		assertEquals(parse(sdf, "1582-10-15"), parser.parse("1582-10-15"));
+		assertEquals(parse(sdf, "1582-10-04") + 24L * 60 * 60 * 1000, parse(sdf, "1582-10-15"));
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * The Class ParallelGzipOutputStreamTest.
+ *
+ * Checks that the multi-member output decompresses to the input with the
+ * JDK and the commons-compress gzip readers, for inputs around the block size.
+ */
+public class ParallelGzipOutputStreamTest {
+
+	private static final int blockSize = 1024*1024;
+
+	private static GzipParameters newParams()
+	{
+		GzipParameters gzipParams = new GzipParameters();
+		gzipParams.setCompressionLevel(Deflater.BEST_SPEED);
+		gzipParams.setFilename("input.csv");
+		gzipParams.setComment("test");
+		gzipParams.setModificationTime(1500000000000L);
+		return gzipParams;
+	}
+
+	private static byte[] randomData(Random random, int length)
+	{
+		//A small alphabet so that the blocks compress
+		byte[] data = new byte[length];
+		for(int i=0;i<length;i++)
+		{
+			data[i] = (byte) ('a' + random.nextInt(random.nextInt(26)+1));
+		}
+		return data;
+	}
+
+	private static byte[] compress(byte[] data, int numThreads, Random random) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, newParams(), numThreads);
+		int off = 0;
+		while(off<data.length)
+		{
+			//Mix single bytes, small and large writes and flushes
+			int mode = random.nextInt(10);
+			if(mode==0)
+			{
+				gzip.write(data[off++]);
+			}else if(mode==1)
+			{
+				gzip.flush();
+			}else
+			{
+				int len = Math.min(data.length-off, random.nextInt(mode<5 ? 100 : blockSize*2));
+				gzip.write(data, off, len);
+				off += len;
+			}
+		}
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] read(InputStream in) throws IOException
+	{
+		try
+		{
+			return IOUtils.toByteArray(in);
+		}finally
+		{
+			in.close();
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		Random random = new Random(19);
+		int[] lengths = {0, 1, 100, blockSize-1, blockSize, blockSize+1, 3*blockSize+blockSize/2};
+		for(int numThreads=1;numThreads<=4;numThreads*=2)
+		{
+			for(int length:lengths)
+			{
+				byte[] data = randomData(random, length);
+				byte[] compressed = compress(data, numThreads, random);
+				assertArrayEquals(length+" bytes", data, read(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+				assertArrayEquals(length+" bytes", data, read(new GzipCompressorInputStream(new ByteArrayInputStream(compressed), true)));
+			}
+		}
+	}
+
+	@Test
+	public void testMembers() throws IOException
+	{
+		Random random = new Random(23);
+		byte[] data = randomData(random, 2*blockSize+10);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, newParams(), 2);
+		gzip.write(data);
+		gzip.close();
+
+		//Every block is its own member, only the first one is named
+		GzipCompressorInputStream first = new GzipCompressorInputStream(new ByteArrayInputStream(out.toByteArray()), false);
+		assertEquals(blockSize, read(first).length);
+		assertEquals("input.csv", first.getMetaData().getFilename());
+		assertEquals("test", first.getMetaData().getComment());
+		assertEquals(1500000000000L, first.getMetaData().getModificationTime());
+	}
+
+	@Test(expected=IOException.class)
+	public void testWriteAfterClose() throws IOException
+	{
+		ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(new ByteArrayOutputStream(), newParams(), 2);
+		gzip.close();
+		gzip.write(1);
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The Class RowBatchRingBenchmark.
+ *
+ * Compares the hand-off of rows from the csv reader thread to the writer
+ * thread through a {@link RowBatchRing} with the LinkedBlockingQueue of
+ * capacity 10 and empty row pill it replaced. Only the hand-off is measured,
+ * the rows are created up front. Each variant is run a few times to warm up
+ * and the median of the measured runs is printed.
+ *
+ * Usage: RowBatchRingBenchmark [rows] [batchSize]
+ */
+public class RowBatchRingBenchmark {
+
+	private static final int warmupRuns = 3;
+	private static final int measuredRuns = 5;
+	private static final int ringSize = 4;
+	private static final int queueCapacity = 10;
+
+	public static void main(String[] args) throws Exception
+	{
+		int rows = args.length>0 ? Integer.parseInt(args[0]) : 10000000;
+		int batchSize = args.length>1 ? Integer.parseInt(args[1]) : 1024;
+		List<List<String>> data = new ArrayList<List<String>>(1000);
+		for(int i=0;i<1000;i++)
+		{
+			data.add(Arrays.asList("row"+i, Integer.toString(i), "2014-01-01"));
+		}
+		NumberFormat nf = NumberFormat.getIntegerInstance();
+		System.out.println("rows {"+nf.format(rows)+"}, batch size {"+batchSize+"}");
+		System.out.println("LinkedBlockingQueue("+queueCapacity+"): "+nf.format(median(data, rows, 0))+" msecs");
+		System.out.println("RowBatchRing("+ringSize+","+batchSize+"): "+nf.format(median(data, rows, batchSize))+" msecs");
+	}
+
+	private static long median(List<List<String>> data, int rows, int batchSize) throws InterruptedException
+	{
+		long[] times = new long[measuredRuns];
+		for(int i=0;i<warmupRuns+measuredRuns;i++)
+		{
+			long time = batchSize>0 ? runRing(data, rows, batchSize) : runQueue(data, rows);
+			if(i>=warmupRuns)
+				times[i-warmupRuns] = time;
+		}
+		Arrays.sort(times);
+		return times[measuredRuns/2];
+	}
+
+	private static long runQueue(final List<List<String>> data, final int rows) throws InterruptedException
+	{
+		final LinkedBlockingQueue<List<String>> q = new LinkedBlockingQueue<List<String>>(queueCapacity);
+		final long[] count = new long[1];
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try
+				{
+					List<String> row = q.take();
+					while(row.size()!=0)
+					{
+						count[0]++;
+						row = q.take();
+					}
+				}catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		long startTime = System.currentTimeMillis();
+		consumer.start();
+		for(int i=0;i<rows;i++)
+		{
+			q.put(data.get(i % data.size()));
+		}
+		q.put(new ArrayList<String>(0));
+		consumer.join();
+		return check(count[0], rows, startTime);
+	}
+
+	private static long runRing(final List<List<String>> data, final int rows, int batchSize) throws InterruptedException
+	{
+		final RowBatchRing<List<String>> ring = new RowBatchRing<List<String>>(ringSize, batchSize);
+		final long[] count = new long[1];
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(ring.take()!=null)
+				{
+					count[0]++;
+				}
+			}
+		});
+		long startTime = System.currentTimeMillis();
+		consumer.start();
+		for(int i=0;i<rows;i++)
+		{
+			ring.put(data.get(i % data.size()));
+		}
+		ring.close();
+		consumer.join();
+		return check(count[0], rows, startTime);
+	}
+
+	private static long check(long count, int rows, long startTime)
+	{
+		long time = System.currentTimeMillis() - startTime;
+		if(count!=rows)
+			throw new IllegalStateException("Expected {"+rows+"} rows, got {"+count+"}");
+		return time;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * The Class RowBatchRingTest.
+ */
+public class RowBatchRingTest {
+
+	@Test
+	public void testPartialBatchIsPublishedOnClose()
+	{
+		RowBatchRing<Integer> ring = new RowBatchRing<Integer>(2, 4);
+		for(int i=0;i<6;i++)
+		{
+			assertTrue(ring.put(i));
+		}
+		ring.close();
+		for(int i=0;i<6;i++)
+		{
+			assertEquals(Integer.valueOf(i), ring.take());
+		}
+		assertNull(ring.take());
+		assertNull(ring.take());
+	}
+
+	@Test
+	public void testClosedEmptyRing()
+	{
+		RowBatchRing<Integer> ring = new RowBatchRing<Integer>(2, 4);
+		ring.close();
+		assertNull(ring.take());
+	}
+
+	@Test
+	public void testRowsArriveInOrderAcrossThreads() throws InterruptedException
+	{
+		final int rows = 1000000;
+		final RowBatchRing<Integer> ring = new RowBatchRing<Integer>(4, 100);
+		final AtomicLong sum = new AtomicLong(0);
+		final AtomicLong outOfOrder = new AtomicLong(0);
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int expected = 0;
+				Integer row = null;
+				while((row = ring.take())!=null)
+				{
+					if(row.intValue()!=expected)
+						outOfOrder.incrementAndGet();
+					expected++;
+					sum.addAndGet(row);
+				}
+			}
+		});
+		consumer.start();
+		for(int i=0;i<rows;i++)
+		{
+			ring.put(i);
+		}
+		ring.close();
+		consumer.join(60000);
+		assertFalse(consumer.isAlive());
+		assertEquals(0, outOfOrder.get());
+		assertEquals((long) rows * (rows - 1) / 2, sum.get());
+	}
+
+	@Test
+	public void testAbortReleasesBothSides() throws InterruptedException
+	{
+		final RowBatchRing<Integer> ring = new RowBatchRing<Integer>(1, 1);
+		assertTrue(ring.put(1));
+		//The ring is full, the producer waits for the consumer until the hand-off is aborted
+		final AtomicBoolean added = new AtomicBoolean(true);
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				added.set(ring.put(2));
+			}
+		});
+		producer.start();
+		producer.join(100);
+		assertTrue(producer.isAlive());
+		ring.abort();
+		producer.join(60000);
+		assertFalse(producer.isAlive());
+		assertFalse(added.get());
+		assertNull(ring.take());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullRowIsRejected()
+	{
+		new RowBatchRing<Integer>(1, 1).put(null);
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The Class ScaledDecimalParserTest.
+ *
+ * Checks that every value the parser accepts encodes to the same measure as
+ * the BigDecimal path of the ebin writer, so that the fast path never changes
+ * the data that is loaded.
+ */
+public class ScaledDecimalParserTest {
+
+	private static final DecimalFormatSymbols us = DecimalFormatSymbols.getInstance(Locale.US);
+	private static final DecimalFormatSymbols german = DecimalFormatSymbols.getInstance(Locale.GERMANY);
+
+	/**
+	 * The BigDecimal path of the ebin writer, returns the encoded measure or
+	 * null if the value is not a valid number.
+	 */
+	private static BigDecimal slowPath(String value, DecimalFormat format)
+	{
+		try
+		{
+			if(format==null)
+				return new BigDecimal(value.trim());
+			format.setParseBigDecimal(true);
+			return (BigDecimal) format.parse(value.trim());
+		}catch(Exception e)
+		{
+			return null;
+		}
+	}
+
+	private static long assertSameAsSlowPath(String value, DecimalFormat format, int scale)
+	{
+		ScaledDecimalParser parser = ScaledDecimalParser.compile(format);
+		assertNotNull(parser);
+		long scaled = parser.parse(value, scale);
+		if(scaled==ScaledDecimalParser.INVALID)
+			return scaled;
+		BigDecimal v = slowPath(value, format);
+		String message = "{"+value+"} scale "+scale+(format!=null?" format "+format.toPattern():"");
+		assertNotNull(message, v);
+		long multiplier = (long) Math.pow(10, scale);
+		assertEquals(message, (long) v.multiply(BigDecimal.valueOf(multiplier)).doubleValue(), scaled);
+		assertEquals(message, v.doubleValue(), scaled==0 ? 0.0d : (double) scaled / multiplier, 0.0d);
+		return scaled;
+	}
+
+	@Test
+	public void testPlainNumbers()
+	{
+		assertEquals(123, assertSameAsSlowPath("123", null, 0));
+		assertEquals(12345, assertSameAsSlowPath(" 123.45 ", null, 2));
+		assertEquals(-150, assertSameAsSlowPath("-1.5", null, 2));
+		assertEquals(150, assertSameAsSlowPath("+1.5", null, 2));
+		assertEquals(1200, assertSameAsSlowPath("1.200", null, 3));
+		assertEquals(1, assertSameAsSlowPath("1.000", null, 0));
+		assertEquals(50, assertSameAsSlowPath(".5", null, 2));
+		assertEquals(500, assertSameAsSlowPath("5.", null, 2));
+		assertEquals(0, assertSameAsSlowPath("-0", null, 0));
+		assertEquals(1L << 53, assertSameAsSlowPath("9007199254740992", null, 0));
+	}
+
+	@Test
+	public void testValuesLeftToTheSlowPath()
+	{
+		String[] values = {"", " ", "-", "+", ".", "1e5", "1.2.3", "0x10", "1,000", "--1", "1-", "NaN", "Infinity",
+				"1.005", "9007199254740993", "92233720368547758070", "1 2"};
+		for(String value:values)
+		{
+			assertEquals(value, ScaledDecimalParser.INVALID, assertSameAsSlowPath(value, null, 2));
+		}
+	}
+
+	@Test
+	public void testFormats()
+	{
+		DecimalFormat grouped = new DecimalFormat("#,##0.00", us);
+		assertEquals(123456789, assertSameAsSlowPath("1,234,567.89", grouped, 2));
+		assertEquals(-123456789, assertSameAsSlowPath("-1,234,567.89", grouped, 2));
+		assertEquals(ScaledDecimalParser.INVALID, assertSameAsSlowPath("1,,234", grouped, 2));
+
+		DecimalFormat percent = new DecimalFormat("0.00%", us);
+		assertEquals(125, assertSameAsSlowPath("12.5%", percent, 3));
+		assertEquals(ScaledDecimalParser.INVALID, assertSameAsSlowPath("12.5%", percent, 2));
+
+		DecimalFormat accounting = new DecimalFormat("#,##0.00;(#,##0.00)", us);
+		assertEquals(100050, assertSameAsSlowPath("1,000.50", accounting, 2));
+		assertEquals(-100050, assertSameAsSlowPath("(1,000.50)", accounting, 2));
+		assertEquals(ScaledDecimalParser.INVALID, assertSameAsSlowPath("-1,000.50", accounting, 2));
+
+		DecimalFormat germanFormat = new DecimalFormat("#,##0.00", german);
+		assertEquals(123456, assertSameAsSlowPath("1.234,56", germanFormat, 2));
+	}
+
+	@Test
+	public void testUnsupportedFormats()
+	{
+		assertNull(ScaledDecimalParser.compile(new DecimalFormat("0.###E0", us)));
+		DecimalFormat integerOnly = new DecimalFormat("0", us);
+		integerOnly.setParseIntegerOnly(true);
+		assertNull(ScaledDecimalParser.compile(integerOnly));
+		DecimalFormat multiplier = new DecimalFormat("0.00", us);
+		multiplier.setMultiplier(7);
+		assertNull(ScaledDecimalParser.compile(multiplier));
+		//The negative prefix -$ does not extend the positive prefix $
+		assertNull(ScaledDecimalParser.compile(new DecimalFormat("$#,##0.00", us)));
+	}
+
+	@Test
+	public void testRandomValues()
+	{
+		DecimalFormat[] formats = {null, new DecimalFormat("#,##0.00", us), new DecimalFormat("0.00%", us),
+				new DecimalFormat("#,##0.00;(#,##0.00)", us), new DecimalFormat("#,##0.###", german)};
+		String alphabet = "0123456789012345678901234567890123456789.,-+ %()";
+		Random random = new Random(11);
+		int fastPathCount = 0;
+		for(int n=0;n<200000;n++)
+		{
+			StringBuilder value = new StringBuilder();
+			int length = 1 + random.nextInt(20);
+			for(int i=0;i<length;i++)
+			{
+				value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+			DecimalFormat format = formats[random.nextInt(formats.length)];
+			if(assertSameAsSlowPath(value.toString(), format, random.nextInt(6))!=ScaledDecimalParser.INVALID)
+				fastPathCount++;
+		}
+		assertTrue(fastPathCount>1000);
+	}
+}
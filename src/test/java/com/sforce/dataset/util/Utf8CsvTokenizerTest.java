@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2014, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sforce.dataset.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The Class Utf8CsvTokenizerTest.
+ *
+ * Checks that the UTF-8 byte engine of {@link CSVReader} returns the same
+ * records as the char based engines, and that the byte range of each record
+ * points at the record in the input.
+ */
+public class Utf8CsvTokenizerTest {
+
+	private static final char[] comma = {','};
+
+	private static CSVReader newUtf8Reader(byte[] csv, char[] separators) throws IOException
+	{
+		return CSVReader.newReader(new ByteArrayInputStream(csv), "UTF-8", separators.clone(), true, true);
+	}
+
+	private static List<Utf8Record> readUtf8(byte[] csv, char[] separators, long baseOffset) throws IOException
+	{
+		CSVReader reader = newUtf8Reader(csv, separators);
+		reader.setBaseOffset(baseOffset);
+		try
+		{
+			List<Utf8Record> records = new ArrayList<Utf8Record>();
+			List<String> record = null;
+			while((record = reader.nextRow())!=null)
+			{
+				assertTrue(record instanceof Utf8Record);
+				records.add((Utf8Record) record);
+			}
+			return records;
+		}finally
+		{
+			reader.finalise();
+		}
+	}
+
+	private static List<List<String>> values(List<Utf8Record> records)
+	{
+		List<List<String>> values = new ArrayList<List<String>>();
+		for(Utf8Record record:records)
+		{
+			values.add(new ArrayList<String>(record));
+		}
+		return values;
+	}
+
+	private static void assertSameRecords(String csv, char[] separators) throws IOException
+	{
+		byte[] bytes = csv.getBytes(StandardCharsets.UTF_8);
+		List<Utf8Record> records = readUtf8(bytes, separators, 0);
+		assertEquals(csv, CsvTokenizerTest.read(csv, separators, false), values(records));
+		assertEquals(csv, CsvTokenizerTest.read(csv, separators, true), values(records));
+		//The byte range of a record parses to the same record on its own
+		for(Utf8Record record:records)
+		{
+			byte[] slice = Arrays.copyOfRange(bytes, (int) record.getRecordOffset(), (int) record.getRecordOffset() + record.getRecordLength());
+			List<Utf8Record> reparsed = readUtf8(slice, separators, 0);
+			assertEquals(csv, 1, reparsed.size());
+			assertEquals(csv, new ArrayList<String>(record), new ArrayList<String>(reparsed.get(0)));
+		}
+	}
+
+	@Test
+	public void testSameRecordsAsCharEngines() throws IOException
+	{
+		assertSameRecords("Name,Amount\na,1\nb,2\n", comma);
+		assertSameRecords("a,\"b,c\",\"say \"\"hi\"\"\"\r\n", comma);
+		assertSameRecords("a,\"line1\r\nline2\",d\r\ne,f,g", comma);
+		assertSameRecords("a,,c\n,,\n\n\r\nd,e,\n", comma);
+		assertSameRecords("a\rb\r\nc\n", comma);
+		assertSameRecords("a|b,c\n", new char[]{'|'});
+		assertSameRecords("a\tb\t\"c\td\"\n", new char[]{'\t'});
+		assertSameRecords("été,中文,\"😀,😀\"\nñ,ü,ß\n", comma);
+	}
+
+	@Test
+	public void testRandomRecords() throws IOException
+	{
+		Random random = new Random(7);
+		String alphabet = "ab ,\"\n\ré中😀";
+		for(int n=0;n<300;n++)
+		{
+			StringBuilder csv = new StringBuilder();
+			int rows = random.nextInt(20);
+			for(int r=0;r<rows;r++)
+			{
+				int fields = 1 + random.nextInt(5);
+				for(int f=0;f<fields;f++)
+				{
+					if(f>0)
+						csv.append(',');
+					StringBuilder value = new StringBuilder();
+					int length = random.nextInt(8);
+					for(int i=0;i<length;i++)
+					{
+						int c = alphabet.codePointAt(alphabet.offsetByCodePoints(0, random.nextInt(alphabet.codePointCount(0, alphabet.length()))));
+						value.appendCodePoint(c);
+					}
+					String s = value.toString();
+					if(s.indexOf(',')>=0 || s.indexOf('"')>=0 || s.indexOf('\n')>=0 || s.indexOf('\r')>=0 || random.nextInt(4)==0)
+						csv.append('"').append(s.replace("\"", "\"\"")).append('"');
+					else
+						csv.append(s);
+				}
+				csv.append(random.nextBoolean() ? "\n" : "\r\n");
+			}
+			assertSameRecords(csv.toString(), comma);
+		}
+	}
+
+	@Test
+	public void testRecordOffsets() throws IOException
+	{
+		byte[] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+		byte[] csv = "Name,Amount\r\n\"a\nb\",1\r\n\r\nc,2".getBytes(StandardCharsets.UTF_8);
+		byte[] input = new byte[bom.length + csv.length];
+		System.arraycopy(bom, 0, input, 0, bom.length);
+		System.arraycopy(csv, 0, input, bom.length, csv.length);
+		List<Utf8Record> records = readUtf8(input, comma, 1000);
+		assertEquals(3, records.size());
+		assertEquals(Arrays.asList("Name", "Amount"), records.get(0));
+		//The offsets count the byte order mark and the base offset
+		assertEquals(1000 + 3, records.get(0).getRecordOffset());
+		assertEquals(1000 + 3 + "Name,Amount\r\n".length(), records.get(1).getRecordOffset());
+		//A CRLF record ends after the CR, the LF is skipped when the next record is read
+		assertEquals("\"a\nb\",1\r".length(), records.get(1).getRecordLength());
+		assertEquals(1000 + input.length - "c,2".length(), records.get(2).getRecordOffset());
+		assertEquals("c,2".length(), records.get(2).getRecordLength());
+	}
+
+	@Test
+	public void testMalformedInput() throws IOException
+	{
+		byte[] csv = {'a', ',', (byte) 0xC3, '\n'};
+		CSVReader reader = newUtf8Reader(csv, comma);
+		try
+		{
+			reader.nextRow();
+			fail("Expected a MalformedInputException");
+		}catch(MalformedInputException e)
+		{
+			//expected
+		}finally
+		{
+			reader.finalise();
+		}
+	}
+
+	@Test
+	public void testNonAsciiSeparatorIsNotSupported()
+	{
+		assertTrue(Utf8CsvTokenizer.isSupported(new char[]{',', '|', '\t'}));
+		assertEquals(false, Utf8CsvTokenizer.isSupported(new char[]{'¦'}));
+		assertEquals(false, Utf8CsvTokenizer.isSupported(new char[]{'"'}));
+	}
+}